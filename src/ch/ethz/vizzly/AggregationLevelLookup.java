@@ -24,6 +24,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -37,11 +39,13 @@ import ch.ethz.vizzly.cache.CacheManager;
 import ch.ethz.vizzly.datatype.VizzlyException;
 import ch.ethz.vizzly.datatype.VizzlySignal;
 import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.util.SignalIdMap;
 
 /**
  * This class calculates the returned level of detail for a request. Given a requested signal including
  * a time period of interest, it is first decided if unaggregated data can be displayed. If not,
- * the best aggregation interval is determined.
+ * the best aggregation interval is determined. Changed estimations are marked as dirty and are
+ * written to the database by a background thread, so that cache updates never wait for it.
  * @author Matthias Keller
  *
  */
@@ -60,7 +64,16 @@ public class AggregationLevelLookup {
     
     private Boolean useDatabase = false;
     
-    private long lastDatabaseUpdate = 0L;
+    /* Serializes database accesses of the flusher and the final flush during shutdown */
+    private final Object databaseLock = new Object();
+    
+    /* Signals whose estimation changed since it has last been written to the database */
+    private Set<VizzlySignal> dirtySignals = null;
+    
+    /* Database IDs of the estimations of removed signals that still have to be deleted */
+    private Set<Integer> removedIds = null;
+    
+    private SamplingRateEstimationFlusher flusher = null;
     
     /**
      * Log.
@@ -82,9 +95,9 @@ public class AggregationLevelLookup {
      */
     private static AggregationLevelLookup instance = null;
 
-    private ConcurrentHashMap<VizzlySignal,SamplingRateEstimation> rateEstimators = null;
+    private SignalIdMap<SamplingRateEstimation> rateEstimators = null;
     
-    private ConcurrentHashMap<VizzlySignal,Integer> dbIdLookupTable = null;
+    private SignalIdMap<Integer> dbIdLookupTable = null;
 
     private AggregationLevelLookup() {}
     
@@ -93,12 +106,16 @@ public class AggregationLevelLookup {
             if(isInitialized) {
                 return;
             }
-            rateEstimators = new ConcurrentHashMap<VizzlySignal,SamplingRateEstimation>();
+            rateEstimators = new SignalIdMap<SamplingRateEstimation>();
             if(useDatabase) {
                 this.useDatabase = true;
                 initDatabase();
-                dbIdLookupTable = new ConcurrentHashMap<VizzlySignal,Integer>();
+                dbIdLookupTable = new SignalIdMap<Integer>();
+                dirtySignals = Collections.newSetFromMap(new ConcurrentHashMap<VizzlySignal,Boolean>());
+                removedIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
                 loadFromDatabase();
+                flusher = new SamplingRateEstimationFlusher(this, MIN_DB_UPDATE_WAIT);
+                flusher.start();
             }
             isInitialized = true;
         }
@@ -113,60 +130,35 @@ public class AggregationLevelLookup {
 
     public Boolean canLoadUnaggregatedData(VizzlySignal signal, Long timeFilterStart, 
             Long timeFilterEnd, int maxNumPoints, CacheManager cache) throws VizzlyException {
+        Double numPoints = getEstimatedNumberOfPoints(signal, timeFilterStart, timeFilterEnd, cache);
+        return numPoints != null && numPoints < maxNumPoints;
+    }
+
+    /**
+     * Estimates the number of unaggregated values of a signal within the given time period.
+     * @return Estimated number of values, null if the sampling rate of the signal is unknown
+     */
+    public Double getEstimatedNumberOfPoints(VizzlySignal signal, Long timeFilterStart, 
+            Long timeFilterEnd, CacheManager cache) throws VizzlyException {
         if(!isInitialized) {
             throw new VizzlyException("The aggregation level lookup instance has not been initialized.");
         }
-        Boolean ret = false;
         SamplingRateEstimation estim = rateEstimators.get(signal);
         if(estim == null) {
-            return ret;
+            return null;
         }
         Long signalStart = cache.getFirstPacketTimestamp(signal);
         Long signalEnd = cache.getLastPacketTimestamp(signal);
         // Two cases in which eventually no data will be provided
         if(timeFilterStart != null && timeFilterStart > signalEnd) {
-            return true;
+            return 0.0;
         }
         if(timeFilterEnd != null && timeFilterEnd < signalStart) {
-            return true;
+            return 0.0;
         }
         Long timeStart = (timeFilterStart == null) ? signalStart : ((timeFilterStart < signalStart) ? signalStart : timeFilterStart);
         Long timeEnd = (timeFilterEnd == null) ? signalEnd : ((timeFilterEnd > signalEnd) ? signalEnd : timeFilterEnd);
-        Long timeDiffMsec = timeEnd-timeStart;
-        Double numPoints = timeDiffMsec.doubleValue()*estim.getSamplingRate(timeStart, timeEnd);
-        if(numPoints < maxNumPoints) {
-            ret = true;
-        }
-        return ret;
-    }
-
-    public int getWindowLength(VizzlySignal signal, Long timeFilterStart, 
-            Long timeFilterEnd, int maxNumPoints, CacheManager cache) throws VizzlyException {
-        if(!isInitialized) {
-            throw new VizzlyException("The aggregation level lookup instance has not been initialized.");
-        }
-        int multiple = 1;
-        int windowLengthSec = 24*365*3600; // initialize with arbitrary chosen, high value
-        Long signalStart = cache.getFirstPacketTimestamp(signal);
-        Long signalEnd = cache.getLastPacketTimestamp(signal);
-        Long timeStart = (timeFilterStart == null) ? signalStart : ((timeFilterStart < signalStart) ? signalStart : timeFilterStart);
-        Long timeEnd = (timeFilterEnd == null) ? signalEnd : ((timeFilterEnd > signalEnd) ? signalEnd : timeFilterEnd);
-        if(timeStart == null) {
-            throw new VizzlyException("timeStart cannot be null at this point");
-        }
-        if(timeEnd == null) {
-            throw new VizzlyException("timeEnd cannot be null at this point");
-        }
-        Long timeDiffMsec = timeEnd-timeStart;
-        while(true) {
-            windowLengthSec = MIN_WINDOW_LENGTH_SEC*multiple;
-            double numWindows = timeDiffMsec.doubleValue()/((double)windowLengthSec*1000.0);
-            if(numWindows <= maxNumPoints) {
-                break;
-            }
-            multiple++;
-        }
-        return windowLengthSec;
+        return estim.getEstimatedNumberOfValues(timeStart, timeEnd);
     }
 
     public void updateSamplingRateEstimation(VizzlySignal signal, Vector<TimedLocationValue> values) {
@@ -175,16 +167,21 @@ public class AggregationLevelLookup {
             e = new SamplingRateEstimation(values.firstElement().timestamp);
             rateEstimators.put(signal, e);
         }
-        e.updateEstimation(values);
-        if(useDatabase) {
-            // Only update rate estimations that recently changed
-            updateDatabase(false);
+        if(e.updateEstimation(values) && useDatabase) {
+            // Written by the flusher thread
+            dirtySignals.add(signal);
         }
     }
 
     public void deleteSignalEstimation(VizzlySignal signal) {
         rateEstimators.remove(signal);
-        deleteFromDatabase(signal);
+        if(useDatabase) {
+            dirtySignals.remove(signal);
+            Integer id = dbIdLookupTable.remove(signal);
+            if(id != null) {
+                removedIds.add(id);
+            }
+        }
     }
     
     public Boolean isInitialized() {
@@ -228,10 +225,19 @@ public class AggregationLevelLookup {
                 ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(buf));
                 VizzlySignal sig = (VizzlySignal)objectIn.readObject();
                 buf = rs.getBytes("rate_estimation");
-                objectIn = new ObjectInputStream(new ByteArrayInputStream(buf));
-                SamplingRateEstimation e = (SamplingRateEstimation)objectIn.readObject();
+                SamplingRateEstimation e = null;
+                if(SamplingRateEstimation.isBinaryFormat(buf)) {
+                    e = SamplingRateEstimation.fromBytes(buf);
+                } else {
+                    // Written by an older version, replaced by the binary format with the next flush
+                    objectIn = new ObjectInputStream(new ByteArrayInputStream(buf));
+                    e = (SamplingRateEstimation)objectIn.readObject();
+                }
                 rateEstimators.put(sig, e);
                 dbIdLookupTable.put(sig, id);
+                if(!SamplingRateEstimation.isBinaryFormat(buf)) {
+                    dirtySignals.add(sig);
+                }
             }
             s.close();
             s = null;
@@ -247,98 +253,136 @@ public class AggregationLevelLookup {
     }
     
     /**
-     * This function synchronized the contents in memory with the database.
-     * @param forceUpdate Write all data independent of its recentness.
+     * Writes all dirty estimations to the database and deletes the estimations of removed
+     * signals. Estimations that could not be written remain dirty. Called by the flusher thread.
      */
-    private void updateDatabase(Boolean forceUpdate) {
-        synchronized(useDatabase) {
+    public void flushDirtyEstimations() {
+        synchronized(databaseLock) {
+            Vector<VizzlySignal> toWrite = drain(dirtySignals);
+            Vector<Integer> toDelete = drain(removedIds);
+            if(toWrite.size() == 0 && toDelete.size() == 0) {
+                return;
+            }
+            Connection conn = null;
+            PreparedStatement pInsert = null, pUpdate = null, pDelete = null;
+            Boolean committed = false;
             try {
-                if(!forceUpdate && (System.currentTimeMillis()-lastDatabaseUpdate) < MIN_DB_UPDATE_WAIT) {
-                    return;
-                }
-                Connection conn = ds.getConnection();
+                conn = ds.getConnection();
                 conn.setAutoCommit(false);
 
                 // Add not yet stored entries
-                PreparedStatement pInsert = conn.prepareStatement("INSERT INTO " + rateEstimatorTable + 
+                pInsert = conn.prepareStatement("INSERT INTO " + rateEstimatorTable + 
                         " (viz_signal, rate_estimation) VALUES (?, ?)", Statement.RETURN_GENERATED_KEYS);
-                PreparedStatement pUpdate = conn.prepareStatement("UPDATE " + rateEstimatorTable + 
+                pUpdate = conn.prepareStatement("UPDATE " + rateEstimatorTable + 
                         " SET rate_estimation = ? WHERE id = ?");
+                pDelete = conn.prepareStatement("DELETE FROM " + rateEstimatorTable + 
+                        " WHERE id = ?");
                 // This vector is required to map signals to auto-generated IDs later on
                 Vector<VizzlySignal> addedEstimators = new Vector<VizzlySignal>();
-                int batchSizeIns = 0, batchSizeUpd = 0;
-                for(VizzlySignal sig : rateEstimators.keySet()) {
+                int batchSizeIns = 0, batchSizeUpd = 0, batchSizeDel = 0;
+                for(VizzlySignal sig : toWrite) {
+                    SamplingRateEstimation e = rateEstimators.get(sig);
+                    if(e == null) {
+                        // Removed in the meantime
+                        continue;
+                    }
                     if(dbIdLookupTable.get(sig) == null) {
                         pInsert.setObject(1, sig);
-                        pInsert.setObject(2, rateEstimators.get(sig));
+                        pInsert.setBytes(2, e.toBytes());
                         pInsert.addBatch();
                         addedEstimators.add(sig);
                         batchSizeIns++;
                     } else {
-                        SamplingRateEstimation e = rateEstimators.get(sig);
-                        // Only update if there was a change since the last database update
-                        if(!forceUpdate && e.getLastSignificantUpdateTimestamp() < lastDatabaseUpdate) {
-                            continue;
-                        }
-                        pUpdate.setObject(1, e);
+                        pUpdate.setBytes(1, e.toBytes());
                         pUpdate.setInt(2, dbIdLookupTable.get(sig));
                         pUpdate.addBatch();
                         batchSizeUpd++;
                     }
                 }
+                for(Integer id : toDelete) {
+                    pDelete.setInt(1, id);
+                    pDelete.addBatch();
+                    batchSizeDel++;
+                }
+                // Newly generated IDs are retrieved before committing, hence nothing can fail 
+                // after the commit and no estimation is inserted twice
+                Vector<Integer> addedIds = new Vector<Integer>();
                 if(batchSizeIns > 0) {
                     pInsert.executeBatch();
-                    conn.commit();
-                    // Retrieve newly generated IDs
                     ResultSet rs = pInsert.getGeneratedKeys();
-                    int i = 0;
                     while(rs.next()) {
-                        dbIdLookupTable.put(addedEstimators.get(i), rs.getInt(1));
-                        i++;
+                        addedIds.add(rs.getInt(1));
                     }
+                    rs.close();
                 }
-                pInsert.close();
-                pInsert = null;
                 if(batchSizeUpd > 0) {
                     pUpdate.executeBatch();
-                    conn.commit();
                 }
-                pUpdate.close();
-                pUpdate = null;
-                conn.close();
-                conn = null;
-                
-                lastDatabaseUpdate = System.currentTimeMillis();
+                if(batchSizeDel > 0) {
+                    pDelete.executeBatch();
+                }
+                conn.commit();
+                committed = true;
+                for(int i = 0; i < addedIds.size() && i < addedEstimators.size(); i++) {
+                    VizzlySignal sig = addedEstimators.get(i);
+                    dbIdLookupTable.put(sig, addedIds.get(i));
+                    if(!rateEstimators.containsKey(sig) && dbIdLookupTable.remove(sig) != null) {
+                        // Removed while being inserted
+                        removedIds.add(addedIds.get(i));
+                    }
+                }
             } catch(SQLException e) {
                 log.error(e);
+                if(!committed) {
+                    // Retry with the next flush
+                    dirtySignals.addAll(toWrite);
+                    removedIds.addAll(toDelete);
+                }
+            } finally {
+                try {
+                    if(pInsert != null) {
+                        pInsert.close();
+                    }
+                    if(pUpdate != null) {
+                        pUpdate.close();
+                    }
+                    if(pDelete != null) {
+                        pDelete.close();
+                    }
+                } catch(SQLException ex) {
+                    log.error(ex);
+                }
+                try {
+                    if(conn != null) {
+                        try {
+                            if(!committed) {
+                                conn.rollback();
+                            }
+                        } finally {
+                            conn.close();
+                        }
+                    }
+                } catch(SQLException ex) {
+                    log.error(ex);
+                }
             }
         }
     }
-    
-    private void deleteFromDatabase(VizzlySignal signal) {
-        synchronized(useDatabase) {
-            try {
-                Connection conn = ds.getConnection();
-                conn.setAutoCommit(true);
-                
-                PreparedStatement p = conn.prepareStatement("DELETE FROM " + rateEstimatorTable + 
-                        " WHERE id = ?");
-                p.setInt(1, dbIdLookupTable.get(signal));
-                p.executeUpdate();
-                p.close();
-                p = null;
-                conn.close();
-                conn = null;
-                dbIdLookupTable.remove(signal);
-            } catch(SQLException e) {
-                log.error(e);
+
+    private static <T> Vector<T> drain(Set<T> set) {
+        Vector<T> ret = new Vector<T>();
+        for(T t : set) {
+            if(set.remove(t)) {
+                ret.add(t);
             }
         }
+        return ret;
     }
     
     public void flushEstimationData() {
         if(isInitialized && useDatabase) {
-            updateDatabase(true);
+            flusher.shutdown();
+            flushDirtyEstimations();
         }
     }
     
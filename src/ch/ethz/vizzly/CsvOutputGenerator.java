@@ -21,6 +21,7 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
 import java.util.Vector;
@@ -30,16 +31,25 @@ import org.apache.log4j.Logger;
 import ch.ethz.vizzly.cache.CacheManager;
 import ch.ethz.vizzly.datareader.AbstractDataReader;
 import ch.ethz.vizzly.datareader.DataReaderRegistry;
+import ch.ethz.vizzly.datatype.DeltaCursor;
+import ch.ethz.vizzly.datatype.QueryPlan;
 import ch.ethz.vizzly.datatype.VizzlyException;
 import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.datatype.readings.LocationBounds;
 import ch.ethz.vizzly.datatype.readings.LocationValueAggregate;
 import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueColumns;
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
 import ch.ethz.vizzly.performance.AbstractPerformanceTracker;
-import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement;
 import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
 import ch.ethz.vizzly.performance.UserRequestPerformanceMeasurement;
+import ch.ethz.vizzly.performance.UserRequestPerformanceMeasurement.RequestType;
+import ch.ethz.vizzly.util.DownsamplingUtil;
 import ch.ethz.vizzly.util.LocationAggregationGrid;
 import ch.ethz.vizzly.util.LocationFilter;
+import ch.ethz.vizzly.util.ParallelGridBuilder;
+import ch.ethz.vizzly.util.TimedValueCursorMerger;
+import ch.ethz.vizzly.util.TimestampTruncateUtil;
 
 /**
  * This class generates the CSV outputs that are then sent to a client.
@@ -60,21 +70,25 @@ public class CsvOutputGenerator {
 
     /**
      * Method for generating a single CSV output by combining information of several cache contents. Called from
-     * SensorVizDataSourceServlet when a user requests data.
+     * SensorVizDataSourceServlet when a user requests data. The data of the signals is fetched concurrently
+     * through the given executor. Unaggregated data is reduced to the canvas width with the given downsampling method.
+     * If a cursor from a previous response is given, only the windows that may have been appended or changed since
+     * then are returned, together with a new cursor. The data is returned at the same aggregation level as in the
+     * response the cursor belongs to, unless that level is more detailed than the planned one. In that case, all
+     * data is returned at the planned level with a delta start of -1.
      */
-    public static String getTimedDataCSV(VizzlySignal[] signals, Long timeFilterStart, Long timeFilterEnd, Double latSW, 
-            Double lngSW, Double latNE, Double lngNE, boolean forceLoadUnaggregated, int canvasWidth, 
-            UserRequestPerformanceMeasurement reqMeas, CacheManager cache, AbstractPerformanceTracker perfTracker, 
-            DataReaderRegistry readerRegistry)
+    public static String getTimedDataCSV(final VizzlySignal[] signals, final Long timeFilterStart, final Long timeFilterEnd, 
+            final Double latSW, final Double lngSW, final Double latNE, final Double lngNE, boolean forceLoadUnaggregated, 
+            final int canvasWidth, UserRequestPerformanceMeasurement reqMeas, final CacheManager cache, 
+            final AbstractPerformanceTracker perfTracker, final DataReaderRegistry readerRegistry, 
+            SignalFetchExecutor fetchExecutor, final DownsamplingUtil.Method downsampling, final DeltaCursor since)
                     throws VizzlyException {
         if(!cache.isInitialized()) {
             throw new VizzlyException("Cache initialization is ongoing. Please wait.");
         }
 
-        AggregationLevelLookup aggregationLookup = AggregationLevelLookup.getInstance();
-      
-        Vector<Boolean> signalIsAvailable = new Vector<Boolean>();
-        Vector<Boolean> valuesAreAggregated = new Vector<Boolean>();
+        final Vector<Boolean> signalIsAvailable = new Vector<Boolean>();
+        final Vector<Boolean> valuesAreAggregated = new Vector<Boolean>();
 
         // First check if all data is already available in the cache
         for(VizzlySignal s : signals) {
@@ -88,7 +102,9 @@ public class CsvOutputGenerator {
             throw new VizzlyException("New signal requested. Please come back later.");
         }
 
-        ArrayList<Vector<TimedLocationValue>> valuesList = new ArrayList<Vector<TimedLocationValue>>();
+        // Unaggregated data is loaded as values, cached data is read through cursors
+        final ArrayList<Vector<TimedLocationValue>> valuesList = new ArrayList<Vector<TimedLocationValue>>();
+        final TimedValueCursor[] cursors = new TimedValueCursor[signals.length];
 
         SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
         Calendar cal = Calendar.getInstance();
@@ -105,78 +121,124 @@ public class CsvOutputGenerator {
 
         reqMeas.setDataFetchStart();
         // If cached, the aggregation window length is the same for all signals
-        // The following code determined the largest, common window length
-        int windowLengthSec = AggregationLevelLookup.MIN_WINDOW_LENGTH_SEC;
+        // The following code determines the largest, common window length. All plans use
+        // stored levels that are aligned with the windows of the last cache, which holds
+        // all signals, hence the coarsest of them can be read for every signal.
+        final QueryPlanner planner = new QueryPlanner(cache, perfTracker);
+        final QueryPlan[] plans = new QueryPlan[signals.length];
+        int finestWindowLengthSec = cache.getWindowLength(cache.getNumberOfCaches()-1);
+        int windowLengthSec = finestWindowLengthSec;
         if(!forceLoadUnaggregated) {
             for(int i = 0; i < signals.length; i++) {
                 if(!signalIsAvailable.get(i)) {
                     continue;
                 }
                 VizzlySignal s = signals[i];
-                if(!aggregationLookup.canLoadUnaggregatedData(s, timeFilterStart, timeFilterEnd, canvasWidth, cache)) {
-                    int windowLengthThis = aggregationLookup.getWindowLength(s, timeFilterStart, timeFilterEnd, canvasWidth, cache);
-                    if(windowLengthThis > windowLengthSec) {
-                        windowLengthSec = windowLengthThis;
-                    }
+                plans[i] = planner.plan(s, timeFilterStart, timeFilterEnd, canvasWidth, canvasWidth);
+                if(!plans[i].isDirectAccess() && plans[i].windowLengthSec > windowLengthSec) {
+                    windowLengthSec = plans[i].windowLengthSec;
                 }
             }
         }
+        // Delta responses must match the response the cursor belongs to, even if the planner
+        // would choose a different level of detail by now. The cursor is sent by the client,
+        // hence its layout is only accepted if it is not more detailed than the planned one.
+        boolean acceptLayout = (since != null && since.hasLayout(signals.length) 
+                && since.windowLengthSec % finestWindowLengthSec == 0 && since.windowLengthSec >= windowLengthSec);
+        for(int i = 0; acceptLayout && i < signals.length; i++) {
+            if(since.unaggregated[i] && signalIsAvailable.get(i) && !forceLoadUnaggregated 
+                    && !plans[i].isDirectAccess()) {
+                acceptLayout = false;
+            }
+        }
+        final boolean reuseLayout = acceptLayout;
+        if(reuseLayout) {
+            windowLengthSec = since.windowLengthSec;
+        }
+        // Otherwise, the complete range is returned at the planned level and replaces all data of the client
+        final boolean isDelta = (since != null && (reuseLayout || !since.hasLayout(signals.length)));
+        // Slots are filled by the fetch threads, each thread only writes the slots of its own signals
         for(int i = 0; i < signals.length; i++) {
-            if(!signalIsAvailable.get(i)) {
-                valuesList.add(null);
-                valuesAreAggregated.add(null);
-                continue;
+            valuesList.add(null);
+            valuesAreAggregated.add(null);
+        }
+        // The window that contains the cursor may have changed since, hence it is returned again
+        long deltaStart = -1;
+        Long start = timeFilterStart;
+        if(isDelta) {
+            deltaStart = TimestampTruncateUtil.truncate(since.timestamp, windowLengthSec*1000L);
+            if(start == null || deltaStart > start) {
+                start = deltaStart;
             }
-            VizzlySignal s = signals[i];
-            // Also do not try to load unaggregated data if the selection is out of bounds
-            if(!forceLoadUnaggregated && (!aggregationLookup.canLoadUnaggregatedData(s, timeFilterStart, timeFilterEnd, canvasWidth, cache) 
-                    || timeFilterStart == null || timeFilterEnd == null 
-                    || timeFilterStart > cache.getLastPacketTimestamp(s) 
-                    || timeFilterEnd < cache.getFirstPacketTimestamp(s))) {
-                Boolean ignoreLocation = (latSW == null);
-                Vector<TimedLocationValue> d = cache.getSignalData(s, windowLengthSec, timeFilterStart, timeFilterEnd, ignoreLocation);
-                if(d != null) {
+        }
+        final Long fetchStart = start;
+        final int fetchWindowLengthSec = windowLengthSec;
+        final boolean fetchUnaggregated = forceLoadUnaggregated;
+        fetchExecutor.fetchAll(signals.length, new SignalFetchExecutor.FetchTask() {
+            public void fetch(int i) throws VizzlyException {
+                if(!signalIsAvailable.get(i)) {
+                    return;
+                }
+                VizzlySignal s = signals[i];
+                boolean loadFromCache = false;
+                if(reuseLayout) {
+                    loadFromCache = !since.unaggregated[i];
+                } else {
+                    // Also do not try to load unaggregated data if the selection is out of bounds
+                    loadFromCache = !fetchUnaggregated && (!plans[i].isDirectAccess() 
+                            || fetchStart == null || timeFilterEnd == null 
+                            || fetchStart > cache.getLastPacketTimestamp(s) 
+                            || timeFilterEnd < cache.getFirstPacketTimestamp(s));
+                }
+                if(loadFromCache) {
+                    Boolean ignoreLocation = (latSW == null);
+                    QueryPlan readPlan = planner.planCacheRead(s, fetchWindowLengthSec, fetchStart, timeFilterEnd);
+                    TimedValueCursor d = null;
                     if(ignoreLocation) {
-                        valuesList.add(d);
-                        valuesAreAggregated.add(true);
+                        d = cache.getSignalCursor(s, readPlan, fetchStart, timeFilterEnd, true);
                     } else {
-                        Vector<TimedLocationValue> n = LocationFilter.filterAndAggregateByLocation(d, latSW, lngSW, latNE, lngNE);
-                        valuesList.add(n);
-                        valuesAreAggregated.add(true);
+                        d = cache.getSignalCursor(s, readPlan, fetchStart, timeFilterEnd, 
+                                new LocationBounds(latSW, lngSW, latNE, lngNE));
                     }
-                } else {
-                    log.error("Could not load data from cache - also it should be there");
-                    signalIsAvailable.set(i, false);
-                    valuesList.add(null);
-                    valuesAreAggregated.add(null);
-                }
-            } else {
-                // Get data directly from original data source
-                AbstractDataReader dr = readerRegistry.getDataReader(s.dataSource.type);
-                // Set 100.000 as row limit for safety reasons, should be much less values
-                long dataFetchStart = System.currentTimeMillis();
-                reqMeas.setDataFetchStart();
-                Vector<TimedLocationValue> vals = dr.getSignalData(s, timeFilterStart, timeFilterEnd, 100000);
-                long dataFetchEnd = System.currentTimeMillis();
-                if(vals != null && vals.size() > 0) {
-                    if(latSW == null) {
-                        valuesList.add(vals);
+                    if(d != null) {
+                        if(!ignoreLocation) {
+                            // Filtering creates new aggregates per location, hence the data is copied here
+                            Vector<TimedLocationValue> inBounds = d.toVector();
+                            if(inBounds.size() > 0) {
+                                inBounds = LocationFilter.filterAndAggregateByLocation(inBounds, latSW, lngSW, latNE, lngNE);
+                            }
+                            d = toCursor(inBounds);
+                        }
+                        cursors[i] = d;
+                        valuesAreAggregated.set(i, true);
                     } else {
-                        valuesList.add(LocationFilter.filterByLocation(vals, latSW, lngSW, latNE, lngNE));
+                        log.error("Could not load data from cache - also it should be there");
+                        signalIsAvailable.set(i, false);
                     }
-                    valuesAreAggregated.add(false);
-                    DataFetchPerformanceMeasurement ps = new DataFetchPerformanceMeasurement(dataFetchStart,  s.getUniqueIdentifier(), -1, DataBackend.DIRECTACCESS, 
-                            1, vals.size(), dataFetchEnd-dataFetchStart);
-                    perfTracker.addDataFetchMeasurement(ps);
                 } else {
-                    log.error("Could not load data from raw data source");
-                    signalIsAvailable.set(i, false);
-                    valuesList.add(null);
-                    valuesAreAggregated.add(null);
+                    // Get data directly from original data source
+                    AbstractDataReader dr = readerRegistry.getDataReader(s.dataSource.type);
+                    // Set 100.000 as row limit for safety reasons, should be much less values
+                    long dataFetchStart = System.currentTimeMillis();
+                    Vector<TimedLocationValue> vals = dr.getSignalData(s, fetchStart, timeFilterEnd, 100000);
+                    long dataFetchEnd = System.currentTimeMillis();
+                    // No new values is a valid result for a delta request
+                    if(vals != null && (vals.size() > 0 || isDelta)) {
+                        Vector<TimedLocationValue> inBounds = vals;
+                        if(latSW != null) {
+                            inBounds = LocationFilter.filterByLocation(vals, latSW, lngSW, latNE, lngNE);
+                        }
+                        valuesList.set(i, DownsamplingUtil.downsample(downsampling, inBounds, canvasWidth));
+                        valuesAreAggregated.set(i, false);
+                        perfTracker.addDataFetchMeasurement(dataFetchStart, s.getUniqueIdentifier(), -1, DataBackend.DIRECTACCESS, 
+                                1, vals.size(), dataFetchEnd-dataFetchStart);
+                    } else {
+                        log.error("Could not load data from raw data source");
+                        signalIsAvailable.set(i, false);
+                    }
                 }
-
             }
-        }
+        });
         reqMeas.setDataFetchEnd();
 
         if(valuesList.size() == 0) {
@@ -218,96 +280,87 @@ public class CsvOutputGenerator {
         DecimalFormat df = (DecimalFormat)NumberFormat.getInstance(Locale.US);
         df.applyPattern("#.###");
         
-        int returnedLines = 0;
-        // Output aggregated data first
-        if(valuesAreAggregated.contains(true)) {
-            long startTime = -1;
-            long endTime = -1;
-
-            // Find smallest start time, and largest end time - need common basis for output
-            for(int i = 0; i < valuesList.size(); i++) {
-                if(!signalIsAvailable.get(i)) {
-                    continue;
-                }
-                if(!valuesAreAggregated.get(i)) {
-                    continue;
-                }
-                if(valuesList.get(i).size() > 0) {
-                    startTime = (startTime != -1) ? Math.min(startTime, valuesList.get(i).get(0).timestamp) :valuesList.get(i).get(0).timestamp;
-                    endTime = Math.max(endTime, valuesList.get(i).get(valuesList.get(i).size()-1).timestamp);
-                }
-            }
-
-            // Plot should not end in the future, but at the current date at most
-            endTime = Math.min(endTime, cal.getTimeInMillis());
-
-            // Remember the current position in each vector
-            int vectorPos[] = new int[valuesList.size()];
-            for(int i = 0; i < valuesList.size(); i++) {
-                vectorPos[i] = 0;
+        // Unaggregated values are read through cursors as well, so that all signals can be merged by timestamp.
+        // Data readers return values in chronological order.
+        TimedValueCursor[] sources = new TimedValueCursor[signals.length];
+        for(int i = 0; i < signals.length; i++) {
+            if(!signalIsAvailable.get(i)) {
+                continue;
             }
+            sources[i] = valuesAreAggregated.get(i) ? cursors[i] : toCursor(valuesList.get(i));
+        }
+        TimedValueCursorMerger merger = new TimedValueCursorMerger(sources);
 
-            for(long time = startTime; time <= endTime; time+=(windowLengthSec*1000)) {
-                StringBuilder sb = new StringBuilder();
-                Boolean hasData = false;
-                cal.setTimeInMillis(time);
-                sb.append(dateFormatter.format(cal.getTime())).append(",");
-                for(int i = 0; i < valuesList.size(); i++) {
-                    // Omit unaggregated data at this point
-                    if(!signalIsAvailable.get(i) || !valuesAreAggregated.get(i)) {
-                        if(i < valuesList.size()-1) {
-                            sb.append(",");
-                        }
-                        continue;
-                    }
-                    Vector<TimedLocationValue> thisVec = valuesList.get(i);
-                    // Omit empty values
-                    if(vectorPos[i] == thisVec.size() || thisVec.get(vectorPos[i]).timestamp != time) {
-                        if(i < valuesList.size()-1) {
-                            sb.append(",");
-                        }
-                        continue;
-                    }
-                    hasData = true;
-                    sb.append(df.format(thisVec.get(vectorPos[i]).value*signals[i].scaling));
-                    vectorPos[i]++;
-                    if(i < valuesList.size()-1) {
-                        sb.append(",");
-                    }
-                }
-                if(hasData) {
-                    csvOutput.write(sb.append("\n").toString());
-                    returnedLines++;
-                }
+        // Aggregated values must be aligned to a common time basis that starts at the smallest timestamp
+        long startTime = -1;
+        for(int i = 0; i < signals.length; i++) {
+            if(cursors[i] != null && merger.hasValue(i)) {
+                startTime = (startTime != -1) ? Math.min(startTime, cursors[i].getTimestamp()) : cursors[i].getTimestamp();
             }
         }
+        long windowLengthMilli = windowLengthSec*1000L;
+        // Plot should not end in the future, but at the current date at most
+        long endTime = cal.getTimeInMillis();
 
-        // Now output unaggregated data. Dygraph will re-order the overall CSV, if needed.
-        if(valuesAreAggregated.contains(false)) {
-            String commas = "";
-            for(int i = 0; i < valuesList.size(); i++) {
-                commas += ",";
-            }
-            for(int i = 0; i < valuesList.size(); i++) {
-                if(!signalIsAvailable.get(i)) {
+        // One line is written per distinct timestamp, a signal with several values at the same
+        // timestamp results in several lines
+        int returnedLines = 0;
+        long[] lastTimestamps = new long[signals.length];
+        Arrays.fill(lastTimestamps, -1L);
+        double[] rowValues = new double[signals.length];
+        boolean[] rowHasValue = new boolean[signals.length];
+        boolean rowHasData = false;
+        long rowTime = -1;
+        StringBuilder sb = new StringBuilder();
+        while(!merger.isEmpty()) {
+            int i = merger.getCursorIdx();
+            long time = merger.getTimestamp();
+            if(cursors[i] != null) {
+                // Values are sorted, hence all remaining values of this signal are in the future
+                if(time > endTime) {
+                    merger.skipCursor();
                     continue;
                 }
-                if(valuesAreAggregated.get(i)) {
+                // Values that are not aligned to the common time basis cannot be output
+                if((time-startTime) % windowLengthMilli != 0) {
+                    merger.next();
                     continue;
                 }
-                Vector<TimedLocationValue> d = valuesList.get(i);
-                for(int j = 0; j < d.size(); j++) {
-                    TimedLocationValue v = d.get(j);
-                    String commasFront = commas.substring(0, i+1); // substring ends at end-1
-                    String commasBack = commas.substring(i+1, commas.length());
-                    StringBuilder sb = new StringBuilder();
-                    cal.setTimeInMillis(v.timestamp);
-                    sb.append(dateFormatter.format(cal.getTime()));
-                    sb.append(commasFront).append(df.format(v.value*signals[i].scaling)).append(commasBack);
-                    csvOutput.write(sb.append("\n").toString());
-                    returnedLines++;
+            }
+            if(rowHasData && (time != rowTime || rowHasValue[i])) {
+                writeRow(csvOutput, sb, rowTime, rowValues, rowHasValue, signals, cal, dateFormatter, df);
+                returnedLines++;
+            }
+            rowTime = time;
+            rowValues[i] = sources[i].getValue();
+            rowHasValue[i] = true;
+            rowHasData = true;
+            lastTimestamps[i] = time;
+            merger.next();
+        }
+        if(rowHasData) {
+            writeRow(csvOutput, sb, rowTime, rowValues, rowHasValue, signals, cal, dateFormatter, df);
+            returnedLines++;
+        }
+        if(since != null) {
+            // Nothing must be missed on the next request, hence the signal that is furthest behind
+            // determines the new cursor
+            long cursor = -1;
+            for(long t : lastTimestamps) {
+                if(t != -1) {
+                    cursor = (cursor != -1) ? Math.min(cursor, t) : t;
                 }
             }
+            if(cursor == -1) {
+                cursor = since.timestamp;
+            }
+            boolean[] unaggregated = new boolean[signals.length];
+            for(int i = 0; i < signals.length; i++) {
+                unaggregated[i] = (valuesAreAggregated.get(i) != null) ? !valuesAreAggregated.get(i) 
+                        : (reuseLayout && since.unaggregated[i]);
+            }
+            csvOutput.write("# delta: " + Long.toString(deltaStart) + "\n");
+            csvOutput.write("# cursor: " + new DeltaCursor(cursor, windowLengthSec, unaggregated).toString() + "\n");
         }
         reqMeas.setNumReturnedLines(returnedLines);
         reqMeas.setNumRequestedSignals(valuesList.size());
@@ -317,15 +370,15 @@ public class CsvOutputGenerator {
 
     public static String getAggregationMapCSV(VizzlySignal[] signals, Long timeFilterStart, Long timeFilterEnd, Double latSW, Double lngSW, 
             Double latNE, Double lngNE, int canvasWidth, int canvasHeight, UserRequestPerformanceMeasurement reqMeas,
-            CacheManager cache, AbstractPerformanceTracker perfTracker, DataReaderRegistry readerRegistry)
-                    throws VizzlyException {
+            CacheManager cache, AbstractPerformanceTracker perfTracker, DataReaderRegistry readerRegistry, 
+            ParallelGridBuilder gridBuilder) throws VizzlyException {
         if(!cache.isInitialized()) {
             throw new VizzlyException("Cache initialization is ongoing. Please wait.");
         }
 
+        reqMeas.setRequestType(RequestType.AGGMAP);
         StringWriter outWriter = new StringWriter();
         VizzlySignal s = signals[0];
-        AggregationLevelLookup aggregationLookup = AggregationLevelLookup.getInstance();
 
         if(!cache.isInCache(s)) {
             throw new VizzlyException("New signal requested. Please come back later.");
@@ -338,15 +391,28 @@ public class CsvOutputGenerator {
 
         // In contrast to the time series display, we do not really have a points/pixel ratio here. Instead we choose
         // 1000 as not too many data points for generating a map.
-        if(!aggregationLookup.canLoadUnaggregatedData(s, timeFilterStart, timeFilterEnd, 1000, cache)) {
+        Boolean loadedFromTiles = false;
+        if(timeFilterStart != null && timeFilterEnd != null) {
+            // Long time ranges are answered by merging pre-aggregated spatial tiles
+            reqMeas.setDataFetchStart();
+            loadedFromTiles = cache.getAggregatedMapFromTiles(s, timeFilterStart, timeFilterEnd, grid);
+        }
+        QueryPlan plan = null;
+        if(!loadedFromTiles) {
+            plan = new QueryPlanner(cache, perfTracker).plan(s, timeFilterStart, timeFilterEnd, canvasWidth, 1000);
+        }
+        if(loadedFromTiles) {
+            reqMeas.setDataFetchEnd();
+        } else if(!plan.isDirectAccess()) {
             // Get data from cache
-            int windowLengthSec = aggregationLookup.getWindowLength(s, timeFilterStart, timeFilterEnd, canvasWidth, cache);
             reqMeas.setDataFetchStart();
-            Vector<TimedLocationValue> d = cache.getSignalData(s, windowLengthSec, timeFilterStart, timeFilterEnd, false);
+            // Only values within the map area are returned, the grid ignores all others anyway
+            TimedValueCursor d = cache.getSignalCursor(s, plan, timeFilterStart, timeFilterEnd, 
+                    new LocationBounds(latSW, lngSW, latNE, lngNE));
             reqMeas.setDataFetchEnd();
             if(d != null) {
-                for(TimedLocationValue v : d) {
-                    grid.addValue(v);
+                while(d.next()) {
+                    grid.addValue(d.getLatitude(), d.getLongitude(), d.getValue());
                 }
             } else {
                 throw new VizzlyException("Requested signal is not available. Please try again later and contact us if the problem remains.");
@@ -360,13 +426,10 @@ public class CsvOutputGenerator {
             Vector<TimedLocationValue> vals = dr.getSignalData(s, timeFilterStart, timeFilterEnd, 100000);
             reqMeas.setDataFetchEnd();
             long dataFetchEnd = System.currentTimeMillis();
-            for(int i=0; i<vals.size(); i++) {
-                grid.addValue(vals.get(i));
-            }
+            gridBuilder.addValues(grid, vals);
             if(vals.size() > 0) {
-                DataFetchPerformanceMeasurement ps = new DataFetchPerformanceMeasurement(dataFetchStart, s.getUniqueIdentifier(), 
+                perfTracker.addDataFetchMeasurement(dataFetchStart, s.getUniqueIdentifier(), 
                         -1, DataBackend.DIRECTACCESS, 1, vals.size(), dataFetchEnd-dataFetchStart);
-                perfTracker.addDataFetchMeasurement(ps);
             }
         }
 
@@ -395,4 +458,34 @@ public class CsvOutputGenerator {
         return outWriter.toString();
     }
 
+    /**
+     * Writes a line with the given values and resets them.
+     */
+    private static void writeRow(StringWriter csvOutput, StringBuilder sb, long time, double[] values, 
+            boolean[] hasValue, VizzlySignal[] signals, Calendar cal, SimpleDateFormat dateFormatter, DecimalFormat df) {
+        sb.setLength(0);
+        cal.setTimeInMillis(time);
+        sb.append(dateFormatter.format(cal.getTime()));
+        for(int i = 0; i < values.length; i++) {
+            sb.append(",");
+            if(hasValue[i]) {
+                sb.append(df.format(values[i]*signals[i].scaling));
+                hasValue[i] = false;
+            }
+        }
+        csvOutput.write(sb.append("\n").toString());
+    }
+
+    private static TimedValueCursor toCursor(Vector<TimedLocationValue> data) {
+        TimedValueColumns columns = new TimedValueColumns(data.size());
+        for(TimedLocationValue v : data) {
+            if(v.location != null) {
+                columns.add(v.timestamp, v.value, v.location.latitude, v.location.longitude);
+            } else {
+                columns.add(v.timestamp, v.value);
+            }
+        }
+        return columns.cursor();
+    }
+
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly;
+
+import java.util.EnumMap;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.cache.CacheManager;
+import ch.ethz.vizzly.datatype.QueryPlan;
+import ch.ethz.vizzly.datatype.VizzlyException;
+import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.performance.AbstractPerformanceTracker;
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+
+/**
+ * This class decides where the data of a request is loaded from. Candidates are the
+ * unaggregated data of the data source and each configured cache. Cached data is read at
+ * the finest stored level, i.e., the window length of a configured cache, that does not
+ * exceed the resolution of the canvas. All candidates are compared by their level of
+ * detail and their estimated cost. Costs are derived from the number of rows to be read
+ * and the time per row that has been observed for the respective backend.
+ * @author Matthias Keller
+ *
+ */
+public class QueryPlanner {
+
+    /* Observed fetch times of a backend are used once this many rows have been fetched */
+    private static final long MIN_OBSERVED_ROWS = 10000L;
+
+    /* Plans with a level of detail that is at most this factor coarser than the finest plan are considered */
+    private static final double MAX_DETAIL_LOSS = 2.0;
+
+    /* Assumed time per row in millisec as long as no fetch times have been observed */
+    private static final EnumMap<DataBackend, Double> DEFAULT_TIME_PER_ROW = new EnumMap<DataBackend, Double>(DataBackend.class);
+
+    static {
+        DEFAULT_TIME_PER_ROW.put(DataBackend.MEMCACHE, 0.0002);
+        DEFAULT_TIME_PER_ROW.put(DataBackend.FILECACHE, 0.001);
+        DEFAULT_TIME_PER_ROW.put(DataBackend.SQLDBCACHE, 0.005);
+        DEFAULT_TIME_PER_ROW.put(DataBackend.LIVEAGGREGATION, 0.001);
+        DEFAULT_TIME_PER_ROW.put(DataBackend.DIRECTACCESS, 0.02);
+        DEFAULT_TIME_PER_ROW.put(DataBackend.UNDEFINED, 0.01);
+    }
+
+    private static Logger log = Logger.getLogger(QueryPlanner.class);
+
+    private CacheManager cache = null;
+
+    private AbstractPerformanceTracker perfTracker = null;
+
+    public QueryPlanner(CacheManager cache, AbstractPerformanceTracker perfTracker) {
+        this.cache = cache;
+        this.perfTracker = perfTracker;
+    }
+
+    /**
+     * Determines the cheapest way of loading the data of a signal that provides (almost) the
+     * highest level of detail possible without exceeding the given number of values.
+     * @param maxNumWindows Maximum number of aggregation windows, usually the canvas width
+     * @param maxNumRawValues Maximum number of values loaded directly from the data source
+     */
+    public QueryPlan plan(VizzlySignal signal, Long timeFilterStart, Long timeFilterEnd, int maxNumWindows, 
+            int maxNumRawValues) throws VizzlyException {
+        double rangeSec = getRangeSec(signal, timeFilterStart, timeFilterEnd);
+        Double numRawValues = AggregationLevelLookup.getInstance().getEstimatedNumberOfPoints(signal, 
+                timeFilterStart, timeFilterEnd, cache);
+        // Mean distance between two unaggregated values
+        double rawInterval = (numRawValues != null && numRawValues > 0.0) ? rangeSec/numRawValues : 0.0;
+
+        QueryPlan best = null;
+        double bestLevel = 0.0;
+        QueryPlan[] candidates = new QueryPlan[cache.getNumberOfCaches()+1];
+        double[] levels = new double[candidates.length];
+        if(numRawValues != null && numRawValues < maxNumRawValues) {
+            candidates[0] = new QueryPlan(-1, 0, DataBackend.DIRECTACCESS, numRawValues, 
+                    getCost(DataBackend.DIRECTACCESS, numRawValues));
+            levels[0] = rawInterval;
+        }
+        int finestWindowLengthSec = cache.getWindowLength(cache.getNumberOfCaches()-1);
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            int cacheWindowLengthSec = cache.getWindowLength(i);
+            // The last cache holds all signals, hence windows must be aligned with its windows
+            if(cacheWindowLengthSec % finestWindowLengthSec != 0 || !cache.isInCache(signal, i)) {
+                continue;
+            }
+            int windowLengthSec = getStoredWindowLength(cacheWindowLengthSec, rangeSec, maxNumWindows);
+            candidates[i+1] = getCachePlan(i, windowLengthSec, rangeSec, numRawValues);
+            levels[i+1] = Math.max(windowLengthSec, rawInterval);
+        }
+        for(int i = 0; i < candidates.length; i++) {
+            if(candidates[i] != null && (best == null || levels[i] < bestLevel)) {
+                best = candidates[i];
+                bestLevel = levels[i];
+            }
+        }
+        if(best == null) {
+            throw new VizzlyException("Requested signal is not available. Please try again later.");
+        }
+        for(int i = 0; i < candidates.length; i++) {
+            if(candidates[i] != null && levels[i] <= MAX_DETAIL_LOSS*bestLevel 
+                    && candidates[i].estimatedCost < best.estimatedCost) {
+                best = candidates[i];
+            }
+        }
+        log.debug("Plan for " + signal.getUniqueIdentifier() + ": " + best);
+        return best;
+    }
+
+    /**
+     * Determines the cheapest cache for loading the data of a signal at a fixed window length,
+     * e.g., the common window length of several signals. Only caches whose window length is a
+     * divisor of the requested one are considered.
+     */
+    public QueryPlan planCacheRead(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, 
+            Long timeFilterEnd) throws VizzlyException {
+        double rangeSec = getRangeSec(signal, timeFilterStart, timeFilterEnd);
+        Double numRawValues = AggregationLevelLookup.getInstance().getEstimatedNumberOfPoints(signal, 
+                timeFilterStart, timeFilterEnd, cache);
+        QueryPlan best = null;
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            if(windowLengthSec % cache.getWindowLength(i) != 0 || !cache.isInCache(signal, i)) {
+                continue;
+            }
+            QueryPlan p = getCachePlan(i, windowLengthSec, rangeSec, numRawValues);
+            if(best == null || p.estimatedCost < best.estimatedCost) {
+                best = p;
+            }
+        }
+        if(best == null) {
+            // Let the cache manager search through all caches
+            best = new QueryPlan(0, windowLengthSec, DataBackend.UNDEFINED, 0.0, 0.0);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the finest stored level, i.e., the window length of a configured cache, that
+     * is a multiple of the given window length and at which the time range fits into
+     * maxNumWindows windows. If not even the coarsest stored level fits, it is doubled until
+     * it does, so that the same levels are used by all requests.
+     */
+    private int getStoredWindowLength(int cacheWindowLengthSec, double rangeSec, int maxNumWindows) {
+        int best = -1;
+        int coarsest = cacheWindowLengthSec;
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            int windowLengthSec = cache.getWindowLength(i);
+            if(windowLengthSec % cacheWindowLengthSec != 0) {
+                continue;
+            }
+            if(windowLengthSec > coarsest) {
+                coarsest = windowLengthSec;
+            }
+            if(rangeSec/windowLengthSec <= maxNumWindows && (best == -1 || windowLengthSec < best)) {
+                best = windowLengthSec;
+            }
+        }
+        if(best != -1) {
+            return best;
+        }
+        long windowLengthSec = coarsest;
+        while(rangeSec/windowLengthSec > maxNumWindows && windowLengthSec*2 <= Integer.MAX_VALUE) {
+            windowLengthSec *= 2;
+        }
+        return (int)windowLengthSec;
+    }
+
+    private QueryPlan getCachePlan(int cacheIdx, int windowLengthSec, double rangeSec, Double numRawValues) {
+        int cacheWindowLengthSec = cache.getWindowLength(cacheIdx);
+        DataBackend backend = cache.getDataBackend(cacheIdx);
+        // Windows without data are not stored
+        double numRows = rangeSec/cacheWindowLengthSec;
+        if(numRawValues != null) {
+            numRows = Math.min(numRows, numRawValues);
+        }
+        double cost = getCost(backend, numRows);
+        if(windowLengthSec != cacheWindowLengthSec) {
+            cost += getCost(DataBackend.LIVEAGGREGATION, Math.min(numRows, rangeSec/windowLengthSec));
+            backend = DataBackend.LIVEAGGREGATION;
+        }
+        return new QueryPlan(cacheIdx, windowLengthSec, backend, numRows, cost);
+    }
+
+    private double getCost(DataBackend backend, double numRows) {
+        double timePerRow = perfTracker.getMetrics().getMeanFetchTimePerRow(backend, MIN_OBSERVED_ROWS);
+        if(timePerRow < 0.0) {
+            timePerRow = DEFAULT_TIME_PER_ROW.get(backend);
+        }
+        return numRows*timePerRow;
+    }
+
+    /* Length of the requested time range, limited to the time range of the signal */
+    private double getRangeSec(VizzlySignal signal, Long timeFilterStart, Long timeFilterEnd) throws VizzlyException {
+        Long signalStart = cache.getFirstPacketTimestamp(signal);
+        Long signalEnd = cache.getLastPacketTimestamp(signal);
+        Long timeStart = (timeFilterStart == null) ? signalStart : ((timeFilterStart < signalStart) ? signalStart : timeFilterStart);
+        Long timeEnd = (timeFilterEnd == null) ? signalEnd : ((timeFilterEnd > signalEnd) ? signalEnd : timeFilterEnd);
+        if(timeStart == null) {
+            throw new VizzlyException("timeStart cannot be null at this point");
+        }
+        if(timeEnd == null) {
+            throw new VizzlyException("timeEnd cannot be null at this point");
+        }
+        return Math.max(timeEnd-timeStart, 1000L)/1000.0;
+    }
+
+}
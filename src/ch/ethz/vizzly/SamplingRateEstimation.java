@@ -16,7 +16,13 @@
 
 package ch.ethz.vizzly;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Vector;
@@ -30,7 +36,9 @@ import ch.ethz.vizzly.datatype.readings.ValueAggregate;
 /**
  * This class implements a data structure that maintains monthly estimates of the
  * unknown (mean) sampling interval of a signal. We assume that data is addded sequentially
- * and without large gaps.
+ * and without large gaps. In addition, the number of values per day is counted. Using the
+ * prefix sums of these counts, the number of values within any time period is estimated
+ * in constant time. The estimation is stored in a compact binary format, see toBytes().
  * @author Matthias Keller
  *
  */
@@ -42,6 +50,28 @@ public class SamplingRateEstimation implements Serializable {
     
     private Date firstTimestamp = null;
     
+    /* Number of values per day, starting with the day countStartDay (in days since epoch) */
+    private int[] dailyCounts = null;
+    
+    /* prefixSums[i] is the number of values counted before day i */
+    private long[] prefixSums = null;
+    
+    private int numDays = 0;
+    
+    private long countStartDay = -1L;
+    
+    private long firstCountedTimestamp = 0L;
+    
+    /* Timestamp of the most recent counted value, older values are not counted again */
+    private long lastCountedTimestamp = Long.MIN_VALUE;
+    
+    private static final long DAY_LENGTH_MILLI = 86400000L;
+    
+    /* Identifies the binary format, estimations written by older versions are serialized Java objects */
+    private static final int BINARY_FORMAT_MAGIC = 0x565a5245;
+    
+    private static final byte BINARY_FORMAT_VERSION = 1;
+    
     private static Logger log = Logger.getLogger(SamplingRateEstimation.class);
     
     /**
@@ -77,6 +107,9 @@ public class SamplingRateEstimation implements Serializable {
         this.firstTimestamp = cal.getTime();
     }
     
+    private SamplingRateEstimation() {
+    }
+    
     // Only used for debugging
     private void showEstimatorContents() {
         Calendar cal = Calendar.getInstance();
@@ -158,10 +191,16 @@ public class SamplingRateEstimation implements Serializable {
         }
     }
 
-    public void updateEstimation(Vector<TimedLocationValue> data) {
+    /**
+     * Adds new data to the estimation.
+     * @return True if the estimation changed and should be persisted
+     */
+    public synchronized Boolean updateEstimation(Vector<TimedLocationValue> data) {
+        long lastSignificantUpdate = lastSignificantUpdateTimestamp;
+        Boolean counted = updateDailyCounts(data);
         try {
             if(data.size() < 2) {
-                return;
+                return counted;
             }
             for(int i = 2; i < data.size(); i++) {
                 updateEstimate(getMonthsDiff(data.get(i).timestamp), data.get(i).timestamp-data.get(i-1).timestamp);
@@ -169,6 +208,90 @@ public class SamplingRateEstimation implements Serializable {
         } catch(VizzlyException e) {
             log.error(e);
         }
+        return counted || lastSignificantUpdateTimestamp != lastSignificantUpdate;
+    }
+    
+    private Boolean updateDailyCounts(Vector<TimedLocationValue> data) {
+        int firstChangedDay = -1;
+        for(TimedLocationValue v : data) {
+            // Updates overlap with previously added data
+            if(v.timestamp <= lastCountedTimestamp) {
+                continue;
+            }
+            long day = Math.floorDiv(v.timestamp, DAY_LENGTH_MILLI);
+            if(dailyCounts == null) {
+                dailyCounts = new int[64];
+                countStartDay = day;
+                firstCountedTimestamp = v.timestamp;
+                // Database entry should be updated after adding an entry
+                lastSignificantUpdateTimestamp = System.currentTimeMillis();
+            }
+            int dayIdx = (int)(day-countStartDay);
+            if(dayIdx >= dailyCounts.length) {
+                dailyCounts = Arrays.copyOf(dailyCounts, Math.max(dayIdx+1, 2*dailyCounts.length));
+            }
+            if(dayIdx >= numDays) {
+                numDays = dayIdx+1;
+            }
+            dailyCounts[dayIdx]++;
+            if(firstChangedDay == -1) {
+                firstChangedDay = dayIdx;
+            }
+            lastCountedTimestamp = v.timestamp;
+        }
+        if(firstChangedDay == -1) {
+            return false;
+        }
+        updatePrefixSums(firstChangedDay);
+        return true;
+    }
+    
+    private void updatePrefixSums(int firstChangedDayIdx) {
+        if(prefixSums == null || prefixSums.length < numDays+1) {
+            prefixSums = (prefixSums == null) ? new long[dailyCounts.length+1] : Arrays.copyOf(prefixSums, dailyCounts.length+1);
+            firstChangedDayIdx = 0;
+        }
+        for(int i = firstChangedDayIdx; i < numDays; i++) {
+            prefixSums[i+1] = prefixSums[i]+dailyCounts[i];
+        }
+    }
+    
+    /**
+     * Estimates the number of values within the given time period. Periods for which values
+     * have been counted are answered from the daily counts, assuming that values are evenly 
+     * distributed within a day. For older periods, the monthly sampling rates are used.
+     */
+    public synchronized double getEstimatedNumberOfValues(long timeStart, long timeEnd) throws VizzlyException {
+        if(timeEnd <= timeStart) {
+            return 0.0;
+        }
+        double ret = 0.0;
+        long countStart = (dailyCounts == null) ? Long.MAX_VALUE : countStartDay*DAY_LENGTH_MILLI;
+        if(timeStart < countStart) {
+            long end = Math.min(timeEnd, countStart);
+            ret += (double)(end-timeStart)*getSamplingRate(timeStart, end);
+            timeStart = end;
+        }
+        if(timeStart < timeEnd) {
+            ret += getCountBefore(timeEnd)-getCountBefore(timeStart);
+        }
+        return ret;
+    }
+    
+    private double getCountBefore(long timestamp) {
+        long dayIdx = Math.floorDiv(timestamp, DAY_LENGTH_MILLI)-countStartDay;
+        if(dayIdx < 0) {
+            return 0.0;
+        }
+        if(dayIdx >= numDays) {
+            return prefixSums[numDays];
+        }
+        // The first and the most recent day are only filled from the first and up to the last counted value
+        long dayStart = Math.max((countStartDay+dayIdx)*DAY_LENGTH_MILLI, firstCountedTimestamp);
+        long dayEnd = (dayIdx == numDays-1) ? lastCountedTimestamp+1 : (countStartDay+dayIdx+1)*DAY_LENGTH_MILLI;
+        double fraction = (double)(timestamp-dayStart)/(double)Math.max(dayEnd-dayStart, 1L);
+        fraction = Math.max(0.0, Math.min(fraction, 1.0));
+        return prefixSums[(int)dayIdx]+fraction*dailyCounts[(int)dayIdx];
     }
 
     public double getSamplingRate(Long timeStart, Long timeEnd) throws VizzlyException {
@@ -201,4 +324,82 @@ public class SamplingRateEstimation implements Serializable {
         return lastSignificantUpdateTimestamp;
     }
     
+    /**
+     * Returns whether the data has been written by toBytes(), in contrast to a serialized object.
+     */
+    public static Boolean isBinaryFormat(byte[] buf) {
+        return buf.length >= 4 && ((buf[0] & 0xff) << 24 | (buf[1] & 0xff) << 16 | (buf[2] & 0xff) << 8 
+                | (buf[3] & 0xff)) == BINARY_FORMAT_MAGIC;
+    }
+    
+    /**
+     * Writes the estimation in a binary format: magic number and version, followed by the
+     * monthly estimates (sum and number of samples) and the daily counts.
+     */
+    public synchronized byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64+9*monthlyEstimates.length+4*numDays);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(BINARY_FORMAT_MAGIC);
+            out.writeByte(BINARY_FORMAT_VERSION);
+            out.writeLong(firstTimestamp.getTime());
+            out.writeLong(lastSignificantUpdateTimestamp);
+            out.writeInt(monthlyEstimates.length);
+            for(ValueAggregate m : monthlyEstimates) {
+                if(m == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(m.getNumSamples());
+                    out.writeDouble(m.getAggregatedSum());
+                }
+            }
+            out.writeLong(countStartDay);
+            out.writeLong(firstCountedTimestamp);
+            out.writeLong(lastCountedTimestamp);
+            out.writeInt(numDays);
+            for(int i = 0; i < numDays; i++) {
+                out.writeInt(dailyCounts[i]);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch(IOException e) {
+            // Not thrown by in-memory streams
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public static SamplingRateEstimation fromBytes(byte[] buf) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf));
+        if(in.readInt() != BINARY_FORMAT_MAGIC) {
+            throw new IOException("Not a binary sampling rate estimation.");
+        }
+        byte version = in.readByte();
+        if(version != BINARY_FORMAT_VERSION) {
+            throw new IOException("Unsupported format version " + version + ".");
+        }
+        SamplingRateEstimation e = new SamplingRateEstimation();
+        e.firstTimestamp = new Date(in.readLong());
+        e.lastSignificantUpdateTimestamp = in.readLong();
+        e.monthlyEstimates = new ValueAggregate[in.readInt()];
+        for(int i = 0; i < e.monthlyEstimates.length; i++) {
+            int numSamples = in.readInt();
+            if(numSamples >= 0) {
+                e.monthlyEstimates[i] = new ValueAggregate();
+                e.monthlyEstimates[i].addValues(in.readDouble(), numSamples);
+            }
+        }
+        e.countStartDay = in.readLong();
+        e.firstCountedTimestamp = in.readLong();
+        e.lastCountedTimestamp = in.readLong();
+        e.numDays = in.readInt();
+        if(e.numDays > 0) {
+            e.dailyCounts = new int[e.numDays];
+            for(int i = 0; i < e.numDays; i++) {
+                e.dailyCounts[i] = in.readInt();
+            }
+            e.updatePrefixSums(0);
+        }
+        return e;
+    }
+    
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class implements a background thread that periodically writes the sampling rate
+ * estimations that have changed to the database.
+ * @author Matthias Keller
+ *
+ */
+public class SamplingRateEstimationFlusher extends Thread {
+
+    private static Logger log = Logger.getLogger(SamplingRateEstimationFlusher.class);
+
+    private final AggregationLevelLookup lookup;
+
+    private final long flushIntervalMsec;
+
+    private volatile Boolean running = true;
+
+    public SamplingRateEstimationFlusher(AggregationLevelLookup lookup, long flushIntervalMsec) {
+        this.lookup = lookup;
+        this.flushIntervalMsec = flushIntervalMsec;
+        setName("Sampling Rate Estimation Flusher");
+        setDaemon(true);
+    }
+
+    public void run() {
+        while(running) {
+            try {
+                synchronized(this) {
+                    wait(flushIntervalMsec);
+                }
+            } catch(InterruptedException e) {
+                break;
+            }
+            if(!running) {
+                break;
+            }
+            try {
+                lookup.flushDirtyEstimations();
+            } catch(Exception e) {
+                // Keep thread alive, dirty estimations are written with the next flush
+                log.error("Writing sampling rate estimations failed.", e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized(this) {
+            notifyAll();
+        }
+        try {
+            join();
+        } catch(InterruptedException e) {
+            log.error(e);
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.datatype.VizzlyException;
+
+/**
+ * This class runs the data fetches of the signals of a single request concurrently. All
+ * requests share a bounded pool of threads, and each request uses at most a fixed number
+ * of them at a time, including the request thread itself. The request thread always takes
+ * part in the work, so that requests still make progress if the pool is saturated. Tasks may
+ * call fetchAll() themselves, e.g., for the sub-queries of a batch request.
+ * @author Matthias Keller
+ *
+ */
+public class SignalFetchExecutor {
+
+    /**
+     * Work that is done for each signal of a request.
+     */
+    public static abstract class FetchTask {
+        public abstract void fetch(int signalIdx) throws VizzlyException;
+    }
+
+    private static Logger log = Logger.getLogger(SignalFetchExecutor.class);
+
+    private static final int DEFAULT_NUM_THREADS = 2*Runtime.getRuntime().availableProcessors();
+
+    private static final int DEFAULT_MAX_PARALLELISM_PER_REQUEST = 4;
+
+    /* Fetches that do not fit into the queue are done by the request thread */
+    private static final int QUEUE_LENGTH = 64;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int maxParallelismPerRequest;
+
+    public SignalFetchExecutor() {
+        this(DEFAULT_NUM_THREADS, DEFAULT_MAX_PARALLELISM_PER_REQUEST);
+    }
+
+    public SignalFetchExecutor(int numThreads, int maxParallelismPerRequest) {
+        this.maxParallelismPerRequest = maxParallelismPerRequest;
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 60L, TimeUnit.SECONDS, 
+                new ArrayBlockingQueue<Runnable>(QUEUE_LENGTH), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SignalFetchExecutor-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Calls the task once for each signal index and returns when all calls have finished.
+     * @throws VizzlyException The first exception thrown by the task
+     */
+    public void fetchAll(final int numSignals, final FetchTask task) throws VizzlyException {
+        final AtomicInteger nextIdx = new AtomicInteger(0);
+        final AtomicReference<VizzlyException> error = new AtomicReference<VizzlyException>();
+        final CountDownLatch finished = new CountDownLatch(numSignals);
+        Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while((i = nextIdx.getAndIncrement()) < numSignals) {
+                    try {
+                        task.fetch(i);
+                    } catch(VizzlyException e) {
+                        error.compareAndSet(null, e);
+                    } catch(RuntimeException e) {
+                        log.error("Fetching signal data failed.", e);
+                        error.compareAndSet(null, new VizzlyException("Fetching signal data failed."));
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }
+        };
+        int numHelpers = Math.min(maxParallelismPerRequest, numSignals)-1;
+        for(int i = 0; i < numHelpers; i++) {
+            try {
+                executor.execute(worker);
+            } catch(RejectedExecutionException e) {
+                // Pool is saturated, the remaining signals are fetched by fewer threads
+                break;
+            }
+        }
+        worker.run();
+        // Only wait for the signals that are still fetched by helpers. Helpers that have not
+        // started yet find no work left, waiting for them could block all pool threads if
+        // fetches are nested.
+        try {
+            finished.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VizzlyException("Interrupted while fetching signal data.");
+        }
+        if(error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashMap;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.datatype.BatchQuery;
+import ch.ethz.vizzly.datatype.DeltaCursor;
+import ch.ethz.vizzly.datatype.VizzlyException;
+import ch.ethz.vizzly.datatype.VizzlyInvalidSignalException;
+import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.performance.UserRequestPerformanceMeasurement;
+import ch.ethz.vizzly.util.DownsamplingUtil;
+import ch.ethz.vizzly.util.VizzlySignalValidatorUtil;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * This class implements a servlet that answers several time series and map queries with
+ * a single HTTP request. The queries are executed concurrently and the response contains
+ * the CSV output of each query, as it would be returned by VizzlyServlet.
+ * @author Matthias Keller
+ *
+ */
+@WebServlet(urlPatterns={"/batch"})
+public class VizzlyBatchServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_QUERIES = 50;
+
+    private static Logger log = Logger.getLogger(VizzlyBatchServlet.class);
+
+    private static final Gson gson = new Gson();
+
+    private Boolean stopDueToError = false;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config); 
+        stopDueToError = (Boolean)config.getServletContext().getAttribute(VizzlyServletContextListener.INIT_ERROR_ATTRIB_KEY);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if(stopDueToError) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Configuration error");
+            return;
+        }
+        final VizzlyStateContainer vizzlyState = 
+                (VizzlyStateContainer)getServletContext().getAttribute(VizzlyStateContainer.SERVLET_ATTRIB_KEY);
+
+        // JSON string from HTTP request
+        StringBuffer jsonReq = new StringBuffer();
+        String line = null;
+        try {
+            BufferedReader reader = req.getReader();
+            while ((line = reader.readLine()) != null)
+                jsonReq.append(line);
+        } catch (Exception e) {
+            log.error(e.getLocalizedMessage());
+        }
+
+        BatchQuery[] queries = null;
+        try {
+            queries = gson.fromJson(jsonReq.toString(), BatchQuery[].class);
+        } catch(JsonSyntaxException e) {
+            returnErrorMessage("Invalid request. Could not parse queries.", resp);
+            return;
+        }
+        if(queries == null || queries.length == 0) {
+            returnErrorMessage("Invalid request. Please specify valid queries", resp);
+            return;
+        }
+        if(queries.length > MAX_QUERIES) {
+            returnErrorMessage("Invalid request. At most " + MAX_QUERIES + " queries are supported.", resp);
+            return;
+        }
+
+        // Signals that are used by several queries are validated only once
+        HashMap<String, String> validationErrors = new HashMap<String, String>();
+        final String[] errors = new String[queries.length];
+        for(int i = 0; i < queries.length; i++) {
+            errors[i] = validateQuery(queries[i], validationErrors, vizzlyState);
+        }
+
+        // Queries are executed concurrently, the signals of each query are fetched through the same executor
+        final BatchQuery[] batch = queries;
+        final BatchQuery.Result[] results = new BatchQuery.Result[queries.length];
+        try {
+            vizzlyState.getFetchExecutor().fetchAll(queries.length, new SignalFetchExecutor.FetchTask() {
+                public void fetch(int i) {
+                    String csv = null;
+                    if(errors[i] != null) {
+                        csv = "# ERROR: " + errors[i] + "\n";
+                    } else {
+                        try {
+                            csv = executeQuery(batch[i], vizzlyState);
+                        } catch(VizzlyException e) {
+                            csv = "# ERROR: " + e.getLocalizedMessage() + "\n";
+                        } catch(RuntimeException e) {
+                            // Only this query fails, the results of the other queries are still returned
+                            log.error("Executing query " + batch[i].id + " failed.", e);
+                            csv = "# ERROR: Executing query failed.\n";
+                        }
+                    }
+                    results[i] = new BatchQuery.Result(batch[i].id, csv);
+                }
+            });
+        } catch(VizzlyException e) {
+            returnErrorMessage(e.getLocalizedMessage(), resp);
+            return;
+        }
+
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        resp.setContentType("application/json; charset=UTF-8");
+        ServletOutputStream outputStream = resp.getOutputStream();
+        outputStream.write(gson.toJson(results).getBytes("UTF-8"));
+    }
+
+    /**
+     * @return Error message, null if the query is valid
+     */
+    private String validateQuery(BatchQuery q, HashMap<String, String> validationErrors, VizzlyStateContainer vizzlyState) {
+        if(q == null) {
+            return "Invalid query.";
+        }
+        if(!BatchQuery.TYPE_TIMED.equals(q.type) && !BatchQuery.TYPE_AGGMAP.equals(q.type)) {
+            return "Invalid query type.";
+        }
+        if(q.signals == null || q.signals.length == 0) {
+            return "Invalid request. Please specify valid signals";
+        }
+        for(VizzlySignal s : q.signals) {
+            if(s == null) {
+                return "Invalid request. Please specify valid signals";
+            }
+            String key = gson.toJson(s);
+            if(!validationErrors.containsKey(key)) {
+                String error = null;
+                try {
+                    VizzlySignalValidatorUtil.validateSignal(s, vizzlyState.getDataReaderRegistry());
+                } catch(VizzlyInvalidSignalException e) {
+                    error = e.getLocalizedMessage();
+                }
+                validationErrors.put(key, error);
+            }
+            if(validationErrors.get(key) != null) {
+                return validationErrors.get(key);
+            }
+        }
+        if(q.mapBounds != null && q.mapBounds.split(",").length != 4) {
+            return "Invalid map bounds.";
+        }
+        if(q.downsample != null) {
+            try {
+                DownsamplingUtil.Method.valueOf(q.downsample.toUpperCase());
+            } catch(IllegalArgumentException e) {
+                return "Invalid downsampling method.";
+            }
+        }
+        if(q.since != null) {
+            try {
+                DeltaCursor.fromString(q.since);
+            } catch(VizzlyException e) {
+                return e.getLocalizedMessage();
+            }
+        }
+        return null;
+    }
+
+    private String executeQuery(BatchQuery q, VizzlyStateContainer vizzlyState) throws VizzlyException {
+        UserRequestPerformanceMeasurement reqMeas = new UserRequestPerformanceMeasurement();
+        Double latSW = null;
+        Double lngSW = null;
+        Double latNE = null;
+        Double lngNE = null;
+        if(q.mapBounds != null) {
+            try {
+                String[] s = q.mapBounds.split(",");
+                latSW = Double.parseDouble(s[0]);
+                lngSW = Double.parseDouble(s[1]);
+                latNE = Double.parseDouble(s[2]);
+                lngNE = Double.parseDouble(s[3]);
+            } catch(NumberFormatException e) {
+                throw new VizzlyException("Invalid map bounds.");
+            }
+        }
+        int canvasWidth = VizzlyServlet.DEFAULT_CANVAS_WIDTH;
+        int canvasHeight = VizzlyServlet.DEFAULT_CANVAS_HEIGHT;
+        if(q.canvasWidth != null) {
+            canvasWidth = Math.min(q.canvasWidth, VizzlyServlet.MAX_CANVAS_WIDTH);
+        }
+        if(q.canvasHeight != null) {
+            canvasHeight = Math.min(q.canvasHeight, VizzlyServlet.MAX_CANVAS_HEIGHT);
+        }
+
+        String output = null;
+        if(BatchQuery.TYPE_AGGMAP.equals(q.type)) {
+            output = CsvOutputGenerator.getAggregationMapCSV(q.signals, q.timeStart, q.timeEnd, 
+                    latSW, lngSW, latNE, lngNE, canvasWidth, canvasHeight, reqMeas, vizzlyState.getCacheManager(),
+                    vizzlyState.getPerformanceTracker(), vizzlyState.getDataReaderRegistry(), 
+                    vizzlyState.getGridBuilder());
+        } else {
+            boolean forceLoadUnaggregated = (q.forceLoadUnaggregated != null && q.forceLoadUnaggregated);
+            DownsamplingUtil.Method downsampling = (q.downsample != null) 
+                    ? DownsamplingUtil.Method.valueOf(q.downsample.toUpperCase()) : DownsamplingUtil.Method.NONE;
+            output = CsvOutputGenerator.getTimedDataCSV(q.signals, q.timeStart, q.timeEnd, latSW, 
+                    lngSW, latNE, lngNE, forceLoadUnaggregated, canvasWidth, reqMeas, vizzlyState.getCacheManager(),
+                    vizzlyState.getPerformanceTracker(), vizzlyState.getDataReaderRegistry(), 
+                    vizzlyState.getFetchExecutor(), downsampling, 
+                    (q.since != null) ? DeltaCursor.fromString(q.since) : null);
+        }
+        reqMeas.setEnd();
+        vizzlyState.getPerformanceTracker().addUserRequestMeasurement(reqMeas);
+        vizzlyState.incrNumberOfRequests();
+        return output;
+    }
+
+    private void returnErrorMessage(String errorMsg, HttpServletResponse resp) throws IOException
+    {
+        resp.setContentType("text/plain; charset=UTF-8");
+        ServletOutputStream outputStream = resp.getOutputStream();
+        String error = "# ERROR: " + errorMsg + "\n";
+        outputStream.write(error.toString().getBytes("UTF-8"));
+    }
+
+}
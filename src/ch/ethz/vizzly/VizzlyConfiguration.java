@@ -23,6 +23,7 @@ import java.util.Vector;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -74,6 +75,10 @@ public class VizzlyConfiguration {
     
     private static final String TAG_NAME_MEM_CACHE = "memoryCache";
     
+    private static final String TAG_NAME_TIERED_CACHE = "tieredCache";
+
+    private static final String TAG_NAME_FILE_CACHE = "fileCache";
+    
     private static final String TAG_NAME_DATABASE = "database";
     
     private static final String ATTR_NAME_NUM_WORKERS = "numWorkerThreads";
@@ -172,11 +177,23 @@ public class VizzlyConfiguration {
                             c.type = CacheSpec.CACHE_TYPE_MEM;
                         } else if(cacheElement.getTagName().equals(VizzlyConfiguration.TAG_NAME_SQL_CACHE)) {
                             c.type = CacheSpec.CACHE_TYPE_SQL;
+                        } else if(cacheElement.getTagName().equals(VizzlyConfiguration.TAG_NAME_TIERED_CACHE)) {
+                            c.type = CacheSpec.CACHE_TYPE_TIERED;
+                        } else if(cacheElement.getTagName().equals(VizzlyConfiguration.TAG_NAME_FILE_CACHE)) {
+                            c.type = CacheSpec.CACHE_TYPE_FILE;
                         } else {
                             // Should never happen
                             throw new VizzlyException("Unknown cache type in configuration file.");
                         }
                         c.windowLength = Integer.parseInt(cacheElement.getAttribute(VizzlyConfiguration.ATTR_NAME_CACHE_WINDOW_LENGTH));
+                        // All other attributes are passed on to the cache implementation
+                        NamedNodeMap attributes = cacheElement.getAttributes();
+                        for(int j = 0; j < attributes.getLength(); j++) {
+                            Node attr = attributes.item(j);
+                            if(!attr.getNodeName().equals(VizzlyConfiguration.ATTR_NAME_CACHE_WINDOW_LENGTH)) {
+                                c.optionalParameters.put(attr.getNodeName(), attr.getNodeValue());
+                            }
+                        }
                         config.cacheList.add(c);
                     }
                 }
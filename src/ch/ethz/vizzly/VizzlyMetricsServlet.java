@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly;
+
+import java.io.IOException;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ch.ethz.vizzly.cache.CacheManager;
+import ch.ethz.vizzly.cache.CacheUpdateWorkerSynchronization;
+import ch.ethz.vizzly.performance.AbstractPerformanceTracker;
+import ch.ethz.vizzly.performance.PerformanceMetrics;
+
+/**
+ * This class implements a servlet that exposes runtime metrics in the Prometheus
+ * text exposition format.
+ * @author Matthias Keller
+ *
+ */
+@WebServlet(urlPatterns={"/metrics"})
+public class VizzlyMetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private Boolean stopDueToError = false;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config); 
+        stopDueToError = (Boolean)config.getServletContext().getAttribute(VizzlyServletContextListener.INIT_ERROR_ATTRIB_KEY);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if(stopDueToError) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Configuration error");
+            return;
+        }
+        VizzlyStateContainer vizzlyState = 
+                (VizzlyStateContainer)getServletContext().getAttribute(VizzlyStateContainer.SERVLET_ATTRIB_KEY);
+        CacheUpdateWorkerSynchronization workerSync = (CacheUpdateWorkerSynchronization)getServletContext()
+                .getAttribute(CacheUpdateWorkerSynchronization.SERVLET_ATTRIB_KEY);
+        CacheManager cache = vizzlyState.getCacheManager();
+        AbstractPerformanceTracker perfTracker = vizzlyState.getPerformanceTracker();
+
+        StringBuilder sb = new StringBuilder();
+        writeGauge(sb, "vizzly_uptime_seconds", "Time since the caches have been started.", 
+                cache.getUptime(cache.getNumberOfCaches()-1)/1000);
+        writeCounter(sb, "vizzly_requests_total", "Number of served user requests.", 
+                vizzlyState.getNumberOfRequests());
+
+        // Per-cache statistics
+        writeHeader(sb, "vizzly_cache_requests_total", "Number of cache lookups.", "counter");
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            writeCacheSample(sb, "vizzly_cache_requests_total", cache, i, cache.getNumberOfCacheRequests(i));
+        }
+        writeHeader(sb, "vizzly_cache_hits_total", "Number of cache hits.", "counter");
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            writeCacheSample(sb, "vizzly_cache_hits_total", cache, i, cache.getNumberOfCacheHits(i));
+        }
+        writeHeader(sb, "vizzly_cache_misses_total", "Number of cache misses.", "counter");
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            writeCacheSample(sb, "vizzly_cache_misses_total", cache, i, cache.getNumberOfCacheMisses(i));
+        }
+        writeHeader(sb, "vizzly_cache_evictions_total", "Number of entries evicted due to the memory budget.", "counter");
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            writeCacheSample(sb, "vizzly_cache_evictions_total", cache, i, cache.getNumberOfEvictions(i));
+        }
+        writeHeader(sb, "vizzly_cache_hit_ratio", "Ratio of cache hits to cache lookups.", "gauge");
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            long requests = cache.getNumberOfCacheRequests(i);
+            double ratio = (requests > 0) ? (double)cache.getNumberOfCacheHits(i)/(double)requests : 0.0;
+            writeCacheSample(sb, "vizzly_cache_hit_ratio", cache, i, ratio);
+        }
+        writeHeader(sb, "vizzly_cache_entries", "Number of cache entries.", "gauge");
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            writeCacheSample(sb, "vizzly_cache_entries", cache, i, cache.getNumberOfCacheEntries(i));
+        }
+        writeHeader(sb, "vizzly_cache_size_bytes", "Estimated size of cached data.", "gauge");
+        for(int i = 0; i < cache.getNumberOfCaches(); i++) {
+            writeCacheSample(sb, "vizzly_cache_size_bytes", cache, i, cache.getCacheSize(i));
+        }
+
+        // Update workers
+        writeGauge(sb, "vizzly_worker_queue_depth", "Number of signals for which a cache update is due.", 
+                cache.getNumberOfSignalsDueForUpdate());
+        if(workerSync != null) {
+            writeGauge(sb, "vizzly_workers_busy", "Number of update workers currently processing a signal.", 
+                    workerSync.getNumberOfBusyWorkers());
+        }
+        writeGauge(sb, "vizzly_signals_pending_removal", "Number of signals waiting for removal.", 
+                cache.getSignalsToRemove().size());
+        writeCounter(sb, "vizzly_perf_tracker_dropped_total", "Number of performance measurements dropped by the tracker.", 
+                perfTracker.getNumberOfDroppedMeasurements());
+
+        // Latency histograms
+        perfTracker.getMetrics().writeExposition(sb);
+
+        resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        ServletOutputStream outputStream = resp.getOutputStream();
+        outputStream.write(sb.toString().getBytes("UTF-8"));
+    }
+
+    private void writeHeader(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        sb.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+    }
+
+    private void writeGauge(StringBuilder sb, String name, String help, long value) {
+        writeHeader(sb, name, help, "gauge");
+        sb.append(name).append(" ").append(value).append("\n");
+    }
+
+    private void writeCounter(StringBuilder sb, String name, String help, long value) {
+        writeHeader(sb, name, help, "counter");
+        sb.append(name).append(" ").append(value).append("\n");
+    }
+
+    private void writeCacheSample(StringBuilder sb, String name, CacheManager cache, int cacheIdx, Object value) {
+        sb.append(name).append("{cache=\"").append(PerformanceMetrics.escapeLabelValue(cache.getCacheDescription(cacheIdx)))
+            .append("\",tier=\"").append(cacheIdx).append("\"} ").append(value).append("\n");
+    }
+
+}
@@ -43,10 +43,12 @@ import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.log4j.Logger;
 
 import ch.ethz.vizzly.cache.CacheManager;
+import ch.ethz.vizzly.datatype.DeltaCursor;
 import ch.ethz.vizzly.datatype.VizzlyException;
 import ch.ethz.vizzly.datatype.VizzlyInvalidSignalException;
 import ch.ethz.vizzly.datatype.VizzlySignal;
 import ch.ethz.vizzly.performance.UserRequestPerformanceMeasurement;
+import ch.ethz.vizzly.util.DownsamplingUtil;
 import ch.ethz.vizzly.util.VizzlySignalValidatorUtil;
 
 import com.google.gson.Gson;
@@ -61,13 +63,13 @@ public class VizzlyServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
 
-    private final int DEFAULT_CANVAS_WIDTH = 600;
+    static final int DEFAULT_CANVAS_WIDTH = 600;
 
-    private final int DEFAULT_CANVAS_HEIGHT = 400;
+    static final int DEFAULT_CANVAS_HEIGHT = 400;
 
-    private final int MAX_CANVAS_WIDTH = 10000;
+    static final int MAX_CANVAS_WIDTH = 10000;
 
-    private final int MAX_CANVAS_HEIGHT = 6000;
+    static final int MAX_CANVAS_HEIGHT = 6000;
     
     /**
      * The servlet will respond to any request with a HTTP 500 
@@ -135,6 +137,10 @@ public class VizzlyServlet extends HttpServlet {
         String canvasHeightParam = req.getParameter("canvasHeight");
         // Enforce the loading of unaggregated data
         String forceLoadUnaggregatedParam = req.getParameter("forceLoadUnaggregated");
+        // Reduce unaggregated data to the canvas width (m4 or lttb)
+        String downsampleParam = req.getParameter("downsample");
+        // Cursor of a previous response, only changes since then are returned
+        String sinceParam = req.getParameter("since");
 
         // JSON string from HTTP request
         StringBuffer jsonReq = new StringBuffer();
@@ -230,8 +236,27 @@ public class VizzlyServlet extends HttpServlet {
             if(forceLoadUnaggregatedParam != null) {
                 forceLoadUnaggregated = true;
             }
+            DownsamplingUtil.Method downsampling = DownsamplingUtil.Method.NONE;
+            if(downsampleParam != null) {
+                try {
+                    downsampling = DownsamplingUtil.Method.valueOf(downsampleParam.toUpperCase());
+                } catch(IllegalArgumentException e) {
+                    returnErrorMessage("Invalid downsampling method.", resp);
+                    return;
+                }
+            }
+            DeltaCursor since = null;
+            if(sinceParam != null) {
+                try {
+                    since = DeltaCursor.fromString(sinceParam);
+                } catch(VizzlyException e) {
+                    returnErrorMessage(e.getLocalizedMessage(), resp);
+                    return;
+                }
+            }
             // Respond with a time series
-            getTimedDataCSV(signals, timeFilterStart, timeFilterEnd, latSW, lngSW, latNE, lngNE, forceLoadUnaggregated, canvasWidth, resp, reqMeas);
+            getTimedDataCSV(signals, timeFilterStart, timeFilterEnd, latSW, lngSW, latNE, lngNE, forceLoadUnaggregated, canvasWidth, 
+                    downsampling, since, resp, reqMeas);
         } else {
             returnErrorMessage("Invalid request parameters.", resp);
         }
@@ -239,7 +264,7 @@ public class VizzlyServlet extends HttpServlet {
 
     private void getTimedDataCSV(VizzlySignal[] signals, Long timeFilterStart, Long timeFilterEnd, Double latSW, 
             Double lngSW, Double latNE, Double lngNE, boolean forceLoadUnaggregated, int canvasWidth, 
-            HttpServletResponse resp, UserRequestPerformanceMeasurement reqMeas)
+            DownsamplingUtil.Method downsampling, DeltaCursor since, HttpServletResponse resp, UserRequestPerformanceMeasurement reqMeas)
                     throws IOException
                     {
         VizzlyStateContainer vizzlyState = 
@@ -249,7 +274,8 @@ public class VizzlyServlet extends HttpServlet {
         try {
             output = CsvOutputGenerator.getTimedDataCSV(signals, timeFilterStart, timeFilterEnd, latSW, 
                     lngSW, latNE, lngNE, forceLoadUnaggregated, canvasWidth, reqMeas, vizzlyState.getCacheManager(),
-                    vizzlyState.getPerformanceTracker(), vizzlyState.getDataReaderRegistry());
+                    vizzlyState.getPerformanceTracker(), vizzlyState.getDataReaderRegistry(), 
+                    vizzlyState.getFetchExecutor(), downsampling, since);
         } catch(VizzlyException e) {
             returnErrorMessage(e.getLocalizedMessage(), resp);
             return;
@@ -275,7 +301,8 @@ public class VizzlyServlet extends HttpServlet {
         try {
             output = CsvOutputGenerator.getAggregationMapCSV(signals, timeFilterStart, timeFilterEnd, 
                     latSW, lngSW, latNE, lngNE, canvasWidth, canvasHeight, reqMeas, vizzlyState.getCacheManager(),
-                    vizzlyState.getPerformanceTracker(), vizzlyState.getDataReaderRegistry());
+                    vizzlyState.getPerformanceTracker(), vizzlyState.getDataReaderRegistry(), 
+                    vizzlyState.getGridBuilder());
         } catch(VizzlyException e) {
             returnErrorMessage(e.getLocalizedMessage(), resp);
             return;
@@ -311,6 +338,8 @@ public class VizzlyServlet extends HttpServlet {
         sb.append("cacheHits="+cache.getNumberOfCacheHits(0));
         sb.append(",");
         sb.append("cacheMisses="+cache.getNumberOfCacheMisses(0));
+        sb.append(",");
+        sb.append("cacheEvictions="+cache.getNumberOfEvictions(0));
 
         resp.setContentType("text/plain; charset=UTF-8");
         ServletOutputStream outputStream = resp.getOutputStream();
@@ -73,6 +73,15 @@ public class VizzlyServletContextListener implements ServletContextListener {
                 ds.setUrl(vizzlyConfig.getJdbcUrl());
                 ds.setTestOnBorrow(true);
                 ds.setValidationQuery("SELECT 1");
+                // Prepared statements are reused per connection
+                ds.setPoolPreparedStatements(true);
+                ds.setMaxOpenPreparedStatements(200);
+                if(vizzlyConfig.getJdbcUrl().startsWith("jdbc:mysql:")) {
+                    // Let the driver send batched statements as multi-row statements
+                    ds.addConnectionProperty("rewriteBatchedStatements", "true");
+                    // Honor the fetch size instead of buffering complete results on the client
+                    ds.addConnectionProperty("useCursorFetch", "true");
+                }
                 Context ctx = new InitialContext();
                 ctx.bind("VizzlyDS", ds);
             }
@@ -114,6 +123,11 @@ public class VizzlyServletContextListener implements ServletContextListener {
             CacheUpdateWorkerSynchronization workerSync = (CacheUpdateWorkerSynchronization)sce
                     .getServletContext().getAttribute(CacheUpdateWorkerSynchronization.SERVLET_ATTRIB_KEY);
             workerSync.terminateThreads();
+            vizzlyState.getFetchExecutor().shutdown();
+            vizzlyState.getGridBuilder().shutdown();
+            vizzlyState.getSubscriptionManager().shutdown();
+            // Persist data that has not been written yet
+            vizzlyState.getCacheManager().shutdown();
             // Flush unsaved rate estimation data
             AggregationLevelLookup.getInstance().flushEstimationData();
         } catch (Exception ex) {
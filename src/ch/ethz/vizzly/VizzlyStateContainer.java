@@ -30,6 +30,8 @@ import ch.ethz.vizzly.datatype.VizzlyException;
 import ch.ethz.vizzly.performance.AbstractPerformanceTracker;
 import ch.ethz.vizzly.performance.DbPerformanceTracker;
 import ch.ethz.vizzly.performance.DummyPerformanceTracker;
+import ch.ethz.vizzly.push.SubscriptionManager;
+import ch.ethz.vizzly.util.ParallelGridBuilder;
 
 /**
  * This class contains all state that is needed to run the application. For example,
@@ -61,6 +63,21 @@ public class VizzlyStateContainer {
      */
     private AbstractPerformanceTracker perfTracker = null;
     
+    /**
+     * Shared threads for fetching the signals of a request concurrently.
+     */
+    private SignalFetchExecutor fetchExecutor = null;
+    
+    /**
+     * Shared threads for aggregating large numbers of values into map grids.
+     */
+    private ParallelGridBuilder gridBuilder = null;
+    
+    /**
+     * Clients that are subscribed to updates of signals.
+     */
+    private SubscriptionManager subscriptionManager = null;
+    
 
     public VizzlyStateContainer(VizzlyConfiguration config) throws VizzlyException {
        initStateContainer(config); 
@@ -99,6 +116,9 @@ public class VizzlyStateContainer {
                 caches.add(new CacheConfiguration(CacheFactory.createCache(s), s.windowLength));
             }
             cacheManager = new CacheManager(caches, dataReaderRegistry, perfTracker);
+            fetchExecutor = new SignalFetchExecutor();
+            gridBuilder = new ParallelGridBuilder();
+            subscriptionManager = new SubscriptionManager(cacheManager);
             stateInitialized = true;
         }
     }
@@ -115,6 +135,18 @@ public class VizzlyStateContainer {
         return perfTracker;
     }
     
+    public SignalFetchExecutor getFetchExecutor() {
+        return fetchExecutor;
+    }
+    
+    public ParallelGridBuilder getGridBuilder() {
+        return gridBuilder;
+    }
+    
+    public SubscriptionManager getSubscriptionManager() {
+        return subscriptionManager;
+    }
+    
     public void incrNumberOfRequests() {
         numberOfRequests++;
     }
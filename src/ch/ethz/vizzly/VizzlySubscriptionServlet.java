@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ch.ethz.vizzly.datatype.VizzlyException;
+import ch.ethz.vizzly.datatype.VizzlyInvalidSignalException;
+import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.push.Subscriber;
+import ch.ethz.vizzly.push.SubscriptionManager;
+import ch.ethz.vizzly.util.VizzlySignalValidatorUtil;
+
+import com.google.gson.Gson;
+
+/**
+ * This class implements the servlet that streams updated windows of the requested signals
+ * to the client as Server-Sent Events. The connection is kept open through an asynchronous
+ * request, hence no request thread is blocked while waiting for updates.
+ * @author Matthias Keller
+ *
+ */
+@WebServlet(urlPatterns={"/subscribe"}, asyncSupported=true)
+public class VizzlySubscriptionServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private Boolean stopDueToError = false;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config); 
+        stopDueToError = (Boolean)config.getServletContext().getAttribute(VizzlyServletContextListener.INIT_ERROR_ATTRIB_KEY);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if(stopDueToError) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Configuration error");
+            return;
+        }
+        VizzlyStateContainer vizzlyState = 
+                (VizzlyStateContainer)getServletContext().getAttribute(VizzlyStateContainer.SERVLET_ATTRIB_KEY);
+
+        // Signal selection
+        String signalsParam = req.getParameter("signals");
+        // Windows from this timestamp on are sent first, browsers send the id of the last
+        // received event when reconnecting
+        String sinceParam = req.getParameter("since");
+        if(req.getHeader("Last-Event-ID") != null) {
+            sinceParam = req.getHeader("Last-Event-ID");
+        }
+
+        if(signalsParam == null) {
+            returnErrorMessage("Invalid request. Please specify valid signals", resp);
+            return;
+        }
+        VizzlySignal[] signals = new Gson().fromJson(signalsParam, VizzlySignal[].class);
+        if(signals == null || signals.length == 0) {
+            returnErrorMessage("Invalid request. Please specify valid signals", resp);
+            return;
+        }
+        try {
+            for(VizzlySignal s : signals) {
+                VizzlySignalValidatorUtil.validateSignal(s, vizzlyState.getDataReaderRegistry());
+                if(!vizzlyState.getCacheManager().isInCache(s)) {
+                    returnErrorMessage("New signal requested. Please come back later.", resp);
+                    return;
+                }
+            }
+        } catch(VizzlyInvalidSignalException e) {
+            returnErrorMessage(e.getLocalizedMessage(), resp);
+            return;
+        }
+        Long since = null;
+        if(sinceParam != null) {
+            try {
+                since = Long.parseLong(sinceParam);
+            } catch(NumberFormatException e) {
+                returnErrorMessage("Invalid cursor.", resp);
+                return;
+            }
+        }
+
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setContentType("text/event-stream; charset=UTF-8");
+        resp.flushBuffer();
+
+        AsyncContext asyncContext = req.startAsync();
+        // Disconnected clients are detected by the keep-alive messages
+        asyncContext.setTimeout(0);
+        final SubscriptionManager manager = vizzlyState.getSubscriptionManager();
+        final Subscriber subscriber = new Subscriber(asyncContext, signals, SubscriptionManager.MAX_PENDING_FRAMES);
+        asyncContext.addListener(new AsyncListener() {
+            public void onComplete(AsyncEvent event) {
+                manager.unsubscribe(subscriber);
+            }
+
+            public void onTimeout(AsyncEvent event) {
+                manager.unsubscribe(subscriber);
+            }
+
+            public void onError(AsyncEvent event) {
+                manager.unsubscribe(subscriber);
+            }
+
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        try {
+            manager.subscribe(subscriber, since);
+        } catch(VizzlyException e) {
+            ServletOutputStream outputStream = resp.getOutputStream();
+            outputStream.write(("event: error\ndata: " + e.getLocalizedMessage() + "\n\n").getBytes("UTF-8"));
+            asyncContext.complete();
+        }
+    }
+
+    private void returnErrorMessage(String errorMsg, HttpServletResponse resp) throws IOException
+    {
+        resp.setContentType("text/plain; charset=UTF-8");
+        ServletOutputStream outputStream = resp.getOutputStream();
+        String error = "# ERROR: " + errorMsg + "\n";
+        outputStream.write(error.toString().getBytes("UTF-8"));
+    }
+
+}
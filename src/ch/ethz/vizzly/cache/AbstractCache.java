@@ -19,11 +19,18 @@ package ch.ethz.vizzly.cache;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Vector;
+import java.util.concurrent.atomic.LongAdder;
 
 import ch.ethz.vizzly.datatype.CachedDataInfo;
 import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.datatype.readings.LocationBounds;
+import ch.ethz.vizzly.datatype.readings.LocationBoundsSink;
 import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueColumns;
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
 import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+import ch.ethz.vizzly.util.LocationAggregationGrid;
 
 /**
  * This class defines the interfaces that any cache implementation must follow.
@@ -36,11 +43,12 @@ public abstract class AbstractCache {
     
     protected Boolean isInitialized = false;
     
-    protected long cacheHits = 0L;
+    /* Striped counters, updated concurrently by all request threads */
+    private final LongAdder cacheHits = new LongAdder();
 
-    protected long cacheMisses = 0L;
+    private final LongAdder cacheMisses = new LongAdder();
 
-    protected long cacheRequests = 0L;
+    private final LongAdder cacheEvictions = new LongAdder();
     
     protected DataBackend dataBackend = DataBackend.UNDEFINED;
     
@@ -56,8 +64,92 @@ public abstract class AbstractCache {
     
     public abstract Vector<TimedLocationValue> getSignalData(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, Long timeFilterEnd, Boolean updateStats);
 
+    /**
+     * Passes the cached data to the given sink instead of returning it as a whole. Caches
+     * that can produce data incrementally should override this.
+     * @return False if the requested data is not cached
+     */
+    public Boolean getSignalData(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, Long timeFilterEnd, 
+            Boolean updateStats, TimedValueSink sink) {
+        Vector<TimedLocationValue> r = getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, updateStats);
+        if(r == null) {
+            return false;
+        }
+        for(TimedLocationValue v : r) {
+            if(v.location != null) {
+                sink.add(v.timestamp, v.value, v.location.latitude, v.location.longitude);
+            } else {
+                sink.add(v.timestamp, v.value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a cursor over the cached data. Caches that hold their data in primitive arrays
+     * should override this so that the data is not copied.
+     * @return Cursor, null if the requested data is not cached
+     */
+    public TimedValueCursor getSignalCursor(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, 
+            Long timeFilterEnd, Boolean updateStats) {
+        TimedValueColumns columns = new TimedValueColumns();
+        if(!getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, updateStats, columns)) {
+            return null;
+        }
+        return columns.cursor();
+    }
+
+    /**
+     * Returns a cursor over the cached data whose location lies within the given map area.
+     * Caches that can skip data outside of the area should override this.
+     * @return Cursor, null if the requested data is not cached
+     */
+    public TimedValueCursor getSignalCursor(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, 
+            Long timeFilterEnd, Boolean updateStats, LocationBounds bounds) {
+        TimedValueColumns columns = new TimedValueColumns();
+        if(!getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, updateStats, 
+                new LocationBoundsSink(columns, bounds))) {
+            return null;
+        }
+        return columns.cursor();
+    }
+
     public abstract Boolean isInCache(VizzlySignal signal, int windowLengthSec);
     
+    /**
+     * Returns whether the cache is willing to store the given entry. Caches with a limited
+     * capacity can use this to prevent evicted entries from being refilled immediately.
+     */
+    public Boolean wantsCacheEntry(VizzlySignal signal, int windowLengthSec) {
+        return true;
+    }
+
+    /**
+     * Called before an entry that the cache did not want to store is filled again because a
+     * client requested it. The entry is then stored regardless of any admission policy.
+     */
+    public void readmitCacheEntry(VizzlySignal signal, int windowLengthSec) {
+    }
+
+    /**
+     * Rebuilds the spatial tiles of a cache entry for all days starting with the day of the given
+     * timestamp. Tiles are only kept by caches that hold their entries in memory, where they count
+     * towards the memory budget and are dropped together with the entry.
+     */
+    public void updateTiles(VizzlySignal signal, int windowLengthSec, long firstTimestamp) {
+    }
+
+    /**
+     * Adds the spatial tiles of all days within the given range to the grid.
+     * @param timeFilterStart Start of the first day
+     * @param timeFilterEnd Start of the day after the last day
+     * @return False if no tiles of the required detail are available, nothing is added in that case
+     */
+    public Boolean aggregateTiles(VizzlySignal signal, int windowLengthSec, long timeFilterStart, 
+            long timeFilterEnd, LocationAggregationGrid grid) {
+        return false;
+    }
+    
     public abstract Long getStartTime(VizzlySignal signal, int windowLengthSec);
     
     public abstract Long getEndTime(VizzlySignal signal, int windowLengthSec);
@@ -84,20 +176,43 @@ public abstract class AbstractCache {
 
     public abstract int getNumberOfCacheEntries();
     
+    /**
+     * Releases resources and persists pending data. Called when the application is stopped.
+     */
+    public void shutdown() {
+    }
+    
     public Boolean isInitialized() {
         return isInitialized;
     }
     
+    protected void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    protected void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    protected void recordEviction() {
+        cacheEvictions.increment();
+    }
+
     public long getNumberOfCacheRequests() {
-        return cacheRequests;
+        // Every request results in either a hit or a miss
+        return cacheHits.sum()+cacheMisses.sum();
     }
 
     public long getNumberOfCacheHits() {
-        return cacheHits;
+        return cacheHits.sum();
     }
 
     public long getNumberOfCacheMisses() {
-        return cacheMisses;
+        return cacheMisses.sum();
+    }
+
+    public long getNumberOfEvictions() {
+        return cacheEvictions.sum();
     }
     
     public DataBackend getDataBackend() {
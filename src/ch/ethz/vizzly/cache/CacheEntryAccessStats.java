@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps track of how often and how recently a cache entry has been accessed.
+ * Besides the plain hit count, the last two access times (as used by LRU-2) and an
+ * exponentially decayed access score are maintained. The score combines recency and
+ * frequency: every access adds one, and the accumulated value halves every
+ * SCORE_HALF_LIFE_MSEC. All statistics are maintained lock-free. Access times and score
+ * are kept in an immutable state that is replaced atomically on every access.
+ * @author Matthias Keller
+ *
+ */
+public class CacheEntryAccessStats {
+
+    public static final long SCORE_HALF_LIFE_MSEC = 3600000L;
+
+    /* Landmark is moved forward after this time to keep the forward-decayed weights in range */
+    private static final long SCORE_REBASE_MSEC = 64L*SCORE_HALF_LIFE_MSEC;
+
+    private static class State {
+        private final long lastAccess;
+        private final long previousAccess;
+        /* Score is stored relative to the landmark time (forward decay) */
+        private final long scoreLandmark;
+        private final double score;
+
+        private State(long lastAccess, long previousAccess, long scoreLandmark, double score) {
+            this.lastAccess = lastAccess;
+            this.previousAccess = previousAccess;
+            this.scoreLandmark = scoreLandmark;
+            this.score = score;
+        }
+    }
+
+    private final LongAdder hits = new LongAdder();
+
+    private final AtomicReference<State> state;
+
+    public CacheEntryAccessStats() {
+        state = new AtomicReference<State>(new State(0L, 0L, System.currentTimeMillis(), 0.0));
+    }
+
+    /**
+     * Restores previously persisted statistics. Access times are unknown at this point.
+     */
+    public CacheEntryAccessStats(long hits) {
+        this();
+        this.hits.add(hits);
+    }
+
+    public void recordAccess() {
+        recordAccess(System.currentTimeMillis());
+    }
+
+    public void recordAccess(long now) {
+        hits.increment();
+        while(true) {
+            State s = state.get();
+            long scoreLandmark = s.scoreLandmark;
+            double score = s.score;
+            if(now-scoreLandmark > SCORE_REBASE_MSEC) {
+                score *= Math.pow(2.0, -(double)(now-scoreLandmark)/(double)SCORE_HALF_LIFE_MSEC);
+                scoreLandmark = now;
+            }
+            score += Math.pow(2.0, (double)(now-scoreLandmark)/(double)SCORE_HALF_LIFE_MSEC);
+            if(state.compareAndSet(s, new State(now, s.lastAccess, scoreLandmark, score))) {
+                return;
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getLastAccess() {
+        return state.get().lastAccess;
+    }
+
+    /**
+     * Returns the time of the second most recent access, 0 if there has been at most one access.
+     */
+    public long getPreviousAccess() {
+        return state.get().previousAccess;
+    }
+
+    public double getScore() {
+        return getScore(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the decayed access score as of the given time.
+     */
+    public double getScore(long now) {
+        State s = state.get();
+        return s.score*Math.pow(2.0, -(double)(now-s.scoreLandmark)/(double)SCORE_HALF_LIFE_MSEC);
+    }
+
+}
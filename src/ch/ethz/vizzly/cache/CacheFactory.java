@@ -16,8 +16,10 @@
 
 package ch.ethz.vizzly.cache;
 
+import ch.ethz.vizzly.cache.file.FileCache;
 import ch.ethz.vizzly.cache.memory.MemCache;
 import ch.ethz.vizzly.cache.sqldb.SqlDbCache;
+import ch.ethz.vizzly.cache.tiered.TieredCache;
 import ch.ethz.vizzly.datatype.CacheSpec;
 import ch.ethz.vizzly.datatype.VizzlyException;
 
@@ -30,9 +32,13 @@ public class CacheFactory {
     
     public static AbstractCache createCache(CacheSpec s) throws VizzlyException {
         if(s.type.equals(CacheSpec.CACHE_TYPE_SQL)) {
-            return new SqlDbCache();
+            return new SqlDbCache(s);
         } else if(s.type.equals(CacheSpec.CACHE_TYPE_MEM)) {
-            return new MemCache();
+            return new MemCache(s);
+        } else if(s.type.equals(CacheSpec.CACHE_TYPE_TIERED)) {
+            return new TieredCache(new MemCache(s), new SqlDbCache(s));
+        } else if(s.type.equals(CacheSpec.CACHE_TYPE_FILE)) {
+            return new FileCache(s);
         }
         throw new VizzlyException("Unknown cache type.");
     }    
@@ -18,23 +18,32 @@ package ch.ethz.vizzly.cache;
 
 import java.util.Calendar;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
 import ch.ethz.vizzly.AggregationLevelLookup;
+import ch.ethz.vizzly.cache.tiles.SpatialTilePyramid;
 import ch.ethz.vizzly.datareader.AbstractDataReader;
 import ch.ethz.vizzly.datareader.DataReaderRegistry;
 import ch.ethz.vizzly.datatype.CacheConfiguration;
 import ch.ethz.vizzly.datatype.CachedDataInfo;
+import ch.ethz.vizzly.datatype.QueryPlan;
+import ch.ethz.vizzly.datatype.SignalRegistry;
 import ch.ethz.vizzly.datatype.VizzlyException;
 import ch.ethz.vizzly.datatype.VizzlySignal;
 import ch.ethz.vizzly.datatype.VizzlySignalCurrentness;
+import ch.ethz.vizzly.datatype.readings.LocationBounds;
+import ch.ethz.vizzly.datatype.readings.LocationBoundsSink;
 import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueColumns;
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
 import ch.ethz.vizzly.performance.AbstractPerformanceTracker;
-import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement;
 import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
-import ch.ethz.vizzly.util.DataAggregationUtil;
+import ch.ethz.vizzly.util.LocationAggregationGrid;
+import ch.ethz.vizzly.util.SignalIdMap;
+import ch.ethz.vizzly.util.WindowAggregationSink;
 
 /**
  * This class implements the actual caching strategy. Currently each
@@ -66,14 +75,30 @@ public class CacheManager {
     /**
      * Keep track when we tried to update a signal most recently
      */
-    private ConcurrentHashMap<VizzlySignal,Long> signalLastUpdateAttempt = null;
+    private SignalIdMap<Long> signalLastUpdateAttempt = null;
+    
+    /* Map requests are answered using the spatial tiles if they cover at least this many full days */
+    private final int MIN_TILE_RANGE_DAYS = 7;
+    
+    /**
+     * Callback for signals whose cached data has been updated from the data source.
+     */
+    public interface UpdateListener {
+        /**
+         * @param firstTimestamp Timestamp of the first new value, all windows from here on may have changed
+         */
+        public void signalUpdated(VizzlySignal signal, long firstTimestamp);
+    }
+    
+    private CopyOnWriteArrayList<UpdateListener> updateListeners = null;
     
     public CacheManager(Vector<CacheConfiguration> caches, DataReaderRegistry dataReaderRegistry, AbstractPerformanceTracker perfTracker) {
         this.caches = caches;
         this.dataReaderRegistry = dataReaderRegistry;
         this.perfTracker = perfTracker;
         signalsToRemove = new Vector<VizzlySignal>();
-        signalLastUpdateAttempt = new ConcurrentHashMap<VizzlySignal,Long>();
+        signalLastUpdateAttempt = new SignalIdMap<Long>();
+        updateListeners = new CopyOnWriteArrayList<UpdateListener>();
         // Try to populate last update information from cached information
         // First seen signals, if data is also cached the currentness is refined in the second loop
         for(VizzlySignal s : caches.lastElement().cache.getSignals()) {
@@ -84,63 +109,148 @@ public class CacheManager {
         }
     }
   
-    public Vector<TimedLocationValue> getSignalData(VizzlySignal signal, int windowLengthSec, 
+    /**
+     * Returns a cursor over the data of a signal at the requested level of detail. If a cache
+     * holds the data at exactly this level, the cursor reads directly from the cache.
+     */
+    public TimedValueCursor getSignalCursor(VizzlySignal signal, int windowLengthSec, 
             Long timeFilterStart, Long timeFilterEnd, Boolean ignoreLocation) throws VizzlyException {
-        Vector<TimedLocationValue> r = null;
-        
+        return getSignalCursor(signal, windowLengthSec, timeFilterStart, timeFilterEnd, ignoreLocation, null, 0);
+    }
+
+    /**
+     * Returns a cursor over the data of a signal as determined by the query planner. The data
+     * is read from the planned cache, or from one of the following caches if it is not 
+     * available there.
+     */
+    public TimedValueCursor getSignalCursor(VizzlySignal signal, QueryPlan plan, 
+            Long timeFilterStart, Long timeFilterEnd, Boolean ignoreLocation) throws VizzlyException {
+        return getSignalCursor(signal, plan.windowLengthSec, timeFilterStart, timeFilterEnd, ignoreLocation, null, 
+                plan.cacheIdx);
+    }
+
+    /**
+     * Returns a cursor over the data of a signal at the requested level of detail, restricted
+     * to the values whose location lies within the given map area.
+     */
+    public TimedValueCursor getSignalCursor(VizzlySignal signal, int windowLengthSec, 
+            Long timeFilterStart, Long timeFilterEnd, LocationBounds bounds) throws VizzlyException {
+        return getSignalCursor(signal, windowLengthSec, timeFilterStart, timeFilterEnd, false, bounds, 0);
+    }
+
+    /**
+     * Same as getSignalCursor(VizzlySignal, QueryPlan, Long, Long, Boolean), restricted to the 
+     * values whose location lies within the given map area.
+     */
+    public TimedValueCursor getSignalCursor(VizzlySignal signal, QueryPlan plan, 
+            Long timeFilterStart, Long timeFilterEnd, LocationBounds bounds) throws VizzlyException {
+        return getSignalCursor(signal, plan.windowLengthSec, timeFilterStart, timeFilterEnd, false, bounds, 
+                plan.cacheIdx);
+    }
+
+    private TimedValueCursor getSignalCursor(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, 
+            Long timeFilterEnd, Boolean ignoreLocation, LocationBounds bounds, int firstCacheIdx) throws VizzlyException {
+        TimedValueCursor r = findSignalCursor(signal, windowLengthSec, timeFilterStart, timeFilterEnd, ignoreLocation, 
+                bounds, firstCacheIdx);
+        CacheConfiguration last = caches.lastElement();
+        if(r == null && !last.cache.isInCache(signal, last.windowLength)) {
+            // The entry has been evicted since the request has been planned and is refilled by the update workers
+            throw new VizzlyException("Requested data is being reloaded. Please come back later.");
+        }
+        if(r == null) {
+            // None of the cached had the requested data available
+            throw new VizzlyException("Client requested an unknown signal.");
+        }
+        return r;
+    }
+
+    private TimedValueCursor findSignalCursor(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, 
+            Long timeFilterEnd, Boolean ignoreLocation, LocationBounds bounds, int firstCacheIdx) {
         // Iterate through list of available caches. Assumes that faster/smaller caches are 
         // checked before slower/larger caches are polled.
-        CacheConfiguration cacheConfigUsed = null;
-        for(CacheConfiguration cc : caches) {
-            if(windowLengthSec < cc.windowLength) {
-                // Desired granularity is not found in this cache
+        for(int i = firstCacheIdx; i < caches.size(); i++) {
+            CacheConfiguration cc = caches.get(i);
+            if(windowLengthSec < cc.windowLength || windowLengthSec % cc.windowLength != 0) {
+                // Desired granularity is not found in this cache, or windows would not be aligned
                 continue;
             }
             long dataFetchStart = System.currentTimeMillis();
-            r = cc.cache.getSignalData(signal, cc.windowLength, 
-                    timeFilterStart, timeFilterEnd, true);
-            long dataFetchEnd = System.currentTimeMillis();
-            if(r != null) {
-                // Log successful access
-                DataFetchPerformanceMeasurement s = new DataFetchPerformanceMeasurement(dataFetchStart, signal.getUniqueIdentifier(), 
-                        cc.cache.getLastUpdate(signal, cc.windowLength).getTime(), 
-                        cc.cache.getDataBackend(), cc.windowLength, r.size(), dataFetchEnd-dataFetchStart);
-                perfTracker.addDataFetchMeasurement(s);
-                cacheConfigUsed = cc;
-                break;
+            if(!ignoreLocation && windowLengthSec == cc.windowLength) {
+                // Temporal detail level matches already, do not group by equal location
+                TimedValueCursor r = (bounds == null) 
+                        ? cc.cache.getSignalCursor(signal, cc.windowLength, timeFilterStart, timeFilterEnd, true)
+                        : cc.cache.getSignalCursor(signal, cc.windowLength, timeFilterStart, timeFilterEnd, true, bounds);
+                long dataFetchEnd = System.currentTimeMillis();
+                if(r != null) {
+                    // Log successful access
+                    perfTracker.addDataFetchMeasurement(dataFetchStart, signal.getUniqueIdentifier(), 
+                            cc.cache.getLastUpdate(signal, cc.windowLength).getTime(), 
+                            cc.cache.getDataBackend(), cc.windowLength, r.size(), dataFetchEnd-dataFetchStart);
+                    return r;
+                }
+                readmitEvictedEntry(i, signal);
+            } else {
+                // Data is not yet on desired detail level but needs to be further aggregated on-the-fly.
+                // Cached data is streamed through the aggregation, only the aggregated result is kept.
+                TimedValueColumns agg = new TimedValueColumns();
+                TimedValueSink aggSink = new WindowAggregationSink(agg, windowLengthSec, ignoreLocation);
+                if(bounds != null) {
+                    // Values are grouped by equal location, hence they can be filtered before aggregation
+                    aggSink = new LocationBoundsSink(aggSink, bounds);
+                }
+                if(cc.cache.getSignalData(signal, cc.windowLength, timeFilterStart, timeFilterEnd, true, aggSink)) {
+                    aggSink.finish();
+                    long dataFetchEnd = System.currentTimeMillis();
+                    perfTracker.addDataFetchMeasurement(dataFetchStart, signal.getUniqueIdentifier(), 
+                            cc.cache.getLastUpdate(signal, cc.windowLength).getTime(), 
+                            DataBackend.LIVEAGGREGATION, windowLengthSec, agg.size(), dataFetchEnd-dataFetchStart);
+                    return agg.cursor();
+                }
+                readmitEvictedEntry(i, signal);
             }
         }
-        
-        if(r == null) {
-            // None of the cached had the requested data available
-            throw new VizzlyException("Client requested an unknown signal.");
-        }
-        
-        if(r.size() == 0) {
-            // There is a result, but it is empty. No need for further processing.
-            return r;
-        }
-        
-        if(!ignoreLocation && windowLengthSec == cacheConfigUsed.windowLength) {
-            // Result found, temporal detail level matches already, do not group by equal location
-            return r;
+        return null;
+    }
+
+    /*
+     * Entries that have been evicted are only refilled when requested again. A requested entry
+     * is readmitted and the signal is moved to the front of the queue of the update workers,
+     * which refill it during their next round.
+     * @return True if the entry had been evicted
+     */
+    private Boolean readmitEvictedEntry(int cacheIdx, VizzlySignal signal) {
+        CacheConfiguration cc = caches.get(cacheIdx);
+        if(cc.cache.wantsCacheEntry(signal, cc.windowLength)) {
+            return false;
         }
-        
-        // Data is not yet on desired detail level but needs to be further aggregated on-the-fly 
-        Vector<TimedLocationValue> agg = null;
-        long dataFetchStart = System.currentTimeMillis();
-        if(r.get(0).location != null && !ignoreLocation) {
-            agg = DataAggregationUtil.aggregateDataWithLocation(r,  windowLengthSec);
-        } else {
-            agg = DataAggregationUtil.aggregateDataNullLocation(r,  windowLengthSec);
+        cc.cache.readmitCacheEntry(signal, cc.windowLength);
+        signalLastUpdateAttempt.put(signal, 0L);
+        return true;
+    }
+    
+    /**
+     * Returns a cursor over the windows of the finest cache, one value per window regardless
+     * of location. The read is not counted as a request, hence it does not influence the
+     * eviction of the entry. Used for pushing updates to subscribers.
+     * @return Cursor, null if the data is not cached
+     */
+    public TimedValueCursor getFinestSignalCursor(VizzlySignal signal, Long timeFilterStart) {
+        CacheConfiguration cc = caches.lastElement();
+        TimedValueColumns agg = new TimedValueColumns();
+        WindowAggregationSink aggSink = new WindowAggregationSink(agg, cc.windowLength, true);
+        if(!cc.cache.getSignalData(signal, cc.windowLength, timeFilterStart, null, false, aggSink)) {
+            return null;
         }
-        long dataFetchEnd = System.currentTimeMillis();
-        DataFetchPerformanceMeasurement s = new DataFetchPerformanceMeasurement(dataFetchStart, signal.getUniqueIdentifier(), 
-                cacheConfigUsed.cache.getLastUpdate(signal, cacheConfigUsed.windowLength).getTime(), 
-                DataBackend.LIVEAGGREGATION, windowLengthSec, agg.size(), dataFetchEnd-dataFetchStart);
-        perfTracker.addDataFetchMeasurement(s);
-        
-        return agg;
+        aggSink.finish();
+        return agg.cursor();
+    }
+    
+    public void addUpdateListener(UpdateListener listener) {
+        updateListeners.add(listener);
+    }
+    
+    public void removeUpdateListener(UpdateListener listener) {
+        updateListeners.remove(listener);
     }
     
     public int getNumberOfCaches() {
@@ -148,6 +258,11 @@ public class CacheManager {
     }
     
     public void updateCachedSignal(VizzlySignal signal) {
+        if(!caches.lastElement().cache.wantsCacheEntry(signal, caches.lastElement().windowLength)) {
+            // Entry has been evicted, do not fetch it again until it is requested
+            signalLastUpdateAttempt.put(signal, System.currentTimeMillis());
+            return;
+        }
         // Under the assumed order of cache configurations (largest cache last), first
         // update last cache configuration and then all others
         if(updateCachedSignalFromSource(caches.lastElement().cache, signal, 
@@ -155,6 +270,10 @@ public class CacheManager {
             for(int i = 0; i < caches.size()-1; i++) {
                 AbstractCache toCopy = caches.get(i).cache;
                 int windowLengthNew = caches.get(i).windowLength;
+                if(!toCopy.wantsCacheEntry(signal, windowLengthNew)) {
+                    // Evicted entries are served by the next tier until requested again
+                    continue;
+                }
                 if(!toCopy.isInCache(signal, windowLengthNew)) {
                     toCopy.addSignal(signal);
                 }
@@ -185,10 +304,18 @@ public class CacheManager {
             Calendar cal = Calendar.getInstance();
             signalLastUpdateAttempt.put(signal, cal.getTime().getTime());
             AbstractDataReader reader = dataReaderRegistry.getDataReader(signal.dataSource.type);
+            long dataFetchStart = System.currentTimeMillis();
             Vector<TimedLocationValue> r = reader.getSignalData(signal, timeFilterStart, null, 0);
+            perfTracker.addUpstreamFetchMeasurement(signal.dataSource.type, System.currentTimeMillis()-dataFetchStart);
             if(r != null && r.size() > 0) {
                 AggregationLevelLookup.getInstance().updateSamplingRateEstimation(signal, r);
                 cache.updateCacheEntry(signal, windowLengthSec, r);
+                if(r.get(0).location != null) {
+                    cache.updateTiles(signal, windowLengthSec, r.get(0).timestamp);
+                }
+                for(UpdateListener l : updateListeners) {
+                    l.signalUpdated(signal, r.get(0).timestamp);
+                }
                 return true;
             }
         } catch(VizzlyException e) {
@@ -198,6 +325,42 @@ public class CacheManager {
         return false;
     }
     
+    /**
+     * Aggregates the data of a signal into the map grid using the spatial tiles. Tiles are
+     * only used for the full days within the time range, the remaining data at the borders
+     * of the time range is read from the cache with the highest temporal resolution.
+     * @return False if the time range is too short or no tiles of the required detail
+     *   are available, nothing is added to the grid in that case
+     */
+    public Boolean getAggregatedMapFromTiles(VizzlySignal signal, long timeFilterStart, long timeFilterEnd, 
+            LocationAggregationGrid grid) {
+        long tilesStart = SpatialTilePyramid.getBucketStart(timeFilterStart+SpatialTilePyramid.BUCKET_LENGTH_MILLI-1);
+        long tilesEnd = SpatialTilePyramid.getBucketStart(timeFilterEnd);
+        if(tilesEnd-tilesStart < MIN_TILE_RANGE_DAYS*SpatialTilePyramid.BUCKET_LENGTH_MILLI) {
+            return false;
+        }
+        CacheConfiguration cc = caches.lastElement();
+        if(!cc.cache.aggregateTiles(signal, cc.windowLength, tilesStart, tilesEnd, grid)) {
+            return false;
+        }
+        if(timeFilterStart < tilesStart) {
+            addToGrid(cc.cache.getSignalCursor(signal, cc.windowLength, timeFilterStart, tilesStart-1, false, 
+                    grid.getBounds()), grid);
+        }
+        addToGrid(cc.cache.getSignalCursor(signal, cc.windowLength, tilesEnd, timeFilterEnd, false, 
+                grid.getBounds()), grid);
+        return true;
+    }
+
+    private void addToGrid(TimedValueCursor c, LocationAggregationGrid grid) {
+        if(c == null) {
+            return;
+        }
+        while(c.next()) {
+            grid.addValue(c.getLatitude(), c.getLongitude(), c.getValue());
+        }
+    }
+    
     @SuppressWarnings("unused")
     private void updateByCopyFromOtherCache(AbstractCache fromCache, AbstractCache toCache, VizzlySignal signal, int windowLengthSec) {
         Long timeFilterStart = null;
@@ -234,12 +397,18 @@ public class CacheManager {
             //log.debug("timeFilterStart = " + timeFilterStart);
         } 
         
-        Vector<TimedLocationValue> inputData = fromCache.getSignalData(signal, windowLengthSecFrom, timeFilterStart, null, false);
-        if(inputData == null) {
+        // Aggregate while streaming so that the complete history of lower resolution is never held in memory
+        TimedValueColumns aggregatedData = new TimedValueColumns();
+        WindowAggregationSink aggSink = new WindowAggregationSink(aggregatedData, windowLengthSecTo, false);
+        if(!fromCache.getSignalData(signal, windowLengthSecFrom, timeFilterStart, null, false, aggSink)) {
             log.error("Data of lower resolution is not available?!");
             return;
         }
-        toCache.updateCacheEntry(signal, windowLengthSecTo, inputData);
+        aggSink.finish();
+        if(aggregatedData.size() == 0) {
+            return;
+        }
+        toCache.updateCacheEntry(signal, windowLengthSecTo, aggregatedData.toVector());
     }
     
     public void scheduleSignalForRemoval(VizzlySignal signal) {
@@ -256,12 +425,14 @@ public class CacheManager {
             removeSuccessful = removeSuccessful && cc.cache.removeSignal(signal);
         }
         AggregationLevelLookup.getInstance().deleteSignalEstimation(signal);
+        signalLastUpdateAttempt.remove(signal);
         if(removeSuccessful) {
             synchronized(signalsToRemove) {
                 signalsToRemove.remove(signal);
             }
+            // Also drops the signal from all other maps indexed by signal ids
+            SignalRegistry.getInstance().release(signal);
         }
-        signalLastUpdateAttempt.remove(signal);
     }
     
     // Called from web page to show the users that there are pending requests
@@ -270,6 +441,12 @@ public class CacheManager {
         return (Vector<VizzlySignal>)(signalsToRemove.clone());
     }
 
+    public void shutdown() {
+        for(CacheConfiguration cc : caches) {
+            cc.cache.shutdown();
+        }
+    }
+
     public Long getFirstPacketTimestamp(VizzlySignal signal) {
         return caches.lastElement().cache.getFirstPacketTimestamp(signal, caches.lastElement().windowLength);
     }
@@ -286,6 +463,18 @@ public class CacheManager {
         return ret;
     }
 
+    public int getWindowLength(int cacheIdx) {
+        return caches.get(cacheIdx).windowLength;
+    }
+
+    public DataBackend getDataBackend(int cacheIdx) {
+        return caches.get(cacheIdx).cache.getDataBackend();
+    }
+
+    public Boolean isInCache(VizzlySignal signal, int cacheIdx) {
+        return caches.get(cacheIdx).cache.isInCache(signal, caches.get(cacheIdx).windowLength);
+    }
+
     public Vector<CachedDataInfo> getCachedDataInfo(int cacheIdx) {
         return caches.get(cacheIdx).cache.getCachedDataInfo();
     }
@@ -322,6 +511,10 @@ public class CacheManager {
         return caches.get(cacheIdx).cache.getNumberOfCacheMisses();
     }
     
+    public long getNumberOfEvictions(int cacheIdx) {
+        return caches.get(cacheIdx).cache.getNumberOfEvictions();
+    }
+    
     public String getCacheDescription(int cacheIdx) {
         return caches.get(cacheIdx).cache.getCacheDescription();
     }
@@ -332,7 +525,27 @@ public class CacheManager {
             caches.lastElement().cache.addSignal(signal);
             signalLastUpdateAttempt.put(signal, 0L);
         }
-        return caches.lastElement().cache.isInCache(signal, caches.lastElement().windowLength);
+        if(caches.lastElement().cache.isInCache(signal, caches.lastElement().windowLength)) {
+            return true;
+        }
+        // Evicted entries are refilled by the update workers, the request has to come back later
+        readmitEvictedEntry(caches.size()-1, signal);
+        return false;
+    }
+    
+    /**
+     * Returns the number of signals for which an update is due, i.e., the length of the 
+     * queue the update workers are processing.
+     */
+    public int getNumberOfSignalsDueForUpdate() {
+        long threshold = System.currentTimeMillis()-UPDATE_DISTANCE_MSEC;
+        int ret = 0;
+        for(Long lastAttempt : signalLastUpdateAttempt.values()) {
+            if(lastAttempt < threshold) {
+                ret++;
+            }
+        }
+        return ret;
     }
     
     public Vector<VizzlySignalCurrentness> getSignalsWithCurrentness() {
@@ -151,6 +151,21 @@ public class CacheUpdateWorkerSynchronization {
         }
     }
     
+    public int getNumberOfBusyWorkers() {
+        int ret = 0;
+        synchronized(workerSyncLock) {
+            if(workerSignal == null) {
+                return 0;
+            }
+            for(int i = 0; i < workerSignal.length; i++) {
+                if(workerSignal[i] != null) {
+                    ret++;
+                }
+            }
+        }
+        return ret;
+    }
+    
     public VizzlySignal[] getWorkerSignals() {
         return (VizzlySignal[])workerSignal.clone();
     }
@@ -0,0 +1,839 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.cache.AbstractCache;
+import ch.ethz.vizzly.cache.CacheEntryAccessStats;
+import ch.ethz.vizzly.cache.sqldb.ChunkCodec;
+import ch.ethz.vizzly.datatype.CacheSpec;
+import ch.ethz.vizzly.datatype.CachedDataInfo;
+import ch.ethz.vizzly.datatype.SignalRegistry;
+import ch.ethz.vizzly.datatype.VizzlyException;
+import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.datatype.readings.TimedValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueColumns;
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+import ch.ethz.vizzly.util.DataAggregationUtil;
+import ch.ethz.vizzly.util.TimestampTruncateUtil;
+
+import com.google.gson.Gson;
+
+/**
+ * This class implements a cache that stores all data in local files and does not need a
+ * database server. Every update of a cache entry is appended as a compressed, checksummed
+ * record to a segment file. New entries as well as added and removed signals are logged
+ * in the segment files, too. Meta data is hold in memory and checkpointed to an index file
+ * by the compactor. After a crash, records written since the last checkpoint are recovered
+ * from the segment files. Segments that mostly contain replaced records are compacted
+ * in the background, entries consisting of many small records are merged at the same time.
+ * @author Matthias Keller
+ *
+ */
+public class FileCache extends AbstractCache {
+
+    private static Logger log = Logger.getLogger(FileCache.class);
+
+    private final String description = "FileCache";
+
+    private static final int DEFAULT_SEGMENT_SIZE_MB = 64;
+
+    /* Entry id, last packet timestamp, last update, first and last time index, number of values */
+    private static final int PAYLOAD_HEADER_SIZE = 32;
+
+    /* Payloads of values start with the (positive) entry id, payloads of meta data with one of these */
+    private static final int RECORD_TYPE_ENTRY = -1;
+
+    private static final int RECORD_TYPE_ADD_SIGNAL = -2;
+
+    private static final int RECORD_TYPE_REMOVE_SIGNAL = -3;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /* Segments in which less than this share of the data is still in use are compacted */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /* Entries with more records are merged into a single record during compaction */
+    private static final int MAX_RECORDS_PER_ENTRY = 64;
+
+    private File directory = null;
+
+    private SegmentStore store = null;
+
+    private FileCacheCompactor compactor = null;
+
+    private ConcurrentHashMap<String, FileCacheEntry> entries = null;
+
+    private ConcurrentHashMap<Integer, FileCacheEntry> entriesById = null;
+
+    private Vector<VizzlySignal> seenSignals = null;
+
+    private AtomicInteger nextEntryId = new AtomicInteger(1);
+
+    private long generation = 0L;
+
+    /* Appending and publishing a record happens atomically with respect to checkpoints */
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    private final Object checkpointMonitor = new Object();
+
+    /* Compacted segments, deleted during the next compaction when no reader uses them anymore */
+    private Vector<Integer> obsoleteSegments = null;
+
+    public FileCache(CacheSpec spec) throws VizzlyException {
+        entries = new ConcurrentHashMap<String, FileCacheEntry>();
+        entriesById = new ConcurrentHashMap<Integer, FileCacheEntry>();
+        seenSignals = new Vector<VizzlySignal>();
+        obsoleteSegments = new Vector<Integer>();
+        dataBackend = DataBackend.FILECACHE;
+
+        String dir = spec.optionalParameters.get(CacheSpec.PARAM_DIRECTORY);
+        if(dir == null || dir.isEmpty()) {
+            throw new VizzlyException("The file cache requires a directory.");
+        }
+        long maxSegmentBytes = DEFAULT_SEGMENT_SIZE_MB*1024L*1024L;
+        String segmentSizeMb = spec.optionalParameters.get(CacheSpec.PARAM_SEGMENT_SIZE_MB);
+        if(segmentSizeMb != null && !segmentSizeMb.isEmpty()) {
+            try {
+                maxSegmentBytes = Long.parseLong(segmentSizeMb)*1024L*1024L;
+            } catch(NumberFormatException e) {
+                throw new VizzlyException("Invalid segment size: " + segmentSizeMb);
+            }
+            // Records are addressed by int offsets within the memory mapped segments
+            if(maxSegmentBytes <= 0 || maxSegmentBytes > Integer.MAX_VALUE) {
+                throw new VizzlyException("Invalid segment size: " + segmentSizeMb);
+            }
+        }
+        directory = new File(dir);
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new VizzlyException("Cannot create file cache directory: " + dir);
+        }
+
+        try {
+            store = new SegmentStore(directory, maxSegmentBytes);
+            store.open();
+            int fromSegmentId = 0;
+            long fromOffset = 0L;
+            FileCacheIndex index = FileCacheIndex.load(directory);
+            if(index != null) {
+                restoreIndex(index);
+                fromSegmentId = index.activeSegmentId;
+                fromOffset = index.activeSegmentOffset;
+            }
+            store.recover(fromSegmentId, fromOffset, new SegmentStore.RecordVisitor() {
+                public void visit(FileCacheRecord r, ByteBuffer payload) {
+                    replayRecord(r, payload);
+                }
+            });
+            checkpoint();
+            compactor = new FileCacheCompactor(this);
+            compactor.start();
+            isInitialized = true;
+            log.info("File cache opened in " + directory.getAbsolutePath() + " with " + entries.size() + " entries");
+        } catch(IOException e) {
+            log.error("Failed to open file cache.", e);
+        }
+    }
+
+    public String getCacheDescription() {
+        return description;
+    }
+
+    private String getKey(VizzlySignal signal, int windowLengthSec) {
+        return SignalRegistry.getInstance().getEntryKey(signal, windowLengthSec);
+    }
+
+    private void restoreIndex(FileCacheIndex index) {
+        generation = index.generation;
+        nextEntryId.set(index.nextEntryId);
+        seenSignals.addAll(index.signals);
+        for(FileCacheIndex.Entry i : index.entries) {
+            FileCacheEntry e = new FileCacheEntry();
+            e.entryId = i.entryId;
+            e.signal = i.signal;
+            e.windowLengthSec = i.windowLengthSec;
+            e.hasLocationData = i.hasLocationData;
+            e.startTime = i.startTime;
+            e.endTime = i.endTime;
+            e.firstPacketTimestamp = i.firstPacketTimestamp;
+            e.lastPacketTimestamp = i.lastPacketTimestamp;
+            if(i.lastUpdate != null) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTimeInMillis(i.lastUpdate);
+                e.lastUpdate = cal.getTime();
+            }
+            e.numElements = i.numElements;
+            e.accessStats = new CacheEntryAccessStats(i.hits);
+            e.records = (i.records != null) ? i.records : new FileCacheRecord[0];
+            entries.put(getKey(e.signal, e.windowLengthSec), e);
+            entriesById.put(e.entryId, e);
+        }
+        // Segments that are not referenced anymore have been compacted before the crash
+        HashSet<Integer> referenced = new HashSet<Integer>();
+        for(int id : index.segmentIds) {
+            referenced.add(id);
+        }
+        for(Integer id : store.getSegmentIds()) {
+            if(id < index.activeSegmentId && !referenced.contains(id)) {
+                store.deleteSegment(id);
+            }
+        }
+    }
+
+    /*
+     * Applies a record that has been written after the last checkpoint. Records of
+     * entries that have been removed in the meantime are ignored.
+     */
+    private void replayRecord(FileCacheRecord r, ByteBuffer payload) {
+        int entryId = payload.getInt();
+        if(entryId == RECORD_TYPE_ENTRY) {
+            replayEntry(payload);
+            return;
+        }
+        if(entryId == RECORD_TYPE_ADD_SIGNAL) {
+            rememberSignal(decodeSignal(payload));
+            return;
+        }
+        if(entryId == RECORD_TYPE_REMOVE_SIGNAL) {
+            forgetSignal(decodeSignal(payload));
+            return;
+        }
+        long lastPacketTimestamp = payload.getLong();
+        long lastUpdate = payload.getLong();
+        r.firstTimeIdx = payload.getInt();
+        r.lastTimeIdx = payload.getInt();
+        r.numValues = payload.getInt();
+        FileCacheEntry e = entriesById.get(entryId);
+        if(e == null) {
+            return;
+        }
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(lastUpdate);
+        synchronized(e) {
+            publishRecord(e, r, lastPacketTimestamp, cal.getTime());
+        }
+    }
+
+    private void replayEntry(ByteBuffer payload) {
+        FileCacheEntry e = new FileCacheEntry();
+        e.entryId = payload.getInt();
+        e.windowLengthSec = payload.getInt();
+        e.startTime = payload.getLong();
+        e.firstPacketTimestamp = payload.getLong();
+        e.lastPacketTimestamp = payload.getLong();
+        e.signal = decodeSignal(payload);
+        e.hasLocationData = e.signal.hasLocation();
+        if(e.entryId >= nextEntryId.get()) {
+            nextEntryId.set(e.entryId+1);
+        }
+        if(entriesById.containsKey(e.entryId)) {
+            return;
+        }
+        entries.put(getKey(e.signal, e.windowLengthSec), e);
+        entriesById.put(e.entryId, e);
+        rememberSignal(e.signal);
+    }
+
+    private VizzlySignal decodeSignal(ByteBuffer payload) {
+        byte[] json = new byte[payload.remaining()];
+        payload.get(json);
+        return new Gson().fromJson(new String(json, CHARSET), VizzlySignal.class);
+    }
+
+    private void appendSignalRecord(int type, VizzlySignal signal) throws IOException {
+        byte[] json = new Gson().toJson(signal).getBytes(CHARSET);
+        ByteBuffer payload = ByteBuffer.allocate(4+json.length);
+        payload.putInt(type);
+        payload.put(json);
+        store.append(payload.array());
+    }
+
+    /*
+     * Logs the definition of a new entry, so that its records can be recovered without
+     * a checkpoint.
+     */
+    private void appendEntryRecord(FileCacheEntry e) throws IOException {
+        byte[] json = new Gson().toJson(e.signal).getBytes(CHARSET);
+        ByteBuffer payload = ByteBuffer.allocate(36+json.length);
+        payload.putInt(RECORD_TYPE_ENTRY);
+        payload.putInt(e.entryId);
+        payload.putInt(e.windowLengthSec);
+        payload.putLong(e.startTime);
+        payload.putLong(e.firstPacketTimestamp);
+        payload.putLong(e.lastPacketTimestamp);
+        payload.put(json);
+        store.append(payload.array());
+    }
+
+    /**
+     * Writes the meta data of all entries and the current end of the active segment to the index.
+     */
+    public void checkpoint() throws IOException {
+        synchronized(checkpointMonitor) {
+            FileCacheIndex index = new FileCacheIndex();
+            checkpointLock.writeLock().lock();
+            try {
+                generation++;
+                index.generation = generation;
+                index.nextEntryId = nextEntryId.get();
+                index.activeSegmentId = store.getActiveSegmentId();
+                index.activeSegmentOffset = store.getActiveSegmentSize();
+                Vector<Integer> ids = store.getSegmentIds();
+                ids.removeAll(obsoleteSegments);
+                index.segmentIds = new int[ids.size()];
+                for(int i = 0; i < ids.size(); i++) {
+                    index.segmentIds[i] = ids.get(i);
+                }
+                synchronized(seenSignals) {
+                    index.signals.addAll(seenSignals);
+                }
+                for(FileCacheEntry e : entriesById.values()) {
+                    FileCacheIndex.Entry i = new FileCacheIndex.Entry();
+                    i.entryId = e.entryId;
+                    i.signal = e.signal;
+                    i.windowLengthSec = e.windowLengthSec;
+                    i.hasLocationData = e.hasLocationData;
+                    i.startTime = e.startTime;
+                    i.endTime = e.endTime;
+                    i.firstPacketTimestamp = e.firstPacketTimestamp;
+                    i.lastPacketTimestamp = e.lastPacketTimestamp;
+                    i.lastUpdate = (e.lastUpdate != null) ? e.lastUpdate.getTime() : null;
+                    i.numElements = e.numElements;
+                    i.hits = e.accessStats.getHits();
+                    i.records = e.records;
+                    index.entries.add(i);
+                }
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            // All records referenced by the index must be on disk before it
+            store.sync();
+            index.store(directory);
+        }
+    }
+
+    /**
+     * Rewrites all entries that still have records in segments that are mostly unused, so
+     * that these segments can be deleted. Called by the compactor thread.
+     */
+    public void compact() throws IOException {
+        synchronized(obsoleteSegments) {
+            for(Integer id : obsoleteSegments) {
+                store.deleteSegment(id);
+            }
+            obsoleteSegments.clear();
+        }
+
+        int activeSegmentId = store.getActiveSegmentId();
+        HashMap<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+        for(FileCacheEntry e : entriesById.values()) {
+            for(FileCacheRecord r : e.records) {
+                Long l = liveBytes.get(r.segmentId);
+                liveBytes.put(r.segmentId, ((l != null) ? l : 0L)+r.getLiveLength());
+            }
+        }
+        HashSet<Integer> victims = new HashSet<Integer>();
+        for(Integer id : store.getSegmentIds()) {
+            Long l = liveBytes.get(id);
+            if(id != activeSegmentId && (l == null || l < store.getSegmentSize(id)*COMPACTION_THRESHOLD)) {
+                victims.add(id);
+            }
+        }
+
+        int numRewritten = 0;
+        for(FileCacheEntry e : entriesById.values()) {
+            synchronized(e) {
+                if(e.records.length > MAX_RECORDS_PER_ENTRY) {
+                    rewriteEntry(e);
+                    numRewritten++;
+                    continue;
+                }
+                if(!victims.isEmpty()) {
+                    for(FileCacheRecord r : e.records) {
+                        if(victims.contains(r.segmentId)) {
+                            rewriteEntry(e);
+                            numRewritten++;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        if(!victims.isEmpty() || numRewritten > 0) {
+            obsoleteSegments.addAll(victims);
+            log.info("Compacted " + victims.size() + " segments, rewrote " + numRewritten + " entries");
+        }
+        checkpoint();
+    }
+
+    /*
+     * Replaces all records of an entry by a single record. Must be called with the entry locked.
+     */
+    private void rewriteEntry(FileCacheEntry e) throws IOException {
+        int total = e.numElements;
+        int[] timeIdx = new int[total];
+        double[] values = new double[total];
+        double[] locationLat = (e.hasLocationData) ? new double[total] : null;
+        double[] locationLng = (e.hasLocationData) ? new double[total] : null;
+        int n = 0;
+        for(FileCacheRecord r : e.records) {
+            ChunkCodec.Chunk c = decodeRecord(r);
+            if(c == null) {
+                continue;
+            }
+            for(int i = 0; i < c.numValues && c.timeIdx[i] <= r.lastTimeIdx && n < total; i++) {
+                timeIdx[n] = c.timeIdx[i];
+                values[n] = c.values[i];
+                if(e.hasLocationData && c.locationLat != null) {
+                    locationLat[n] = c.locationLat[i];
+                    locationLng[n] = c.locationLng[i];
+                }
+                n++;
+            }
+        }
+        if(n == 0) {
+            e.records = new FileCacheRecord[0];
+            e.numElements = 0;
+            return;
+        }
+        writeValues(e, timeIdx, values, locationLat, locationLng, n, e.lastPacketTimestamp, e.lastUpdate);
+    }
+
+    private ChunkCodec.Chunk decodeRecord(FileCacheRecord r) {
+        byte[] payload = store.read(r);
+        if(payload == null) {
+            return null;
+        }
+        return ChunkCodec.decode(payload, PAYLOAD_HEADER_SIZE);
+    }
+
+    /*
+     * Appends a record that replaces all values of the entry from its first time index
+     * on. Must be called with the entry locked.
+     */
+    private void writeValues(FileCacheEntry e, int[] timeIdx, double[] values, double[] locationLat, 
+            double[] locationLng, int numValues, long lastPacketTimestamp, Date lastUpdate) throws IOException {
+        byte[] encoded = ChunkCodec.encode(timeIdx, values, locationLat, locationLng, 0, numValues);
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_HEADER_SIZE+encoded.length);
+        payload.putInt(e.entryId);
+        payload.putLong(lastPacketTimestamp);
+        payload.putLong(lastUpdate.getTime());
+        payload.putInt(timeIdx[0]);
+        payload.putInt(timeIdx[numValues-1]);
+        payload.putInt(numValues);
+        payload.put(encoded);
+
+        checkpointLock.readLock().lock();
+        try {
+            FileCacheRecord r = store.append(payload.array());
+            r.firstTimeIdx = timeIdx[0];
+            r.lastTimeIdx = timeIdx[numValues-1];
+            r.numValues = numValues;
+            publishRecord(e, r, lastPacketTimestamp, lastUpdate);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Makes a record visible to readers. Must be called with the entry locked.
+     */
+    private void publishRecord(FileCacheEntry e, FileCacheRecord r, long lastPacketTimestamp, Date lastUpdate) {
+        Vector<FileCacheRecord> kept = new Vector<FileCacheRecord>();
+        int numElements = r.numValues;
+        for(FileCacheRecord o : e.records) {
+            if(o.firstTimeIdx >= r.firstTimeIdx) {
+                break;
+            }
+            if(o.lastTimeIdx >= r.firstTimeIdx) {
+                // Record is partially replaced
+                ChunkCodec.Chunk c = decodeRecord(o);
+                int n = 0;
+                while(c != null && n < c.numValues && c.timeIdx[n] < r.firstTimeIdx) {
+                    n++;
+                }
+                if(n == 0) {
+                    continue;
+                }
+                o = o.truncate(r.firstTimeIdx-1, n);
+            }
+            kept.add(o);
+            numElements += o.numValues;
+        }
+        FileCacheRecord[] records = kept.toArray(new FileCacheRecord[kept.size()+1]);
+        records[kept.size()] = r;
+        e.lastPacketTimestamp = lastPacketTimestamp;
+        e.endTime = TimestampTruncateUtil.truncate(lastPacketTimestamp, e.windowLengthSec*1000);
+        e.numElements = numElements;
+        e.lastUpdate = lastUpdate;
+        e.records = records;
+    }
+
+    private FileCacheEntry getOrCreateEntry(VizzlySignal signal, int windowLengthSec, Vector<TimedLocationValue> r) {
+        String key = getKey(signal, windowLengthSec);
+        FileCacheEntry e = entries.get(key);
+        if(e != null) {
+            return e;
+        }
+        synchronized(this) {
+            e = entries.get(key);
+            if(e != null) {
+                return e;
+            }
+            // r is ordered by ASCENDING time
+            e = new FileCacheEntry();
+            e.entryId = nextEntryId.getAndIncrement();
+            e.signal = signal;
+            e.windowLengthSec = windowLengthSec;
+            e.hasLocationData = signal.hasLocation();
+            e.startTime = TimestampTruncateUtil.truncate(r.firstElement().timestamp, windowLengthSec*1000);
+            e.firstPacketTimestamp = r.firstElement().timestamp;
+            e.lastPacketTimestamp = r.lastElement().timestamp;
+            // The entry has to be known before its first record is written
+            checkpointLock.readLock().lock();
+            try {
+                appendEntryRecord(e);
+                entries.put(key, e);
+                entriesById.put(e.entryId, e);
+            } catch(IOException ex) {
+                log.error(ex);
+                return null;
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+        }
+        rememberSignal(signal);
+        return e;
+    }
+
+    public void updateCacheEntry(VizzlySignal signal, int windowLengthSec, Vector<TimedLocationValue> r) {
+        if(!isInitialized) {
+            return;
+        }
+        if(r.size() == 0) {
+            return;
+        }
+        FileCacheEntry e = getOrCreateEntry(signal, windowLengthSec, r);
+        if(e == null) {
+            return;
+        }
+
+        int numValues = 0;
+        int[] timeIdx = null;
+        double[] values = null;
+        double[] locationLat = null;
+        double[] locationLng = null;
+        if(!e.hasLocationData) {
+            Vector<TimedValue> aggregatedData = DataAggregationUtil.aggregateData(r, windowLengthSec);
+            numValues = aggregatedData.size();
+            timeIdx = new int[numValues];
+            values = new double[numValues];
+            for(int i = 0; i < numValues; i++) {
+                TimedValue v = aggregatedData.get(i);
+                timeIdx[i] = getTimeIdx(v.timestamp, e.startTime, e.windowLengthSec);
+                values[i] = v.value;
+            }
+        } else {
+            Vector<TimedLocationValue> aggregatedData = DataAggregationUtil.aggregateDataWithLocation(r, windowLengthSec);
+            numValues = aggregatedData.size();
+            timeIdx = new int[numValues];
+            values = new double[numValues];
+            locationLat = new double[numValues];
+            locationLng = new double[numValues];
+            for(int i = 0; i < numValues; i++) {
+                TimedLocationValue v = aggregatedData.get(i);
+                timeIdx[i] = getTimeIdx(v.timestamp, e.startTime, e.windowLengthSec);
+                values[i] = v.value;
+                locationLat[i] = v.location.latitude;
+                locationLng[i] = v.location.longitude;
+            }
+        }
+        if(numValues == 0) {
+            log.debug("Empty aggregated data.");
+            return;
+        }
+
+        synchronized(e) {
+            try {
+                writeValues(e, timeIdx, values, locationLat, locationLng, numValues, r.lastElement().timestamp, 
+                        Calendar.getInstance().getTime());
+            } catch(IOException ex) {
+                log.error(ex);
+                return;
+            }
+        }
+        // Outside of the entry lock, so that concurrent updates are forced at once
+        try {
+            store.sync();
+        } catch(IOException ex) {
+            log.error(ex);
+        }
+    }
+
+    public Vector<CachedDataInfo> getCachedDataInfo() {
+        Vector<CachedDataInfo> ret = new Vector<CachedDataInfo>();
+        for(FileCacheEntry e : entriesById.values()) {
+            Date lastPacketTimestamp = null;
+            if(e.lastPacketTimestamp != null) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTimeInMillis(e.lastPacketTimestamp);
+                lastPacketTimestamp = cal.getTime();    
+            }
+            CachedDataInfo i = new CachedDataInfo(e.signal, e.windowLengthSec, e.numElements, 
+                    e.hasLocationData, e.lastUpdate, lastPacketTimestamp, e.accessStats.getHits(),
+                    e.accessStats.getScore());
+            ret.add(i);
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Vector<VizzlySignal> getSignals() {
+        return (Vector<VizzlySignal>)seenSignals.clone();
+    }
+
+    public Vector<TimedLocationValue> getSignalData(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, 
+            Long timeFilterEnd, Boolean updateStats) {
+        FileCacheEntry e = entries.get(getKey(signal, windowLengthSec));
+        TimedValueColumns columns = new TimedValueColumns((e != null) ? e.numElements+1 : 0);
+        if(!getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, updateStats, columns)) {
+            return null;
+        }
+        return columns.toVector();
+    }
+
+    /*
+     * Only records overlapping with the requested time range are read and decoded.
+     */
+    public Boolean getSignalData(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, Long timeFilterEnd, 
+            Boolean updateStats, TimedValueSink sink) {
+        if(!isInitialized) {
+            return false;
+        }
+        FileCacheEntry e = entries.get(getKey(signal, windowLengthSec));
+        if(e == null || e.lastUpdate == null) {
+            if(updateStats) {
+                recordCacheMiss();
+            }
+            return false;
+        }
+        if(updateStats) {
+            recordCacheHit();
+        }
+        Integer timeIdxStart = null;
+        Integer timeIdxEnd = null;
+        if(timeFilterStart != null) {
+            timeIdxStart = getTimeIdx(timeFilterStart, e.startTime, e.windowLengthSec);
+        }
+        if(timeFilterEnd != null) {
+            timeIdxEnd = getTimeIdx(timeFilterEnd, e.startTime, e.windowLengthSec);
+        }
+        long startTime = e.startTime;
+        long windowLengthMilli = (long)e.windowLengthSec*1000L;
+        for(FileCacheRecord r : e.records) {
+            if(timeIdxStart != null && r.lastTimeIdx < timeIdxStart) {
+                continue;
+            }
+            if(timeIdxEnd != null && r.firstTimeIdx > timeIdxEnd) {
+                break;
+            }
+            ChunkCodec.Chunk c = decodeRecord(r);
+            if(c == null) {
+                continue;
+            }
+            Boolean hasLocation = (e.hasLocationData && c.locationLat != null);
+            for(int i = 0; i < c.numValues; i++) {
+                int idx = c.timeIdx[i];
+                if(idx > r.lastTimeIdx || (timeIdxEnd != null && idx > timeIdxEnd)) {
+                    break;
+                }
+                if(timeIdxStart != null && idx < timeIdxStart) {
+                    continue;
+                }
+                long timestamp = startTime+idx*windowLengthMilli;
+                if(hasLocation) {
+                    sink.add(timestamp, c.values[i], c.locationLat[i], c.locationLng[i]);
+                } else {
+                    sink.add(timestamp, c.values[i]);
+                }
+            }
+        }
+        if(updateStats) {
+            e.accessStats.recordAccess();
+        }
+        return true;
+    }
+
+    public Boolean isInCache(VizzlySignal signal, int windowLengthSec) {
+        FileCacheEntry e = entries.get(getKey(signal, windowLengthSec));
+        return (e != null && e.lastUpdate != null);
+    }
+
+    public Long getStartTime(VizzlySignal signal, int windowLengthSec) {
+        FileCacheEntry e = entries.get(getKey(signal, windowLengthSec));
+        return (e != null) ? e.startTime : null;
+    }
+
+    public Long getEndTime(VizzlySignal signal, int windowLengthSec) {
+        FileCacheEntry e = entries.get(getKey(signal, windowLengthSec));
+        return (e != null) ? e.endTime : null;
+    }
+
+    public Long getFirstPacketTimestamp(VizzlySignal signal, int windowLengthSec) {
+        FileCacheEntry e = entries.get(getKey(signal, windowLengthSec));
+        return (e != null) ? e.firstPacketTimestamp : null;
+    }
+
+    public Long getLastPacketTimestamp(VizzlySignal signal, int windowLengthSec) {
+        FileCacheEntry e = entries.get(getKey(signal, windowLengthSec));
+        return (e != null) ? e.lastPacketTimestamp : null;
+    }
+
+    public Date getLastUpdate(VizzlySignal signal, int windowLengthSec) {
+        FileCacheEntry e = entries.get(getKey(signal, windowLengthSec));
+        return (e != null) ? e.lastUpdate : null;
+    }
+
+    private Boolean rememberSignal(VizzlySignal signal) {
+        synchronized(seenSignals) {
+            if(seenSignals.contains(signal)) {
+                return false;
+            }
+            seenSignals.add(signal);
+            return true;
+        }
+    }
+
+    /* Records of removed entries are discarded during compaction */
+    private void forgetSignal(VizzlySignal signal) {
+        synchronized(seenSignals) {
+            seenSignals.remove(signal);
+        }
+        Iterator<FileCacheEntry> it = entriesById.values().iterator();
+        while(it.hasNext()) {
+            FileCacheEntry e = it.next();
+            if(e.signal.equals(signal)) {
+                it.remove();
+                entries.remove(getKey(e.signal, e.windowLengthSec));
+            }
+        }
+    }
+
+    public void addSignal(VizzlySignal signal) {
+        if(!isInitialized) {
+            rememberSignal(signal);
+            return;
+        }
+        checkpointLock.readLock().lock();
+        try {
+            if(!rememberSignal(signal)) {
+                return;
+            }
+            appendSignalRecord(RECORD_TYPE_ADD_SIGNAL, signal);
+        } catch(IOException e) {
+            log.error(e);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        try {
+            store.sync();
+        } catch(IOException e) {
+            log.error(e);
+        }
+    }
+
+    public Boolean removeSignal(VizzlySignal signal) {
+        if(!isInitialized) {
+            return false;
+        }
+        checkpointLock.readLock().lock();
+        try {
+            forgetSignal(signal);
+            appendSignalRecord(RECORD_TYPE_REMOVE_SIGNAL, signal);
+        } catch(IOException e) {
+            log.error(e);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        try {
+            store.sync();
+        } catch(IOException e) {
+            log.error(e);
+        }
+        return true;
+    }
+
+    public long getCacheSize() {
+        long total = 0;
+        for(FileCacheEntry e : entriesById.values()) {
+            if(e.hasLocationData) {
+                total += e.numElements * 24;
+            } else {
+                total += e.numElements * 8;
+            }
+        }
+        return total;
+    }
+
+    public int getNumberOfSeenSignals() {
+        return seenSignals.size();
+    }
+
+    public int getNumberOfCacheEntries() {
+        return entriesById.size();
+    }
+
+    public void shutdown() {
+        if(!isInitialized) {
+            return;
+        }
+        compactor.shutdown();
+        try {
+            checkpoint();
+        } catch(IOException e) {
+            log.error(e);
+        }
+        isInitialized = false;
+        store.close();
+    }
+
+    private int getTimeIdx(long timestamp, long startTime, int windowLengthSec) {
+        long windowLengthSecMilli = (long)windowLengthSec*1000;
+        double t = Long.valueOf(timestamp-startTime).doubleValue();
+        double i = Long.valueOf(windowLengthSecMilli).doubleValue();
+        Double idx = Math.floor(t/i);
+        return idx.intValue();
+    }
+
+}
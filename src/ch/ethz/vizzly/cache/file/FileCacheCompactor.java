@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.file;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class implements a background thread that periodically checkpoints the index of
+ * a file cache and compacts its segment files.
+ * @author Matthias Keller
+ *
+ */
+public class FileCacheCompactor extends Thread {
+
+    private static Logger log = Logger.getLogger(FileCacheCompactor.class);
+
+    private static final long COMPACTION_INTERVAL_MSEC = 600000L;
+
+    private final FileCache cache;
+
+    private volatile Boolean running = true;
+
+    public FileCacheCompactor(FileCache cache) {
+        this.cache = cache;
+        setName("File Cache Compactor");
+        setDaemon(true);
+    }
+
+    public void run() {
+        while(running) {
+            try {
+                synchronized(this) {
+                    wait(COMPACTION_INTERVAL_MSEC);
+                }
+            } catch(InterruptedException e) {
+                break;
+            }
+            if(!running) {
+                break;
+            }
+            try {
+                cache.compact();
+            } catch(Exception e) {
+                // Keep thread alive, compaction is retried later
+                log.error("Compaction of file cache failed.", e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized(this) {
+            notifyAll();
+        }
+        try {
+            join();
+        } catch(InterruptedException e) {
+            log.error(e);
+        }
+    }
+
+}
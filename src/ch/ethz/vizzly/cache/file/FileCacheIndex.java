@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Vector;
+
+import ch.ethz.vizzly.datatype.VizzlySignal;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * This class implements the index of the file cache. The index is a checkpoint of the
+ * meta data of all cache entries and the position in the segment files up to which it
+ * is complete. Records appended afterwards are recovered by scanning the segment files.
+ * The index is written to a temporary file first and then atomically renamed, so that a
+ * crash never leaves a partially written index behind.
+ * @author Matthias Keller
+ *
+ */
+public class FileCacheIndex {
+
+    public static final String FILE_NAME = "index.json";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Meta data of a single cache entry.
+     */
+    public static class Entry {
+        public int entryId;
+        public VizzlySignal signal;
+        public int windowLengthSec;
+        public Boolean hasLocationData;
+        public Long startTime;
+        public Long endTime;
+        public Long firstPacketTimestamp;
+        public Long lastPacketTimestamp;
+        public Long lastUpdate;
+        public int numElements;
+        public long hits;
+        public FileCacheRecord[] records;
+    }
+
+    /* Incremented with every checkpoint */
+    public long generation = 0L;
+
+    public int nextEntryId = 1;
+
+    /* Records up to this position are contained in the index */
+    public int activeSegmentId = 0;
+
+    public long activeSegmentOffset = 0L;
+
+    /* Segment files referenced by the index, all others up to activeSegmentId are obsolete */
+    public int[] segmentIds = new int[0];
+
+    public Vector<VizzlySignal> signals = new Vector<VizzlySignal>();
+
+    public Vector<Entry> entries = new Vector<Entry>();
+
+    /**
+     * Loads the index from the given directory.
+     * @return Index, null if no index exists
+     */
+    public static FileCacheIndex load(File directory) throws IOException {
+        File f = new File(directory, FILE_NAME);
+        if(!f.exists()) {
+            return null;
+        }
+        Reader in = new InputStreamReader(new FileInputStream(f), CHARSET);
+        try {
+            return new Gson().fromJson(in, FileCacheIndex.class);
+        } catch(JsonParseException e) {
+            throw new IOException("Corrupt file cache index: " + f.getAbsolutePath(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void store(File directory) throws IOException {
+        File tmp = new File(directory, FILE_NAME + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            Writer w = new OutputStreamWriter(out, CHARSET);
+            new Gson().toJson(this, w);
+            w.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(directory, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, 
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
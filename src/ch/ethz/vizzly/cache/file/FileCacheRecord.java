@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.file;
+
+/**
+ * This class implements a data type that describes a record stored in a segment file.
+ * A record holds the values of a cache entry starting from its first time index and
+ * replaces all values of the entry that have been written before from that index on.
+ * Instances are never modified once they have been published.
+ * @author Matthias Keller
+ *
+ */
+public class FileCacheRecord {
+
+    public int segmentId = 0;
+
+    /* Position of the record header within the segment */
+    public long offset = 0L;
+
+    /* Length of the record including its header */
+    public int length = 0;
+
+    public int firstTimeIdx = 0;
+
+    /* Values after this time index have been replaced by later records */
+    public int lastTimeIdx = 0;
+
+    /* Number of values up to lastTimeIdx */
+    public int numValues = 0;
+
+    /* Share of the length that is still referenced, estimated from the number of values */
+    public int liveLength = 0;
+
+    public FileCacheRecord() {
+    }
+
+    public FileCacheRecord(int segmentId, long offset, int length) {
+        this.segmentId = segmentId;
+        this.offset = offset;
+        this.length = length;
+        this.liveLength = length;
+    }
+
+    public int getLiveLength() {
+        // Indexes written before the live length was tracked
+        return (liveLength > 0) ? liveLength : length;
+    }
+
+    public FileCacheRecord truncate(int lastTimeIdx, int numValues) {
+        FileCacheRecord r = new FileCacheRecord(segmentId, offset, length);
+        r.firstTimeIdx = firstTimeIdx;
+        r.lastTimeIdx = lastTimeIdx;
+        r.numValues = numValues;
+        if(this.numValues > 0) {
+            r.liveLength = (int)Math.max(1L, (long)getLiveLength()*numValues/this.numValues);
+        }
+        return r;
+    }
+
+}
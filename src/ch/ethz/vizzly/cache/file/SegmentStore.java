@@ -0,0 +1,356 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class manages the append-only segment files of the file cache. Every record is
+ * framed by a header that contains a magic number, the payload length and a CRC32 checksum
+ * of the payload. Records are only appended to the active segment. When it exceeds the
+ * maximum segment size, a new segment is started. Segments are read through memory mappings.
+ * Appended records are forced to disk in groups: a single sync covers all records that have
+ * been appended by any thread before it started.
+ * @author Matthias Keller
+ *
+ */
+public class SegmentStore {
+
+    private static Logger log = Logger.getLogger(SegmentStore.class);
+
+    private static final int RECORD_MAGIC = 0x565a4331;
+
+    public static final int HEADER_SIZE = 12;
+
+    /**
+     * Callback for records found while scanning segments.
+     */
+    public interface RecordVisitor {
+        public void visit(FileCacheRecord r, ByteBuffer payload);
+    }
+
+    private static class Segment {
+        private int id;
+        private File file;
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private volatile long size;
+        private MappedByteBuffer map = null;
+    }
+
+    private final File directory;
+
+    private final long maxSegmentBytes;
+
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+
+    private Segment active = null;
+
+    /* Segments written since the last sync */
+    private final HashSet<Segment> unsynced = new HashSet<Segment>();
+
+    /* Number of records appended, and number of records forced to disk */
+    private long appendedRecords = 0L;
+
+    private volatile long syncedRecords = 0L;
+
+    private final Object syncMonitor = new Object();
+
+    public SegmentStore(File directory, long maxSegmentBytes) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(directory, String.format("segment-%08d.dat", id));
+    }
+
+    /**
+     * Opens all existing segment files.
+     */
+    public synchronized void open() throws IOException {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                String name = f.getName();
+                if(name.matches("segment-\\d{8}\\.dat")) {
+                    openSegment(Integer.parseInt(name.substring(8, 16)));
+                }
+            }
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Segment s = new Segment();
+        s.id = id;
+        s.file = getSegmentFile(id);
+        s.raf = new RandomAccessFile(s.file, "rw");
+        s.channel = s.raf.getChannel();
+        s.size = s.channel.size();
+        segments.put(id, s);
+        return s;
+    }
+
+    public Vector<Integer> getSegmentIds() {
+        Vector<Integer> ret = new Vector<Integer>(segments.keySet());
+        Collections.sort(ret);
+        return ret;
+    }
+
+    public long getSegmentSize(int id) {
+        Segment s = segments.get(id);
+        return (s != null) ? s.size : 0L;
+    }
+
+    public synchronized int getActiveSegmentId() {
+        return (active != null) ? active.id : 0;
+    }
+
+    public synchronized long getActiveSegmentSize() {
+        return (active != null) ? active.size : 0L;
+    }
+
+    /**
+     * Reads all records starting at the given position, ordered by segment and offset. The
+     * segment is truncated at the first record that is incomplete or fails the checksum test,
+     * as it is the remainder of an interrupted write. Afterwards, the last segment becomes
+     * the active segment.
+     */
+    public synchronized void recover(int fromSegmentId, long fromOffset, RecordVisitor v) throws IOException {
+        for(Integer id : getSegmentIds()) {
+            if(id < fromSegmentId) {
+                continue;
+            }
+            Segment s = segments.get(id);
+            long pos = (id == fromSegmentId) ? fromOffset : 0L;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(pos < s.size) {
+                header.clear();
+                if(!readFully(s.channel, header, pos)) {
+                    break;
+                }
+                header.flip();
+                int magic = header.getInt();
+                int length = header.getInt();
+                long crc = header.getInt() & 0xffffffffL;
+                if(magic != RECORD_MAGIC || length < 0 || pos+HEADER_SIZE+length > s.size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                if(!readFully(s.channel, payload, pos+HEADER_SIZE) || getChecksum(payload.array()) != crc) {
+                    break;
+                }
+                payload.flip();
+                v.visit(new FileCacheRecord(id, pos, HEADER_SIZE+length), payload);
+                pos += HEADER_SIZE+length;
+            }
+            if(pos < s.size) {
+                log.warn("Truncating " + s.file.getName() + " from " + s.size + " to " + pos + " bytes");
+                s.channel.truncate(pos);
+                s.channel.force(true);
+                s.size = pos;
+                synchronized(s) {
+                    s.map = null;
+                }
+            }
+        }
+        Vector<Integer> ids = getSegmentIds();
+        if(ids.isEmpty()) {
+            active = openSegment(Math.max(fromSegmentId, 1));
+        } else {
+            active = segments.get(ids.lastElement());
+        }
+    }
+
+    private boolean readFully(FileChannel channel, ByteBuffer dst, long pos) throws IOException {
+        while(dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if(n < 0) {
+                return false;
+            }
+            pos += n;
+        }
+        return true;
+    }
+
+    private long getChecksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Appends a record to the active segment. It is forced to disk by the next sync.
+     * @return Location of the record
+     */
+    public synchronized FileCacheRecord append(byte[] payload) throws IOException {
+        int length = HEADER_SIZE+payload.length;
+        if(active.size > 0 && active.size+length > maxSegmentBytes) {
+            rollOver();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(RECORD_MAGIC);
+        buf.putInt(payload.length);
+        buf.putInt((int)getChecksum(payload));
+        buf.put(payload);
+        buf.flip();
+        long pos = active.size;
+        while(buf.hasRemaining()) {
+            pos += active.channel.write(buf, pos);
+        }
+        FileCacheRecord r = new FileCacheRecord(active.id, active.size, length);
+        active.size = pos;
+        unsynced.add(active);
+        appendedRecords++;
+        return r;
+    }
+
+    /**
+     * Forces all records appended so far to disk. Threads that call this method while a
+     * sync is ongoing wait for it and then force the records appended in the meantime at once.
+     */
+    public void sync() throws IOException {
+        long appended;
+        synchronized(this) {
+            appended = appendedRecords;
+        }
+        synchronized(syncMonitor) {
+            if(syncedRecords >= appended) {
+                return;
+            }
+            Vector<Segment> dirty = null;
+            synchronized(this) {
+                appended = appendedRecords;
+                dirty = new Vector<Segment>(unsynced);
+                unsynced.clear();
+            }
+            try {
+                for(Segment s : dirty) {
+                    try {
+                        s.channel.force(false);
+                    } catch(ClosedChannelException e) {
+                        // Segment has been deleted after compaction
+                    }
+                }
+            } catch(IOException e) {
+                synchronized(this) {
+                    unsynced.addAll(dirty);
+                }
+                throw e;
+            }
+            syncedRecords = appended;
+        }
+    }
+
+    /**
+     * Starts a new active segment. The previous one is not written anymore.
+     */
+    public synchronized void rollOver() throws IOException {
+        active = openSegment(active.id+1);
+        log.debug("Started segment " + active.id);
+    }
+
+    /**
+     * Reads the payload of a record.
+     * @return Payload, null if the record is not readable or corrupt
+     */
+    public byte[] read(FileCacheRecord r) {
+        Segment s = segments.get(r.segmentId);
+        if(s == null) {
+            log.error("Segment " + r.segmentId + " does not exist.");
+            return null;
+        }
+        try {
+            ByteBuffer buf = getMapping(s, r.offset+r.length);
+            buf.position((int)r.offset);
+            int magic = buf.getInt();
+            int length = buf.getInt();
+            long crc = buf.getInt() & 0xffffffffL;
+            if(magic != RECORD_MAGIC || length != r.length-HEADER_SIZE) {
+                log.error("Invalid record at " + s.file.getName() + ":" + r.offset);
+                return null;
+            }
+            byte[] payload = new byte[length];
+            buf.get(payload);
+            if(getChecksum(payload) != crc) {
+                log.error("Checksum mismatch at " + s.file.getName() + ":" + r.offset);
+                return null;
+            }
+            return payload;
+        } catch(IOException e) {
+            log.error(e);
+        }
+        return null;
+    }
+
+    /* The mapping of the active segment is extended when a record beyond its end is read */
+    private ByteBuffer getMapping(Segment s, long end) throws IOException {
+        synchronized(s) {
+            if(s.map == null || s.map.capacity() < end) {
+                s.map = s.channel.map(FileChannel.MapMode.READ_ONLY, 0, s.size);
+            }
+            return s.map.duplicate();
+        }
+    }
+
+    /**
+     * Closes and deletes a segment that is not referenced anymore.
+     */
+    public void deleteSegment(int id) {
+        Segment s = segments.remove(id);
+        if(s == null) {
+            return;
+        }
+        try {
+            s.channel.close();
+            s.raf.close();
+        } catch(IOException e) {
+            log.error(e);
+        }
+        if(!s.file.delete()) {
+            log.warn("Failed to delete " + s.file.getAbsolutePath());
+        }
+    }
+
+    public synchronized void close() {
+        for(Segment s : segments.values()) {
+            try {
+                s.channel.force(true);
+                s.channel.close();
+                s.raf.close();
+            } catch(IOException e) {
+                log.error(e);
+            }
+        }
+        segments.clear();
+        active = null;
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * This package contains the implementation of a cache that stores aggregated data in local files.
+ */
+package ch.ethz.vizzly.cache.file;
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.memory;
+
+import java.util.Map;
+
+/**
+ * This class defines the interface of eviction policies that are used by the memory
+ * cache for staying within its configured memory budget. Cache entries are identified
+ * by the same keys that are used by the memory cache internally.
+ * @author Matthias Keller
+ *
+ */
+public abstract class AbstractEvictionPolicy {
+
+    /**
+     * Called whenever an entry is requested by a user, no matter whether it is cached or not.
+     */
+    public void recordRequest(String key) {
+    }
+
+    /**
+     * Called when an entry has been removed from the cache.
+     */
+    public void onRemove(String key) {
+    }
+
+    /**
+     * Selects the entry that should be evicted next.
+     * @param entries Entries that are currently cached
+     * @param exclude Key of an entry that must not be selected, may be null
+     * @return Key of entry to evict, null if there is no candidate
+     */
+    public abstract String selectVictim(Map<String, IndexedSignalData> entries, String exclude);
+
+    /**
+     * Decides whether a newly created entry is worth keeping in favor of the given victim.
+     */
+    public Boolean admit(String candidateKey, String victimKey) {
+        return true;
+    }
+
+    public abstract String getName();
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.memory;
+
+import java.util.Arrays;
+
+/**
+ * This class implements an immutable array of doubles that is split into chunks of fixed
+ * size. Modifications are made through a writer that copies only the chunks it changes,
+ * all other chunks are shared with the previous version of the array. Positions that
+ * have never been written hold the fill value.
+ * @author Matthias Keller
+ *
+ */
+public class ChunkedDoubleArray {
+
+    public static final int CHUNK_SHIFT = 10;
+
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE-1;
+
+    private final double[][] chunks;
+
+    private final double fillValue;
+
+    public ChunkedDoubleArray(double fillValue) {
+        this(new double[0][], fillValue);
+    }
+
+    private ChunkedDoubleArray(double[][] chunks, double fillValue) {
+        this.chunks = chunks;
+        this.fillValue = fillValue;
+    }
+
+    public double get(int idx) {
+        int c = idx >>> CHUNK_SHIFT;
+        if(c >= chunks.length || chunks[c] == null) {
+            return fillValue;
+        }
+        return chunks[c][idx & CHUNK_MASK];
+    }
+
+    /**
+     * Returns the number of positions that are backed by allocated chunks.
+     */
+    public int getCapacity() {
+        int n = 0;
+        for(double[] c : chunks) {
+            if(c != null) {
+                n += CHUNK_SIZE;
+            }
+        }
+        return n;
+    }
+
+    public Writer edit() {
+        return new Writer();
+    }
+
+    /**
+     * Collects modifications of the array. Must only be used by a single thread.
+     */
+    public class Writer {
+
+        private double[][] newChunks = chunks;
+
+        private boolean[] copied = new boolean[chunks.length];
+
+        public void set(int idx, double value) {
+            int c = idx >>> CHUNK_SHIFT;
+            if(c >= newChunks.length) {
+                newChunks = Arrays.copyOf(newChunks, c+1);
+                copied = Arrays.copyOf(copied, c+1);
+            } else if(newChunks == chunks) {
+                newChunks = chunks.clone();
+            }
+            if(!copied[c]) {
+                if(newChunks[c] == null) {
+                    newChunks[c] = new double[CHUNK_SIZE];
+                    Arrays.fill(newChunks[c], fillValue);
+                } else {
+                    newChunks[c] = newChunks[c].clone();
+                }
+                copied[c] = true;
+            }
+            newChunks[c][idx & CHUNK_MASK] = value;
+        }
+
+        /**
+         * Returns the value at the given position including the modifications made so far.
+         */
+        public double get(int idx) {
+            int c = idx >>> CHUNK_SHIFT;
+            if(c >= newChunks.length || newChunks[c] == null) {
+                return fillValue;
+            }
+            return newChunks[c][idx & CHUNK_MASK];
+        }
+
+        public ChunkedDoubleArray publish() {
+            return (newChunks == chunks) ? ChunkedDoubleArray.this : new ChunkedDoubleArray(newChunks, fillValue);
+        }
+
+    }
+
+}
@@ -22,15 +22,20 @@ import java.util.Vector;
 
 import org.apache.log4j.Logger;
 
+import ch.ethz.vizzly.cache.CacheEntryAccessStats;
 import ch.ethz.vizzly.datatype.VizzlySignal;
 import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
 import ch.ethz.vizzly.datatype.readings.TimedValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
 import ch.ethz.vizzly.util.DataAggregationUtil;
 import ch.ethz.vizzly.util.TimestampTruncateUtil;
 
 /**
  * This class implements a data structure that holds measurements with time information
- * that have been aggregated to a certain level of detail.
+ * that have been aggregated to a certain level of detail. The values and the meta data
+ * that changes with updates form an immutable version. Updates copy the chunks they
+ * modify and publish a new version at once, so that readers never need to lock and
+ * always see a consistent state.
  * @author Matthias Keller
  *
  */
@@ -41,19 +46,48 @@ public class IndexedSignalData {
     protected long indexStartTimeMilli;
     protected int windowLengthSec;
     protected long windowLengthMilli;
-    protected Calendar cal = null;
-    protected Date lastUpdate = null;
 
     protected Long firstPacketTimestamp = null;
-    protected Long lastPacketTimestamp = null;
 
-    private double[] cachedData = null;
-    private int maxDataIdxUsed;
+    /**
+     * Immutable state of a cache entry after an update.
+     */
+    protected static class Version {
+        protected final int maxIdxUsed;
+        protected final Long lastPacketTimestamp;
+        protected final Date lastUpdate;
+
+        protected Version(int maxIdxUsed, Long lastPacketTimestamp, Date lastUpdate) {
+            this.maxIdxUsed = maxIdxUsed;
+            this.lastPacketTimestamp = lastPacketTimestamp;
+            this.lastUpdate = lastUpdate;
+        }
+
+        protected Version withMetadata(Long lastPacketTimestamp, Date lastUpdate) {
+            return new Version(maxIdxUsed, lastPacketTimestamp, lastUpdate);
+        }
+    }
+
+    private static class ValueVersion extends Version {
+        private final ChunkedDoubleArray values;
+
+        private ValueVersion(int maxIdxUsed, Long lastPacketTimestamp, Date lastUpdate, ChunkedDoubleArray values) {
+            super(maxIdxUsed, lastPacketTimestamp, lastUpdate);
+            this.values = values;
+        }
+
+        protected Version withMetadata(Long lastPacketTimestamp, Date lastUpdate) {
+            return new ValueVersion(maxIdxUsed, lastPacketTimestamp, lastUpdate, values);
+        }
+    }
+
+    /* Replaced as a whole by updates, only written while holding the lock of this object */
+    protected volatile Version version = null;
 
     protected VizzlySignal signal = null;
 
-    // Count how often the data was accessed
-    protected int hits = 0;
+    // Keep track of how often and how recently the data was accessed
+    protected final CacheEntryAccessStats accessStats = new CacheEntryAccessStats();
 
     private static Logger log = Logger.getLogger(IndexedSignalData.class);
 
@@ -61,7 +95,7 @@ public class IndexedSignalData {
 
     public IndexedSignalData(VizzlySignal signal, long firstPacketTimestamp, int windowLengthSec) {
         initMetadata(signal, firstPacketTimestamp, windowLengthSec);
-        maxDataIdxUsed = -1;
+        version = new ValueVersion(-1, null, Calendar.getInstance().getTime(), new ChunkedDoubleArray(NULL_VALUE));
     }
     
     protected void initMetadata(VizzlySignal signal, long firstPacketTimestamp, int windowLengthSec) {
@@ -70,18 +104,13 @@ public class IndexedSignalData {
         this.firstPacketTimestamp = firstPacketTimestamp;
         windowLengthMilli = windowLengthSec*1000;
         indexStartTimeMilli = truncateTimestamp(firstPacketTimestamp);
-        cal = Calendar.getInstance();
-        lastUpdate = cal.getTime();
     }
     
-    private int getIdx(long timeMilli, Boolean noLimit) {
+    protected int getIdx(long timeMilli) {
         int idx = (int)((timeMilli-indexStartTimeMilli)/windowLengthMilli);
         if(idx < 0) {
             return -1;
         }
-        if((cachedData == null || idx > (cachedData.length-1)) && !noLimit) {
-            return -1;
-        }
         return idx;
     }
 
@@ -89,7 +118,7 @@ public class IndexedSignalData {
         return TimestampTruncateUtil.truncate(ts, windowLengthMilli);
     }
 
-    public void updateValues(Vector<TimedLocationValue> data) {
+    public synchronized void updateValues(Vector<TimedLocationValue> data) {
         if(data.size() == 0) {
             return;
         }
@@ -99,77 +128,119 @@ public class IndexedSignalData {
             log.warn("Empty aggregated data.");
             return;
         }
-        
-        // Second step: Increase size of data structure, if needed
-        int maxIdx = getIdx(aggregatedData.lastElement().timestamp, true);
-        if(cachedData == null || maxIdx > cachedData.length-1) {
-            createOrResizeDataArray(maxIdx+1); 
-        }
 
-        // Third step: Add new data
+        // Second step: Add new data to copies of the affected chunks
+        ValueVersion cur = (ValueVersion)version;
+        ChunkedDoubleArray.Writer w = cur.values.edit();
+        int maxDataIdxUsed = cur.maxIdxUsed;
         for(int i = 0; i < aggregatedData.size(); i++) {
             TimedValue v = aggregatedData.get(i);
-            int idx = getIdx(v.timestamp, false);
+            int idx = getIdx(v.timestamp);
             if(idx != -1) {
-                cachedData[idx] = v.value;
+                w.set(idx, v.value);
+                maxDataIdxUsed = idx;
             } else {
                 log.error("Invalid index " + idx);
             }
-            maxDataIdxUsed = idx;
         }
 
-        lastPacketTimestamp = data.get(data.size()-1).timestamp;
-        cal = Calendar.getInstance();
-        lastUpdate = cal.getTime();
+        // Third step: Publish new version
+        version = new ValueVersion(maxDataIdxUsed, data.get(data.size()-1).timestamp, Calendar.getInstance().getTime(),
+                w.publish());
     }
 
     public Vector<TimedLocationValue> getData(Long timeFilterStart, Long timeFilterEnd) {
-        if(lastPacketTimestamp == null) {
+        TimedValueCursor c = getView(timeFilterStart, timeFilterEnd);
+        return (c != null) ? c.toVector() : null;
+    }
+
+    /**
+     * Returns a cursor that reads the values of the given time range directly from the current
+     * version. Updates that are published afterwards do not affect the cursor.
+     * @return Cursor, null if the entry does not hold any data yet
+     */
+    public TimedValueCursor getView(Long timeFilterStart, Long timeFilterEnd) {
+        ValueVersion v = (ValueVersion)version;
+        if(v.lastPacketTimestamp == null) {
             return null;
         }
-        Vector<TimedLocationValue> data = new Vector<TimedLocationValue>();
-        long curTime = (timeFilterStart != null) ? truncateTimestamp(timeFilterStart) : getStartTime();
-        long endTime = (timeFilterEnd != null) ? truncateTimestamp(timeFilterEnd) : getEndTime();
-        if(curTime < getStartTime()) {
-            curTime = getStartTime();
-        }
-        if(endTime > getEndTime()) {
-            endTime = getEndTime();
+        return new ValueView(v, getFirstIdx(timeFilterStart), getLastIdx(v, timeFilterEnd));
+    }
+
+    /* Index of the first window within the time filter */
+    protected int getFirstIdx(Long timeFilterStart) {
+        if(timeFilterStart == null || truncateTimestamp(timeFilterStart) <= getStartTime()) {
+            return 0;
         }
-        while(curTime <= endTime) {
-            int idx = getIdx(curTime, false);
-            if(idx != -1) {
-                if(cachedData[idx] != NULL_VALUE) {
-                    data.add(new TimedLocationValue(curTime, cachedData[idx]));
-                }
+        return getIdx(truncateTimestamp(timeFilterStart));
+    }
 
-            }
-            curTime += getAvgIntervalMilli();
+    /* Index of the last window within the time filter, -1 if the filter ends before the first window */
+    protected int getLastIdx(Version v, Long timeFilterEnd) {
+        if(timeFilterEnd == null) {
+            return v.maxIdxUsed;
         }
-        return data;
+        return Math.min(getIdx(truncateTimestamp(timeFilterEnd)), v.maxIdxUsed);
     }
 
-    private void createOrResizeDataArray(int minSize) {
-        // Add space for roughly one more month of data
-        int incr = (int)Math.round(2678400/windowLengthSec);
-        int newSize = minSize + ((incr < 10) ? 10 : incr);
-        //log.debug("Increasing data array size to " + newSize + ", minSize = " + minSize + ", incr = " + incr);
-        double[] newData = new double[newSize];
-        if(cachedData != null) {
-            // Copy values of already existing array
-            for(int i = 0; i < cachedData.length; i++) {
-                newData[i] = cachedData[i];
-            }
-            for(int i = cachedData.length; i < newData.length; i++) {
-                newData[i] = NULL_VALUE;
+    private class ValueView extends TimedValueCursor {
+        private final ChunkedDoubleArray values;
+        private final int startIdx;
+        private final int endIdx;
+        private int idx;
+        private double value = NULL_VALUE;
+        private int size = -1;
+
+        private ValueView(ValueVersion v, int startIdx, int endIdx) {
+            this.values = v.values;
+            this.startIdx = startIdx;
+            this.endIdx = endIdx;
+            this.idx = startIdx-1;
+        }
+
+        public boolean next() {
+            while(idx < endIdx) {
+                idx++;
+                value = values.get(idx);
+                if(value != NULL_VALUE) {
+                    return true;
+                }
             }
-        } else {
-            // Just initialize everything with NULL_VALUE
-            for(int i = 0; i < newData.length; i++) {
-                newData[i] = NULL_VALUE;
+            return false;
+        }
+
+        public long getTimestamp() {
+            return indexStartTimeMilli+idx*windowLengthMilli;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public boolean hasLocation() {
+            return false;
+        }
+
+        public double getLatitude() {
+            return Double.NaN;
+        }
+
+        public double getLongitude() {
+            return Double.NaN;
+        }
+
+        public int size() {
+            if(size == -1) {
+                int n = 0;
+                for(int i = startIdx; i <= endIdx; i++) {
+                    if(values.get(i) != NULL_VALUE) {
+                        n++;
+                    }
+                }
+                size = n;
             }
+            return size;
         }
-        cachedData = newData;
     }
 
     public long getStartTime() {
@@ -177,7 +248,11 @@ public class IndexedSignalData {
     }
 
     public long getEndTime() {
-        return indexStartTimeMilli+(maxDataIdxUsed*windowLengthMilli);
+        return getEndTime(version);
+    }
+
+    protected long getEndTime(Version v) {
+        return indexStartTimeMilli+(v.maxIdxUsed*windowLengthMilli);
     }
 
     public int getAvgInterval() {
@@ -198,14 +273,15 @@ public class IndexedSignalData {
     }
   
     public int getNumElements() {
-        if(cachedData == null) {
+        ValueVersion v = (ValueVersion)version;
+        if(v.values.getCapacity() == 0) {
             return -1;
         }
-        return maxDataIdxUsed;
+        return v.maxIdxUsed;
     }
 
     public Date getLastUpdate() {
-        return lastUpdate;
+        return version.lastUpdate;
     }
 
     public Long getFirstPacketTimestamp() {
@@ -213,15 +289,25 @@ public class IndexedSignalData {
     }
 
     public Long getLastPacketTimestamp() {
-        return lastPacketTimestamp;
+        return version.lastPacketTimestamp;
+    }
+
+    /**
+     * Restores meta data after the entry has been filled from a persistent cache.
+     */
+    public synchronized void restoreMetadata(Long lastPacketTimestamp, Date lastUpdate) {
+        version = version.withMetadata(lastPacketTimestamp, (lastUpdate != null) ? lastUpdate : version.lastUpdate);
     }
 
-    public synchronized void incrHits() {
-        hits++;
+    /**
+     * Returns an estimate of the heap memory occupied by the cached data in bytes.
+     */
+    public long getMemoryFootprint() {
+        return 8L*((ValueVersion)version).values.getCapacity();
     }
 
-    public int getHits() {
-        return hits;
+    public CacheEntryAccessStats getAccessStats() {
+        return accessStats;
     }
 
 }
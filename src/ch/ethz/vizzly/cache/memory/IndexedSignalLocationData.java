@@ -17,80 +17,101 @@
 package ch.ethz.vizzly.cache.memory;
 
 import java.util.Calendar;
+import java.util.Date;
 import java.util.Vector;
 
 import org.apache.log4j.Logger;
 
+import ch.ethz.vizzly.cache.tiles.SpatialTilePyramid;
 import ch.ethz.vizzly.datatype.VizzlySignal;
-import ch.ethz.vizzly.datatype.readings.LocationValue;
+import ch.ethz.vizzly.datatype.readings.LocationBounds;
 import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
 import ch.ethz.vizzly.util.DataAggregationUtil;
 
 /**
  * This class implements a data structure that holds measurements with time and
- * location information that have been aggregated to a certain level of detail.
+ * location information that have been aggregated to a certain level of detail. Each time
+ * window refers to a range of positions in the value and location arrays. Like the
+ * values, these ranges are part of the immutable version that is replaced by updates.
+ * For each block of consecutive array positions, the bounding box of its locations is
+ * kept so that queries restricted to a map area can skip blocks outside of that area.
  * @author Matthias Keller
  *
  */
 public class IndexedSignalLocationData extends IndexedSignalData {
 
-    private int maxTimeTransIdxUsed = 0;
-    private int nextDataArrayIdx = 0;
-    private int[][] timeTranslation = null;
-    
-    private double[] cachedDataVal = null;
-    private double[] cachedDataLat = null;
-    private double[] cachedDataLng = null;
-    
+    private static class LocationVersion extends Version {
+        /* First and last array position of each time window, -1 if the window has no data */
+        private final ChunkedIntArray windowStart;
+        private final ChunkedIntArray windowEnd;
+        private final ChunkedDoubleArray values;
+        private final ChunkedDoubleArray latitudes;
+        private final ChunkedDoubleArray longitudes;
+        private final int nextDataArrayIdx;
+        /* Bounding box of the locations per block of array positions */
+        private final ChunkedDoubleArray blockMinLat;
+        private final ChunkedDoubleArray blockMaxLat;
+        private final ChunkedDoubleArray blockMinLng;
+        private final ChunkedDoubleArray blockMaxLng;
+
+        private LocationVersion(int maxIdxUsed, Long lastPacketTimestamp, Date lastUpdate, ChunkedIntArray windowStart,
+                ChunkedIntArray windowEnd, ChunkedDoubleArray values, ChunkedDoubleArray latitudes, 
+                ChunkedDoubleArray longitudes, int nextDataArrayIdx, ChunkedDoubleArray blockMinLat, 
+                ChunkedDoubleArray blockMaxLat, ChunkedDoubleArray blockMinLng, ChunkedDoubleArray blockMaxLng) {
+            super(maxIdxUsed, lastPacketTimestamp, lastUpdate);
+            this.windowStart = windowStart;
+            this.windowEnd = windowEnd;
+            this.values = values;
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.nextDataArrayIdx = nextDataArrayIdx;
+            this.blockMinLat = blockMinLat;
+            this.blockMaxLat = blockMaxLat;
+            this.blockMinLng = blockMinLng;
+            this.blockMaxLng = blockMaxLng;
+        }
+
+        protected Version withMetadata(Long lastPacketTimestamp, Date lastUpdate) {
+            return new LocationVersion(maxIdxUsed, lastPacketTimestamp, lastUpdate, windowStart, windowEnd, values, 
+                    latitudes, longitudes, nextDataArrayIdx, blockMinLat, blockMaxLat, blockMinLng, blockMaxLng);
+        }
+    }
+
+    /* Number of array positions per bounding box, equal to the chunk size of the arrays */
+    private static final int BLOCK_SHIFT = ChunkedDoubleArray.CHUNK_SHIFT;
+
     private static Logger log = Logger.getLogger(IndexedSignalLocationData.class);
 
+    /* Spatial tiles built from this entry, null if they have not been built yet */
+    private volatile SpatialTilePyramid tiles = null;
+
     public IndexedSignalLocationData(VizzlySignal signal, long firstPacketTimestamp, int windowLengthSec) {
         initMetadata(signal, firstPacketTimestamp, windowLengthSec);
-        maxTimeTransIdxUsed = -1;
-        nextDataArrayIdx = 0;
-    }
-
-    private int getTransTimeIdx(long timeMilli, Boolean readOnly) {
-        if(readOnly && timeTranslation == null) {
-            return -1;
-        }
-        int idx = (int)((timeMilli-indexStartTimeMilli)/windowLengthMilli);
-        if(idx < 0) {
-            return -1;
-        }
-        if(timeTranslation == null || idx > (timeTranslation.length-1)) {
-            if(!readOnly) {
-                createOrResizeTimeTranslation(idx+1);
-            } else {
-                return -1;
-            }
-        }
-        return idx;
+        version = new LocationVersion(-1, null, Calendar.getInstance().getTime(), new ChunkedIntArray(-1), 
+                new ChunkedIntArray(-1), new ChunkedDoubleArray(NULL_VALUE), new ChunkedDoubleArray(0.0), 
+                new ChunkedDoubleArray(0.0), 0, new ChunkedDoubleArray(Double.POSITIVE_INFINITY), 
+                new ChunkedDoubleArray(Double.NEGATIVE_INFINITY), new ChunkedDoubleArray(Double.POSITIVE_INFINITY), 
+                new ChunkedDoubleArray(Double.NEGATIVE_INFINITY));
     }
 
     public int getStartIndex(long timeMilli) {
-        if(timeTranslation == null) {
-            return -1;
-        }
-        int idx = getTransTimeIdx(timeMilli, true);
+        int idx = getIdx(timeMilli);
         if(idx == -1) {
             return -1;
         }
-        return timeTranslation[idx][0];
+        return ((LocationVersion)version).windowStart.get(idx);
     }
 
     public int getEndIndex(long timeMilli) {
-        if(timeTranslation == null) {
-            return -1;
-        }
-        int idx = getTransTimeIdx(timeMilli, true);
+        int idx = getIdx(timeMilli);
         if(idx == -1) {
             return -1;
         }
-        return timeTranslation[idx][1];
+        return ((LocationVersion)version).windowEnd.get(idx);
     }
 
-    public void updateValues(Vector<TimedLocationValue> data) {
+    public synchronized void updateValues(Vector<TimedLocationValue> data) {
         if(data.size() == 0) {
             return;
         }
@@ -102,153 +123,234 @@ public class IndexedSignalLocationData extends IndexedSignalData {
             return;
         }
 
-        // timeTranslation != null after getTransTimeIdx()
-        int timeTransIdx = getTransTimeIdx(aggregatedData.get(0).timestamp, false);
+        LocationVersion cur = (LocationVersion)version;
+        ChunkedIntArray.Writer windowStart = cur.windowStart.edit();
+        ChunkedIntArray.Writer windowEnd = cur.windowEnd.edit();
+        ChunkedDoubleArray.Writer values = cur.values.edit();
+        ChunkedDoubleArray.Writer latitudes = cur.latitudes.edit();
+        ChunkedDoubleArray.Writer longitudes = cur.longitudes.edit();
+        int nextDataArrayIdx = cur.nextDataArrayIdx;
+
+        int timeTransIdx = getIdx(aggregatedData.get(0).timestamp);
+        if(timeTransIdx == -1) {
+            log.error("Data before start of cache entry.");
+            return;
+        }
 
         // Second step: Clean-up previously filled, overlapping data
-        if(timeTransIdx >= 0 && timeTransIdx <= maxTimeTransIdxUsed) {
-            int startIdx = timeTranslation[timeTransIdx][0];
+        if(timeTransIdx <= cur.maxIdxUsed) {
+            int startIdx = cur.windowStart.get(timeTransIdx);
             if(startIdx != -1) {
-                //log.debug("Decremented _nextDataArrayIdx from " + _nextDataArrayIdx + " to " + startIdx);
                 nextDataArrayIdx = startIdx;
-                for(int i = timeTransIdx; i <= maxTimeTransIdxUsed; i++) {
-                    timeTranslation[i][0] = -1;
-                    timeTranslation[i][1] = -1;
+                for(int i = timeTransIdx; i <= cur.maxIdxUsed; i++) {
+                    windowStart.set(i, -1);
+                    windowEnd.set(i, -1);
                 }
             }
         }
 
-        // Third step: Increase size of data structures, if needed
-        if(cachedDataVal == null || (nextDataArrayIdx+aggregatedData.size()) > cachedDataVal.length-1) {
-            createOrResizeDataArray(nextDataArrayIdx+aggregatedData.size()+1); 
-        }
-
-        // Fourth step: Add new data
+        // Third step: Add new data
+        int firstWrittenIdx = nextDataArrayIdx;
         int curTimeIdx = -1;
         for(int i = 0; i < aggregatedData.size(); i++) {
             TimedLocationValue v = aggregatedData.get(i);
-            timeTransIdx = getTransTimeIdx(v.timestamp, false);
+            timeTransIdx = getIdx(v.timestamp);
 
             // First entry
             if(curTimeIdx == -1) {
-                timeTranslation[timeTransIdx][0] = nextDataArrayIdx;
+                windowStart.set(timeTransIdx, nextDataArrayIdx);
             }
 
             // Update when time changes
             if(curTimeIdx != -1 && timeTransIdx != curTimeIdx) {
-                timeTranslation[curTimeIdx][1] = nextDataArrayIdx-1;
-                timeTranslation[timeTransIdx][0] = nextDataArrayIdx;
+                windowEnd.set(curTimeIdx, nextDataArrayIdx-1);
+                windowStart.set(timeTransIdx, nextDataArrayIdx);
             }
 
-            cachedDataVal[nextDataArrayIdx] = v.value;
-            cachedDataLat[nextDataArrayIdx] = v.location.latitude;
-            cachedDataLng[nextDataArrayIdx] = v.location.longitude;
+            values.set(nextDataArrayIdx, v.value);
+            latitudes.set(nextDataArrayIdx, v.location.latitude);
+            longitudes.set(nextDataArrayIdx, v.location.longitude);
             nextDataArrayIdx++;
             curTimeIdx = timeTransIdx;
         }
-        timeTranslation[curTimeIdx][1] = nextDataArrayIdx-1;
-        maxTimeTransIdxUsed = curTimeIdx;
+        windowEnd.set(curTimeIdx, nextDataArrayIdx-1);
 
-        lastPacketTimestamp = data.get(data.size()-1).timestamp;
-        cal = Calendar.getInstance();
-        lastUpdate = cal.getTime();
+        // Fourth step: Recompute the bounding boxes of all blocks that have been written to
+        ChunkedDoubleArray.Writer blockMinLat = cur.blockMinLat.edit();
+        ChunkedDoubleArray.Writer blockMaxLat = cur.blockMaxLat.edit();
+        ChunkedDoubleArray.Writer blockMinLng = cur.blockMinLng.edit();
+        ChunkedDoubleArray.Writer blockMaxLng = cur.blockMaxLng.edit();
+        for(int b = firstWrittenIdx >>> BLOCK_SHIFT; b <= (nextDataArrayIdx-1) >>> BLOCK_SHIFT; b++) {
+            double minLat = Double.POSITIVE_INFINITY;
+            double maxLat = Double.NEGATIVE_INFINITY;
+            double minLng = Double.POSITIVE_INFINITY;
+            double maxLng = Double.NEGATIVE_INFINITY;
+            int end = Math.min(((b+1) << BLOCK_SHIFT), nextDataArrayIdx);
+            for(int i = b << BLOCK_SHIFT; i < end; i++) {
+                double lat = latitudes.get(i);
+                double lng = longitudes.get(i);
+                minLat = Math.min(minLat, lat);
+                maxLat = Math.max(maxLat, lat);
+                minLng = Math.min(minLng, lng);
+                maxLng = Math.max(maxLng, lng);
+            }
+            blockMinLat.set(b, minLat);
+            blockMaxLat.set(b, maxLat);
+            blockMinLng.set(b, minLng);
+            blockMaxLng.set(b, maxLng);
+        }
+
+        // Fifth step: Publish new version
+        version = new LocationVersion(curTimeIdx, data.get(data.size()-1).timestamp, Calendar.getInstance().getTime(),
+                windowStart.publish(), windowEnd.publish(), values.publish(), latitudes.publish(), 
+                longitudes.publish(), nextDataArrayIdx, blockMinLat.publish(), blockMaxLat.publish(), 
+                blockMinLng.publish(), blockMaxLng.publish());
     }
 
-    public Vector<TimedLocationValue> getData(Long timeFilterStart, Long timeFilterEnd) {
-        if(lastPacketTimestamp == null) {
+    public TimedValueCursor getView(Long timeFilterStart, Long timeFilterEnd) {
+        LocationVersion v = (LocationVersion)version;
+        if(v.lastPacketTimestamp == null) {
             return null;
         }
-        Vector<TimedLocationValue> data = new Vector<TimedLocationValue>();
-        long curTime = (timeFilterStart != null) ? truncateTimestamp(timeFilterStart) : getStartTime();
-        long endTime = (timeFilterEnd != null) ? truncateTimestamp(timeFilterEnd) : getEndTime();
-        if(curTime < getStartTime()) {
-            curTime = getStartTime();
-        }
-        if(endTime > getEndTime()) {
-            endTime = getEndTime();
-        }
-        while(curTime <= endTime) {
-            int startIdx = getStartIndex(curTime);
-            int endIdx = getEndIndex(curTime);
-            if(startIdx == -1 || endIdx == -1) {
-                curTime += getAvgIntervalMilli();
-                continue;
-            }
-            for(int i = startIdx; i <= endIdx; i++) {
-                data.add(new TimedLocationValue(curTime, new LocationValue(cachedDataVal[i], cachedDataLat[i], cachedDataLng[i])));
-            }
-            curTime += getAvgIntervalMilli();
+        return new LocationView(v, getFirstIdx(timeFilterStart), getLastIdx(v, timeFilterEnd), null);
+    }
+
+    /**
+     * Returns a cursor over the values of the given time range whose location lies within
+     * the given map area. Blocks of values whose bounding box does not overlap with the area
+     * are skipped without looking at the individual values.
+     * @return Cursor, null if the entry does not hold any data yet
+     */
+    public TimedValueCursor getView(Long timeFilterStart, Long timeFilterEnd, LocationBounds bounds) {
+        LocationVersion v = (LocationVersion)version;
+        if(v.lastPacketTimestamp == null) {
+            return null;
         }
-        return data;
+        return new LocationView(v, getFirstIdx(timeFilterStart), getLastIdx(v, timeFilterEnd), bounds);
     }
 
-    private void createOrResizeTimeTranslation(int minSize) {
-        // Add space for roughly one more month of data
-        int incr = (int)Math.round(2678400/windowLengthSec);
-        int newSize = minSize + ((incr < 10) ? 10 : incr); 
-        //log.debug("Increasing time translation array size to " + newSize + ", minSize = " + minSize + ", incr = " + incr);
+    private class LocationView extends TimedValueCursor {
+        private final LocationVersion v;
+        private final int startIdx;
+        private final int endIdx;
+        /* Map area the values are restricted to, null if not restricted */
+        private final LocationBounds bounds;
+        private int idx;
+        /* Current and last array position within the current time window */
+        private int pos = 0;
+        private int posEnd = -1;
+        private int size = -1;
 
-        int[][] newTimeTranslation = new int[newSize][2];
+        private LocationView(LocationVersion v, int startIdx, int endIdx, LocationBounds bounds) {
+            this.v = v;
+            this.startIdx = startIdx;
+            this.endIdx = endIdx;
+            this.bounds = bounds;
+            this.idx = startIdx-1;
+        }
 
-        if(timeTranslation != null) {
-            // Copy data of existing array
-            for(int i = 0; i < timeTranslation.length; i++) {
-                newTimeTranslation[i][0] = timeTranslation[i][0];
-                newTimeTranslation[i][1] = timeTranslation[i][1];
+        public boolean next() {
+            while(advance()) {
+                if(bounds == null) {
+                    return true;
+                }
+                int block = pos >>> BLOCK_SHIFT;
+                if(!bounds.intersects(v.blockMinLat.get(block), v.blockMaxLat.get(block), 
+                        v.blockMinLng.get(block), v.blockMaxLng.get(block))) {
+                    // Continue after the last position of the block that is within the current time window
+                    pos = Math.min(((block+1) << BLOCK_SHIFT)-1, posEnd);
+                    continue;
+                }
+                if(bounds.contains(v.latitudes.get(pos), v.longitudes.get(pos))) {
+                    return true;
+                }
             }
-            for(int i = timeTranslation.length; i < newTimeTranslation.length; i++) {
-                newTimeTranslation[i][0] = -1;
-                newTimeTranslation[i][1] = -1;
+            return false;
+        }
+
+        private boolean advance() {
+            if(pos < posEnd) {
+                pos++;
+                return true;
             }
-        } else {
-            // Initialize new array with -1
-            for(int i = 0; i < newTimeTranslation.length; i++) {
-                newTimeTranslation[i][0] = -1;
-                newTimeTranslation[i][1] = -1;
+            while(idx < endIdx) {
+                idx++;
+                int start = v.windowStart.get(idx);
+                int end = v.windowEnd.get(idx);
+                if(start != -1 && end != -1) {
+                    pos = start;
+                    posEnd = end;
+                    return true;
+                }
             }
+            return false;
         }
-        timeTranslation = newTimeTranslation;
-    }
 
-    private void createOrResizeDataArray(int minSize) {
-        // Add space for roughly one more month of data
-        int incr = (int)Math.round(2678400/windowLengthSec);
-        int newSize = minSize + ((incr < 10) ? 10 : incr);
-        //log.debug("Increasing data array size to " + newSize + ", minSize = " + minSize + ", incr = " + incr);
-        double[] newDataVal = new double[newSize];
-        double[] newDataLat = new double[newSize];
-        double[] newDataLng = new double[newSize];
-
-        if(cachedDataVal != null) {
-            // Copy data of existing arrays
-            for(int i = 0; i < cachedDataVal.length; i++) {
-                newDataVal[i] = cachedDataVal[i];
-                newDataLat[i] = cachedDataLat[i];
-                newDataLng[i] = cachedDataLng[i];
-            }
-            for(int i = cachedDataVal.length; i < newDataVal.length; i++) {
-                newDataVal[i] = NULL_VALUE;
+        public long getTimestamp() {
+            return indexStartTimeMilli+idx*windowLengthMilli;
+        }
+
+        public double getValue() {
+            return v.values.get(pos);
+        }
+
+        public boolean hasLocation() {
+            return true;
+        }
+
+        public double getLatitude() {
+            return v.latitudes.get(pos);
+        }
+
+        public double getLongitude() {
+            return v.longitudes.get(pos);
+        }
+
+        public int size() {
+            if(size == -1 && bounds != null) {
+                // Values outside of the map area are only known after iterating
+                LocationView c = new LocationView(v, startIdx, endIdx, bounds);
+                int n = 0;
+                while(c.next()) {
+                    n++;
+                }
+                size = n;
+            } else if(size == -1) {
+                int n = 0;
+                for(int i = startIdx; i <= endIdx; i++) {
+                    int start = v.windowStart.get(i);
+                    int end = v.windowEnd.get(i);
+                    if(start != -1 && end != -1) {
+                        n += end-start+1;
+                    }
+                }
+                size = n;
             }
-        } else {
-            // Initialization of new data structures
-            for(int i = 0; i < newDataVal.length; i++) {
-                newDataVal[i] = NULL_VALUE;
-            }  
-        }
-        cachedDataVal = newDataVal;
-        cachedDataLat = newDataLat;
-        cachedDataLng = newDataLng;
+            return size;
+        }
+    }
+
+    public long getMemoryFootprint() {
+        LocationVersion v = (LocationVersion)version;
+        // Start and end position per time slot, value and location per data position, bounding box per block
+        return 4L*(v.windowStart.getCapacity()+v.windowEnd.getCapacity())+3L*8L*v.values.getCapacity()
+                +4L*8L*v.blockMinLat.getCapacity()+((tiles != null) ? tiles.getMemoryFootprint() : 0L);
     }
 
-    public long getEndTime() {
-        return indexStartTimeMilli+(maxTimeTransIdxUsed*windowLengthMilli);
+    public SpatialTilePyramid getTiles() {
+        return tiles;
     }
-    
+
+    public void setTiles(SpatialTilePyramid tiles) {
+        this.tiles = tiles;
+    }
+
     public int getNumElements() {
-        if(cachedDataVal == null) {
+        LocationVersion v = (LocationVersion)version;
+        if(v.values.getCapacity() == 0) {
             return -1;
         }
-        return cachedDataVal.length;
+        return v.values.getCapacity();
     }
 
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.memory;
+
+import java.util.Map;
+
+import ch.ethz.vizzly.cache.CacheEntryAccessStats;
+
+/**
+ * This class implements the LRU-K eviction policy with K=2. The entry whose second most
+ * recent access lies furthest back in time is evicted first. Entries that have been
+ * accessed less than twice are considered to have an infinite backward distance and are
+ * evicted before all others, the least recently used one first.
+ * @author Matthias Keller
+ *
+ */
+public class LruKEvictionPolicy extends AbstractEvictionPolicy {
+
+    public static final String NAME = "lru-k";
+
+    public String selectVictim(Map<String, IndexedSignalData> entries, String exclude) {
+        String victim = null;
+        long victimPrevious = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for(Map.Entry<String, IndexedSignalData> e : entries.entrySet()) {
+            if(e.getKey().equals(exclude)) {
+                continue;
+            }
+            CacheEntryAccessStats s = e.getValue().getAccessStats();
+            long previous = s.getPreviousAccess();
+            long last = s.getLastAccess();
+            if(previous < victimPrevious || (previous == victimPrevious && last < victimLast)) {
+                victim = e.getKey();
+                victimPrevious = previous;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+}
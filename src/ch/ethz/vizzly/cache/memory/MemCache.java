@@ -18,16 +18,27 @@ package ch.ethz.vizzly.cache.memory;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
 import ch.ethz.vizzly.cache.AbstractCache;
+import ch.ethz.vizzly.cache.tiles.SpatialTilePyramid;
+import ch.ethz.vizzly.datatype.CacheSpec;
 import ch.ethz.vizzly.datatype.CachedDataInfo;
+import ch.ethz.vizzly.datatype.SignalRegistry;
+import ch.ethz.vizzly.datatype.VizzlyException;
 import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.datatype.readings.LocationBounds;
 import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
 import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+import ch.ethz.vizzly.util.LocationAggregationGrid;
 
 /**
  * This class implement a cache that stores all data in memory.
@@ -36,7 +47,6 @@ import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
  */
 public class MemCache extends AbstractCache {
 
-    @SuppressWarnings("unused")
     private static Logger log = Logger.getLogger(MemCache.class);
 
     private ConcurrentHashMap<String, IndexedSignalData> cacheMap = null;
@@ -45,43 +55,90 @@ public class MemCache extends AbstractCache {
 
     private final String description = "MemCache";
 
+    /* Memory budget, 0 means that the cache size is not limited */
+    private long maxSizeBytes = 0L;
+
+    private AbstractEvictionPolicy evictionPolicy = null;
+
+    /* Entries that have been evicted and must not be refilled before they are requested again */
+    private Set<String> evictedEntries = null;
+
+    /* Evicted entries that are refilled on request, they bypass the admission by the eviction policy */
+    private Set<String> readmittedEntries = null;
+
     /*
      * Init memory cache
      */
     public MemCache() {
         cacheMap = new ConcurrentHashMap<String, IndexedSignalData>();
         seenSignals = new Vector<VizzlySignal>();
+        evictedEntries = ConcurrentHashMap.newKeySet();
+        readmittedEntries = ConcurrentHashMap.newKeySet();
         isInitialized = true;
         dataBackend = DataBackend.MEMCACHE;
     }
 
+    /*
+     * Init memory cache with the memory budget and eviction policy given in the cache specification
+     */
+    public MemCache(CacheSpec spec) throws VizzlyException {
+        this();
+        String maxSizeMb = spec.optionalParameters.get(CacheSpec.PARAM_MAX_SIZE_MB);
+        if(maxSizeMb != null && !maxSizeMb.isEmpty()) {
+            try {
+                maxSizeBytes = Long.parseLong(maxSizeMb)*1024L*1024L;
+            } catch(NumberFormatException e) {
+                throw new VizzlyException("Invalid memory cache size: " + maxSizeMb);
+            }
+        }
+        String policy = spec.optionalParameters.get(CacheSpec.PARAM_EVICTION_POLICY);
+        if(policy == null || policy.isEmpty() || policy.equals(TinyLfuEvictionPolicy.NAME)) {
+            evictionPolicy = new TinyLfuEvictionPolicy();
+        } else if(policy.equals(LruKEvictionPolicy.NAME)) {
+            evictionPolicy = new LruKEvictionPolicy();
+        } else {
+            throw new VizzlyException("Unknown eviction policy: " + policy);
+        }
+        if(maxSizeBytes > 0) {
+            log.info("Memory cache limited to " + maxSizeMb + " MB, eviction policy " + evictionPolicy.getName());
+        }
+    }
+
     public String getCacheDescription() {
         return description;
     }
 
     private IndexedSignalData getCacheEntry(VizzlySignal signal, int windowLengthSec, Boolean updateStats) {
         // First try with location, then without
-        String identifier = signal.getUniqueIdentifier() + '_' + Integer.valueOf(windowLengthSec).toString();
+        String identifier = SignalRegistry.getInstance().getEntryKey(signal, windowLengthSec);
         IndexedSignalData s = cacheMap.get(identifier);
+        if(updateStats && evictionPolicy != null) {
+            evictionPolicy.recordRequest(identifier);
+        }
         if(s == null) {
             if(updateStats) {
-                cacheRequests++;
-                cacheMisses++;
+                // Whether an evicted entry is refilled is decided by the cache manager
+                recordCacheMiss();
             }
             return null;
         }
         if(updateStats) {
-            s.incrHits();
-            cacheRequests++;
-            cacheHits++;
+            s.getAccessStats().recordAccess();
+            recordCacheHit();
         }
         return s;
     }
 
     public void updateCacheEntry(VizzlySignal signal, int windowLengthSec, Vector<TimedLocationValue> r) {
-        String identifier = signal.getUniqueIdentifier() + '_' + Integer.valueOf(windowLengthSec).toString();
+        String identifier = SignalRegistry.getInstance().getEntryKey(signal, windowLengthSec);
         IndexedSignalData d = cacheMap.get(identifier);
+        Boolean isNewEntry = false;
         if(d == null) {
+            if(evictedEntries.contains(identifier)) {
+                // Entry has been evicted and not been requested since
+                return;
+            }
+            isNewEntry = true;
             // Create cache entry
             if(!signal.hasLocation()) {
                 d = new IndexedSignalData(signal, r.firstElement().timestamp, windowLengthSec);
@@ -94,10 +151,148 @@ public class MemCache extends AbstractCache {
         if(r.size() > 0) {
             d.updateValues(r);
         }
+        if(isNewEntry) {
+            enforceMemoryBudget(identifier, readmittedEntries.remove(identifier));
+        } else {
+            enforceMemoryBudget(null, false);
+        }
+    }
+
+    /**
+     * Fills a cache entry with data that has been loaded from a persistent cache. In contrast
+     * to updateCacheEntry(), the meta data of the original entry is preserved and entries
+     * that have been evicted before are loaded again.
+     */
+    public void loadCacheEntry(VizzlySignal signal, int windowLengthSec, Vector<TimedLocationValue> r,
+            Long firstPacketTimestamp, Long lastPacketTimestamp, Date lastUpdate) {
+        if(r.size() == 0) {
+            return;
+        }
+        String identifier = SignalRegistry.getInstance().getEntryKey(signal, windowLengthSec);
+        long firstTimestamp = (firstPacketTimestamp != null) ? firstPacketTimestamp : r.firstElement().timestamp;
+        IndexedSignalData d = null;
+        if(!signal.hasLocation()) {
+            d = new IndexedSignalData(signal, firstTimestamp, windowLengthSec);
+        } else {
+            d = new IndexedSignalLocationData(signal, firstTimestamp, windowLengthSec);
+        }
+        d.updateValues(r);
+        d.restoreMetadata(lastPacketTimestamp, lastUpdate);
+        evictedEntries.remove(identifier);
+        cacheMap.put(identifier, d);
+        addSignal(signal);
+        enforceMemoryBudget(identifier, false);
+    }
+
+    /*
+     * Evicts entries until the cache fits into its memory budget again. A newly created
+     * entry is subject to admission by the eviction policy, i.e., it may be evicted itself,
+     * unless admission is forced.
+     */
+    private synchronized void enforceMemoryBudget(String newKey, Boolean forceAdmission) {
+        if(maxSizeBytes <= 0) {
+            return;
+        }
+        long size = getMemoryFootprint();
+        while(size > maxSizeBytes) {
+            String victim = evictionPolicy.selectVictim(cacheMap, newKey);
+            if(newKey != null && !forceAdmission && (victim == null || !evictionPolicy.admit(newKey, victim))) {
+                victim = newKey;
+                newKey = null;
+            }
+            if(victim == null) {
+                break;
+            }
+            IndexedSignalData d = cacheMap.remove(victim);
+            if(d != null) {
+                size -= d.getMemoryFootprint();
+                evictedEntries.add(victim);
+                evictionPolicy.onRemove(victim);
+                recordEviction();
+                log.debug("Evicted " + victim + " from memory cache");
+            }
+        }
+    }
+
+    /**
+     * Returns whether a new entry of the given extent would be admitted by the eviction policy,
+     * without changing the cache. Allows to skip loading entries that would be evicted right away.
+     */
+    public synchronized Boolean wouldAdmit(VizzlySignal signal, int windowLengthSec, long startTime, long endTime, 
+            int numElements) {
+        if(maxSizeBytes <= 0) {
+            return true;
+        }
+        // Same layout as IndexedSignalData and IndexedSignalLocationData
+        long numWindows = (endTime-startTime)/(windowLengthSec*1000L)+1;
+        long required = (signal.hasLocation()) ? 8L*numWindows+24L*numElements : 8L*numWindows;
+        if(required > maxSizeBytes) {
+            return false;
+        }
+        String identifier = SignalRegistry.getInstance().getEntryKey(signal, windowLengthSec);
+        HashMap<String, IndexedSignalData> remaining = new HashMap<String, IndexedSignalData>(cacheMap);
+        long size = getMemoryFootprint()+required;
+        while(size > maxSizeBytes) {
+            String victim = evictionPolicy.selectVictim(remaining, identifier);
+            if(victim == null || !evictionPolicy.admit(identifier, victim)) {
+                return false;
+            }
+            size -= remaining.remove(victim).getMemoryFootprint();
+        }
+        return true;
+    }
+
+    public Boolean wantsCacheEntry(VizzlySignal signal, int windowLengthSec) {
+        String identifier = SignalRegistry.getInstance().getEntryKey(signal, windowLengthSec);
+        return !evictedEntries.contains(identifier);
+    }
+
+    public void readmitCacheEntry(VizzlySignal signal, int windowLengthSec) {
+        String identifier = SignalRegistry.getInstance().getEntryKey(signal, windowLengthSec);
+        if(evictedEntries.remove(identifier)) {
+            readmittedEntries.add(identifier);
+        }
+    }
+
+    /*
+     * The tiles of an entry are built from its complete history the first time, e.g., after
+     * the entry has been created or loaded again.
+     */
+    public void updateTiles(VizzlySignal signal, int windowLengthSec, long firstTimestamp) {
+        IndexedSignalData d = getCacheEntry(signal, windowLengthSec, false);
+        if(!(d instanceof IndexedSignalLocationData)) {
+            return;
+        }
+        IndexedSignalLocationData ld = (IndexedSignalLocationData)d;
+        SpatialTilePyramid p = ld.getTiles();
+        long timeFilterStart = firstTimestamp;
+        if(p == null) {
+            p = new SpatialTilePyramid();
+            timeFilterStart = ld.getFirstPacketTimestamp();
+        }
+        timeFilterStart = SpatialTilePyramid.getBucketStart(timeFilterStart);
+        p.update(timeFilterStart, ld.getView(timeFilterStart, null));
+        ld.setTiles(p);
+        enforceMemoryBudget(null, false);
+    }
+
+    public Boolean aggregateTiles(VizzlySignal signal, int windowLengthSec, long timeFilterStart, 
+            long timeFilterEnd, LocationAggregationGrid grid) {
+        IndexedSignalData d = getCacheEntry(signal, windowLengthSec, false);
+        if(!(d instanceof IndexedSignalLocationData)) {
+            return false;
+        }
+        SpatialTilePyramid p = ((IndexedSignalLocationData)d).getTiles();
+        if(p == null || !p.aggregate(timeFilterStart, timeFilterEnd, grid)) {
+            return false;
+        }
+        // Counts as a request of the entry so that it is not evicted while it is only read through its tiles
+        getCacheEntry(signal, windowLengthSec, true);
+        return true;
     }
 
     private void addCacheEntry(VizzlySignal signal, int windowLengthSec, IndexedSignalData d) {
-        String identifier = signal.getUniqueIdentifier() + '_' + Integer.valueOf(windowLengthSec).toString();
+        String identifier = SignalRegistry.getInstance().getEntryKey(signal, windowLengthSec);
         IndexedSignalData c = cacheMap.get(identifier);
         if(c == null) {
             cacheMap.putIfAbsent(identifier, d);
@@ -171,22 +366,69 @@ public class MemCache extends AbstractCache {
         for(String k : cacheMap.keySet()) {
             if(cacheMap.get(k).getSignal().equals(signal)) {
                 cacheMap.remove(k);
+                if(evictionPolicy != null) {
+                    evictionPolicy.onRemove(k);
+                }
             }
         }
+        String prefix = signal.getNormalizedIdentifier() + '_';
+        removeKeysWithPrefix(evictedEntries, prefix);
+        removeKeysWithPrefix(readmittedEntries, prefix);
         return true;
     }
 
+    private void removeKeysWithPrefix(Set<String> keys, String prefix) {
+        Iterator<String> it = keys.iterator();
+        while(it.hasNext()) {
+            String k = it.next();
+            if(k.startsWith(prefix) && k.substring(prefix.length()).matches("\\d+")) {
+                it.remove();
+            }
+        }
+    }
+
     public Vector<TimedLocationValue> getSignalData(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, Long timeFilterEnd, Boolean updateStats) {
         IndexedSignalData d = getCacheEntry(signal, windowLengthSec, updateStats);
         if(d != null) {
-            if(d instanceof ch.ethz.vizzly.cache.memory.IndexedSignalLocationData) {
-                return ((IndexedSignalLocationData)d).getData(timeFilterStart, timeFilterEnd);
-            }   
             return d.getData(timeFilterStart, timeFilterEnd);
         }
         return null;
     }
 
+    public Boolean getSignalData(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, Long timeFilterEnd, 
+            Boolean updateStats, TimedValueSink sink) {
+        TimedValueCursor c = getSignalCursor(signal, windowLengthSec, timeFilterStart, timeFilterEnd, updateStats);
+        if(c == null) {
+            return false;
+        }
+        c.copyTo(sink);
+        return true;
+    }
+
+    /*
+     * The cursor reads directly from the arrays of the cache entry, no data is copied.
+     */
+    public TimedValueCursor getSignalCursor(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, 
+            Long timeFilterEnd, Boolean updateStats) {
+        IndexedSignalData d = getCacheEntry(signal, windowLengthSec, updateStats);
+        if(d != null) {
+            return d.getView(timeFilterStart, timeFilterEnd);
+        }
+        return null;
+    }
+
+    /*
+     * Entries with location data skip blocks of values outside of the map area.
+     */
+    public TimedValueCursor getSignalCursor(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, 
+            Long timeFilterEnd, Boolean updateStats, LocationBounds bounds) {
+        IndexedSignalData d = getCacheEntry(signal, windowLengthSec, updateStats);
+        if(d instanceof IndexedSignalLocationData) {
+            return ((IndexedSignalLocationData)d).getView(timeFilterStart, timeFilterEnd, bounds);
+        }
+        return super.getSignalCursor(signal, windowLengthSec, timeFilterStart, timeFilterEnd, updateStats, bounds);
+    }
+
     public Vector<CachedDataInfo> getCachedDataInfo() {
         Vector<CachedDataInfo> ret = new Vector<CachedDataInfo>();
         for(IndexedSignalData d : cacheMap.values()) {
@@ -201,7 +443,8 @@ public class MemCache extends AbstractCache {
                 lastPacketTimestamp = cal.getTime();    
             }
             CachedDataInfo i = new CachedDataInfo(d.getSignal(), d.getAvgInterval(), d.getNumElements(), 
-                    hasLocationData, d.getLastUpdate(), lastPacketTimestamp, d.getHits());
+                    hasLocationData, d.getLastUpdate(), lastPacketTimestamp, d.getAccessStats().getHits(),
+                    d.getAccessStats().getScore());
             ret.add(i);
         }
         return ret;
@@ -224,6 +467,14 @@ public class MemCache extends AbstractCache {
         return total;
     }
 
+    private long getMemoryFootprint() {
+        long total = 0;
+        for(IndexedSignalData d : cacheMap.values()) {
+            total += d.getMemoryFootprint();
+        }
+        return total;
+    }
+
     public int getNumberOfSeenSignals() {
         return seenSignals.size();
     }
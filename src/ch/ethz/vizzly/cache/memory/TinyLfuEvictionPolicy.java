@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.memory;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class implements a TinyLFU-based eviction policy. The request frequency of all
+ * entries, including those that are not cached, is approximated by a count-min sketch
+ * whose counters are halved periodically so that old popularity fades out. A new entry is
+ * only admitted if it has been requested more often than the entry it would replace.
+ * Victims are selected by their decayed access score.
+ * @author Matthias Keller
+ *
+ */
+public class TinyLfuEvictionPolicy extends AbstractEvictionPolicy {
+
+    public static final String NAME = "tinylfu";
+
+    private static final int SKETCH_DEPTH = 4;
+
+    private static final int SKETCH_WIDTH = 4096;
+
+    private static final int MAX_COUNT = 15;
+
+    /* Halve all counters after this many recorded requests */
+    private static final long RESET_INTERVAL = 10L*SKETCH_WIDTH;
+
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final AtomicIntegerArray sketch = new AtomicIntegerArray(SKETCH_DEPTH*SKETCH_WIDTH);
+
+    private final AtomicLong numRequests = new AtomicLong(0L);
+
+    private int getSketchIdx(int row, String key) {
+        int h = key.hashCode()*SEEDS[row];
+        h ^= h >>> 16;
+        return row*SKETCH_WIDTH + (h & (SKETCH_WIDTH-1));
+    }
+
+    public void recordRequest(String key) {
+        for(int i = 0; i < SKETCH_DEPTH; i++) {
+            int idx = getSketchIdx(i, key);
+            while(true) {
+                int cur = sketch.get(idx);
+                if(cur >= MAX_COUNT || sketch.compareAndSet(idx, cur, cur+1)) {
+                    break;
+                }
+            }
+        }
+        if(numRequests.incrementAndGet() % RESET_INTERVAL == 0) {
+            halveCounters();
+        }
+    }
+
+    private void halveCounters() {
+        for(int i = 0; i < sketch.length(); i++) {
+            while(true) {
+                int cur = sketch.get(i);
+                if(sketch.compareAndSet(i, cur, cur >>> 1)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public int getFrequency(String key) {
+        int ret = MAX_COUNT;
+        for(int i = 0; i < SKETCH_DEPTH; i++) {
+            ret = Math.min(ret, sketch.get(getSketchIdx(i, key)));
+        }
+        return ret;
+    }
+
+    public String selectVictim(Map<String, IndexedSignalData> entries, String exclude) {
+        String victim = null;
+        double victimScore = Double.MAX_VALUE;
+        long now = System.currentTimeMillis();
+        for(Map.Entry<String, IndexedSignalData> e : entries.entrySet()) {
+            if(e.getKey().equals(exclude)) {
+                continue;
+            }
+            double score = e.getValue().getAccessStats().getScore(now);
+            if(score < victimScore) {
+                victim = e.getKey();
+                victimScore = score;
+            }
+        }
+        return victim;
+    }
+
+    public Boolean admit(String candidateKey, String victimKey) {
+        return getFrequency(candidateKey) > getFrequency(victimKey);
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.sqldb;
+
+import java.util.Arrays;
+
+/**
+ * This class encodes a chunk of consecutive cache entry values into a compact binary
+ * representation. Time indices are stored as deltas, which are mostly 0 or 1 and thus
+ * take one or two bits. Values and locations are compressed by XOR-ing each value with
+ * its predecessor and storing only the meaningful bits, as slowly changing sensor
+ * readings share most of their sign, exponent and mantissa bits.
+ * @author Matthias Keller
+ *
+ */
+public class ChunkCodec {
+
+    private static final int VERSION = 1;
+
+    private static final int FLAG_HAS_LOCATION = 1;
+
+    /**
+     * Decoded contents of a chunk.
+     */
+    public static class Chunk {
+        public int numValues = 0;
+        public int[] timeIdx = null;
+        public double[] values = null;
+        public double[] locationLat = null;
+        public double[] locationLng = null;
+    }
+
+    public static byte[] encode(int[] timeIdx, double[] values, double[] locationLat, double[] locationLng, 
+            int offset, int numValues) {
+        Boolean hasLocationData = (locationLat != null);
+        BitWriter w = new BitWriter(16+numValues*(hasLocationData ? 6 : 3));
+        w.writeBits(VERSION, 8);
+        w.writeBits(hasLocationData ? FLAG_HAS_LOCATION : 0, 8);
+        w.writeBits(numValues, 32);
+        if(numValues == 0) {
+            return w.toByteArray();
+        }
+        w.writeBits(timeIdx[offset], 32);
+        for(int i = offset+1; i < offset+numValues; i++) {
+            long delta = (long)timeIdx[i]-timeIdx[i-1];
+            if(delta == 0) {
+                w.writeBit(0);
+            } else if(delta == 1) {
+                w.writeBits(2, 2);
+            } else {
+                w.writeBits(3, 2);
+                w.writeBits(delta, 32);
+            }
+        }
+        encodeDoubles(w, values, offset, numValues);
+        if(hasLocationData) {
+            encodeDoubles(w, locationLat, offset, numValues);
+            encodeDoubles(w, locationLng, offset, numValues);
+        }
+        return w.toByteArray();
+    }
+
+    public static Chunk decode(byte[] data) {
+        return decode(data, 0);
+    }
+
+    /**
+     * Decodes a chunk that starts at the given offset of the array.
+     */
+    public static Chunk decode(byte[] data, int offset) {
+        BitReader r = new BitReader(data, offset);
+        int version = (int)r.readBits(8);
+        if(version != VERSION) {
+            throw new IllegalArgumentException("Unsupported chunk version: " + version);
+        }
+        Boolean hasLocationData = ((r.readBits(8) & FLAG_HAS_LOCATION) != 0);
+        Chunk c = new Chunk();
+        c.numValues = (int)r.readBits(32);
+        c.timeIdx = new int[c.numValues];
+        if(c.numValues == 0) {
+            c.values = new double[0];
+            return c;
+        }
+        c.timeIdx[0] = (int)r.readBits(32);
+        for(int i = 1; i < c.numValues; i++) {
+            if(r.readBit() == 0) {
+                c.timeIdx[i] = c.timeIdx[i-1];
+            } else if(r.readBit() == 0) {
+                c.timeIdx[i] = c.timeIdx[i-1]+1;
+            } else {
+                c.timeIdx[i] = c.timeIdx[i-1]+(int)r.readBits(32);
+            }
+        }
+        c.values = decodeDoubles(r, c.numValues);
+        if(hasLocationData) {
+            c.locationLat = decodeDoubles(r, c.numValues);
+            c.locationLng = decodeDoubles(r, c.numValues);
+        }
+        return c;
+    }
+
+    /*
+     * XOR encoding: '0' if the value is unchanged, '10' followed by the meaningful bits if they
+     * fit into the previous leading/trailing zero window, '11' followed by the number of leading
+     * zeros (5 bits), the number of meaningful bits minus one (6 bits) and the meaningful bits otherwise.
+     */
+    private static void encodeDoubles(BitWriter w, double[] src, int offset, int numValues) {
+        long prev = Double.doubleToRawLongBits(src[offset]);
+        w.writeBits(prev, 64);
+        int prevLeading = Integer.MAX_VALUE;
+        int prevTrailing = 0;
+        for(int i = offset+1; i < offset+numValues; i++) {
+            long cur = Double.doubleToRawLongBits(src[i]);
+            long xor = cur ^ prev;
+            if(xor == 0) {
+                w.writeBit(0);
+            } else {
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if(prevLeading != Integer.MAX_VALUE && leading >= prevLeading && trailing >= prevTrailing) {
+                    w.writeBits(2, 2);
+                    w.writeBits(xor >>> prevTrailing, 64-prevLeading-prevTrailing);
+                } else {
+                    int significant = 64-leading-trailing;
+                    w.writeBits(3, 2);
+                    w.writeBits(leading, 5);
+                    w.writeBits(significant-1, 6);
+                    w.writeBits(xor >>> trailing, significant);
+                    prevLeading = leading;
+                    prevTrailing = trailing;
+                }
+            }
+            prev = cur;
+        }
+    }
+
+    private static double[] decodeDoubles(BitReader r, int numValues) {
+        double[] dst = new double[numValues];
+        long prev = r.readBits(64);
+        dst[0] = Double.longBitsToDouble(prev);
+        int prevLeading = 0;
+        int prevTrailing = 0;
+        for(int i = 1; i < numValues; i++) {
+            if(r.readBit() == 1) {
+                if(r.readBit() == 1) {
+                    prevLeading = (int)r.readBits(5);
+                    int significant = (int)r.readBits(6)+1;
+                    prevTrailing = 64-prevLeading-significant;
+                }
+                long xor = r.readBits(64-prevLeading-prevTrailing) << prevTrailing;
+                prev ^= xor;
+            }
+            dst[i] = Double.longBitsToDouble(prev);
+        }
+        return dst;
+    }
+
+    private static class BitWriter {
+
+        private byte[] buf = null;
+
+        private int bitPos = 0;
+
+        public BitWriter(int initialCapacity) {
+            buf = new byte[Math.max(initialCapacity, 16)];
+        }
+
+        public void writeBit(int bit) {
+            writeBits(bit, 1);
+        }
+
+        /* Writes the lowest numBits bits of value, most significant bit first */
+        public void writeBits(long value, int numBits) {
+            if(((bitPos+numBits) >> 3) >= buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length*2, ((bitPos+numBits) >> 3)+1));
+            }
+            for(int i = numBits-1; i >= 0; i--) {
+                if(((value >>> i) & 1L) != 0) {
+                    buf[bitPos >> 3] |= (byte)(0x80 >>> (bitPos & 7));
+                }
+                bitPos++;
+            }
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, (bitPos+7) >> 3);
+        }
+
+    }
+
+    private static class BitReader {
+
+        private final byte[] buf;
+
+        private int bitPos = 0;
+
+        public BitReader(byte[] buf, int offset) {
+            this.buf = buf;
+            this.bitPos = offset*8;
+        }
+
+        public int readBit() {
+            int bit = (buf[bitPos >> 3] >>> (7-(bitPos & 7))) & 1;
+            bitPos++;
+            return bit;
+        }
+
+        public long readBits(int numBits) {
+            long value = 0L;
+            for(int i = 0; i < numBits; i++) {
+                value = (value << 1) | readBit();
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.sqldb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
+
+/**
+ * This class implements a storage layout in which the values of a cache entry are packed
+ * into compressed chunks. Each chunk covers a fixed number of consecutive time windows and
+ * is stored as a single row, so that reading a time range only fetches and decodes the
+ * chunks overlapping with it. Updates rewrite the chunks starting at the first changed window.
+ * @author Matthias Keller
+ *
+ */
+public class ChunkedBlobStorage extends SqlDbCacheStorage {
+
+    public static final String NAME = "chunkedBlob";
+
+    public static final int DEFAULT_CHUNK_WINDOWS = 360;
+
+    private static Logger log = Logger.getLogger(ChunkedBlobStorage.class);
+
+    private String tableName = null;
+
+    /* Number of time windows covered by a single chunk */
+    private int chunkWindows = DEFAULT_CHUNK_WINDOWS;
+
+    public ChunkedBlobStorage(DataSource ds, String tablePrefix, int chunkWindows) {
+        super(ds, tablePrefix);
+        this.tableName = tablePrefix + "chunks";
+        this.chunkWindows = chunkWindows;
+    }
+
+    public void initialize() throws SQLException {
+        log.info("Create database table (if not existing): " + tableName);
+        executeSimpleQuery("CREATE TABLE IF NOT EXISTS " + tableName + " (" +
+                "`entry_id` INT UNSIGNED NOT NULL," +
+                "`chunk_idx` INT UNSIGNED NOT NULL," +
+                "`num_values` INT UNSIGNED NOT NULL," +
+                "`data` MEDIUMBLOB NOT NULL," +
+                "PRIMARY KEY (`entry_id`, `chunk_idx`)" +
+                ") ENGINE=InnoDB DEFAULT CHARSET=latin1;");
+    }
+
+    public void createEntry(int entryId, Boolean hasLocationData) throws SQLException {
+        // Nothing to do, all entries share the same table
+    }
+
+    public void removeEntry(int entryId) throws SQLException {
+        Connection conn = ds.getConnection();
+        PreparedStatement p = conn.prepareStatement("DELETE FROM " + tableName + " WHERE entry_id = ?");
+        p.setInt(1, entryId);
+        p.executeUpdate();
+        p.close();
+        p = null;
+        conn.close();
+        conn = null;
+    }
+
+    public void replaceValues(Connection conn, int entryId, int[] timeIdx, double[] values, double[] locationLat, 
+            double[] locationLng, int numValues) throws SQLException {
+        if(numValues == 0) {
+            return;
+        }
+        Boolean hasLocationData = (locationLat != null);
+        int firstChunkIdx = timeIdx[0]/chunkWindows;
+
+        // Values of the first affected chunk that precede the new data have to be retained
+        ChunkCodec.Chunk retained = null;
+        PreparedStatement p = conn.prepareStatement("SELECT data FROM " + tableName + 
+                " WHERE entry_id = ? AND chunk_idx = ? FOR UPDATE");
+        p.setInt(1, entryId);
+        p.setInt(2, firstChunkIdx);
+        ResultSet rs = p.executeQuery();
+        if(rs.next()) {
+            retained = ChunkCodec.decode(rs.getBytes(1));
+        }
+        rs.close();
+        p.close();
+
+        int numRetained = 0;
+        if(retained != null) {
+            while(numRetained < retained.numValues && retained.timeIdx[numRetained] < timeIdx[0]) {
+                numRetained++;
+            }
+        }
+        if(numRetained > 0) {
+            int total = numRetained+numValues;
+            int[] mergedTimeIdx = new int[total];
+            double[] mergedValues = new double[total];
+            double[] mergedLat = (hasLocationData) ? new double[total] : null;
+            double[] mergedLng = (hasLocationData) ? new double[total] : null;
+            System.arraycopy(retained.timeIdx, 0, mergedTimeIdx, 0, numRetained);
+            System.arraycopy(timeIdx, 0, mergedTimeIdx, numRetained, numValues);
+            System.arraycopy(retained.values, 0, mergedValues, 0, numRetained);
+            System.arraycopy(values, 0, mergedValues, numRetained, numValues);
+            if(hasLocationData) {
+                copyLocations(retained.locationLat, mergedLat, numRetained);
+                copyLocations(retained.locationLng, mergedLng, numRetained);
+                System.arraycopy(locationLat, 0, mergedLat, numRetained, numValues);
+                System.arraycopy(locationLng, 0, mergedLng, numRetained, numValues);
+            }
+            timeIdx = mergedTimeIdx;
+            values = mergedValues;
+            locationLat = mergedLat;
+            locationLng = mergedLng;
+            numValues = total;
+        }
+
+        p = conn.prepareStatement("DELETE FROM " + tableName + " WHERE entry_id = ? AND chunk_idx >= ?");
+        p.setInt(1, entryId);
+        p.setInt(2, firstChunkIdx);
+        p.executeUpdate();
+        p.close();
+
+        p = conn.prepareStatement("INSERT INTO " + tableName + " (entry_id, chunk_idx, num_values, data) VALUES (?, ?, ?, ?)");
+        int start = 0;
+        while(start < numValues) {
+            int chunkIdx = timeIdx[start]/chunkWindows;
+            int end = start+1;
+            while(end < numValues && timeIdx[end]/chunkWindows == chunkIdx) {
+                end++;
+            }
+            p.setInt(1, entryId);
+            p.setInt(2, chunkIdx);
+            p.setInt(3, end-start);
+            p.setBytes(4, ChunkCodec.encode(timeIdx, values, locationLat, locationLng, start, end-start));
+            p.addBatch();
+            start = end;
+        }
+        p.executeBatch();
+        p.close();
+        p = null;
+    }
+
+    /* Chunks written without location data are decoded without location columns */
+    private void copyLocations(double[] src, double[] dst, int num) {
+        if(src != null) {
+            System.arraycopy(src, 0, dst, 0, num);
+        } else {
+            for(int i = 0; i < num; i++) {
+                dst[i] = Double.NaN;
+            }
+        }
+    }
+
+    public void readValues(Connection conn, int entryId, SqlDbCacheMetaEntry e, Integer timeIdxStart, 
+            Integer timeIdxEnd, int fetchSize, TimedValueSink sink) throws SQLException {
+        Integer chunkIdxStart = (timeIdxStart != null) ? Math.max(timeIdxStart, 0)/chunkWindows : null;
+        Integer chunkIdxEnd = (timeIdxEnd != null) ? Math.max(timeIdxEnd, 0)/chunkWindows : null;
+        String condition = "";
+        if(chunkIdxStart != null) {
+            condition += " AND chunk_idx >= ?";
+        }
+        if(chunkIdxEnd != null) {
+            condition += " AND chunk_idx <= ?";
+        }
+        PreparedStatement p = conn.prepareStatement("SELECT data FROM " + tableName + 
+                " WHERE entry_id = ?" + condition + " ORDER BY chunk_idx ASC");
+        long startTime = e.startTime;
+        long windowLengthMilli = (long)e.windowLengthSec*1000L;
+        try {
+            p.setInt(1, entryId);
+            setTimeIdxParameters(p, 2, chunkIdxStart, chunkIdxEnd);
+            p.setFetchSize(fetchSize);
+            ResultSet rs = p.executeQuery();
+            while(rs.next()) {
+                ChunkCodec.Chunk c = ChunkCodec.decode(rs.getBytes(1));
+                Boolean hasLocation = (e.hasLocationData && c.locationLat != null);
+                for(int i = 0; i < c.numValues; i++) {
+                    int idx = c.timeIdx[i];
+                    if((timeIdxStart != null && idx < timeIdxStart) || (timeIdxEnd != null && idx > timeIdxEnd)) {
+                        continue;
+                    }
+                    long timestamp = startTime+idx*windowLengthMilli;
+                    if(hasLocation) {
+                        sink.add(timestamp, c.values[i], c.locationLat[i], c.locationLng[i]);
+                    } else {
+                        sink.add(timestamp, c.values[i]);
+                    }
+                }
+            }
+            rs.close();
+        } finally {
+            p.close();
+        }
+    }
+
+    public int countValues(Connection conn, int entryId) throws SQLException {
+        return executeCountQuery(conn, "SELECT COALESCE(SUM(num_values), 0) FROM " + tableName + " WHERE entry_id = ?", entryId);
+    }
+
+}
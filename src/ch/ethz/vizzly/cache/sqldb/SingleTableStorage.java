@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.sqldb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
+
+/**
+ * This class implements a storage layout in which the values of all cache entries are
+ * kept in a single table with a clustered primary key on (entry_id, timeIdx, seq). Reading
+ * an entry is a single index range scan and no tables are created or dropped at runtime.
+ * The sequence number distinguishes multiple locations within the same time window.
+ * Optionally, the table is hash partitioned by entry_id. Updates are applied as upserts, so
+ * that only windows whose values changed are actually written.
+ * @author Matthias Keller
+ *
+ */
+public class SingleTableStorage extends SqlDbCacheStorage {
+
+    public static final String NAME = "singleTable";
+
+    private static Logger log = Logger.getLogger(SingleTableStorage.class);
+
+    /* Number of rows written by a single multi-row upsert statement */
+    private static final int UPSERT_ROWS_PER_STATEMENT = 500;
+
+    private String tableName = null;
+
+    private int numPartitions = 0;
+
+    public SingleTableStorage(DataSource ds, String tablePrefix, int numPartitions) {
+        super(ds, tablePrefix);
+        this.tableName = tablePrefix + "data";
+        this.numPartitions = numPartitions;
+    }
+
+    public void initialize() throws SQLException {
+        String partitioning = "";
+        if(numPartitions > 1) {
+            partitioning = " PARTITION BY KEY(`entry_id`) PARTITIONS " + numPartitions;
+        }
+        log.info("Create database table (if not existing): " + tableName);
+        executeSimpleQuery("CREATE TABLE IF NOT EXISTS " + tableName + " (" +
+                "`entry_id` INT UNSIGNED NOT NULL," +
+                "`timeIdx` INT UNSIGNED NOT NULL," +
+                "`seq` SMALLINT UNSIGNED NOT NULL DEFAULT 0," +
+                "`value` double NOT NULL," +
+                "`location_lat` double DEFAULT NULL," +
+                "`location_lng` double DEFAULT NULL," +
+                "PRIMARY KEY (`entry_id`, `timeIdx`, `seq`)" +
+                ") ENGINE=InnoDB DEFAULT CHARSET=latin1" + partitioning + ";");
+    }
+
+    public void createEntry(int entryId, Boolean hasLocationData) throws SQLException {
+        // Nothing to do, all entries share the same table
+    }
+
+    public void removeEntry(int entryId) throws SQLException {
+        Connection conn = ds.getConnection();
+        PreparedStatement p = conn.prepareStatement("DELETE FROM " + tableName + " WHERE entry_id = ?");
+        p.setInt(1, entryId);
+        p.executeUpdate();
+        p.close();
+        p = null;
+        conn.close();
+        conn = null;
+    }
+
+    public void replaceValues(Connection conn, int entryId, int[] timeIdx, double[] values, double[] locationLat, 
+            double[] locationLng, int numValues) throws SQLException {
+        if(numValues == 0) {
+            return;
+        }
+        Boolean hasLocationData = (locationLat != null);
+
+        // Windows after the new data are outdated. Usually, there are none.
+        PreparedStatement p = conn.prepareStatement("DELETE FROM " + tableName + 
+                " WHERE entry_id = ? AND timeIdx > ?");
+        p.setInt(1, entryId);
+        p.setInt(2, timeIdx[numValues-1]);
+        p.executeUpdate();
+        p.close();
+
+        // Assign sequence numbers within each window
+        int[] seq = new int[numValues];
+        for(int i = 1; i < numValues; i++) {
+            seq[i] = (timeIdx[i] == timeIdx[i-1]) ? seq[i-1]+1 : 0;
+        }
+
+        if(hasLocationData) {
+            // The number of locations of a window may have decreased, remove superfluous rows
+            p = conn.prepareStatement("DELETE FROM " + tableName + " WHERE entry_id = ? AND timeIdx = ? AND seq > ?");
+            Boolean hasBatch = false;
+            for(int i = 0; i < numValues; i++) {
+                if(i == numValues-1 || timeIdx[i+1] != timeIdx[i]) {
+                    p.setInt(1, entryId);
+                    p.setInt(2, timeIdx[i]);
+                    p.setInt(3, seq[i]);
+                    p.addBatch();
+                    hasBatch = true;
+                }
+            }
+            if(hasBatch) {
+                p.executeBatch();
+            }
+            p.close();
+        }
+
+        // Upsert values with multi-row statements. Rows whose values did not change are not written by MySQL.
+        int fullStatementRows = Math.min(numValues, UPSERT_ROWS_PER_STATEMENT);
+        PreparedStatement full = conn.prepareStatement(getUpsertStatement(fullStatementRows));
+        int offset = 0;
+        while(offset < numValues) {
+            int rows = Math.min(numValues-offset, UPSERT_ROWS_PER_STATEMENT);
+            p = (rows == fullStatementRows) ? full : conn.prepareStatement(getUpsertStatement(rows));
+            int paramIdx = 1;
+            for(int i = offset; i < offset+rows; i++) {
+                p.setInt(paramIdx++, entryId);
+                p.setInt(paramIdx++, timeIdx[i]);
+                p.setInt(paramIdx++, seq[i]);
+                p.setDouble(paramIdx++, values[i]);
+                if(hasLocationData) {
+                    p.setDouble(paramIdx++, locationLat[i]);
+                    p.setDouble(paramIdx++, locationLng[i]);
+                } else {
+                    p.setNull(paramIdx++, java.sql.Types.DOUBLE);
+                    p.setNull(paramIdx++, java.sql.Types.DOUBLE);
+                }
+            }
+            p.executeUpdate();
+            if(p != full) {
+                p.close();
+            }
+            offset += rows;
+        }
+        full.close();
+        full = null;
+        p = null;
+    }
+
+    private String getUpsertStatement(int numRows) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("INSERT INTO ").append(tableName).append(" (entry_id, timeIdx, seq, value, location_lat, location_lng) VALUES ");
+        for(int i = 0; i < numRows; i++) {
+            if(i > 0) {
+                sb.append(",");
+            }
+            sb.append("(?, ?, ?, ?, ?, ?)");
+        }
+        sb.append(" ON DUPLICATE KEY UPDATE value = VALUES(value), location_lat = VALUES(location_lat), " +
+                "location_lng = VALUES(location_lng)");
+        return sb.toString();
+    }
+
+    public void readValues(Connection conn, int entryId, SqlDbCacheMetaEntry e, Integer timeIdxStart, 
+            Integer timeIdxEnd, int fetchSize, TimedValueSink sink) throws SQLException {
+        readRows(prepareRead(conn, entryId, e.hasLocationData, timeIdxStart, timeIdxEnd), e, fetchSize, sink);
+    }
+
+    private PreparedStatement prepareRead(Connection conn, int entryId, Boolean hasLocationData, 
+            Integer timeIdxStart, Integer timeIdxEnd) throws SQLException {
+        String locationCols = (hasLocationData) ? ", location_lat, location_lng" : "";
+        PreparedStatement p = conn.prepareStatement("SELECT timeIdx, value" + locationCols +
+                " FROM " + tableName + " WHERE entry_id = ?" + getTimeIdxCondition(timeIdxStart, timeIdxEnd) + 
+                " ORDER BY timeIdx ASC, seq ASC");
+        p.setInt(1, entryId);
+        setTimeIdxParameters(p, 2, timeIdxStart, timeIdxEnd);
+        return p;
+    }
+
+    public int countValues(Connection conn, int entryId) throws SQLException {
+        return executeCountQuery(conn, "SELECT COUNT(*) FROM " + tableName + " WHERE entry_id = ?", entryId);
+    }
+
+}
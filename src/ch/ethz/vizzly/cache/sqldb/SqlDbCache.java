@@ -34,12 +34,18 @@ import javax.sql.DataSource;
 import org.apache.log4j.Logger;
 
 import ch.ethz.vizzly.cache.AbstractCache;
+import ch.ethz.vizzly.cache.CacheEntryAccessStats;
+import ch.ethz.vizzly.datatype.CacheSpec;
 import ch.ethz.vizzly.datatype.CachedDataInfo;
+import ch.ethz.vizzly.datatype.VizzlyException;
 import ch.ethz.vizzly.datatype.VizzlySignal;
 import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
 import ch.ethz.vizzly.datatype.readings.TimedValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueColumns;
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
 import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
 import ch.ethz.vizzly.util.DataAggregationUtil;
+import ch.ethz.vizzly.util.SignalIdMap;
 import ch.ethz.vizzly.util.TimestampTruncateUtil;
 
 /**
@@ -60,11 +66,11 @@ public class SqlDbCache extends AbstractCache {
     private Calendar cal = null;
 
     // For each signal, there is a map that translates the average interval to the cache entry_id
-    private ConcurrentHashMap<VizzlySignal, HashMap<Integer, Integer>> cacheIdLookup = null;
+    private SignalIdMap<HashMap<Integer, Integer>> cacheIdLookup = null;
 
     // For being faster, we keep certain (small) information in memory
     private Vector<VizzlySignal> seenSignals = null;
-    private ConcurrentHashMap<VizzlySignal, Integer> seenSignalsEntryIds = null;
+    private SignalIdMap<Integer> seenSignalsEntryIds = null;
     private ConcurrentHashMap<Integer, SqlDbCacheMetaEntry> cacheMeta = null;
 
     private Integer nextCacheEntryId = 1;
@@ -74,6 +80,14 @@ public class SqlDbCache extends AbstractCache {
 
     final private String tablePrefix = "viz_";
 
+    /* Layout of the tables that hold the cached values */
+    private SqlDbCacheStorage storage = null;
+
+    /* Number of rows that are fetched from the database at once when reading */
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+
     final private String signalsDbTable = tablePrefix + "signals";
 
     final private String signalsDbTableCreate = "CREATE TABLE IF NOT EXISTS " + signalsDbTable + " (" +
@@ -109,24 +123,49 @@ public class SqlDbCache extends AbstractCache {
             "PRIMARY KEY (`entry_id`)" +
             ") ENGINE=InnoDB DEFAULT CHARSET=latin1;";
 
-    public SqlDbCache() {
+    public SqlDbCache() throws VizzlyException {
+        this(new CacheSpec());
+    }
+
+    public SqlDbCache(CacheSpec spec) throws VizzlyException {
         seenSignals = new Vector<VizzlySignal>();
-        seenSignalsEntryIds = new ConcurrentHashMap<VizzlySignal, Integer>();
+        seenSignalsEntryIds = new SignalIdMap<Integer>();
         cacheMeta = new ConcurrentHashMap<Integer, SqlDbCacheMetaEntry>();
-        cacheIdLookup = new ConcurrentHashMap<VizzlySignal, HashMap<Integer, Integer>>();
+        cacheIdLookup = new SignalIdMap<HashMap<Integer, Integer>>();
         dataBackend = DataBackend.SQLDBCACHE;
 
+        // Configuration errors are reported right away, independent of the database connection
+        String layout = spec.optionalParameters.get(CacheSpec.PARAM_LAYOUT);
+        if(layout != null && !layout.isEmpty() && !layout.equals(SingleTableStorage.NAME) 
+                && !layout.equals(ChunkedBlobStorage.NAME) && !layout.equals(TablePerEntryStorage.NAME)) {
+            throw new VizzlyException("Unknown SQL cache layout: " + layout);
+        }
+        int numPartitions = parseIntParameter(spec, CacheSpec.PARAM_PARTITIONS, 0, 0, 
+                "Invalid number of partitions");
+        int chunkWindows = parseIntParameter(spec, CacheSpec.PARAM_CHUNK_WINDOWS, 
+                ChunkedBlobStorage.DEFAULT_CHUNK_WINDOWS, 1, "Invalid number of windows per chunk");
+        fetchSize = parseIntParameter(spec, CacheSpec.PARAM_FETCH_SIZE, DEFAULT_FETCH_SIZE, 0, "Invalid fetch size");
+
         try {
 
             InitialContext ctx = new InitialContext();
             // Perform JNDI lookup
             ds = (DataSource)ctx.lookup("VizzlyDS");
 
+            if(layout != null && layout.equals(SingleTableStorage.NAME)) {
+                storage = new SingleTableStorage(ds, tablePrefix, numPartitions);
+            } else if(layout != null && layout.equals(ChunkedBlobStorage.NAME)) {
+                storage = new ChunkedBlobStorage(ds, tablePrefix, chunkWindows);
+            } else {
+                storage = new TablePerEntryStorage(ds, tablePrefix);
+            }
+
             // Create tables for managing structure
             log.info("Create database table (if not existing): " + signalsDbTable);
             sqlExecuteSimpleQuery(signalsDbTableCreate);
             log.info("Create database table (if not existing): " + cacheMetaDataTable);
             sqlExecuteSimpleQuery(cacheMetaDataTableCreate);
+            storage.initialize();
             
             // Load previous state from DB
             initShadowedDataFromDb();
@@ -140,6 +179,25 @@ public class SqlDbCache extends AbstractCache {
         }
     }
 
+    /* Returns the default value if the parameter is not given, values below the minimum are rejected */
+    private static int parseIntParameter(CacheSpec spec, String name, int defaultValue, int minValue, 
+            String errorMsg) throws VizzlyException {
+        String param = spec.optionalParameters.get(name);
+        if(param == null || param.isEmpty()) {
+            return defaultValue;
+        }
+        int value = 0;
+        try {
+            value = Integer.parseInt(param);
+        } catch(NumberFormatException e) {
+            throw new VizzlyException(errorMsg + ": " + param);
+        }
+        if(value < minValue) {
+            throw new VizzlyException(errorMsg + ": " + param);
+        }
+        return value;
+    }
+
     public String getCacheDescription() {
         return description;
     }
@@ -192,7 +250,7 @@ public class SqlDbCache extends AbstractCache {
             e.endTime = rs.getLong("end_time");
             e.firstPacketTimestamp = rs.getLong("first_packet_timestamp");
             e.lastPacketTimestamp = rs.getLong("last_packet_timestamp");
-            e.hits = rs.getInt("hits");
+            e.accessStats = new CacheEntryAccessStats(rs.getInt("hits"));
             cal = Calendar.getInstance();
             cal.setTimeInMillis(rs.getLong("last_update"));
             e.lastUpdate = cal.getTime();
@@ -215,47 +273,48 @@ public class SqlDbCache extends AbstractCache {
 
     public void updateCacheEntry(VizzlySignal signal, int windowLengthSec,
             Vector<TimedLocationValue> r) {
-        String tableName = "";
         if(!isInitialized) {
             return;
         }
+        try {
+            writeCacheEntry(signal, windowLengthSec, r);
+        } catch(SQLException e) {
+            log.error(e);
+        }
+    }
+
+    /**
+     * Same as updateCacheEntry(), but failures are passed on to the caller, which can retry
+     * the update. An update that failed has not changed the meta data of the entry.
+     */
+    public void writeCacheEntry(VizzlySignal signal, int windowLengthSec,
+            Vector<TimedLocationValue> r) throws SQLException {
+        if(!isInitialized) {
+            throw new SQLException("SQL cache is not initialized.");
+        }
         if(r.size() == 0) {
             return;
         }
         SqlDbCacheMetaEntry e = null;
         if(!isInCacheIgnoreData(signal, windowLengthSec)) {
-            try {
-                int nextEntryId = 0;
-                synchronized(nextCacheEntryId) {
-                    nextEntryId = nextCacheEntryId;
-                    nextCacheEntryId++;
-                }
+            int nextEntryId = 0;
+            synchronized(nextCacheEntryId) {
+                nextEntryId = nextCacheEntryId;
+                nextCacheEntryId++;
+            }
 
-                Boolean hasLocationData = signal.hasLocation();
-                String locationColumns = "";
-                if(hasLocationData) {
-                    locationColumns = "`location_lat` double DEFAULT NULL," +
-                            "`location_lng` double DEFAULT NULL,";
-                }
+            Boolean hasLocationData = signal.hasLocation();
 
-                // Create not yet existing table
-                tableName = tablePrefix + Integer.valueOf(nextEntryId).toString();
-                String sql = "CREATE TABLE " + tableName + " (" +
-                        "`id` INT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY," +
-                        "`timeIdx` INT UNSIGNED NOT NULL," +
-                        "`value` double NOT NULL," +
-                        locationColumns +
-                        "KEY `timeIdx` (`timeIdx`)" +
-                        ") ENGINE=InnoDB DEFAULT CHARSET=latin1;";
-                sqlExecuteSimpleQuery(sql);
-                log.info("Created new database table: " + tableName);
-
-                // r is ordered by ASCENDING time
-                Long startTime = TimestampTruncateUtil.truncate(r.firstElement().timestamp, windowLengthSec*1000);
-                Long firstPacketTimestamp = r.firstElement().timestamp;
-                Long lastPacketTimestamp = r.lastElement().timestamp;
+            // Create storage for not yet existing entry
+            storage.createEntry(nextEntryId, hasLocationData);
 
-                Connection conn = ds.getConnection();
+            // r is ordered by ASCENDING time
+            Long startTime = TimestampTruncateUtil.truncate(r.firstElement().timestamp, windowLengthSec*1000);
+            Long firstPacketTimestamp = r.firstElement().timestamp;
+            Long lastPacketTimestamp = r.lastElement().timestamp;
+
+            Connection conn = ds.getConnection();
+            try {
                 PreparedStatement p = conn.prepareStatement("INSERT INTO " + cacheMetaDataTable + 
                         " (entry_id, signal_id, window_length, has_location_data, start_time, " +
                         "first_packet_timestamp) VALUES (?, ?, ?, ?, ?, ?)");
@@ -272,37 +331,34 @@ public class SqlDbCache extends AbstractCache {
                 p.executeUpdate();
                 p.close();
                 p = null;
+            } finally {
                 conn.close();
                 conn = null;
+            }
 
-                HashMap<Integer, Integer> lookup = cacheIdLookup.get(signal);
-                if(lookup == null) {
-                    lookup = new HashMap<Integer, Integer>();
-                    cacheIdLookup.put(signal, lookup);
-                }
-                lookup.put(windowLengthSec, nextEntryId);
-                e = new SqlDbCacheMetaEntry();
-                e.signal = signal;
-                e.windowLengthSec = windowLengthSec;
-                e.startTime = startTime;
-                e.firstPacketTimestamp = firstPacketTimestamp;
-                e.lastPacketTimestamp = lastPacketTimestamp;
-                e.hasLocationData = hasLocationData;
-                cacheMeta.put(nextEntryId, e);
-            } catch(SQLException ex) {
-                log.error(ex);
-                return;
+            HashMap<Integer, Integer> lookup = cacheIdLookup.get(signal);
+            if(lookup == null) {
+                lookup = new HashMap<Integer, Integer>();
+                cacheIdLookup.put(signal, lookup);
             }
+            lookup.put(windowLengthSec, nextEntryId);
+            e = new SqlDbCacheMetaEntry();
+            e.signal = signal;
+            e.windowLengthSec = windowLengthSec;
+            e.startTime = startTime;
+            e.firstPacketTimestamp = firstPacketTimestamp;
+            e.lastPacketTimestamp = lastPacketTimestamp;
+            e.hasLocationData = hasLocationData;
+            cacheMeta.put(nextEntryId, e);
         } else {
             Integer cacheEntryId = getCacheEntryId(signal, windowLengthSec);
-            tableName = tablePrefix + cacheEntryId;
             e = cacheMeta.get(cacheEntryId);
         }
 
         if(!e.hasLocationData) {
-            aggregateAndUpdate(signal, windowLengthSec, tableName, r);
+            aggregateAndUpdate(signal, windowLengthSec, r);
         } else {
-            aggregateAndUpdateWithLocation(signal, windowLengthSec, tableName, r);
+            aggregateAndUpdateWithLocation(signal, windowLengthSec, r);
         }
     }
 
@@ -326,7 +382,8 @@ public class SqlDbCache extends AbstractCache {
                 lastPacketTimestamp = cal.getTime();    
             }
             CachedDataInfo i = new CachedDataInfo(e.signal, e.windowLengthSec, e.numElements, 
-                    e.hasLocationData, e.lastUpdate, lastPacketTimestamp, e.hits);
+                    e.hasLocationData, e.lastUpdate, lastPacketTimestamp, e.accessStats.getHits(),
+                    e.accessStats.getScore());
             ret.add(i);
         }
         return ret;
@@ -340,86 +397,65 @@ public class SqlDbCache extends AbstractCache {
     public Vector<TimedLocationValue> getSignalData(VizzlySignal signal,
             int windowLengthSec, Long timeFilterStart, Long timeFilterEnd,
             Boolean updateStats) {
-        if(!isInitialized) {
+        Integer cacheEntryId = getCacheEntryId(signal, windowLengthSec);
+        SqlDbCacheMetaEntry e = cacheMeta.get(cacheEntryId);
+        TimedValueColumns columns = new TimedValueColumns((e != null) ? e.numElements+1 : 0);
+        if(!getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, updateStats, columns)) {
             return null;
         }
-        if(updateStats) {
-            cacheRequests++;
+        return columns.toVector();
+    }
+
+    /*
+     * Values are streamed from the database in chunks of fetchSize rows and handed to the
+     * sink one by one, so that large reads do not need to be buffered.
+     */
+    public Boolean getSignalData(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, Long timeFilterEnd, 
+            Boolean updateStats, TimedValueSink sink) {
+        if(!isInitialized) {
+            return false;
         }
         if(isInCache(signal, windowLengthSec)) {
             if(updateStats) {
-                cacheHits++;
+                recordCacheHit();
             }
             Integer cacheEntryId = getCacheEntryId(signal, windowLengthSec);
-            String tableName = tablePrefix + cacheEntryId;
-            Boolean hasLocationData = cacheMeta.get(cacheEntryId).hasLocationData;
-
-            String locationCols = (hasLocationData) ? ", location_lat, location_lng" : "";
+            SqlDbCacheMetaEntry e = cacheMeta.get(cacheEntryId);
 
-            PreparedStatement p = null;
+            Connection conn = null;
             try {
-                Connection conn = ds.getConnection();
-                if(timeFilterStart != null && timeFilterEnd == null) {
-                    int timeIdxStart = getTimeIdx(timeFilterStart, cacheMeta.get(cacheEntryId).startTime, 
-                            cacheMeta.get(cacheEntryId).windowLengthSec);
-                    p = conn.prepareStatement("SELECT timeIdx, value" + locationCols +
-                            " FROM " + tableName + " WHERE timeIdx >= ? ORDER BY timeIdx ASC");
-                    p.setInt(1, timeIdxStart);
-                } else if(timeFilterStart == null && timeFilterEnd != null) {
-                    int timeIdxEnd = getTimeIdx(timeFilterEnd, cacheMeta.get(cacheEntryId).startTime, 
-                            cacheMeta.get(cacheEntryId).windowLengthSec);
-                    p = conn.prepareStatement("SELECT timeIdx, value" + locationCols +
-                            " FROM " + tableName + " WHERE timeIdx <= ? ORDER BY timeIdx ASC");
-                    p.setInt(1, timeIdxEnd);
-                } else if(timeFilterStart != null && timeFilterEnd != null) {
-                    int timeIdxStart = getTimeIdx(timeFilterStart, cacheMeta.get(cacheEntryId).startTime, 
-                            cacheMeta.get(cacheEntryId).windowLengthSec);
-                    int timeIdxEnd = getTimeIdx(timeFilterEnd, cacheMeta.get(cacheEntryId).startTime, 
-                            cacheMeta.get(cacheEntryId).windowLengthSec);
-                    p = conn.prepareStatement("SELECT timeIdx, value" + locationCols +
-                            " FROM " + tableName + " WHERE timeIdx >= ? AND timeIdx <= ? ORDER BY timeIdx ASC");
-                    p.setInt(1, timeIdxStart);
-                    p.setInt(2, timeIdxEnd);
-                } else {
-                    p = conn.prepareStatement("SELECT timeIdx, value" + locationCols +
-                            " FROM " + tableName + " ORDER BY timeIdx ASC");
+                conn = ds.getConnection();
+                Integer timeIdxStart = null;
+                Integer timeIdxEnd = null;
+                if(timeFilterStart != null) {
+                    timeIdxStart = getTimeIdx(timeFilterStart, e.startTime, e.windowLengthSec);
                 }
-
-                Vector<TimedLocationValue> ret = new Vector<TimedLocationValue>();
-                ResultSet rs = p.executeQuery();
-                SqlDbCacheMetaEntry e = cacheMeta.get(cacheEntryId);
-                while(rs.next()) {
-                    int timeIdx = rs.getInt(1);
-                    double value = rs.getDouble(2);
-                    long timestamp = getTimestamp(timeIdx, e.startTime, e.windowLengthSec);
-                    TimedLocationValue v = null;
-                    if(!hasLocationData) {
-                        v = new TimedLocationValue(timestamp, value);
-                    } else {
-                        double locationLat = rs.getDouble(3);
-                        double locationLng = rs.getDouble(4);
-                        v = new TimedLocationValue(timestamp, value, locationLat, locationLng);
-                    }
-                    ret.add(v);
+                if(timeFilterEnd != null) {
+                    timeIdxEnd = getTimeIdx(timeFilterEnd, e.startTime, e.windowLengthSec);
                 }
-                p.close();
-                p = null;
-                conn.close();
-                conn = null;
+                storage.readValues(conn, cacheEntryId, e, timeIdxStart, timeIdxEnd, fetchSize, sink);
 
                 if(updateStats) {
-                    cacheMeta.get(cacheEntryId).hits++;
+                    e.accessStats.recordAccess();
                 }
 
-                return ret;
-            } catch(SQLException e) {
-                log.error(e);
+                return true;
+            } catch(SQLException ex) {
+                log.error(ex);
+            } finally {
+                try {
+                    if(conn != null) {
+                        conn.close();
+                    }
+                } catch(SQLException ex) {
+                    log.error(ex);
+                }
             }
         }
         if(updateStats) {
-            cacheMisses++;
+            recordCacheMiss();
         }
-        return null;
+        return false;
     }
 
     public Boolean isInCache(VizzlySignal signal, int windowLengthSec) {
@@ -489,6 +525,14 @@ public class SqlDbCache extends AbstractCache {
         return cacheMeta.get(entryId).lastPacketTimestamp;
     }
 
+    public Integer getNumElements(VizzlySignal signal, int windowLengthSec) {
+        int entryId = getCacheEntryId(signal, windowLengthSec);
+        if(entryId == -1) {
+            return null;
+        }
+        return cacheMeta.get(entryId).numElements;
+    }
+
     public Date getLastUpdate(VizzlySignal signal, int windowLengthSec) {
         int entryId = getCacheEntryId(signal, windowLengthSec);
         if(entryId == -1) {
@@ -578,19 +622,14 @@ public class SqlDbCache extends AbstractCache {
             p.close();
             p = null;
 
+            conn.close();
+            conn = null;
+
             if(lookupMap != null) {
-                Statement s = null;
                 for(Integer i : lookupMap.values()) {
-                    s = conn.createStatement();
-                    s.executeUpdate("DROP TABLE " + tablePrefix + i);
-                    s.close();
-                    log.info("Removed database table: " + tablePrefix + i);
+                    storage.removeEntry(i);
                 }
-                s = null;
             }
-
-            conn.close();
-            conn = null;
         } catch(SQLException e) {
             log.error(e);
         }
@@ -617,160 +656,114 @@ public class SqlDbCache extends AbstractCache {
         return cacheMeta.size();
     }
 
-    private void aggregateAndUpdate(VizzlySignal signal, int windowLengthSec, String tableName, Vector<TimedLocationValue> data) {
+    private void aggregateAndUpdate(VizzlySignal signal, int windowLengthSec, Vector<TimedLocationValue> data) 
+            throws SQLException {
         if(data.size() == 0) {
             return;
         }
-        try {
-            Integer cacheEntryId = getCacheEntryId(signal, windowLengthSec);
-            if(cacheEntryId == -1) {
-                log.error("DB inconsistency, no cache entry found.");
-                return;
-            }
-            SqlDbCacheMetaEntry e = cacheMeta.get(cacheEntryId); 
-
-            // First step: Pre-aggregate new data
-            Vector<TimedValue> aggregatedData = DataAggregationUtil.aggregateData(data, windowLengthSec);
-
-            if(aggregatedData.size() == 0) {
-                log.debug("Empty aggregated data.");
-                return;
-            }
-
-            // Second step: Remove old, overlapping data
-            Connection conn = ds.getConnection();
-            conn.setAutoCommit(false);
-            int timeIdx = getTimeIdx(aggregatedData.get(0).timestamp, e.startTime, e.windowLengthSec);
-            PreparedStatement p = conn.prepareStatement("DELETE FROM " + tableName + " WHERE timeIdx >= ?");
-            p.setInt(1, timeIdx);
-            p.executeUpdate();
-            conn.commit();
-            p.close();
-
-            p = conn.prepareStatement("INSERT INTO " + tableName + " (timeIdx, value) VALUES (?, ?)");
-
-            // Third step: Add new data
-            for(int i = 0; i < aggregatedData.size(); i++) {
-                TimedValue v = aggregatedData.get(i);
-                timeIdx = getTimeIdx(v.timestamp, e.startTime, e.windowLengthSec);
-                p.setInt(1, timeIdx);
-                p.setDouble(2, v.value);
-                p.addBatch();
-            }
+        Integer cacheEntryId = getCacheEntryId(signal, windowLengthSec);
+        if(cacheEntryId == -1) {
+            throw new SQLException("DB inconsistency, no cache entry found.");
+        }
+        SqlDbCacheMetaEntry e = cacheMeta.get(cacheEntryId); 
 
-            p.executeBatch();
-            conn.commit();
-            p.close();
-            p = null;
-            conn.close();
-            conn = null;
+        // First step: Pre-aggregate new data
+        Vector<TimedValue> aggregatedData = DataAggregationUtil.aggregateData(data, windowLengthSec);
 
-            cacheMeta.get(cacheEntryId).lastPacketTimestamp = data.get(data.size()-1).timestamp;
-            cacheMeta.get(cacheEntryId).endTime = TimestampTruncateUtil.truncate(data.get(data.size()-1).timestamp, windowLengthSec*1000);
-            cal = Calendar.getInstance();
-            cacheMeta.get(cacheEntryId).lastUpdate = cal.getTime();
-            updateNumElements(signal, windowLengthSec);
-            updateCacheEntryDb(signal, windowLengthSec);
-        } catch(SQLException e) {
-            log.error(e);
+        if(aggregatedData.size() == 0) {
+            log.debug("Empty aggregated data.");
+            return;
         }
 
+        // Second step: Replace old, overlapping data
+        int numValues = aggregatedData.size();
+        int[] timeIdx = new int[numValues];
+        double[] values = new double[numValues];
+        for(int i = 0; i < numValues; i++) {
+            TimedValue v = aggregatedData.get(i);
+            timeIdx[i] = getTimeIdx(v.timestamp, e.startTime, e.windowLengthSec);
+            values[i] = v.value;
+        }
+        writeValues(cacheEntryId, e, timeIdx, values, null, null, numValues, data.lastElement().timestamp);
     }
 
-    private void aggregateAndUpdateWithLocation(VizzlySignal signal, int windowLengthSec, String tableName, Vector<TimedLocationValue> data) {
+    private void aggregateAndUpdateWithLocation(VizzlySignal signal, int windowLengthSec, Vector<TimedLocationValue> data) 
+            throws SQLException {
         if(data.size() == 0) {
             return;
         }
-        try {
-            Integer cacheEntryId = getCacheEntryId(signal, windowLengthSec);
-            if(cacheEntryId == -1) {
-                log.error("DB inconsistency, no cache entry found.");
-                return;
-            }
-            SqlDbCacheMetaEntry e = cacheMeta.get(cacheEntryId); 
+        Integer cacheEntryId = getCacheEntryId(signal, windowLengthSec);
+        if(cacheEntryId == -1) {
+            throw new SQLException("DB inconsistency, no cache entry found.");
+        }
+        SqlDbCacheMetaEntry e = cacheMeta.get(cacheEntryId); 
 
-            // First step: Pre-aggregate new data
-            Vector<TimedLocationValue> aggregatedData = DataAggregationUtil.aggregateDataWithLocation(data, windowLengthSec);
+        // First step: Pre-aggregate new data
+        Vector<TimedLocationValue> aggregatedData = DataAggregationUtil.aggregateDataWithLocation(data, windowLengthSec);
 
-            if(aggregatedData.size() == 0) {
-                log.debug("Empty aggregated data.");
-                return;
-            }
+        if(aggregatedData.size() == 0) {
+            log.debug("Empty aggregated data.");
+            return;
+        }
 
-            // Second step: Clean-up previously filled, overlapping data
-            Connection conn = ds.getConnection();
-            conn.setAutoCommit(false);
-            int timeIdx = getTimeIdx(aggregatedData.get(0).timestamp, e.startTime, e.windowLengthSec);
-            PreparedStatement p = conn.prepareStatement("DELETE FROM " + tableName + " WHERE timeIdx >= ?");
-            p.setInt(1, timeIdx);
-            p.executeUpdate();
-            conn.commit();
-            p.close();
+        // Second step: Replace previously filled, overlapping data
+        int numValues = aggregatedData.size();
+        int[] timeIdx = new int[numValues];
+        double[] values = new double[numValues];
+        double[] locationLat = new double[numValues];
+        double[] locationLng = new double[numValues];
+        for(int i = 0; i < numValues; i++) {
+            TimedLocationValue v = aggregatedData.get(i);
+            timeIdx[i] = getTimeIdx(v.timestamp, e.startTime, e.windowLengthSec);
+            values[i] = v.value;
+            locationLat[i] = v.location.latitude;
+            locationLng[i] = v.location.longitude;
+        }
+        writeValues(cacheEntryId, e, timeIdx, values, locationLat, locationLng, numValues, data.lastElement().timestamp);
+    }
 
-            p = conn.prepareStatement("INSERT INTO " + tableName + " (timeIdx, value, " +
-                    "location_lat, location_lng) VALUES (?, ?, ?, ?)");
-
-            // Third step: Add new data
-            for(int i = 0; i < aggregatedData.size(); i++) {
-                TimedLocationValue v = aggregatedData.get(i);
-                timeIdx = getTimeIdx(v.timestamp, e.startTime, e.windowLengthSec);
-                p.setInt(1, timeIdx);
-                p.setDouble(2, v.value);
-                p.setDouble(3, v.location.latitude);
-                p.setDouble(4, v.location.longitude);
-                p.addBatch();
-            }
+    /*
+     * Writes aggregated values and the updated meta data of a cache entry in a single transaction.
+     * In-memory meta data is only changed after the transaction has been committed.
+     */
+    private void writeValues(int cacheEntryId, SqlDbCacheMetaEntry e, int[] timeIdx, double[] values, 
+            double[] locationLat, double[] locationLng, int numValues, long lastPacketTimestamp) throws SQLException {
+        long endTime = TimestampTruncateUtil.truncate(lastPacketTimestamp, e.windowLengthSec*1000);
+        cal = Calendar.getInstance();
+        Date lastUpdate = cal.getTime();
+        int numElements = 0;
 
-            p.executeBatch();
-            conn.commit();
+        Connection conn = ds.getConnection();
+        conn.setAutoCommit(false);
+        try {
+            storage.replaceValues(conn, cacheEntryId, timeIdx, values, locationLat, locationLng, numValues);
+            numElements = storage.countValues(conn, cacheEntryId);
+
+            PreparedStatement p = conn.prepareStatement("UPDATE " + cacheMetaDataTable + 
+                    " SET end_time = ?, last_packet_timestamp = ?, last_update = ?, num_elements = ?, hits = ? WHERE entry_id = ?");
+            p.setLong(1, endTime);
+            p.setLong(2, lastPacketTimestamp);
+            p.setLong(3, lastUpdate.getTime());
+            p.setInt(4, numElements);
+            p.setInt(5, (int)Math.min(e.accessStats.getHits(), Integer.MAX_VALUE));
+            p.setInt(6, cacheEntryId);
+            p.executeUpdate();
             p.close();
             p = null;
+
+            conn.commit();
+        } catch(SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
             conn.close();
             conn = null;
-
-            cacheMeta.get(cacheEntryId).lastPacketTimestamp = data.get(data.size()-1).timestamp;
-            cacheMeta.get(cacheEntryId).endTime = TimestampTruncateUtil.truncate(data.get(data.size()-1).timestamp, windowLengthSec*1000);
-            cal = Calendar.getInstance();
-            cacheMeta.get(cacheEntryId).lastUpdate = cal.getTime();
-            updateNumElements(signal, windowLengthSec);
-            updateCacheEntryDb(signal, windowLengthSec);
-        } catch(SQLException e) {
-            log.error(e);
         }
-    }
-
-    private void updateCacheEntryDb(VizzlySignal signal, int windowLengthSec) throws SQLException {
-        Connection conn = ds.getConnection();
-        PreparedStatement p = conn.prepareStatement("UPDATE " + cacheMetaDataTable + 
-                " SET end_time = ?, last_packet_timestamp = ?, last_update = ?, num_elements = ?, hits = ? WHERE entry_id = ?");
-        int cacheEntryId = getCacheEntryId(signal, windowLengthSec);
-        SqlDbCacheMetaEntry e = cacheMeta.get(cacheEntryId);
-        p.setLong(1, e.endTime);
-        p.setLong(2, e.lastPacketTimestamp);
-        p.setLong(3, e.lastUpdate.getTime());
-        p.setInt(4, e.numElements);
-        p.setInt(5, e.hits);
-        p.setInt(6, cacheEntryId);
-        p.executeUpdate();
-        p.close();
-        p = null;
-        conn.close();
-        conn = null;
-    }
 
-    private void updateNumElements(VizzlySignal signal, int windowLengthSec) throws SQLException {
-        int cacheEntryId = getCacheEntryId(signal, windowLengthSec);
-        Connection conn = ds.getConnection();
-        Statement s = conn.createStatement();
-        String tableName = tablePrefix + cacheEntryId;
-        ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM " + tableName + " WHERE id > 0");
-        if(rs.next()) {
-            cacheMeta.get(cacheEntryId).numElements = rs.getInt(1);
-        }
-        s.close();
-        s = null;
-        conn.close();
-        conn = null;
+        e.lastPacketTimestamp = lastPacketTimestamp;
+        e.endTime = endTime;
+        e.numElements = numElements;
+        e.lastUpdate = lastUpdate;
     }
 
     private int getTimeIdx(long timestamp, long startTime, int windowLengthSec) {
@@ -782,10 +775,4 @@ public class SqlDbCache extends AbstractCache {
         return idx.intValue();
     }
 
-    private long getTimestamp(int timeIdx, long startTime, int windowLengthSec) {
-        long windowLengthMilli = (long)windowLengthSec*1000;
-        long timestamp = startTime+(long)timeIdx*windowLengthMilli;
-        return timestamp;
-    }
-
 }
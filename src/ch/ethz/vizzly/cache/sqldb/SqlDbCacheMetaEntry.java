@@ -18,6 +18,7 @@ package ch.ethz.vizzly.cache.sqldb;
 
 import java.util.Date;
 
+import ch.ethz.vizzly.cache.CacheEntryAccessStats;
 import ch.ethz.vizzly.datatype.VizzlySignal;
 
 /**
@@ -34,7 +35,7 @@ public class SqlDbCacheMetaEntry {
     public Long endTime = null;
     public Long firstPacketTimestamp = null;
     public Long lastPacketTimestamp = null;
-    public int hits = 0;
+    public CacheEntryAccessStats accessStats = new CacheEntryAccessStats();
     public Date lastUpdate = null;
     public int numElements = 0;
     public Boolean hasLocationData = false;;
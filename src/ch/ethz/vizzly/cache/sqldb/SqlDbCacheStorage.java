@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.sqldb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
+
+/**
+ * This class defines how the SQL cache lays out the aggregated values of its cache
+ * entries in the database. Meta data is managed by the SQL cache itself.
+ * @author Matthias Keller
+ *
+ */
+public abstract class SqlDbCacheStorage {
+
+    protected DataSource ds = null;
+
+    protected String tablePrefix = null;
+
+    public SqlDbCacheStorage(DataSource ds, String tablePrefix) {
+        this.ds = ds;
+        this.tablePrefix = tablePrefix;
+    }
+
+    /**
+     * Creates the tables that are shared by all cache entries, if not existing.
+     */
+    public abstract void initialize() throws SQLException;
+
+    public abstract void createEntry(int entryId, Boolean hasLocationData) throws SQLException;
+
+    public abstract void removeEntry(int entryId) throws SQLException;
+
+    /**
+     * Replaces all stored values of an entry starting from the time index of the first
+     * value given. Values must be ordered by time index, location arrays are null for
+     * entries without location data. The caller is responsible for committing the
+     * transaction of the given connection.
+     */
+    public abstract void replaceValues(Connection conn, int entryId, int[] timeIdx, double[] values, double[] locationLat, 
+            double[] locationLng, int numValues) throws SQLException;
+
+    /**
+     * Passes the values of an entry ordered by time index to the sink. Time index bounds are optional.
+     */
+    public abstract void readValues(Connection conn, int entryId, SqlDbCacheMetaEntry e, Integer timeIdxStart, 
+            Integer timeIdxEnd, int fetchSize, TimedValueSink sink) throws SQLException;
+
+    public abstract int countValues(Connection conn, int entryId) throws SQLException;
+
+    protected void executeSimpleQuery(String sql) throws SQLException {
+        Connection conn = ds.getConnection();
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate(sql);
+        stmt.close();
+        stmt = null;
+        conn.close();
+        conn = null;
+    }
+
+    protected int executeCountQuery(Connection conn, String sql, int entryId) throws SQLException {
+        int ret = 0;
+        PreparedStatement p = conn.prepareStatement(sql);
+        if(sql.indexOf('?') != -1) {
+            p.setInt(1, entryId);
+        }
+        ResultSet rs = p.executeQuery();
+        if(rs.next()) {
+            ret = rs.getInt(1);
+        }
+        p.close();
+        p = null;
+        return ret;
+    }
+
+    /*
+     * Streams the result of a statement that selects timeIdx, value and, for entries with location
+     * data, location_lat and location_lng into the sink. The statement is closed afterwards.
+     */
+    protected void readRows(PreparedStatement p, SqlDbCacheMetaEntry e, int fetchSize, TimedValueSink sink) throws SQLException {
+        long startTime = e.startTime;
+        long windowLengthMilli = (long)e.windowLengthSec*1000L;
+        try {
+            p.setFetchSize(fetchSize);
+            ResultSet rs = p.executeQuery();
+            if(!e.hasLocationData) {
+                while(rs.next()) {
+                    sink.add(startTime+rs.getInt(1)*windowLengthMilli, rs.getDouble(2));
+                }
+            } else {
+                while(rs.next()) {
+                    sink.add(startTime+rs.getInt(1)*windowLengthMilli, rs.getDouble(2), rs.getDouble(3), rs.getDouble(4));
+                }
+            }
+            rs.close();
+        } finally {
+            p.close();
+        }
+    }
+
+    /* Appends the optional time index bounds to a WHERE clause that already has a condition */
+    protected String getTimeIdxCondition(Integer timeIdxStart, Integer timeIdxEnd) {
+        String ret = "";
+        if(timeIdxStart != null) {
+            ret += " AND timeIdx >= ?";
+        }
+        if(timeIdxEnd != null) {
+            ret += " AND timeIdx <= ?";
+        }
+        return ret;
+    }
+
+    protected void setTimeIdxParameters(PreparedStatement p, int firstIdx, Integer timeIdxStart, Integer timeIdxEnd) 
+            throws SQLException {
+        if(timeIdxStart != null) {
+            p.setInt(firstIdx++, timeIdxStart);
+        }
+        if(timeIdxEnd != null) {
+            p.setInt(firstIdx, timeIdxEnd);
+        }
+    }
+
+}
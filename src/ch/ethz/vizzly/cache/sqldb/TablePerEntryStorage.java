@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.sqldb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
+
+/**
+ * This class implements the original storage layout of the SQL cache, in which every
+ * cache entry is stored in a table of its own.
+ * @author Matthias Keller
+ *
+ */
+public class TablePerEntryStorage extends SqlDbCacheStorage {
+
+    public static final String NAME = "tablePerEntry";
+
+    private static Logger log = Logger.getLogger(TablePerEntryStorage.class);
+
+    public TablePerEntryStorage(DataSource ds, String tablePrefix) {
+        super(ds, tablePrefix);
+    }
+
+    private String getTableName(int entryId) {
+        return tablePrefix + Integer.valueOf(entryId).toString();
+    }
+
+    public void initialize() throws SQLException {
+        // Tables are created per cache entry
+    }
+
+    public void createEntry(int entryId, Boolean hasLocationData) throws SQLException {
+        String locationColumns = "";
+        if(hasLocationData) {
+            locationColumns = "`location_lat` double DEFAULT NULL," +
+                    "`location_lng` double DEFAULT NULL,";
+        }
+        String tableName = getTableName(entryId);
+        String sql = "CREATE TABLE " + tableName + " (" +
+                "`id` INT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY," +
+                "`timeIdx` INT UNSIGNED NOT NULL," +
+                "`value` double NOT NULL," +
+                locationColumns +
+                "KEY `timeIdx` (`timeIdx`)" +
+                ") ENGINE=InnoDB DEFAULT CHARSET=latin1;";
+        executeSimpleQuery(sql);
+        log.info("Created new database table: " + tableName);
+    }
+
+    public void removeEntry(int entryId) throws SQLException {
+        executeSimpleQuery("DROP TABLE " + getTableName(entryId));
+        log.info("Removed database table: " + getTableName(entryId));
+    }
+
+    public void replaceValues(Connection conn, int entryId, int[] timeIdx, double[] values, double[] locationLat, 
+            double[] locationLng, int numValues) throws SQLException {
+        if(numValues == 0) {
+            return;
+        }
+        String tableName = getTableName(entryId);
+        Boolean hasLocationData = (locationLat != null);
+
+        // Remove old, overlapping data. Without a unique key on timeIdx, rows cannot be upserted.
+        PreparedStatement p = conn.prepareStatement("DELETE FROM " + tableName + " WHERE timeIdx >= ?");
+        p.setInt(1, timeIdx[0]);
+        p.executeUpdate();
+        p.close();
+
+        if(hasLocationData) {
+            p = conn.prepareStatement("INSERT INTO " + tableName + " (timeIdx, value, " +
+                    "location_lat, location_lng) VALUES (?, ?, ?, ?)");
+        } else {
+            p = conn.prepareStatement("INSERT INTO " + tableName + " (timeIdx, value) VALUES (?, ?)");
+        }
+
+        // Add new data
+        for(int i = 0; i < numValues; i++) {
+            p.setInt(1, timeIdx[i]);
+            p.setDouble(2, values[i]);
+            if(hasLocationData) {
+                p.setDouble(3, locationLat[i]);
+                p.setDouble(4, locationLng[i]);
+            }
+            p.addBatch();
+        }
+
+        p.executeBatch();
+        p.close();
+        p = null;
+    }
+
+    public void readValues(Connection conn, int entryId, SqlDbCacheMetaEntry e, Integer timeIdxStart, 
+            Integer timeIdxEnd, int fetchSize, TimedValueSink sink) throws SQLException {
+        readRows(prepareRead(conn, entryId, e.hasLocationData, timeIdxStart, timeIdxEnd), e, fetchSize, sink);
+    }
+
+    private PreparedStatement prepareRead(Connection conn, int entryId, Boolean hasLocationData, 
+            Integer timeIdxStart, Integer timeIdxEnd) throws SQLException {
+        String locationCols = (hasLocationData) ? ", location_lat, location_lng" : "";
+        String condition = getTimeIdxCondition(timeIdxStart, timeIdxEnd);
+        if(!condition.isEmpty()) {
+            condition = " WHERE" + condition.substring(" AND".length());
+        }
+        PreparedStatement p = conn.prepareStatement("SELECT timeIdx, value" + locationCols +
+                " FROM " + getTableName(entryId) + condition + " ORDER BY timeIdx ASC");
+        setTimeIdxParameters(p, 1, timeIdxStart, timeIdxEnd);
+        return p;
+    }
+
+    public int countValues(Connection conn, int entryId) throws SQLException {
+        return executeCountQuery(conn, "SELECT COUNT(*) FROM " + getTableName(entryId) + " WHERE id > 0", entryId);
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.tiered;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.cache.AbstractCache;
+import ch.ethz.vizzly.cache.memory.MemCache;
+import ch.ethz.vizzly.cache.sqldb.SqlDbCache;
+import ch.ethz.vizzly.datatype.CachedDataInfo;
+import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+import ch.ethz.vizzly.util.LocationAggregationGrid;
+
+/**
+ * This class implements a two-tier cache. Reads are served by a memory cache that is
+ * loaded lazily from a SQL cache on a miss. The SQL cache is the durable backing store
+ * and is written asynchronously through a write-behind queue.
+ * @author Matthias Keller
+ *
+ */
+public class TieredCache extends AbstractCache {
+
+    private static Logger log = Logger.getLogger(TieredCache.class);
+
+    private MemCache memCache = null;
+
+    private SqlDbCache sqlCache = null;
+
+    private WriteBehindQueue writeBehindQueue = null;
+
+    private final String description = "TieredCache";
+
+    public TieredCache(MemCache memCache, SqlDbCache sqlCache) {
+        this.memCache = memCache;
+        this.sqlCache = sqlCache;
+        dataBackend = DataBackend.MEMCACHE;
+        writeBehindQueue = new WriteBehindQueue(sqlCache);
+        writeBehindQueue.start();
+        isInitialized = memCache.isInitialized() && sqlCache.isInitialized();
+    }
+
+    public String getCacheDescription() {
+        return description;
+    }
+
+    /* The backing store knows the entry, possibly only through a pending write */
+    private Boolean isInBackingStore(VizzlySignal signal, int windowLengthSec) {
+        return sqlCache.isInCache(signal, windowLengthSec) || writeBehindQueue.hasPendingWrite(signal, windowLengthSec);
+    }
+
+    /* Brings the SQL cache up to date with respect to the given entry */
+    private Boolean flushPendingWrite(VizzlySignal signal, int windowLengthSec) {
+        try {
+            return writeBehindQueue.flush(signal, windowLengthSec);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void updateCacheEntry(VizzlySignal signal, int windowLengthSec, Vector<TimedLocationValue> r) {
+        // Incremental updates are only applied to entries that are resident in memory, or
+        // to entirely new entries. Other entries are loaded from the SQL cache on demand.
+        if(memCache.isInCache(signal, windowLengthSec) || !isInBackingStore(signal, windowLengthSec)) {
+            memCache.updateCacheEntry(signal, windowLengthSec, r);
+        }
+        writeBehindQueue.enqueue(signal, windowLengthSec, r);
+    }
+
+    public Vector<TimedLocationValue> getSignalData(VizzlySignal signal, int windowLengthSec, 
+            Long timeFilterStart, Long timeFilterEnd, Boolean updateStats) {
+        Vector<TimedLocationValue> ret = memCache.getSignalData(signal, windowLengthSec, 
+                timeFilterStart, timeFilterEnd, updateStats);
+        if(ret != null) {
+            if(updateStats) {
+                recordCacheHit();
+            }
+            return ret;
+        }
+        if(!isInBackingStore(signal, windowLengthSec) || !flushPendingWrite(signal, windowLengthSec)) {
+            if(updateStats) {
+                recordCacheMiss();
+            }
+            return null;
+        }
+        if(updateStats && wouldBeAdmitted(signal, windowLengthSec)) {
+            // Load complete entry into memory, it is likely to be requested again
+            Vector<TimedLocationValue> all = sqlCache.getSignalData(signal, windowLengthSec, null, null, false);
+            if(all != null) {
+                log.debug("Loading " + WriteBehindQueue.getKey(signal, windowLengthSec) + " into memory");
+                memCache.loadCacheEntry(signal, windowLengthSec, all, 
+                        sqlCache.getFirstPacketTimestamp(signal, windowLengthSec), 
+                        sqlCache.getLastPacketTimestamp(signal, windowLengthSec), 
+                        sqlCache.getLastUpdate(signal, windowLengthSec));
+                ret = memCache.getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, false);
+            }
+        }
+        if(ret == null) {
+            // Either not loaded or not admitted to the memory cache
+            ret = sqlCache.getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, false);
+        }
+        if(updateStats) {
+            if(ret != null) {
+                recordCacheHit();
+            } else {
+                recordCacheMiss();
+            }
+        }
+        return ret;
+    }
+
+    /* Entries that the memory cache would not admit are read from the SQL cache for the requested range only */
+    private Boolean wouldBeAdmitted(VizzlySignal signal, int windowLengthSec) {
+        Long startTime = sqlCache.getStartTime(signal, windowLengthSec);
+        Long endTime = sqlCache.getEndTime(signal, windowLengthSec);
+        Integer numElements = sqlCache.getNumElements(signal, windowLengthSec);
+        if(startTime == null || endTime == null || numElements == null) {
+            return false;
+        }
+        return memCache.wouldAdmit(signal, windowLengthSec, startTime, endTime, numElements);
+    }
+
+    public Boolean getSignalData(VizzlySignal signal, int windowLengthSec, Long timeFilterStart, Long timeFilterEnd, 
+            Boolean updateStats, TimedValueSink sink) {
+        if(updateStats || memCache.isInCache(signal, windowLengthSec)) {
+            // User requests may load the entry into memory
+            return super.getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, updateStats, sink);
+        }
+        if(!isInBackingStore(signal, windowLengthSec) || !flushPendingWrite(signal, windowLengthSec)) {
+            return false;
+        }
+        return sqlCache.getSignalData(signal, windowLengthSec, timeFilterStart, timeFilterEnd, false, sink);
+    }
+
+    /* Tiles are only kept for entries resident in memory */
+    public void updateTiles(VizzlySignal signal, int windowLengthSec, long firstTimestamp) {
+        memCache.updateTiles(signal, windowLengthSec, firstTimestamp);
+    }
+
+    public Boolean aggregateTiles(VizzlySignal signal, int windowLengthSec, long timeFilterStart, 
+            long timeFilterEnd, LocationAggregationGrid grid) {
+        return memCache.aggregateTiles(signal, windowLengthSec, timeFilterStart, timeFilterEnd, grid);
+    }
+
+    public Vector<CachedDataInfo> getCachedDataInfo() {
+        // Entries resident in memory are more up to date than the persisted ones
+        HashMap<String, CachedDataInfo> info = new HashMap<String, CachedDataInfo>();
+        for(CachedDataInfo i : sqlCache.getCachedDataInfo()) {
+            info.put(WriteBehindQueue.getKey(i.signal, i.windowLength), i);
+        }
+        for(CachedDataInfo i : memCache.getCachedDataInfo()) {
+            info.put(WriteBehindQueue.getKey(i.signal, i.windowLength), i);
+        }
+        return new Vector<CachedDataInfo>(info.values());
+    }
+
+    public Vector<VizzlySignal> getSignals() {
+        return sqlCache.getSignals();
+    }
+
+    public Boolean isInCache(VizzlySignal signal, int windowLengthSec) {
+        return memCache.isInCache(signal, windowLengthSec) || isInBackingStore(signal, windowLengthSec);
+    }
+
+    public Long getStartTime(VizzlySignal signal, int windowLengthSec) {
+        if(memCache.isInCache(signal, windowLengthSec)) {
+            return memCache.getStartTime(signal, windowLengthSec);
+        }
+        return sqlCache.getStartTime(signal, windowLengthSec);
+    }
+
+    public Long getEndTime(VizzlySignal signal, int windowLengthSec) {
+        if(memCache.isInCache(signal, windowLengthSec)) {
+            return memCache.getEndTime(signal, windowLengthSec);
+        }
+        flushPendingWrite(signal, windowLengthSec);
+        return sqlCache.getEndTime(signal, windowLengthSec);
+    }
+
+    public Long getFirstPacketTimestamp(VizzlySignal signal, int windowLengthSec) {
+        if(memCache.isInCache(signal, windowLengthSec)) {
+            return memCache.getFirstPacketTimestamp(signal, windowLengthSec);
+        }
+        return sqlCache.getFirstPacketTimestamp(signal, windowLengthSec);
+    }
+
+    public Long getLastPacketTimestamp(VizzlySignal signal, int windowLengthSec) {
+        if(memCache.isInCache(signal, windowLengthSec)) {
+            return memCache.getLastPacketTimestamp(signal, windowLengthSec);
+        }
+        flushPendingWrite(signal, windowLengthSec);
+        return sqlCache.getLastPacketTimestamp(signal, windowLengthSec);
+    }
+
+    public Date getLastUpdate(VizzlySignal signal, int windowLengthSec) {
+        if(memCache.isInCache(signal, windowLengthSec)) {
+            return memCache.getLastUpdate(signal, windowLengthSec);
+        }
+        flushPendingWrite(signal, windowLengthSec);
+        return sqlCache.getLastUpdate(signal, windowLengthSec);
+    }
+
+    public void addSignal(VizzlySignal signal) {
+        sqlCache.addSignal(signal);
+        memCache.addSignal(signal);
+    }
+
+    public Boolean removeSignal(VizzlySignal signal) {
+        try {
+            writeBehindQueue.discard(signal);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        Boolean ret = memCache.removeSignal(signal);
+        return sqlCache.removeSignal(signal) && ret;
+    }
+
+    public long getCacheSize() {
+        return sqlCache.getCacheSize();
+    }
+
+    public int getNumberOfSeenSignals() {
+        return sqlCache.getNumberOfSeenSignals();
+    }
+
+    public int getNumberOfCacheEntries() {
+        return sqlCache.getNumberOfCacheEntries();
+    }
+
+    public long getNumberOfEvictions() {
+        return memCache.getNumberOfEvictions();
+    }
+
+    public int getNumberOfPendingWrites() {
+        return writeBehindQueue.getNumberOfPendingWrites();
+    }
+
+    public void shutdown() {
+        writeBehindQueue.shutdown();
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.tiered;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.cache.sqldb.SqlDbCache;
+import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+import ch.ethz.vizzly.util.TimestampTruncateUtil;
+
+/**
+ * This class implements a write-behind queue that asynchronously applies cache updates
+ * to a persistent cache. Updates of the same cache entry that have not been written yet
+ * are coalesced into a single update, hence the queue never holds more than one pending
+ * write per cache entry. Writes of the same entry are never executed concurrently. A write
+ * that fails is merged back into the queue and retried later, so that the persistent cache
+ * does not miss the data while the memory cache already moved on.
+ * @author Matthias Keller
+ *
+ */
+public class WriteBehindQueue extends Thread {
+
+    private static Logger log = Logger.getLogger(WriteBehindQueue.class);
+
+    private static class PendingWrite {
+        private VizzlySignal signal;
+        private int windowLengthSec;
+        private Vector<TimedLocationValue> data;
+    }
+
+    /* Pause after a failed write before the next write is attempted */
+    private static final long RETRY_DELAY_MSEC = 10000L;
+
+    private final SqlDbCache target;
+
+    /* Pending writes in order of their first enqueueing */
+    private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+
+    /* Keys of entries that are currently being written */
+    private final HashSet<String> inFlight = new HashSet<String>();
+
+    private volatile Boolean running = true;
+
+    public WriteBehindQueue(SqlDbCache target) {
+        this.target = target;
+        setName("Cache Write-Behind");
+        setDaemon(true);
+    }
+
+    public static String getKey(VizzlySignal signal, int windowLengthSec) {
+        return signal.getUniqueIdentifier() + '_' + Integer.valueOf(windowLengthSec).toString();
+    }
+
+    public void enqueue(VizzlySignal signal, int windowLengthSec, Vector<TimedLocationValue> data) {
+        if(data.size() == 0) {
+            return;
+        }
+        String key = getKey(signal, windowLengthSec);
+        synchronized(pending) {
+            PendingWrite w = pending.get(key);
+            if(w == null) {
+                w = new PendingWrite();
+                w.signal = signal;
+                w.windowLengthSec = windowLengthSec;
+                w.data = new Vector<TimedLocationValue>(data);
+                pending.put(key, w);
+            } else {
+                w.data = merge(w.data, data, windowLengthSec);
+            }
+            pending.notifyAll();
+        }
+    }
+
+    /*
+     * A cache update replaces all data starting from the window of its first element. Hence,
+     * two updates are merged by keeping the older data up to that window boundary.
+     */
+    private Vector<TimedLocationValue> merge(Vector<TimedLocationValue> older, Vector<TimedLocationValue> newer, 
+            int windowLengthSec) {
+        long boundary = TimestampTruncateUtil.truncate(newer.firstElement().timestamp, windowLengthSec*1000);
+        Vector<TimedLocationValue> ret = new Vector<TimedLocationValue>(older.size()+newer.size());
+        for(TimedLocationValue v : older) {
+            if(v.timestamp >= boundary) {
+                break;
+            }
+            ret.add(v);
+        }
+        ret.addAll(newer);
+        return ret;
+    }
+
+    public Boolean hasPendingWrite(VizzlySignal signal, int windowLengthSec) {
+        String key = getKey(signal, windowLengthSec);
+        synchronized(pending) {
+            return pending.containsKey(key) || inFlight.contains(key);
+        }
+    }
+
+    public int getNumberOfPendingWrites() {
+        synchronized(pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Writes a pending update of the given entry in the calling thread and waits until
+     * an ongoing write of the entry has finished. Afterwards the persistent cache is up to date.
+     * @return False if the write failed, it stays queued in that case
+     */
+    public Boolean flush(VizzlySignal signal, int windowLengthSec) throws InterruptedException {
+        String key = getKey(signal, windowLengthSec);
+        PendingWrite w = null;
+        synchronized(pending) {
+            while(inFlight.contains(key)) {
+                pending.wait();
+            }
+            w = pending.remove(key);
+            if(w == null) {
+                return true;
+            }
+            inFlight.add(key);
+        }
+        return write(key, w, true);
+    }
+
+    /**
+     * Drops all pending writes of a signal and waits for ongoing writes of the signal to finish.
+     */
+    public void discard(VizzlySignal signal) throws InterruptedException {
+        synchronized(pending) {
+            removePendingWrites(signal);
+            String prefix = signal.getUniqueIdentifier() + '_';
+            while(true) {
+                Boolean isWriting = false;
+                for(String k : inFlight) {
+                    if(k.startsWith(prefix)) {
+                        isWriting = true;
+                    }
+                }
+                if(!isWriting) {
+                    break;
+                }
+                pending.wait();
+            }
+            // Failed writes of the signal may have been queued again in the meantime
+            removePendingWrites(signal);
+        }
+    }
+
+    /* Must be called while holding the lock */
+    private void removePendingWrites(VizzlySignal signal) {
+        Iterator<PendingWrite> it = pending.values().iterator();
+        while(it.hasNext()) {
+            if(it.next().signal.equals(signal)) {
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * A failed write is queued again if requested. If the entry has been updated in the
+     * meantime, the failed data is merged with the newer update.
+     */
+    private Boolean write(String key, PendingWrite w, Boolean requeueOnFailure) {
+        Boolean success = false;
+        try {
+            target.writeCacheEntry(w.signal, w.windowLengthSec, w.data);
+            success = true;
+        } catch(SQLException e) {
+            log.error("Write-behind of " + key + " failed.", e);
+        } catch(RuntimeException e) {
+            log.error("Write-behind of " + key + " failed.", e);
+        } finally {
+            synchronized(pending) {
+                inFlight.remove(key);
+                if(!success && requeueOnFailure) {
+                    PendingWrite newer = pending.get(key);
+                    if(newer != null) {
+                        newer.data = merge(w.data, newer.data, w.windowLengthSec);
+                    } else {
+                        pending.put(key, w);
+                    }
+                }
+                pending.notifyAll();
+            }
+        }
+        return success;
+    }
+
+    /*
+     * Returns the oldest pending write whose entry is not being written currently.
+     * Must be called while holding the lock.
+     */
+    private String nextWritableKey() {
+        for(String k : pending.keySet()) {
+            if(!inFlight.contains(k)) {
+                return k;
+            }
+        }
+        return null;
+    }
+
+    public void run() {
+        while(running) {
+            String key = null;
+            PendingWrite w = null;
+            try {
+                synchronized(pending) {
+                    while(running && (key = nextWritableKey()) == null) {
+                        pending.wait();
+                    }
+                    if(!running) {
+                        break;
+                    }
+                    w = pending.remove(key);
+                    inFlight.add(key);
+                }
+            } catch(InterruptedException e) {
+                break;
+            }
+            if(!write(key, w, true)) {
+                // Do not hammer an unavailable database, shutdown() still ends the pause
+                long retryTime = System.currentTimeMillis()+RETRY_DELAY_MSEC;
+                try {
+                    synchronized(pending) {
+                        long now = 0L;
+                        while(running && (now = System.currentTimeMillis()) < retryTime) {
+                            pending.wait(retryTime-now);
+                        }
+                    }
+                } catch(InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the background thread and writes all remaining updates.
+     */
+    public void shutdown() {
+        synchronized(pending) {
+            running = false;
+            pending.notifyAll();
+        }
+        try {
+            join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while(true) {
+            String key = null;
+            PendingWrite w = null;
+            synchronized(pending) {
+                key = nextWritableKey();
+                if(key == null) {
+                    break;
+                }
+                w = pending.remove(key);
+                inFlight.add(key);
+            }
+            if(!write(key, w, false)) {
+                log.error("Dropping write-behind of " + key + " during shutdown.");
+            }
+        }
+        log.info("Write-behind queue flushed.");
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.cache.tiles;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ch.ethz.vizzly.datatype.readings.LocationBounds;
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
+import ch.ethz.vizzly.util.LocationAggregationGrid;
+
+/**
+ * This class implements a pyramid of pre-aggregated spatial tiles of a single signal.
+ * For each day and each of a few zoom levels, the sum and number of values as well as
+ * the sums of their coordinates are kept per map tile (as used by web maps, identified
+ * by their quadkey coordinates). A map request over a long time range is answered by
+ * merging the tiles of the requested days into the aggregation grid instead of looking
+ * at every single value. The tiles are kept together with the cache entry they have been
+ * built from, their estimated size counts towards the memory budget of the cache.
+ * @author Matthias Keller
+ *
+ */
+public class SpatialTilePyramid {
+
+    /* Zoom levels at which tiles are kept, each level is 4 times finer than the previous one */
+    public static final int[] LEVELS = { 5, 7, 9, 11, 13, 15, 17 };
+
+    public static final long BUCKET_LENGTH_MILLI = 86400000L;
+
+    /* Tiles must be this much smaller than the cells of the grid so that they can be merged. Tiles
+     * crossing the border of the map area or of a grid cell are added as a whole, hence this bounds
+     * the share of a cell that may be attributed to a neighboring cell or to the outside. */
+    private static final int MIN_CELLS_PER_GRID_CELL = 8;
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /* Estimated size of a cell including its key and hash map entry */
+    private static final long BYTES_PER_CELL = 112L;
+
+    private static class Cell {
+        private int numSamples = 0;
+        private double valueSum = 0.0;
+        private double latSum = 0.0;
+        private double lngSum = 0.0;
+    }
+
+    private static class DayBucket {
+        /* Cells per level, indexed by their tile coordinates */
+        private final ArrayList<HashMap<Long, Cell>> levels = new ArrayList<HashMap<Long, Cell>>(LEVELS.length);
+
+        /* Number of cells over all levels */
+        private int numCells = 0;
+
+        private DayBucket() {
+            for(int i = 0; i < LEVELS.length; i++) {
+                levels.add(new HashMap<Long, Cell>());
+            }
+        }
+
+        private void addValue(double latitude, double longitude, double value) {
+            for(int i = 0; i < LEVELS.length; i++) {
+                Long key = getKey(getTileX(longitude, LEVELS[i]), getTileY(latitude, LEVELS[i]));
+                Cell c = levels.get(i).get(key);
+                if(c == null) {
+                    c = new Cell();
+                    levels.get(i).put(key, c);
+                    numCells++;
+                }
+                c.numSamples++;
+                c.valueSum += value;
+                c.latSum += latitude;
+                c.lngSum += longitude;
+            }
+        }
+    }
+
+    /* Buckets by their start time */
+    private final TreeMap<Long, DayBucket> buckets = new TreeMap<Long, DayBucket>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /* Number of cells over all buckets */
+    private volatile long numCells = 0L;
+
+    /**
+     * Replaces the tiles of all days starting with the day of the given timestamp by
+     * the values of the cursor.
+     * @param timeFilterStart Start of the first day, as returned by getBucketStart()
+     */
+    public void update(long timeFilterStart, TimedValueCursor data) {
+        TreeMap<Long, DayBucket> newBuckets = new TreeMap<Long, DayBucket>();
+        long curBucketStart = -1L;
+        DayBucket curBucket = null;
+        while(data.next()) {
+            if(!data.hasLocation() || data.getTimestamp() < timeFilterStart) {
+                continue;
+            }
+            long bucketStart = getBucketStart(data.getTimestamp());
+            if(curBucket == null || bucketStart != curBucketStart) {
+                curBucket = newBuckets.get(bucketStart);
+                if(curBucket == null) {
+                    curBucket = new DayBucket();
+                    newBuckets.put(bucketStart, curBucket);
+                }
+                curBucketStart = bucketStart;
+            }
+            curBucket.addValue(data.getLatitude(), data.getLongitude(), data.getValue());
+        }
+        lock.writeLock().lock();
+        try {
+            Map<Long, DayBucket> replaced = buckets.tailMap(timeFilterStart, true);
+            long n = numCells;
+            for(DayBucket d : replaced.values()) {
+                n -= d.numCells;
+            }
+            for(DayBucket d : newBuckets.values()) {
+                n += d.numCells;
+            }
+            replaced.clear();
+            buckets.putAll(newBuckets);
+            numCells = n;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the tiles of all days within the given range to the grid. The coarsest level with
+     * at least MIN_CELLS_PER_GRID_CELL tiles per grid cell is used, the values of a tile are
+     * added to the grid cell that contains their mean location. A map area that crosses
+     * the dateline is looked up as two ranges of tiles east and west of it.
+     * @param timeFilterStart Start of the first day, as returned by getBucketStart()
+     * @param timeFilterEnd Start of the day after the last day
+     * @return False if no level is fine enough for the grid, nothing is added in that case
+     */
+    public Boolean aggregate(long timeFilterStart, long timeFilterEnd, LocationAggregationGrid grid) {
+        int levelIdx = getLevelIdx(grid.getCellLongitudeSpan());
+        if(levelIdx == -1) {
+            return false;
+        }
+        int level = LEVELS[levelIdx];
+        LocationBounds b = grid.getBounds();
+        int[] x0 = null;
+        int[] x1 = null;
+        if(b.crossesDateline()) {
+            x0 = new int[] { getTileX(b.lngSW, level), 0 };
+            x1 = new int[] { (1 << level)-1, getTileX(b.lngNE, level) };
+        } else {
+            x0 = new int[] { getTileX(b.lngSW, level) };
+            x1 = new int[] { getTileX(b.lngNE, level) };
+        }
+        int y0 = getTileY(b.latNE, level);
+        int y1 = getTileY(b.latSW, level);
+        long numTiles = 0L;
+        for(int i = 0; i < x0.length; i++) {
+            numTiles += (long)(x1[i]-x0[i]+1)*(long)(y1-y0+1);
+        }
+        lock.readLock().lock();
+        try {
+            for(DayBucket d : buckets.subMap(timeFilterStart, true, timeFilterEnd, false).values()) {
+                HashMap<Long, Cell> cells = d.levels.get(levelIdx);
+                if(numTiles < cells.size()) {
+                    // Small map area, look up the tiles of the area
+                    for(int i = 0; i < x0.length; i++) {
+                        for(int x = x0[i]; x <= x1[i]; x++) {
+                            for(int y = y0; y <= y1; y++) {
+                                addToGrid(cells.get(getKey(x, y)), grid);
+                            }
+                        }
+                    }
+                } else {
+                    for(Map.Entry<Long, Cell> e : cells.entrySet()) {
+                        int x = (int)(e.getKey() >>> 32);
+                        int y = (int)(e.getKey() & 0xffffffffL);
+                        if(y < y0 || y > y1) {
+                            continue;
+                        }
+                        for(int i = 0; i < x0.length; i++) {
+                            if(x >= x0[i] && x <= x1[i]) {
+                                addToGrid(e.getValue(), grid);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return true;
+    }
+
+    private static void addToGrid(Cell c, LocationAggregationGrid grid) {
+        if(c == null) {
+            return;
+        }
+        grid.addAggregate(c.latSum/c.numSamples, c.lngSum/c.numSamples, c.valueSum, c.latSum, c.lngSum, c.numSamples);
+    }
+
+    public int getNumberOfBuckets() {
+        lock.readLock().lock();
+        try {
+            return buckets.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getMemoryFootprint() {
+        return BYTES_PER_CELL*numCells;
+    }
+
+    public static long getBucketStart(long timestamp) {
+        return Math.floorDiv(timestamp, BUCKET_LENGTH_MILLI)*BUCKET_LENGTH_MILLI;
+    }
+
+    /* Index of the coarsest level whose tiles are small enough, -1 if there is none */
+    private static int getLevelIdx(double gridCellLngSpan) {
+        for(int i = 0; i < LEVELS.length; i++) {
+            if(360.0/(double)(1 << LEVELS[i]) <= gridCellLngSpan/MIN_CELLS_PER_GRID_CELL) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getTileX(double longitude, int level) {
+        int n = 1 << level;
+        int x = (int)Math.floor((longitude+180.0)/360.0*n);
+        return Math.max(0, Math.min(n-1, x));
+    }
+
+    private static int getTileY(double latitude, int level) {
+        int n = 1 << level;
+        double latRad = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        int y = (int)Math.floor((1.0-Math.log(Math.tan(latRad)+1.0/Math.cos(latRad))/Math.PI)/2.0*n);
+        return Math.max(0, Math.min(n-1, y));
+    }
+
+    private static Long getKey(int x, int y) {
+        return ((long)x << 32) | (long)y;
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * This package contains pre-aggregated spatial tiles that are used for answering map requests.
+ */
+package ch.ethz.vizzly.cache.tiles;
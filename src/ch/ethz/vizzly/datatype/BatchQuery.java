@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype;
+
+/**
+ * This class implements a data type that represents a single query of a batch request.
+ * The fields correspond to the HTTP request parameters of a single request.
+ * @author Matthias Keller
+ *
+ */
+public class BatchQuery {
+
+    public static final String TYPE_TIMED = "timed";
+
+    public static final String TYPE_AGGMAP = "aggMap";
+
+    /**
+     * This class implements a data type that represents the response to a single query
+     * of a batch request.
+     * @author Matthias Keller
+     *
+     */
+    public static class Result {
+        public String id;
+        public String csv;
+
+        public Result(String id, String csv) {
+            this.id = id;
+            this.csv = csv;
+        }
+    }
+
+    public String id;
+    public String type; /** either 'timed' or 'aggMap' */
+    public VizzlySignal[] signals;
+    public Long timeStart; /** optional */
+    public Long timeEnd; /** optional */
+    public String mapBounds; /** optional */
+    public Integer canvasWidth; /** optional */
+    public Integer canvasHeight; /** optional */
+    public Boolean forceLoadUnaggregated; /** optional */
+    public String downsample; /** optional */
+    public String since; /** optional, see DeltaCursor */
+
+}
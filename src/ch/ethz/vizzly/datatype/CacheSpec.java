@@ -30,6 +30,29 @@ public class CacheSpec implements Comparable<CacheSpec> {
     
     public static final String CACHE_TYPE_SQL = "sqlcache";
     
+    public static final String CACHE_TYPE_TIERED = "tieredcache";
+    
+    public static final String CACHE_TYPE_FILE = "filecache";
+    
+    /* Optional parameters of the memory cache */
+    public static final String PARAM_MAX_SIZE_MB = "maxSizeMb";
+    
+    public static final String PARAM_EVICTION_POLICY = "evictionPolicy";
+    
+    /* Optional parameters of the SQL cache */
+    public static final String PARAM_LAYOUT = "layout";
+    
+    public static final String PARAM_PARTITIONS = "partitions";
+    
+    public static final String PARAM_FETCH_SIZE = "fetchSize";
+    
+    public static final String PARAM_CHUNK_WINDOWS = "chunkWindows";
+    
+    /* Optional parameters of the file cache */
+    public static final String PARAM_DIRECTORY = "directory";
+    
+    public static final String PARAM_SEGMENT_SIZE_MB = "segmentSizeMb";
+    
     public String type;
     
     public int windowLength;
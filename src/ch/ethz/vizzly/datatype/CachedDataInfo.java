@@ -32,9 +32,11 @@ public class CachedDataInfo {
     public Boolean hasLocationData;
     public Date lastUpdate;
     public Date lastPacketTimestamp;
-    public int hits;
+    public long hits;
+    public double accessScore;
     
-    public CachedDataInfo(VizzlySignal signal, int windowLength, int numElements, Boolean hasLocationData, Date lastUpdate, Date lastPacketTimestamp, int hits) {
+    public CachedDataInfo(VizzlySignal signal, int windowLength, int numElements, Boolean hasLocationData, Date lastUpdate, Date lastPacketTimestamp, 
+            long hits, double accessScore) {
         this.signal = signal;
         this.windowLength = windowLength;
         this.numElements = numElements;
@@ -42,6 +44,7 @@ public class CachedDataInfo {
         this.lastUpdate = lastUpdate;
         this.lastPacketTimestamp = lastPacketTimestamp;
         this.hits = hits;
+        this.accessScore = accessScore;
     }
     
     public static Comparator<CachedDataInfo> getComparator(SortParameter... sortParameters) {
@@ -52,7 +55,8 @@ public class CachedDataInfo {
         NAME_ASCENDING, NAME_DESCENDING, WINDOW_LENGTH_ASCENDING, WINDOW_LENGTH_DESCENDING,
         NUM_ELEMENTS_ASCENDING, NUM_ELEMENTS_DESCENDING, HAS_LOCATION_DATA_ASCENDING, 
         HAS_LOCATION_DATA_DESCENDING, LAST_UPDATE_ASCENDING, LAST_UPDATE_DESCENDING, 
-        LAST_PACKET_TIMESTAMP_ASCENDING, LAST_PACKET_TIMESTAMP_DESCENDING, HITS_ASCENDING, HITS_DESCENDING
+        LAST_PACKET_TIMESTAMP_ASCENDING, LAST_PACKET_TIMESTAMP_DESCENDING, HITS_ASCENDING, HITS_DESCENDING,
+        ACCESS_SCORE_ASCENDING, ACCESS_SCORE_DESCENDING
     }
    
     private static class CachedDataInfoComparator implements Comparator<CachedDataInfo> {
@@ -143,11 +147,19 @@ public class CachedDataInfo {
                     if (comparison != 0) return comparison;
                     break;
                 case HITS_ASCENDING:
-                    comparison = o1.hits - o2.hits;
+                    comparison = Long.compare(o1.hits, o2.hits);
                     if (comparison != 0) return comparison;
                     break;
                 case HITS_DESCENDING:
-                    comparison = o2.hits - o1.hits;
+                    comparison = Long.compare(o2.hits, o1.hits);
+                    if (comparison != 0) return comparison;
+                    break;
+                case ACCESS_SCORE_ASCENDING:
+                    comparison = Double.compare(o1.accessScore, o2.accessScore);
+                    if (comparison != 0) return comparison;
+                    break;
+                case ACCESS_SCORE_DESCENDING:
+                    comparison = Double.compare(o2.accessScore, o1.accessScore);
                     if (comparison != 0) return comparison;
                     break;
                 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype;
+
+/**
+ * This class implements the cursor that is returned with responses to delta requests of
+ * timed data. Besides the timestamp up to which the client holds the data, it stores the
+ * window length and which signals have been loaded unaggregated. Later delta requests 
+ * return the data in the same form, even if the query planner would decide differently 
+ * by then. Cursors that only consist of a timestamp are accepted as well.
+ * @author Matthias Keller
+ *
+ */
+public class DeltaCursor {
+
+    public long timestamp;
+
+    /* Aggregation window length of the previous response, 0 if not known */
+    public int windowLengthSec = 0;
+
+    /* Signals whose values have been returned unaggregated, null if not known */
+    public boolean[] unaggregated = null;
+
+    public DeltaCursor(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public DeltaCursor(long timestamp, int windowLengthSec, boolean[] unaggregated) {
+        this.timestamp = timestamp;
+        this.windowLengthSec = windowLengthSec;
+        this.unaggregated = unaggregated;
+    }
+
+    /**
+     * Returns true if the form of the previous response is known for the given number of signals.
+     */
+    public Boolean hasLayout(int numSignals) {
+        return windowLengthSec > 0 && unaggregated != null && unaggregated.length == numSignals;
+    }
+
+    /**
+     * Parses a cursor of the form timestamp[:windowLengthSec:flags], with one flag per
+     * signal that is 1 for unaggregated values and 0 otherwise.
+     */
+    public static DeltaCursor fromString(String cursor) throws VizzlyException {
+        String[] parts = cursor.split(":");
+        try {
+            if(parts.length == 1) {
+                return new DeltaCursor(Long.parseLong(parts[0]));
+            }
+            if(parts.length != 3) {
+                throw new VizzlyException("Invalid cursor.");
+            }
+            int windowLengthSec = Integer.parseInt(parts[1]);
+            boolean[] unaggregated = new boolean[parts[2].length()];
+            for(int i = 0; i < unaggregated.length; i++) {
+                char c = parts[2].charAt(i);
+                if(c != '0' && c != '1') {
+                    throw new VizzlyException("Invalid cursor.");
+                }
+                unaggregated[i] = (c == '1');
+            }
+            return new DeltaCursor(Long.parseLong(parts[0]), windowLengthSec, unaggregated);
+        } catch(NumberFormatException e) {
+            throw new VizzlyException("Invalid cursor.");
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(timestamp);
+        if(unaggregated != null) {
+            sb.append(':').append(windowLengthSec).append(':');
+            for(boolean u : unaggregated) {
+                sb.append(u ? '1' : '0');
+            }
+        }
+        return sb.toString();
+    }
+
+}
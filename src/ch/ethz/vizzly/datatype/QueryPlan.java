@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype;
+
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+
+/**
+ * This class implements a data type that describes how the data of a signal is loaded
+ * for a request: either directly from the data source or from one of the caches at a
+ * given level of detail.
+ * @author Matthias Keller
+ *
+ */
+public class QueryPlan {
+
+    /* Index of the cache in the cache configuration, -1 for direct access to the data source */
+    public final int cacheIdx;
+
+    /* Aggregation window length of the returned data, 0 for unaggregated data */
+    public final int windowLengthSec;
+
+    public final DataBackend dataBackend;
+
+    public final double estimatedNumRows;
+
+    /* Estimated time needed for loading the data in millisec */
+    public final double estimatedCost;
+
+    public QueryPlan(int cacheIdx, int windowLengthSec, DataBackend dataBackend, double estimatedNumRows, 
+            double estimatedCost) {
+        this.cacheIdx = cacheIdx;
+        this.windowLengthSec = windowLengthSec;
+        this.dataBackend = dataBackend;
+        this.estimatedNumRows = estimatedNumRows;
+        this.estimatedCost = estimatedCost;
+    }
+
+    public Boolean isDirectAccess() {
+        return cacheIdx == -1;
+    }
+
+    public String toString() {
+        return dataBackend + " (cache " + cacheIdx + ", " + windowLengthSec + " sec, " 
+                + Math.round(estimatedNumRows) + " rows, " + Math.round(estimatedCost) + " ms)";
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class assigns a dense integer id to each signal that is known to the caches. Ids are
+ * assigned when a signal is added to the caches and released when it is removed, released
+ * ids are reused. The registration is stored in the signal object itself, later lookups of
+ * the same object neither hash nor compare the fields of the signal. Looking up a signal
+ * that is not registered does not assign an id.
+ * @author Matthias Keller
+ *
+ */
+public class SignalRegistry {
+
+    /**
+     * Singleton
+     */
+    private static final SignalRegistry instance = new SignalRegistry();
+
+    /**
+     * Callback for data structures indexed by signal ids, invoked before a released id is reused.
+     */
+    public interface ReleaseListener {
+        public void signalReleased(int id);
+    }
+
+    /**
+     * Registration of a signal. A new instance is created whenever an id is assigned, hence
+     * signal objects that still refer to a released registration are detected.
+     */
+    static class Registration {
+        final int id;
+        volatile boolean released = false;
+
+        private Registration(int id) {
+            this.id = id;
+        }
+    }
+
+    private final ConcurrentHashMap<VizzlySignal, Registration> registrations = 
+            new ConcurrentHashMap<VizzlySignal, Registration>();
+
+    /* Registered signals indexed by id, null for ids that are free */
+    private final Vector<VizzlySignal> signals = new Vector<VizzlySignal>();
+
+    private final Vector<Integer> freeIds = new Vector<Integer>();
+
+    private final Set<ReleaseListener> releaseListeners = 
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<ReleaseListener, Boolean>()));
+
+    /**
+     * Cache entry keys of a signal for all window lengths that have been requested. Instances
+     * are immutable and replaced when a window length is added.
+     */
+    private static class EntryKeys {
+        private final int[] windowLengths;
+        private final String[] keys;
+
+        private EntryKeys(int[] windowLengths, String[] keys) {
+            this.windowLengths = windowLengths;
+            this.keys = keys;
+        }
+    }
+
+    private static final EntryKeys NO_ENTRY_KEYS = new EntryKeys(new int[0], new String[0]);
+
+    private final Vector<EntryKeys> entryKeys = new Vector<EntryKeys>();
+
+    private SignalRegistry() {}
+
+    public static SignalRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Listeners are only weakly referenced.
+     */
+    public void addReleaseListener(ReleaseListener l) {
+        releaseListeners.add(l);
+    }
+
+    /**
+     * Returns the id of the signal, a new id is assigned if the signal is not yet registered.
+     */
+    public int register(VizzlySignal signal) {
+        int id = getId(signal);
+        if(id >= 0) {
+            return id;
+        }
+        synchronized(this) {
+            Registration r = registrations.get(signal);
+            if(r == null) {
+                if(freeIds.isEmpty()) {
+                    r = new Registration(signals.size());
+                    signals.add(signal);
+                    entryKeys.add(NO_ENTRY_KEYS);
+                } else {
+                    r = new Registration(freeIds.remove(freeIds.size()-1));
+                    signals.set(r.id, signal);
+                    entryKeys.set(r.id, NO_ENTRY_KEYS);
+                }
+                registrations.put(signal, r);
+            }
+            signal.registration = r;
+            return r.id;
+        }
+    }
+
+    /**
+     * Returns the id of the signal, or -1 if the signal is not registered.
+     */
+    public int getId(VizzlySignal signal) {
+        Registration r = signal.registration;
+        if(r != null && !r.released) {
+            return r.id;
+        }
+        r = registrations.get(signal);
+        if(r == null) {
+            return -1;
+        }
+        signal.registration = r;
+        return r.id;
+    }
+
+    /**
+     * Returns true if the signal still holds the given id. Data that has been looked up by
+     * the id must be discarded otherwise, the id may have been reused in the meantime.
+     */
+    public boolean isCurrent(VizzlySignal signal, int id) {
+        Registration r = signal.registration;
+        return (r != null && !r.released && r.id == id);
+    }
+
+    /**
+     * Releases the id of the signal. All listeners drop their data of the id before it is reused.
+     */
+    public void release(VizzlySignal signal) {
+        Registration r = null;
+        synchronized(this) {
+            r = registrations.remove(signal);
+            if(r == null) {
+                return;
+            }
+            r.released = true;
+            signals.set(r.id, null);
+            entryKeys.set(r.id, NO_ENTRY_KEYS);
+        }
+        Vector<ReleaseListener> listeners = null;
+        synchronized(releaseListeners) {
+            listeners = new Vector<ReleaseListener>(releaseListeners);
+        }
+        for(ReleaseListener l : listeners) {
+            l.signalReleased(r.id);
+        }
+        synchronized(this) {
+            freeIds.add(r.id);
+        }
+    }
+
+    /**
+     * Returns the signal registered with the given id, or null if the id is free.
+     */
+    public VizzlySignal getSignal(int id) {
+        return (id < signals.size()) ? signals.get(id) : null;
+    }
+
+    public int getNumberOfSignals() {
+        return registrations.size();
+    }
+
+    /**
+     * Returns the key of the cache entry of the signal at the given window length. For
+     * registered signals, the same String instance is returned for each call, hence its hash
+     * code is computed only once. Equal signals always have the same key.
+     */
+    public String getEntryKey(VizzlySignal signal, int windowLengthSec) {
+        int id = getId(signal);
+        if(id < 0) {
+            return createEntryKey(signal, windowLengthSec);
+        }
+        EntryKeys k = entryKeys.get(id);
+        for(int i = 0; i < k.windowLengths.length; i++) {
+            if(k.windowLengths[i] == windowLengthSec && isCurrent(signal, id)) {
+                return k.keys[i];
+            }
+        }
+        synchronized(this) {
+            if(!isCurrent(signal, id)) {
+                return createEntryKey(signal, windowLengthSec);
+            }
+            k = entryKeys.get(id);
+            for(int i = 0; i < k.windowLengths.length; i++) {
+                if(k.windowLengths[i] == windowLengthSec) {
+                    return k.keys[i];
+                }
+            }
+            int n = k.windowLengths.length;
+            int[] windowLengths = new int[n+1];
+            String[] keys = new String[n+1];
+            System.arraycopy(k.windowLengths, 0, windowLengths, 0, n);
+            System.arraycopy(k.keys, 0, keys, 0, n);
+            windowLengths[n] = windowLengthSec;
+            keys[n] = createEntryKey(signal, windowLengthSec);
+            entryKeys.set(id, new EntryKeys(windowLengths, keys));
+            return keys[n];
+        }
+    }
+
+    private String createEntryKey(VizzlySignal signal, int windowLengthSec) {
+        return signal.getNormalizedIdentifier() + '_' + Integer.valueOf(windowLengthSec).toString();
+    }
+
+}
@@ -143,6 +143,9 @@ public class VizzlySignal implements Serializable {
     public String aggFunction; // not implemented yet
     public Double scaling;
     public Boolean visible;
+    
+    /* Registration in the SignalRegistry, null if the signal has not been looked up yet */
+    transient SignalRegistry.Registration registration = null;
 
     public boolean equals(Object other) {
         if (this == other) return true;
@@ -177,9 +180,21 @@ public class VizzlySignal implements Serializable {
     }
 
     public String getUniqueIdentifier() {
+        return getIdentifier(dataSource.serverAddress);
+    }
+
+    /**
+     * Same as getUniqueIdentifier(), but equal signals always have the same identifier. Server
+     * addresses are compared ignoring case.
+     */
+    public String getNormalizedIdentifier() {
+        return getIdentifier((dataSource.serverAddress != null) ? dataSource.serverAddress.toLowerCase() : null);
+    }
+
+    private String getIdentifier(String serverAddress) {
         String dataSourceStr = dataSource.type+":/";
-        if(dataSource.serverAddress != null && !dataSource.serverAddress.equals("")) {
-            dataSourceStr += dataSource.serverAddress+"/";
+        if(serverAddress != null && !serverAddress.equals("")) {
+            dataSourceStr += serverAddress+"/";
         }
         dataSourceStr += dataSource.name;
         
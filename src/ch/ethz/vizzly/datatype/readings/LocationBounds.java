@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype.readings;
+
+/**
+ * This class implements a data type that represents a rectangular map area, given by its
+ * south-west and north-east corners. Like in the location filter, the south and west
+ * borders belong to the area while the north and east borders do not. An area whose eastern
+ * border lies west of its western border crosses the dateline.
+ * @author Matthias Keller
+ *
+ */
+public class LocationBounds {
+
+    public final double latSW;
+    public final double lngSW;
+    public final double latNE;
+    public final double lngNE;
+
+    public LocationBounds(double latSW, double lngSW, double latNE, double lngNE) {
+        this.latSW = latSW;
+        this.lngSW = lngSW;
+        this.latNE = latNE;
+        this.lngNE = lngNE;
+    }
+
+    public boolean crossesDateline() {
+        return lngNE < lngSW;
+    }
+
+    public boolean contains(double latitude, double longitude) {
+        if(latitude < latSW || latitude >= latNE) {
+            return false;
+        }
+        if(crossesDateline()) {
+            return longitude >= lngSW || longitude < lngNE;
+        }
+        return longitude >= lngSW && longitude < lngNE;
+    }
+
+    /**
+     * Returns whether the area overlaps with the bounding box of a set of locations.
+     * Empty bounding boxes (minimum larger than maximum) never overlap.
+     */
+    public boolean intersects(double minLat, double maxLat, double minLng, double maxLng) {
+        if(minLat >= latNE || maxLat < latSW || minLng > maxLng) {
+            return false;
+        }
+        if(crossesDateline()) {
+            return maxLng >= lngSW || minLng < lngNE;
+        }
+        return minLng < lngNE && maxLng >= lngSW;
+    }
+
+    public String toString() {
+        return "[" + latSW + ", " + lngSW + " - " + latNE + ", " + lngNE + "]";
+    }
+
+}
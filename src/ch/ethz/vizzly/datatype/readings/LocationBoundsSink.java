@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype.readings;
+
+/**
+ * This class implements a sink that forwards only the values whose location lies within
+ * the given map area. Values without location information are dropped.
+ * @author Matthias Keller
+ *
+ */
+public class LocationBoundsSink extends TimedValueSink {
+
+    private final TimedValueSink target;
+
+    private final LocationBounds bounds;
+
+    public LocationBoundsSink(TimedValueSink target, LocationBounds bounds) {
+        this.target = target;
+        this.bounds = bounds;
+    }
+
+    public void add(long timestamp, double value) {
+    }
+
+    public void add(long timestamp, double value, double locationLat, double locationLng) {
+        if(bounds.contains(locationLat, locationLng)) {
+            target.add(timestamp, value, locationLat, locationLng);
+        }
+    }
+
+    public void finish() {
+        target.finish();
+    }
+
+}
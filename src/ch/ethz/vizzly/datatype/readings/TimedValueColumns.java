@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype.readings;
+
+import java.util.Vector;
+
+/**
+ * This class implements a sink that stores timed values in growable primitive column
+ * arrays. Location columns are only allocated once the first value with location
+ * information is added, values without location are stored with NaN coordinates.
+ * @author Matthias Keller
+ *
+ */
+public class TimedValueColumns extends TimedValueSink {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] timestamps = null;
+
+    private double[] values = null;
+
+    private double[] locationLat = null;
+
+    private double[] locationLng = null;
+
+    private int size = 0;
+
+    public TimedValueColumns() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public TimedValueColumns(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        timestamps = new long[capacity];
+        values = new double[capacity];
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if(minCapacity <= timestamps.length) {
+            return;
+        }
+        int capacity = Math.max(minCapacity, timestamps.length + (timestamps.length >> 1));
+        long[] newTimestamps = new long[capacity];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        timestamps = newTimestamps;
+        double[] newValues = new double[capacity];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+        if(locationLat != null) {
+            locationLat = copyLocationColumn(locationLat, capacity);
+            locationLng = copyLocationColumn(locationLng, capacity);
+        }
+    }
+
+    private double[] copyLocationColumn(double[] column, int capacity) {
+        double[] ret = new double[capacity];
+        System.arraycopy(column, 0, ret, 0, size);
+        return ret;
+    }
+
+    public void add(long timestamp, double value) {
+        ensureCapacity(size+1);
+        timestamps[size] = timestamp;
+        values[size] = value;
+        if(locationLat != null) {
+            locationLat[size] = Double.NaN;
+            locationLng[size] = Double.NaN;
+        }
+        size++;
+    }
+
+    public void add(long timestamp, double value, double lat, double lng) {
+        ensureCapacity(size+1);
+        if(locationLat == null) {
+            locationLat = new double[timestamps.length];
+            locationLng = new double[timestamps.length];
+            for(int i = 0; i < size; i++) {
+                locationLat[i] = Double.NaN;
+                locationLng[i] = Double.NaN;
+            }
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        locationLat[size] = lat;
+        locationLng[size] = lng;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int idx) {
+        return timestamps[idx];
+    }
+
+    public double getValue(int idx) {
+        return values[idx];
+    }
+
+    public Boolean hasLocation(int idx) {
+        return locationLat != null && !Double.isNaN(locationLat[idx]);
+    }
+
+    public double getLatitude(int idx) {
+        return (locationLat != null) ? locationLat[idx] : Double.NaN;
+    }
+
+    public double getLongitude(int idx) {
+        return (locationLng != null) ? locationLng[idx] : Double.NaN;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns a cursor over the values stored so far. The columns must not be modified while
+     * the cursor is used.
+     */
+    public TimedValueCursor cursor() {
+        return new TimedValueCursor() {
+            private int pos = -1;
+
+            public boolean next() {
+                if(pos+1 >= size) {
+                    return false;
+                }
+                pos++;
+                return true;
+            }
+
+            public long getTimestamp() {
+                return timestamps[pos];
+            }
+
+            public double getValue() {
+                return values[pos];
+            }
+
+            public boolean hasLocation() {
+                return TimedValueColumns.this.hasLocation(pos);
+            }
+
+            public double getLatitude() {
+                return TimedValueColumns.this.getLatitude(pos);
+            }
+
+            public double getLongitude() {
+                return TimedValueColumns.this.getLongitude(pos);
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Converts the columns to the representation used by the remaining code.
+     */
+    public Vector<TimedLocationValue> toVector() {
+        Vector<TimedLocationValue> ret = new Vector<TimedLocationValue>(size);
+        for(int i = 0; i < size; i++) {
+            if(hasLocation(i)) {
+                ret.add(new TimedLocationValue(timestamps[i], values[i], locationLat[i], locationLng[i]));
+            } else {
+                ret.add(new TimedLocationValue(timestamps[i], values[i]));
+            }
+        }
+        return ret;
+    }
+
+}
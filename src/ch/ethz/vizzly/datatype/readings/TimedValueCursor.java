@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype.readings;
+
+import java.util.Vector;
+
+/**
+ * This class defines a read-only, forward-only cursor over timed values that are stored
+ * in primitive arrays. In contrast to a Vector of TimedLocationValue objects, no object
+ * is created per value. The cursor is positioned before the first value initially.
+ * @author Matthias Keller
+ *
+ */
+public abstract class TimedValueCursor {
+
+    /**
+     * Moves the cursor to the next value.
+     * @return False if there are no more values
+     */
+    public abstract boolean next();
+
+    public abstract long getTimestamp();
+
+    public abstract double getValue();
+
+    public abstract boolean hasLocation();
+
+    public abstract double getLatitude();
+
+    public abstract double getLongitude();
+
+    /**
+     * Returns the total number of values of the cursor, independent of its position.
+     */
+    public abstract int size();
+
+    /**
+     * Passes all remaining values to the sink.
+     */
+    public void copyTo(TimedValueSink sink) {
+        while(next()) {
+            if(hasLocation()) {
+                sink.add(getTimestamp(), getValue(), getLatitude(), getLongitude());
+            } else {
+                sink.add(getTimestamp(), getValue());
+            }
+        }
+    }
+
+    /**
+     * Converts the remaining values to the representation used by the remaining code.
+     */
+    public Vector<TimedLocationValue> toVector() {
+        Vector<TimedLocationValue> ret = new Vector<TimedLocationValue>();
+        while(next()) {
+            if(hasLocation()) {
+                ret.add(new TimedLocationValue(getTimestamp(), getValue(), getLatitude(), getLongitude()));
+            } else {
+                ret.add(new TimedLocationValue(getTimestamp(), getValue()));
+            }
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.datatype.readings;
+
+/**
+ * This class defines a consumer of timed values that are produced one at a time, e.g.,
+ * while reading from a database. Values are passed as primitives so that no objects
+ * need to be created per value.
+ * @author Matthias Keller
+ *
+ */
+public abstract class TimedValueSink {
+
+    public abstract void add(long timestamp, double value);
+
+    public abstract void add(long timestamp, double value, double locationLat, double locationLng);
+
+    /**
+     * Called after the last value has been added.
+     */
+    public void finish() {
+    }
+
+}
@@ -41,10 +41,22 @@ public class ValueAggregate implements Serializable {
         numSamples++;
     }
     
+    /**
+     * Adds a number of values that have already been summed up.
+     */
+    public void addValues(double sum, int numValues) {
+        aggSum += sum;
+        numSamples += numValues;
+    }
+    
     public double getAggregatedValue() {
         return aggSum/(double)numSamples;
     }
     
+    public double getAggregatedSum() {
+        return aggSum;
+    }
+    
     public int getNumSamples() {
         return numSamples;
     }
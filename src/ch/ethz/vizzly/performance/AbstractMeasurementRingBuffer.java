@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.performance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class implements the slot management of a bounded multi-producer/single-consumer
+ * ring buffer. Subclasses store the actual measurement fields in pre-allocated, primitive
+ * column arrays so that recording a measurement does not allocate any memory. When the
+ * buffer is full, new measurements are dropped and counted instead of blocking the caller.
+ * @author Matthias Keller
+ *
+ */
+public abstract class AbstractMeasurementRingBuffer {
+
+    private final int mask;
+
+    /* Per-slot sequence numbers, used for handing over slots between producers and the consumer */
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong(0L);
+
+    /* Only accessed by the single consumer thread */
+    private long head = 0L;
+
+    private final AtomicLong droppedMeasurements = new AtomicLong(0L);
+
+    protected AbstractMeasurementRingBuffer(int capacity) {
+        if(capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two.");
+        }
+        mask = capacity-1;
+        sequences = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Reserves a slot for writing a measurement.
+     * @return Position that has to be passed to publish(), -1 if the buffer is full
+     */
+    protected long claim() {
+        while(true) {
+            long pos = tail.get();
+            long dif = sequences.get((int)(pos & mask))-pos;
+            if(dif == 0) {
+                if(tail.compareAndSet(pos, pos+1)) {
+                    return pos;
+                }
+            } else if(dif < 0) {
+                // Consumer has not caught up yet, drop the measurement
+                droppedMeasurements.incrementAndGet();
+                return -1;
+            }
+            // Another producer took the slot, try again
+        }
+    }
+
+    /**
+     * Makes a previously claimed slot visible to the consumer.
+     */
+    protected void publish(long pos) {
+        sequences.lazySet((int)(pos & mask), pos+1);
+    }
+
+    /**
+     * Returns the position of the next readable slot. Must only be called by the consumer.
+     * @return Position of next readable slot, -1 if the buffer is empty
+     */
+    protected long peek() {
+        long pos = head;
+        if(sequences.get((int)(pos & mask)) == pos+1) {
+            return pos;
+        }
+        return -1;
+    }
+
+    /**
+     * Hands a slot that has been read back to the producers. Must only be called by the consumer.
+     */
+    protected void release(long pos) {
+        sequences.lazySet((int)(pos & mask), pos+mask+1);
+        head = pos+1;
+    }
+
+    protected int getSlot(long pos) {
+        return (int)(pos & mask);
+    }
+
+    public int getCapacity() {
+        return mask+1;
+    }
+
+    public long getNumberOfDroppedMeasurements() {
+        return droppedMeasurements.get();
+    }
+
+}
@@ -16,6 +16,8 @@
 
 package ch.ethz.vizzly.performance;
 
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+
 /**
  * This abstract class defines the interfaces of a performance tracker.
  * @author Matthias Keller
@@ -23,10 +25,37 @@ package ch.ethz.vizzly.performance;
  */
 public abstract class AbstractPerformanceTracker {
 
+    /**
+     * In-process latency histograms, kept independent of how measurements are persisted.
+     */
+    protected PerformanceMetrics metrics = new PerformanceMetrics();
+
     abstract public void addDataFetchMeasurement(DataFetchPerformanceMeasurement p);
     
+    /**
+     * Same as addDataFetchMeasurement(DataFetchPerformanceMeasurement), but avoids creating
+     * a measurement object on the request path.
+     */
+    abstract public void addDataFetchMeasurement(long timestamp, String signalName, long lastUpdate, 
+            DataBackend dataBackend, int windowLengthSec, int resultSize, long elapsedTime);
+    
     abstract public void addUserRequestMeasurement(UserRequestPerformanceMeasurement p);
 
     abstract public void stopApplication();
     
+    /**
+     * Records the time needed for fetching new data from a data source during a cache update.
+     */
+    public void addUpstreamFetchMeasurement(String dataSourceType, long elapsedTime) {
+        metrics.recordUpstreamFetch(dataSourceType, elapsedTime);
+    }
+    
+    public PerformanceMetrics getMetrics() {
+        return metrics;
+    }
+    
+    public long getNumberOfDroppedMeasurements() {
+        return 0L;
+    }
+    
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.performance;
+
+import java.util.Vector;
+
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+
+/**
+ * This class implements a ring buffer for data fetch measurements. All fields are kept
+ * in pre-allocated columns, objects are only created when the buffer is drained.
+ * @author Matthias Keller
+ *
+ */
+public class DataFetchMeasurementRingBuffer extends AbstractMeasurementRingBuffer {
+
+    private final long[] timestamps;
+
+    private final String[] signalNames;
+
+    private final long[] lastUpdates;
+
+    private final DataBackend[] dataBackends;
+
+    private final int[] windowLengths;
+
+    private final int[] resultSizes;
+
+    private final long[] elapsedTimes;
+
+    public DataFetchMeasurementRingBuffer(int capacity) {
+        super(capacity);
+        timestamps = new long[capacity];
+        signalNames = new String[capacity];
+        lastUpdates = new long[capacity];
+        dataBackends = new DataBackend[capacity];
+        windowLengths = new int[capacity];
+        resultSizes = new int[capacity];
+        elapsedTimes = new long[capacity];
+    }
+
+    /**
+     * Adds a measurement to the buffer. Never blocks, the measurement is dropped if the buffer is full.
+     * @return False if the measurement was dropped
+     */
+    public boolean add(long timestamp, String signalName, long lastUpdate, DataBackend dataBackend, 
+            int windowLengthSec, int resultSize, long elapsedTime) {
+        long pos = claim();
+        if(pos == -1) {
+            return false;
+        }
+        int slot = getSlot(pos);
+        timestamps[slot] = timestamp;
+        signalNames[slot] = signalName;
+        lastUpdates[slot] = lastUpdate;
+        dataBackends[slot] = dataBackend;
+        windowLengths[slot] = windowLengthSec;
+        resultSizes[slot] = resultSize;
+        elapsedTimes[slot] = elapsedTime;
+        publish(pos);
+        return true;
+    }
+
+    /**
+     * Moves buffered measurements to the given vector. Must only be called by a single consumer thread.
+     * @return Number of drained measurements
+     */
+    public int drainTo(Vector<DataFetchPerformanceMeasurement> out, int maxElements) {
+        int numDrained = 0;
+        long pos;
+        while(numDrained < maxElements && (pos = peek()) != -1) {
+            int slot = getSlot(pos);
+            out.add(new DataFetchPerformanceMeasurement(timestamps[slot], signalNames[slot], lastUpdates[slot], 
+                    dataBackends[slot], windowLengths[slot], resultSizes[slot], elapsedTimes[slot]));
+            // Do not keep signal names alive longer than needed
+            signalNames[slot] = null;
+            release(pos);
+            numDrained++;
+        }
+        return numDrained;
+    }
+
+}
@@ -25,7 +25,7 @@ package ch.ethz.vizzly.performance;
 public class DataFetchPerformanceMeasurement {
 
     public enum DataBackend {
-        DIRECTACCESS, MEMCACHE, SQLDBCACHE, LIVEAGGREGATION, UNDEFINED
+        DIRECTACCESS, MEMCACHE, SQLDBCACHE, FILECACHE, LIVEAGGREGATION, UNDEFINED
     }
 
     /* Time of measurement in millisec */
@@ -72,6 +72,9 @@ public class DataFetchPerformanceMeasurement {
         case SQLDBCACHE:
             ret = "mysqldbcache";
             break;
+        case FILECACHE:
+            ret = "filecache";
+            break;
         case LIVEAGGREGATION:
             ret = "liveaggregation";
             break;
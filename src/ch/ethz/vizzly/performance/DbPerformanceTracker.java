@@ -20,9 +20,13 @@ import java.util.Vector;
 
 import org.apache.log4j.Logger;
 
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+
 /**
  * This class collects performance measurements that are taken during cache accesses.
- * Measurements are first put into a queue and then stored in a MySQL database.
+ * Measurements are first put into lock-free ring buffers and then stored in a MySQL database.
+ * Request threads never block on the tracker, if the persistence thread cannot keep up, 
+ * measurements are dropped and counted.
  * @author Matthias Keller
  *
  */
@@ -34,53 +38,60 @@ public class DbPerformanceTracker extends AbstractPerformanceTracker {
     @SuppressWarnings("unused")
     private static Logger log = Logger.getLogger(DbPerformanceTracker.class);
 
-    private Vector<DataFetchPerformanceMeasurement> dataFetchMeas = null;
+    /* Number of buffered measurements per type, must be a power of two */
+    private final int RING_BUFFER_CAPACITY = 16384;
+
+    private DataFetchMeasurementRingBuffer dataFetchMeas = null;
     
-    private Vector<UserRequestPerformanceMeasurement> userRequestMeas = null;
+    private UserRequestMeasurementRingBuffer userRequestMeas = null;
 
     private DbPerformanceTrackerPersistenceThread persistenceThread = null;
 
     public DbPerformanceTracker() {
         persistenceThread = new DbPerformanceTrackerPersistenceThread(this);
-        dataFetchMeas = new Vector<DataFetchPerformanceMeasurement>();
-        userRequestMeas = new Vector<UserRequestPerformanceMeasurement>();
+        dataFetchMeas = new DataFetchMeasurementRingBuffer(RING_BUFFER_CAPACITY);
+        userRequestMeas = new UserRequestMeasurementRingBuffer(RING_BUFFER_CAPACITY);
         persistenceThread.start();
     }
 
     /* Data is added to memory first, and then asynchronously copied to the database */
     public void addDataFetchMeasurement(DataFetchPerformanceMeasurement p) {
-        synchronized(dataFetchMeas) {
-            dataFetchMeas.add(p);
-        }
+        metrics.recordDataFetch(p.dataBackend, p.windowLengthSec, p.resultSize, p.elapsedTime);
+        dataFetchMeas.add(p.timestamp, p.signalName, p.lastUpdate, p.dataBackend, p.windowLengthSec, 
+                p.resultSize, p.elapsedTime);
+    }
+
+    /* Data is added to memory first, and then asynchronously copied to the database */
+    public void addDataFetchMeasurement(long timestamp, String signalName, long lastUpdate, 
+            DataBackend dataBackend, int windowLengthSec, int resultSize, long elapsedTime) {
+        metrics.recordDataFetch(dataBackend, windowLengthSec, resultSize, elapsedTime);
+        dataFetchMeas.add(timestamp, signalName, lastUpdate, dataBackend, windowLengthSec, resultSize, elapsedTime);
     }
 
     /* Data is added to memory first, and then asynchronously copied to the database */
     public void addUserRequestMeasurement(UserRequestPerformanceMeasurement p) {
-        synchronized(userRequestMeas) {
-            userRequestMeas.add(p);
-        }
+        metrics.recordUserRequest(p);
+        userRequestMeas.add(p);
     }
     
-    @SuppressWarnings("unchecked")
-    public Vector<DataFetchPerformanceMeasurement> copyAndClearDataFetchSamples() {
-        Vector<DataFetchPerformanceMeasurement> ret = null;
-        synchronized(dataFetchMeas) {
-            ret = (Vector<DataFetchPerformanceMeasurement>)dataFetchMeas.clone();
-            dataFetchMeas.clear();
-        }
+    /* Only to be called by the persistence thread */
+    public Vector<DataFetchPerformanceMeasurement> drainDataFetchSamples() {
+        Vector<DataFetchPerformanceMeasurement> ret = new Vector<DataFetchPerformanceMeasurement>();
+        dataFetchMeas.drainTo(ret, RING_BUFFER_CAPACITY);
         return ret;
     }
     
-    @SuppressWarnings("unchecked")
-    public Vector<UserRequestPerformanceMeasurement> copyAndClearUserRequestSamples() {
-        Vector<UserRequestPerformanceMeasurement> ret = null;
-        synchronized(userRequestMeas) {
-            ret = (Vector<UserRequestPerformanceMeasurement>)userRequestMeas.clone();
-            userRequestMeas.clear();
-        }
+    /* Only to be called by the persistence thread */
+    public Vector<UserRequestPerformanceMeasurement> drainUserRequestSamples() {
+        Vector<UserRequestPerformanceMeasurement> ret = new Vector<UserRequestPerformanceMeasurement>();
+        userRequestMeas.drainTo(ret, RING_BUFFER_CAPACITY);
         return ret;
     }
 
+    public long getNumberOfDroppedMeasurements() {
+        return dataFetchMeas.getNumberOfDroppedMeasurements()+userRequestMeas.getNumberOfDroppedMeasurements();
+    }
+
     public void stopApplication() {
         persistenceThread.setRunning(false);
     }
@@ -48,6 +48,8 @@ public class DbPerformanceTrackerPersistenceThread extends Thread {
 
     private Boolean running = false;
 
+    private long lastReportedDrops = 0L;
+
     final private String performanceDataFetchTable = "viz_perf_data_fetch";
 
     final private String performanceUserRequestTable = "viz_perf_user_request";
@@ -109,7 +111,7 @@ public class DbPerformanceTrackerPersistenceThread extends Thread {
             try {
                 Connection conn = null;
                 // Data fetch performance measurements
-                Vector<DataFetchPerformanceMeasurement> dataFetchMeas = tracker.copyAndClearDataFetchSamples();
+                Vector<DataFetchPerformanceMeasurement> dataFetchMeas = tracker.drainDataFetchSamples();
                 // Add data to DB
                 if(dataFetchMeas.size() > 0) {
                     conn = ds.getConnection();
@@ -135,7 +137,7 @@ public class DbPerformanceTrackerPersistenceThread extends Thread {
                 }
                 
                 // User request performance measurements
-                Vector<UserRequestPerformanceMeasurement> userRequestMeas = tracker.copyAndClearUserRequestSamples();
+                Vector<UserRequestPerformanceMeasurement> userRequestMeas = tracker.drainUserRequestSamples();
                 // Add data to DB
                 if(userRequestMeas.size() > 0) {
                     if(conn == null) {
@@ -165,6 +167,12 @@ public class DbPerformanceTrackerPersistenceThread extends Thread {
                     conn.close();
                     conn = null;
                 }
+
+                long drops = tracker.getNumberOfDroppedMeasurements();
+                if(drops > lastReportedDrops) {
+                    log.warn("Performance tracker dropped " + (drops-lastReportedDrops) + " measurements.");
+                    lastReportedDrops = drops;
+                }
                 sleep(sleepMsec);
             } catch(InterruptedException e) {
                 log.warn("Interrupted", e);
@@ -16,20 +16,27 @@
 
 package ch.ethz.vizzly.performance;
 
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+
 /**
  * This class defines a dummy performance tracker that can be used instead of the DbPerformanceTracker
- * when no MySQL database is involved.
+ * when no MySQL database is involved. Only the in-process latency histograms are updated.
  * @author Matthias Keller
  *
  */
 public class DummyPerformanceTracker extends AbstractPerformanceTracker {
 
     public void addDataFetchMeasurement(DataFetchPerformanceMeasurement p) {
-        return;
+        metrics.recordDataFetch(p.dataBackend, p.windowLengthSec, p.resultSize, p.elapsedTime);
+    }
+    
+    public void addDataFetchMeasurement(long timestamp, String signalName, long lastUpdate, 
+            DataBackend dataBackend, int windowLengthSec, int resultSize, long elapsedTime) {
+        metrics.recordDataFetch(dataBackend, windowLengthSec, resultSize, elapsedTime);
     }
     
     public void addUserRequestMeasurement(UserRequestPerformanceMeasurement p) {
-        return;
+        metrics.recordUserRequest(p);
     }
 
     public void stopApplication() {
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.performance;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class implements a lock-free latency histogram with logarithmic bucket boundaries
+ * in the spirit of HdrHistogram. Each power of two is split into a fixed number of
+ * linear sub-buckets, which bounds the relative error of reported percentiles to roughly 3%.
+ * Recording a value does not allocate memory.
+ * @author Matthias Keller
+ *
+ */
+public class LatencyHistogram {
+
+    /* Values below 2^SUB_BUCKET_BITS are counted exactly */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << (SUB_BUCKET_BITS-1);
+
+    private static final int NUM_BUCKETS = (64-SUB_BUCKET_BITS+2)*SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+    private final LongAdder totalCount = new LongAdder();
+
+    private final LongAdder totalSum = new LongAdder();
+
+    public void recordValue(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(getBucketIdx(value));
+        totalCount.increment();
+        totalSum.add(value);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getSum() {
+        return totalSum.sum();
+    }
+
+    /**
+     * Returns the value at the given quantile. The returned value is the highest value
+     * that is equivalent to the bucket in which the quantile falls.
+     * @param quantile Quantile between 0.0 and 1.0
+     * @return Value at quantile, 0 if no values have been recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long total = 0L;
+        for(int i = 0; i < NUM_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0) {
+            return 0L;
+        }
+        long rank = (long)Math.ceil(quantile*total);
+        if(rank < 1) {
+            rank = 1;
+        }
+        long seen = 0L;
+        for(int i = 0; i < NUM_BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= rank) {
+                return getHighestEquivalentValue(i);
+            }
+        }
+        return getHighestEquivalentValue(NUM_BUCKETS-1);
+    }
+
+    private static int getBucketIdx(long value) {
+        if(value < (1L << SUB_BUCKET_BITS)) {
+            return (int)value;
+        }
+        int magnitude = 64-Long.numberOfLeadingZeros(value)-SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> magnitude);
+        return magnitude*SUB_BUCKET_HALF_COUNT+subBucket;
+    }
+
+    private static long getHighestEquivalentValue(int idx) {
+        if(idx < (1 << SUB_BUCKET_BITS)) {
+            return idx;
+        }
+        int magnitude = idx/SUB_BUCKET_HALF_COUNT-1;
+        long subBucket = idx-magnitude*SUB_BUCKET_HALF_COUNT;
+        return ((subBucket+1) << magnitude)-1;
+    }
+
+}
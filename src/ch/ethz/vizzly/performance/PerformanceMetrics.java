@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.performance;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.ethz.vizzly.performance.DataFetchPerformanceMeasurement.DataBackend;
+import ch.ethz.vizzly.performance.UserRequestPerformanceMeasurement.RequestType;
+
+/**
+ * This class keeps in-process latency histograms of data fetches and user requests. In contrast
+ * to the database performance tracker, these statistics are always available and can be exported 
+ * in the Prometheus text exposition format.
+ * @author Matthias Keller
+ *
+ */
+public class PerformanceMetrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private EnumMap<DataBackend, LatencyHistogram> fetchLatencyByBackend = null;
+
+    /* Number of returned elements per data backend, used for deriving per-row costs */
+    private EnumMap<DataBackend, LongAdder> fetchedRowsByBackend = null;
+
+    private ConcurrentHashMap<Integer, LatencyHistogram> fetchLatencyByWindowLength = null;
+
+    private EnumMap<RequestType, LatencyHistogram> requestLatencyByType = null;
+
+    private ConcurrentHashMap<String, LatencyHistogram> upstreamFetchLatency = null;
+
+    public PerformanceMetrics() {
+        // Enum maps are filled completely here and only read afterwards, no synchronization needed
+        fetchLatencyByBackend = new EnumMap<DataBackend, LatencyHistogram>(DataBackend.class);
+        fetchedRowsByBackend = new EnumMap<DataBackend, LongAdder>(DataBackend.class);
+        for(DataBackend b : DataBackend.values()) {
+            fetchLatencyByBackend.put(b, new LatencyHistogram());
+            fetchedRowsByBackend.put(b, new LongAdder());
+        }
+        requestLatencyByType = new EnumMap<RequestType, LatencyHistogram>(RequestType.class);
+        for(RequestType t : RequestType.values()) {
+            requestLatencyByType.put(t, new LatencyHistogram());
+        }
+        fetchLatencyByWindowLength = new ConcurrentHashMap<Integer, LatencyHistogram>();
+        upstreamFetchLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+    }
+
+    public void recordDataFetch(DataBackend dataBackend, int windowLengthSec, int resultSize, long elapsedTime) {
+        fetchLatencyByBackend.get(dataBackend).recordValue(elapsedTime);
+        fetchedRowsByBackend.get(dataBackend).add(resultSize);
+        getOrCreate(fetchLatencyByWindowLength, windowLengthSec).recordValue(elapsedTime);
+    }
+
+    public void recordUserRequest(UserRequestPerformanceMeasurement p) {
+        requestLatencyByType.get(p.getRequestType()).recordValue(p.getRequestPrepareTime()
+                +p.getDataFetchTime()+p.getRequestFinalizeTime());
+    }
+
+    public void recordUpstreamFetch(String dataSourceType, long elapsedTime) {
+        getOrCreate(upstreamFetchLatency, dataSourceType).recordValue(elapsedTime);
+    }
+
+    public LatencyHistogram getDataFetchLatency(DataBackend dataBackend) {
+        return fetchLatencyByBackend.get(dataBackend);
+    }
+
+    public long getNumberOfFetchedRows(DataBackend dataBackend) {
+        return fetchedRowsByBackend.get(dataBackend).sum();
+    }
+
+    /**
+     * Returns the observed mean time needed per returned element of a data backend.
+     * @return Time in millisec, -1 if too few elements have been fetched so far
+     */
+    public double getMeanFetchTimePerRow(DataBackend dataBackend, long minNumRows) {
+        long rows = fetchedRowsByBackend.get(dataBackend).sum();
+        if(rows < minNumRows || rows == 0) {
+            return -1.0;
+        }
+        return (double)fetchLatencyByBackend.get(dataBackend).getSum()/(double)rows;
+    }
+
+    public LatencyHistogram getUpstreamFetchLatency(String dataSourceType) {
+        return upstreamFetchLatency.get(dataSourceType);
+    }
+
+    /**
+     * Appends all histograms in the Prometheus text exposition format.
+     */
+    public void writeExposition(StringBuilder sb) {
+        writeSummaryHeader(sb, "vizzly_data_fetch_latency_ms", "Latency of data fetches per data backend in millisec.");
+        for(DataBackend b : DataBackend.values()) {
+            writeSummary(sb, "vizzly_data_fetch_latency_ms", "backend", b.toString().toLowerCase(), fetchLatencyByBackend.get(b));
+        }
+        writeCounterHeader(sb, "vizzly_data_fetch_rows_total", "Number of elements returned by data fetches per data backend.");
+        for(DataBackend b : DataBackend.values()) {
+            sb.append("vizzly_data_fetch_rows_total{backend=\"").append(b.toString().toLowerCase()).append("\"} ")
+                .append(fetchedRowsByBackend.get(b).sum()).append("\n");
+        }
+        writeSummaryHeader(sb, "vizzly_data_fetch_window_latency_ms", "Latency of data fetches per window length in millisec.");
+        for(Map.Entry<Integer, LatencyHistogram> e : new TreeMap<Integer, LatencyHistogram>(fetchLatencyByWindowLength).entrySet()) {
+            writeSummary(sb, "vizzly_data_fetch_window_latency_ms", "window_length_sec", e.getKey().toString(), e.getValue());
+        }
+        writeSummaryHeader(sb, "vizzly_request_latency_ms", "End-to-end latency of user requests per request type in millisec.");
+        for(RequestType t : RequestType.values()) {
+            writeSummary(sb, "vizzly_request_latency_ms", "type", t.toString().toLowerCase(), requestLatencyByType.get(t));
+        }
+        writeSummaryHeader(sb, "vizzly_upstream_fetch_latency_ms", "Latency of cache updates fetched from data sources in millisec.");
+        for(Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(upstreamFetchLatency).entrySet()) {
+            writeSummary(sb, "vizzly_upstream_fetch_latency_ms", "source_type", e.getKey(), e.getValue());
+        }
+    }
+
+    private static <K> LatencyHistogram getOrCreate(ConcurrentHashMap<K, LatencyHistogram> map, K key) {
+        LatencyHistogram h = map.get(key);
+        if(h == null) {
+            LatencyHistogram n = new LatencyHistogram();
+            h = map.putIfAbsent(key, n);
+            if(h == null) {
+                h = n;
+            }
+        }
+        return h;
+    }
+
+    private static void writeSummaryHeader(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        sb.append("# TYPE ").append(name).append(" summary\n");
+    }
+
+    private static void writeCounterHeader(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        sb.append("# TYPE ").append(name).append(" counter\n");
+    }
+
+    private static void writeSummary(StringBuilder sb, String name, String labelName, String labelValue, LatencyHistogram h) {
+        String label = labelName + "=\"" + escapeLabelValue(labelValue) + "\"";
+        for(double q : QUANTILES) {
+            sb.append(name).append("{").append(label).append(",quantile=\"").append(q).append("\"} ")
+                .append(h.getValueAtQuantile(q)).append("\n");
+        }
+        sb.append(name).append("_sum{").append(label).append("} ").append(h.getSum()).append("\n");
+        sb.append(name).append("_count{").append(label).append("} ").append(h.getCount()).append("\n");
+    }
+
+    public static String escapeLabelValue(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.performance;
+
+import java.util.Vector;
+
+/**
+ * This class implements a ring buffer for end-to-end user request measurements. All fields 
+ * are kept in pre-allocated columns, objects are only created when the buffer is drained.
+ * @author Matthias Keller
+ *
+ */
+public class UserRequestMeasurementRingBuffer extends AbstractMeasurementRingBuffer {
+
+    private final long[] timestamps;
+
+    private final int[] numRequestedSignals;
+
+    private final int[] numReturnedLines;
+
+    private final long[] requestPrepareTimes;
+
+    private final long[] dataFetchTimes;
+
+    private final long[] requestFinalizeTimes;
+
+    public UserRequestMeasurementRingBuffer(int capacity) {
+        super(capacity);
+        timestamps = new long[capacity];
+        numRequestedSignals = new int[capacity];
+        numReturnedLines = new int[capacity];
+        requestPrepareTimes = new long[capacity];
+        dataFetchTimes = new long[capacity];
+        requestFinalizeTimes = new long[capacity];
+    }
+
+    /**
+     * Adds a measurement to the buffer. Never blocks, the measurement is dropped if the buffer is full.
+     * @return False if the measurement was dropped
+     */
+    public boolean add(UserRequestPerformanceMeasurement p) {
+        long pos = claim();
+        if(pos == -1) {
+            return false;
+        }
+        int slot = getSlot(pos);
+        timestamps[slot] = p.getTimestamp();
+        numRequestedSignals[slot] = p.getNumRequestedSignals();
+        numReturnedLines[slot] = p.getNumReturnedLines();
+        requestPrepareTimes[slot] = p.getRequestPrepareTime();
+        dataFetchTimes[slot] = p.getDataFetchTime();
+        requestFinalizeTimes[slot] = p.getRequestFinalizeTime();
+        publish(pos);
+        return true;
+    }
+
+    /**
+     * Moves buffered measurements to the given vector. Must only be called by a single consumer thread.
+     * @return Number of drained measurements
+     */
+    public int drainTo(Vector<UserRequestPerformanceMeasurement> out, int maxElements) {
+        int numDrained = 0;
+        long pos;
+        while(numDrained < maxElements && (pos = peek()) != -1) {
+            int slot = getSlot(pos);
+            out.add(new UserRequestPerformanceMeasurement(timestamps[slot], numRequestedSignals[slot], 
+                    numReturnedLines[slot], requestPrepareTimes[slot], dataFetchTimes[slot], requestFinalizeTimes[slot]));
+            release(pos);
+            numDrained++;
+        }
+        return numDrained;
+    }
+
+}
@@ -24,6 +24,12 @@ package ch.ethz.vizzly.performance;
  */
 public class UserRequestPerformanceMeasurement {
     
+    public enum RequestType {
+        TIMESERIES, AGGMAP
+    }
+    
+    private RequestType requestType = RequestType.TIMESERIES;
+    
     private long lastMeasurement = 0L;
     
     private long dataFetchTime = 0L;
@@ -43,6 +49,16 @@ public class UserRequestPerformanceMeasurement {
         timestamp = System.currentTimeMillis();
     }
     
+    public UserRequestPerformanceMeasurement(long timestamp, int numRequestedSignals, int numReturnedLines, 
+            long requestPrepareTime, long dataFetchTime, long requestFinalizeTime) {
+        this.timestamp = timestamp;
+        this.numRequestedSignals = numRequestedSignals;
+        this.numReturnedLines = numReturnedLines;
+        this.requestPrepareTime = requestPrepareTime;
+        this.dataFetchTime = dataFetchTime;
+        this.requestFinalizeTime = requestFinalizeTime;
+    }
+    
     public void setDataFetchStart() {
         requestPrepareTime = System.currentTimeMillis()-lastMeasurement;
         lastMeasurement = System.currentTimeMillis();
@@ -65,6 +81,14 @@ public class UserRequestPerformanceMeasurement {
         requestFinalizeTime = System.currentTimeMillis()-lastMeasurement;
     }
     
+    public void setRequestType(RequestType requestType) {
+        this.requestType = requestType;
+    }
+    
+    public RequestType getRequestType() {
+        return requestType;
+    }
+    
     public long getTimestamp() {
         return timestamp;
     }
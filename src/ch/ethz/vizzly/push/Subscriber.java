@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.push;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+
+import ch.ethz.vizzly.datatype.VizzlySignal;
+
+/**
+ * This class represents a client that is connected through an asynchronous request and
+ * receives frames of a Server-Sent Events stream. Frames are shared between all subscribers
+ * and queued in a bounded buffer until a writer thread sends them. At most one thread
+ * writes to a subscriber at a time. Writes block while the client does not read from its
+ * connection, hence the start of an ongoing write is recorded so that stalled subscribers
+ * can be aborted.
+ * @author Matthias Keller
+ *
+ */
+public class Subscriber {
+
+    private final AsyncContext asyncContext;
+
+    private final VizzlySignal[] signals;
+
+    private final ArrayBlockingQueue<byte[]> pendingFrames;
+
+    /* Set while a writer thread sends the pending frames */
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+
+    private volatile Boolean closed = false;
+
+    /* Thread that is sending frames, null if no write is ongoing */
+    private Thread writer = null;
+
+    /* Start of the ongoing write operation, 0 if no write is ongoing */
+    private volatile long writeStartTime = 0L;
+
+    public Subscriber(AsyncContext asyncContext, VizzlySignal[] signals, int maxPendingFrames) {
+        this.asyncContext = asyncContext;
+        this.signals = signals;
+        pendingFrames = new ArrayBlockingQueue<byte[]>(maxPendingFrames);
+    }
+
+    public VizzlySignal[] getSignals() {
+        return signals;
+    }
+
+    /**
+     * Queues a frame for sending.
+     * @return False if the buffer is full, i.e., the client does not keep up
+     */
+    protected boolean offer(byte[] frame) {
+        return !closed && pendingFrames.offer(frame);
+    }
+
+    protected boolean hasPendingFrames() {
+        return !pendingFrames.isEmpty();
+    }
+
+    protected boolean tryStartWriting() {
+        return writing.compareAndSet(false, true);
+    }
+
+    protected void finishWriting() {
+        writing.set(false);
+    }
+
+    /**
+     * Sends all queued frames. Must only be called by the thread that started writing.
+     * @return False if the connection has failed
+     */
+    protected boolean writePendingFrames() {
+        synchronized(this) {
+            writer = Thread.currentThread();
+        }
+        try {
+            OutputStream out = asyncContext.getResponse().getOutputStream();
+            byte[] frame;
+            while(!closed && (frame = pendingFrames.poll()) != null) {
+                writeStartTime = System.currentTimeMillis();
+                out.write(frame);
+            }
+            writeStartTime = System.currentTimeMillis();
+            out.flush();
+            return true;
+        } catch(IOException e) {
+            return false;
+        } catch(IllegalStateException e) {
+            // Request has already been completed
+            return false;
+        } finally {
+            synchronized(this) {
+                writeStartTime = 0L;
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a write operation has been blocked for longer than the given time.
+     */
+    protected boolean isStalled(long now, long timeoutMsec) {
+        long start = writeStartTime;
+        return start != 0L && now-start > timeoutMsec;
+    }
+
+    /**
+     * Closes the connection and interrupts a blocked write, which releases the writer thread.
+     */
+    protected void abort() {
+        close();
+        synchronized(this) {
+            if(writer != null) {
+                writer.interrupt();
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    protected void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        pendingFrames.clear();
+        try {
+            asyncContext.complete();
+        } catch(IllegalStateException e) {
+            // Request has already been completed by the container
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.push;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class implements a background thread that periodically sends a comment to all
+ * subscribers. This keeps idle connections open through proxies and detects clients that
+ * have disconnected.
+ * @author Matthias Keller
+ *
+ */
+public class SubscriptionKeepAliveThread extends Thread {
+
+    private static Logger log = Logger.getLogger(SubscriptionKeepAliveThread.class);
+
+    private final SubscriptionManager manager;
+
+    private final long intervalMsec;
+
+    private volatile Boolean running = true;
+
+    public SubscriptionKeepAliveThread(SubscriptionManager manager, long intervalMsec) {
+        this.manager = manager;
+        this.intervalMsec = intervalMsec;
+        setName("Subscription Keep-Alive");
+        setDaemon(true);
+    }
+
+    public void run() {
+        while(running) {
+            try {
+                synchronized(this) {
+                    wait(intervalMsec);
+                }
+            } catch(InterruptedException e) {
+                break;
+            }
+            if(!running) {
+                break;
+            }
+            try {
+                manager.sendKeepAlive();
+            } catch(Exception e) {
+                log.error("Sending keep-alive failed.", e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized(this) {
+            notifyAll();
+        }
+        try {
+            join();
+        } catch(InterruptedException e) {
+            log.error(e);
+        }
+    }
+
+}
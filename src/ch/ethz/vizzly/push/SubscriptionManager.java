@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.push;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.cache.CacheManager;
+import ch.ethz.vizzly.datatype.VizzlyException;
+import ch.ethz.vizzly.datatype.VizzlySignal;
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
+import ch.ethz.vizzly.util.SignalIdMap;
+import ch.ethz.vizzly.util.TimestampTruncateUtil;
+
+import com.google.gson.Gson;
+
+/**
+ * This class pushes the windows of the finest cache to subscribed clients as soon as a
+ * signal has been updated from its data source. The frame of an update is encoded once
+ * and shared by all subscribers of the signal. Subscribers that do not keep up with the
+ * updates are disconnected, the client can reconnect and resume from the id of the last
+ * received event. Subscribers whose connection blocks a writer thread for too long are
+ * aborted so that they cannot stall the delivery to all other subscribers. A single frame
+ * contains at most MAX_FRAME_WINDOWS windows, clients that need more history read it
+ * through the regular requests.
+ * @author Matthias Keller
+ *
+ */
+public class SubscriptionManager implements CacheManager.UpdateListener {
+
+    private static Logger log = Logger.getLogger(SubscriptionManager.class);
+
+    public static final int MAX_SUBSCRIBERS = 1000;
+
+    /* Frames that are queued per subscriber before it is considered too slow */
+    public static final int MAX_PENDING_FRAMES = 64;
+
+    private static final int NUM_WRITER_THREADS = 4;
+
+    private static final long KEEP_ALIVE_INTERVAL_MSEC = 30000L;
+
+    /* Subscribers whose write is blocked for longer are aborted */
+    private static final long WRITE_TIMEOUT_MSEC = 30000L;
+
+    /* Most recent windows that are sent in a single frame, limits the replay of the history */
+    public static final int MAX_FRAME_WINDOWS = 1000;
+
+    private static final byte[] KEEP_ALIVE_FRAME = { ':', '\n', '\n' };
+
+    private final CacheManager cache;
+
+    private final SignalIdMap<CopyOnWriteArraySet<Subscriber>> subscribers = 
+            new SignalIdMap<CopyOnWriteArraySet<Subscriber>>();
+
+    private final Set<Subscriber> allSubscribers = 
+            Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+
+    private final ExecutorService writers;
+
+    private final SubscriptionKeepAliveThread keepAliveThread;
+
+    public SubscriptionManager(CacheManager cache) {
+        this.cache = cache;
+        writers = Executors.newFixedThreadPool(NUM_WRITER_THREADS, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SubscriptionWriter-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        keepAliveThread = new SubscriptionKeepAliveThread(this, KEEP_ALIVE_INTERVAL_MSEC);
+        keepAliveThread.start();
+        cache.addUpdateListener(this);
+    }
+
+    /**
+     * Registers a subscriber for updates of its signals.
+     * @param since If not null, the windows from this timestamp on are sent first
+     */
+    public void subscribe(Subscriber s, Long since) throws VizzlyException {
+        if(allSubscribers.size() >= MAX_SUBSCRIBERS) {
+            throw new VizzlyException("Too many subscribers. Please try again later.");
+        }
+        allSubscribers.add(s);
+        for(VizzlySignal signal : s.getSignals()) {
+            CopyOnWriteArraySet<Subscriber> set = subscribers.get(signal);
+            if(set == null) {
+                subscribers.putIfAbsent(signal, new CopyOnWriteArraySet<Subscriber>());
+                set = subscribers.get(signal);
+            }
+            set.add(s);
+            if(since != null) {
+                byte[] frame = encodeFrame(signal, since);
+                if(frame != null && !s.offer(frame)) {
+                    unsubscribe(s);
+                    return;
+                }
+            }
+        }
+        schedule(s);
+    }
+
+    public void unsubscribe(Subscriber s) {
+        if(!allSubscribers.remove(s)) {
+            return;
+        }
+        for(VizzlySignal signal : s.getSignals()) {
+            CopyOnWriteArraySet<Subscriber> set = subscribers.get(signal);
+            if(set != null) {
+                set.remove(s);
+            }
+        }
+        s.close();
+    }
+
+    public void signalUpdated(VizzlySignal signal, long firstTimestamp) {
+        CopyOnWriteArraySet<Subscriber> set = subscribers.get(signal);
+        if(set == null || set.isEmpty()) {
+            return;
+        }
+        byte[] frame = encodeFrame(signal, firstTimestamp);
+        if(frame == null) {
+            return;
+        }
+        for(Subscriber s : set) {
+            publish(s, frame);
+        }
+    }
+
+    public void sendKeepAlive() {
+        long now = System.currentTimeMillis();
+        for(Subscriber s : allSubscribers) {
+            if(s.isStalled(now, WRITE_TIMEOUT_MSEC)) {
+                log.info("Aborting subscriber whose connection is blocked.");
+                unsubscribe(s);
+                s.abort();
+                continue;
+            }
+            publish(s, KEEP_ALIVE_FRAME);
+        }
+    }
+
+    public int getNumberOfSubscribers() {
+        return allSubscribers.size();
+    }
+
+    public void shutdown() {
+        cache.removeUpdateListener(this);
+        keepAliveThread.shutdown();
+        for(Subscriber s : allSubscribers) {
+            unsubscribe(s);
+        }
+        writers.shutdownNow();
+    }
+
+    private void publish(Subscriber s, byte[] frame) {
+        if(!s.offer(frame)) {
+            log.info("Disconnecting subscriber that does not keep up with updates.");
+            unsubscribe(s);
+            return;
+        }
+        schedule(s);
+    }
+
+    // Only one writer thread handles a subscriber at a time. Frames that are queued while
+    // the thread finishes are picked up by re-checking the queue after releasing it.
+    private void schedule(final Subscriber s) {
+        if(!s.hasPendingFrames() || !s.tryStartWriting()) {
+            return;
+        }
+        try {
+            writers.execute(new Runnable() {
+                public void run() {
+                    Boolean connected = true;
+                    do {
+                        connected = s.writePendingFrames();
+                        s.finishWriting();
+                    } while(connected && s.hasPendingFrames() && s.tryStartWriting());
+                    if(!connected) {
+                        unsubscribe(s);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            s.finishWriting();
+        }
+    }
+
+    /**
+     * Encodes all windows of the finest cache from the window that contains the given timestamp
+     * on as an event, but at most the last MAX_FRAME_WINDOWS windows. The event id is the start 
+     * of the first window, values are not scaled.
+     * @return Encoded event, null if there are no windows
+     */
+    private byte[] encodeFrame(VizzlySignal signal, long firstTimestamp) {
+        int windowLengthSec = cache.getWindowLength(cache.getNumberOfCaches()-1);
+        long start = TimestampTruncateUtil.truncate(firstTimestamp, windowLengthSec*1000L);
+        Long lastPacketTimestamp = cache.getLastPacketTimestamp(signal);
+        if(lastPacketTimestamp != null) {
+            long lastWindow = TimestampTruncateUtil.truncate(lastPacketTimestamp, windowLengthSec*1000L);
+            start = Math.max(start, lastWindow-(long)(MAX_FRAME_WINDOWS-1)*windowLengthSec*1000L);
+        }
+        // Pushed updates are not requests by a user and must not keep the entry from being evicted
+        TimedValueCursor c = cache.getFinestSignalCursor(signal, start);
+        if(c == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        long firstWindow = -1;
+        while(c.next()) {
+            if(Double.isNaN(c.getValue()) || Double.isInfinite(c.getValue())) {
+                continue;
+            }
+            if(firstWindow == -1) {
+                firstWindow = c.getTimestamp();
+            } else {
+                sb.append(",");
+            }
+            sb.append("[").append(c.getTimestamp()).append(",").append(c.getValue()).append("]");
+        }
+        if(firstWindow == -1) {
+            return null;
+        }
+        String frame = "event: windows\nid: " + Long.toString(firstWindow) + "\ndata: {\"signal\":" 
+                + new Gson().toJson(signal.getUniqueIdentifier()) + ",\"windowLengthSec\":" + windowLengthSec 
+                + ",\"values\":[" + sb.toString() + "]}\n\n";
+        try {
+            return frame.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            log.error(e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * This package contains the handling of clients that subscribed to updates of signals.
+ */
+package ch.ethz.vizzly.push;
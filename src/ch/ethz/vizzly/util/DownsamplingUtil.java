@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.util;
+
+import java.util.Vector;
+
+import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+
+/**
+ * This class provides functions for reducing unaggregated time series data to the number of
+ * values that can actually be displayed on a canvas of a given width. The returned values
+ * are a subset of the original values, hence their timestamps and locations are preserved.
+ * @author Matthias Keller
+ *
+ */
+public class DownsamplingUtil {
+
+    public enum Method {
+        NONE, 
+        /* First, last, minimum and maximum value per pixel column */
+        M4, 
+        /* Largest-Triangle-Three-Buckets */
+        LTTB
+    };
+
+    /* LTTB selects this many values per pixel column */
+    private static final int LTTB_VALUES_PER_PIXEL = 2;
+
+    /**
+     * Reduces the data with the given method if it holds more values than can be displayed.
+     * @param data Values in chronological order
+     */
+    public static Vector<TimedLocationValue> downsample(Method method, Vector<TimedLocationValue> data, int canvasWidth) {
+        if(data == null || canvasWidth <= 0) {
+            return data;
+        }
+        switch(method) {
+        case M4:
+            if(data.size() <= 4*canvasWidth) {
+                return data;
+            }
+            return downsampleM4(data, canvasWidth);
+        case LTTB:
+            if(data.size() <= LTTB_VALUES_PER_PIXEL*canvasWidth) {
+                return data;
+            }
+            return downsampleLttb(data, LTTB_VALUES_PER_PIXEL*canvasWidth);
+        default:
+            return data;
+        }
+    }
+
+    /**
+     * Keeps the first, last, minimum and maximum value of each pixel column. A line plot of the
+     * result is identical to a line plot of the original data at the given width.
+     */
+    public static Vector<TimedLocationValue> downsampleM4(Vector<TimedLocationValue> data, int numColumns) {
+        Vector<TimedLocationValue> ret = new Vector<TimedLocationValue>();
+        long startTime = data.firstElement().timestamp;
+        long timeSpan = data.lastElement().timestamp-startTime+1;
+        int i = 0;
+        while(i < data.size()) {
+            int column = getColumn(data.get(i).timestamp, startTime, timeSpan, numColumns);
+            int first = i, last = i, min = i, max = i;
+            i++;
+            while(i < data.size() && getColumn(data.get(i).timestamp, startTime, timeSpan, numColumns) == column) {
+                double v = data.get(i).value;
+                if(v < data.get(min).value) {
+                    min = i;
+                }
+                if(v > data.get(max).value) {
+                    max = i;
+                }
+                last = i;
+                i++;
+            }
+            // Add the selected values in chronological order and without duplicates
+            ret.add(data.get(first));
+            int a = Math.min(min, max), b = Math.max(min, max);
+            if(a != first && a != last) {
+                ret.add(data.get(a));
+            }
+            if(b != a && b != first && b != last) {
+                ret.add(data.get(b));
+            }
+            if(last != first) {
+                ret.add(data.get(last));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Selects the given number of values, keeping the first and the last value. Each bucket
+     * in between contributes the value that forms the largest triangle with the value selected
+     * in the previous bucket and the average of the next bucket.
+     */
+    public static Vector<TimedLocationValue> downsampleLttb(Vector<TimedLocationValue> data, int numValues) {
+        if(numValues < 3 || data.size() <= numValues) {
+            return data;
+        }
+        Vector<TimedLocationValue> ret = new Vector<TimedLocationValue>(numValues);
+        double bucketSize = (double)(data.size()-2)/(double)(numValues-2);
+        int selected = 0;
+        ret.add(data.get(selected));
+        for(int b = 0; b < numValues-2; b++) {
+            // Average of the next bucket, the last value forms the final bucket
+            int nextStart = (int)Math.floor((b+1)*bucketSize)+1;
+            int nextEnd = Math.min((int)Math.floor((b+2)*bucketSize)+1, data.size());
+            double avgTime = 0.0, avgValue = 0.0;
+            for(int j = nextStart; j < nextEnd; j++) {
+                avgTime += data.get(j).timestamp;
+                avgValue += data.get(j).value;
+            }
+            avgTime /= (nextEnd-nextStart);
+            avgValue /= (nextEnd-nextStart);
+
+            int start = (int)Math.floor(b*bucketSize)+1;
+            int end = nextStart;
+            TimedLocationValue p = data.get(selected);
+            double maxArea = -1.0;
+            int maxIdx = start;
+            for(int j = start; j < end; j++) {
+                TimedLocationValue v = data.get(j);
+                double area = Math.abs((p.timestamp-avgTime)*(v.value-p.value)
+                        -(p.timestamp-v.timestamp)*(avgValue-p.value));
+                if(area > maxArea) {
+                    maxArea = area;
+                    maxIdx = j;
+                }
+            }
+            selected = maxIdx;
+            ret.add(data.get(selected));
+        }
+        ret.add(data.lastElement());
+        return ret;
+    }
+
+    private static int getColumn(long timestamp, long startTime, long timeSpan, int numColumns) {
+        return (int)((double)(timestamp-startTime)/(double)timeSpan*numColumns);
+    }
+
+}
@@ -19,12 +19,16 @@ package ch.ethz.vizzly.util;
 import org.apache.log4j.Logger;
 
 import ch.ethz.vizzly.datatype.readings.Location;
+import ch.ethz.vizzly.datatype.readings.LocationBounds;
 import ch.ethz.vizzly.datatype.readings.LocationValue;
 import ch.ethz.vizzly.datatype.readings.LocationValueAggregate;
 import ch.ethz.vizzly.datatype.readings.ValueAggregate;
 
 /**
- * This class implements a grid that is used for generating aggregated 2D maps.
+ * This class implements a grid that is used for generating aggregated 2D maps. The sums
+ * and numbers of values are kept in flat primitive arrays with one position per cell.
+ * Grids with the same geometry can be filled independently and merged afterwards. If the
+ * grid crosses the dateline, longitudes west of it are continued beyond 180 degrees.
  * @author Matthias Keller
  *
  */
@@ -40,6 +44,9 @@ public class LocationAggregationGrid {
     private double latNE = 0.0;
     private double lngNE = 0.0;
     
+    /* Eastern border, larger than 180 degrees if the grid crosses the dateline */
+    private double lngEast = 0.0;
+    
     /* Grid cell spacing */
     private double distLng = 0.0;
     private double distLat = 0.0;
@@ -48,9 +55,11 @@ public class LocationAggregationGrid {
     private double refLat = 0.0;
     private double refLng = 0.0;
     
-    ValueAggregate[][] aggregatedValues = null;
-    ValueAggregate[][] aggregatedLat = null;
-    ValueAggregate[][] aggregatedLng = null;
+    /* Aggregates per cell, indexed by row*numCols+col */
+    private int[] numSamples = null;
+    private double[] valueSum = null;
+    private double[] latSum = null;
+    private double[] lngSum = null;
     
     @SuppressWarnings("unused")
     private static Logger log = Logger.getLogger(LocationAggregationGrid.class);
@@ -62,51 +71,114 @@ public class LocationAggregationGrid {
         this.lngNE = lngNE;
         this.numRows = numRows;
         this.numCols = numCols;
-        aggregatedValues = new ValueAggregate[numRows][numCols];
-        aggregatedLat = new ValueAggregate[numRows][numCols];
-        aggregatedLng = new ValueAggregate[numRows][numCols];
-        
-        for(int i=0; i < numRows; i++) {
-            for(int j=0; j < numCols; j++) {
-                aggregatedValues[i][j] = new ValueAggregate();
-                aggregatedLat[i][j] = new ValueAggregate();
-                aggregatedLng[i][j] = new ValueAggregate();
-            }
-        }
+        numSamples = new int[numRows*numCols];
+        valueSum = new double[numRows*numCols];
+        latSum = new double[numRows*numCols];
+        lngSum = new double[numRows*numCols];
         distLat = (latNE-latSW)/numRows;
-        distLng = (lngNE-lngSW)/numCols;
+        lngEast = (lngNE < lngSW) ? lngNE+360.0 : lngNE;
+        distLng = (lngEast-lngSW)/numCols;
         refLat = Math.floor(latSW/distLat)*distLat;
         refLng = Math.floor(lngSW/distLng)*distLng;
     }
     
-    public void addValue(LocationValue v) {
-        if(v.location.latitude >= latNE || v.location.latitude < latSW) {
-            return;
+    /**
+     * Returns an empty grid with the same boundaries and dimensions.
+     */
+    public LocationAggregationGrid createEmptyCopy() {
+        return new LocationAggregationGrid(latSW, lngSW, latNE, lngNE, numRows, numCols);
+    }
+    
+    private double unwrapLongitude(double longitude) {
+        if(lngNE < lngSW && longitude < lngSW) {
+            return longitude+360.0;
+        }
+        return longitude;
+    }
+    
+    /* Index of the cell that contains the location, -1 if the location is outside of the grid */
+    private int getCellIdx(double latitude, double longitude) {
+        if(latitude >= latNE || latitude < latSW) {
+            return -1;
         }
-        if(v.location.longitude >= lngNE || v.location.longitude < lngSW) {
-            return;
+        longitude = unwrapLongitude(longitude);
+        if(longitude >= lngEast || longitude < lngSW) {
+            return -1;
         }
-        int row = (int)Math.floor((v.location.latitude-refLat)/distLat);
-        int col = (int)Math.floor((v.location.longitude-refLng)/distLng);
+        int row = (int)Math.floor((latitude-refLat)/distLat);
+        int col = (int)Math.floor((longitude-refLng)/distLng);
         if(row < numRows && col < numCols) {
-            aggregatedValues[row][col].addValue(v.value);
-            aggregatedLat[row][col].addValue(v.location.latitude);
-            aggregatedLng[row][col].addValue(v.location.longitude);
+            return row*numCols+col;
         }
+        return -1;
+    }
+    
+    public void addValue(LocationValue v) {
+        addValue(v.location.latitude, v.location.longitude, v.value);
+    }
+    
+    public void addValue(double latitude, double longitude, double value) {
+        int idx = getCellIdx(latitude, longitude);
+        if(idx != -1) {
+            numSamples[idx]++;
+            valueSum[idx] += value;
+            latSum[idx] += latitude;
+            lngSum[idx] += unwrapLongitude(longitude);
+        }
+    }
+    
+    /**
+     * Adds pre-aggregated values to the cell that contains the given location.
+     */
+    public void addAggregate(double latitude, double longitude, double valueSum, double latitudeSum, 
+            double longitudeSum, int numSamples) {
+        int idx = getCellIdx(latitude, longitude);
+        if(idx != -1) {
+            this.numSamples[idx] += numSamples;
+            this.valueSum[idx] += valueSum;
+            latSum[idx] += latitudeSum;
+            lngSum[idx] += longitudeSum+(unwrapLongitude(longitude)-longitude)*numSamples;
+        }
+    }
+    
+    /**
+     * Adds the aggregates of another grid, which must have been created by createEmptyCopy().
+     */
+    public void merge(LocationAggregationGrid other) {
+        if(other.numSamples.length != numSamples.length) {
+            throw new IllegalArgumentException("Grid dimensions do not match.");
+        }
+        for(int i = 0; i < numSamples.length; i++) {
+            numSamples[i] += other.numSamples[i];
+            valueSum[i] += other.valueSum[i];
+            latSum[i] += other.latSum[i];
+            lngSum[i] += other.lngSum[i];
+        }
+    }
+    
+    public LocationBounds getBounds() {
+        return new LocationBounds(latSW, lngSW, latNE, lngNE);
+    }
+    
+    public double getCellLongitudeSpan() {
+        return distLng;
     }
     
     public LocationValueAggregate[] getAggregatedData() {
         LocationValueAggregate[] ret = new LocationValueAggregate[numRows*numCols];
-        for(int i=0; i < numRows; i++) {
-            for(int j=0; j < numCols; j++) {
-                int idx = (i*numCols)+j;
-                if(aggregatedValues[i][j].getNumSamples() == 0) {
-                    ret[idx] = null;
-                    continue;
-                }
-                Location l = new Location(aggregatedLat[i][j].getAggregatedValue(), aggregatedLng[i][j].getAggregatedValue());
-                ret[idx] = new LocationValueAggregate(aggregatedValues[i][j], l);
+        for(int idx = 0; idx < ret.length; idx++) {
+            if(numSamples[idx] == 0) {
+                ret[idx] = null;
+                continue;
+            }
+            ValueAggregate agg = new ValueAggregate();
+            agg.addValues(valueSum[idx], numSamples[idx]);
+            double lng = lngSum[idx]/numSamples[idx];
+            if(lng >= 180.0 && lngNE < lngSW) {
+                lng -= 360.0;
             }
+            Location l = new Location(latSum[idx]/numSamples[idx], lng);
+            ret[idx] = new LocationValueAggregate(agg, l);
         }
         return ret;
     }
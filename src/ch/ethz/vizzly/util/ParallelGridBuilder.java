@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import ch.ethz.vizzly.datatype.readings.TimedLocationValue;
+
+/**
+ * This class fills a LocationAggregationGrid from a large number of values using all
+ * available cores. The values are split into contiguous partitions, each of which is
+ * aggregated into a separate grid. The partial grids are merged into the target grid
+ * at the end. Small inputs are aggregated by the calling thread. The threads are owned
+ * by the instance and stopped by shutdown().
+ * @author Matthias Keller
+ *
+ */
+public class ParallelGridBuilder {
+
+    /* Inputs with fewer values are not worth the overhead of splitting */
+    public static final int PARALLEL_THRESHOLD = 50000;
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static Logger log = Logger.getLogger(ParallelGridBuilder.class);
+
+    private final ExecutorService executor;
+
+    public ParallelGridBuilder() {
+        executor = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ParallelGridBuilder-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Adds all values that contain location information to the grid.
+     */
+    public void addValues(final LocationAggregationGrid grid, List<TimedLocationValue> data) {
+        // Copy references once so that the partitions do not contend on a synchronized list
+        final TimedLocationValue[] values = data.toArray(new TimedLocationValue[data.size()]);
+        if(values.length < PARALLEL_THRESHOLD || NUM_THREADS < 2) {
+            addValues(grid, values, 0, values.length);
+            return;
+        }
+        int partitionSize = (values.length+NUM_THREADS-1)/NUM_THREADS;
+        ArrayList<Future<LocationAggregationGrid>> partitions = new ArrayList<Future<LocationAggregationGrid>>();
+        for(int start = 0; start < values.length; start += partitionSize) {
+            final int from = start;
+            final int to = Math.min(start+partitionSize, values.length);
+            partitions.add(executor.submit(new Callable<LocationAggregationGrid>() {
+                public LocationAggregationGrid call() {
+                    LocationAggregationGrid partial = grid.createEmptyCopy();
+                    addValues(partial, values, from, to);
+                    return partial;
+                }
+            }));
+        }
+        // Only merge once all partitions succeeded, so that a failure does not add values twice
+        ArrayList<LocationAggregationGrid> partials = new ArrayList<LocationAggregationGrid>(partitions.size());
+        try {
+            for(Future<LocationAggregationGrid> f : partitions) {
+                partials.add(f.get());
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error(e);
+            addValues(grid, values, 0, values.length);
+            return;
+        } catch(ExecutionException e) {
+            log.error(e);
+            addValues(grid, values, 0, values.length);
+            return;
+        }
+        for(LocationAggregationGrid partial : partials) {
+            grid.merge(partial);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static void addValues(LocationAggregationGrid grid, TimedLocationValue[] values, int from, int to) {
+        for(int i = from; i < to; i++) {
+            TimedLocationValue v = values[i];
+            if(v.location != null) {
+                grid.addValue(v.location.latitude, v.location.longitude, v.value);
+            }
+        }
+    }
+
+}
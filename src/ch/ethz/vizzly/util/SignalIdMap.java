@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.util;
+
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ch.ethz.vizzly.datatype.SignalRegistry;
+import ch.ethz.vizzly.datatype.VizzlySignal;
+
+/**
+ * This class implements a map from signals to values that is backed by an array indexed
+ * by the ids of the signal registry. Reads do not lock, modifications are serialized.
+ * It replaces hash maps keyed by VizzlySignal, whose lookups hash and compare several
+ * String fields of the signal. Only adding a value registers the signal, values of
+ * signals whose ids are released are dropped.
+ * @author Matthias Keller
+ *
+ */
+public class SignalIdMap<V> implements SignalRegistry.ReleaseListener {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final SignalRegistry registry = SignalRegistry.getInstance();
+
+    private volatile AtomicReferenceArray<V> values = new AtomicReferenceArray<V>(INITIAL_CAPACITY);
+
+    public SignalIdMap() {
+        registry.addReleaseListener(this);
+    }
+
+    public V get(VizzlySignal signal) {
+        int id = registry.getId(signal);
+        if(id < 0) {
+            return null;
+        }
+        AtomicReferenceArray<V> v = values;
+        V ret = (id < v.length()) ? v.get(id) : null;
+        // The id may have been released and reused while reading
+        return registry.isCurrent(signal, id) ? ret : null;
+    }
+
+    public boolean containsKey(VizzlySignal signal) {
+        return get(signal) != null;
+    }
+
+    public synchronized V put(VizzlySignal signal, V value) {
+        int id = registry.register(signal);
+        ensureCapacity(id+1);
+        return values.getAndSet(id, value);
+    }
+
+    public synchronized V putIfAbsent(VizzlySignal signal, V value) {
+        int id = registry.register(signal);
+        ensureCapacity(id+1);
+        V old = values.get(id);
+        if(old == null) {
+            values.set(id, value);
+        }
+        return old;
+    }
+
+    public synchronized V remove(VizzlySignal signal) {
+        int id = registry.getId(signal);
+        if(id < 0 || id >= values.length()) {
+            return null;
+        }
+        return values.getAndSet(id, null);
+    }
+
+    public synchronized void signalReleased(int id) {
+        if(id < values.length()) {
+            values.set(id, null);
+        }
+    }
+
+    /**
+     * Returns the signals that have a value, in the order of their ids.
+     */
+    public Vector<VizzlySignal> keySet() {
+        Vector<VizzlySignal> ret = new Vector<VizzlySignal>();
+        AtomicReferenceArray<V> v = values;
+        for(int i = 0; i < v.length(); i++) {
+            if(v.get(i) != null) {
+                VizzlySignal s = registry.getSignal(i);
+                if(s != null) {
+                    ret.add(s);
+                }
+            }
+        }
+        return ret;
+    }
+    public Vector<V> values() {
+        Vector<V> ret = new Vector<V>();
+        AtomicReferenceArray<V> v = values;
+        for(int i = 0; i < v.length(); i++) {
+            V e = v.get(i);
+            if(e != null) {
+                ret.add(e);
+            }
+        }
+        return ret;
+    }
+
+    // Must be called while holding the lock of this map
+    private void ensureCapacity(int capacity) {
+        AtomicReferenceArray<V> v = values;
+        if(capacity <= v.length()) {
+            return;
+        }
+        int newLength = Math.max(capacity, 2*v.length());
+        AtomicReferenceArray<V> n = new AtomicReferenceArray<V>(newLength);
+        for(int i = 0; i < v.length(); i++) {
+            n.set(i, v.get(i));
+        }
+        values = n;
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.util;
+
+import ch.ethz.vizzly.datatype.readings.TimedValueCursor;
+
+/**
+ * This class merges several cursors that are sorted by timestamp into a single sequence
+ * that is sorted by timestamp. The cursors are kept in a binary min-heap, hence moving to
+ * the next value takes O(log k) for k cursors, independent of the time span covered by
+ * the values. Values with equal timestamps are returned in the order of the cursors.
+ * @author Matthias Keller
+ *
+ */
+public class TimedValueCursorMerger {
+
+    private final TimedValueCursor[] cursors;
+
+    /* Heap of cursor indexes, ordered by the current timestamp of the cursors */
+    private final int[] heap;
+
+    private final long[] heapTimestamps;
+
+    private int heapSize = 0;
+
+    /**
+     * Positions all cursors on their first value. Null entries are ignored.
+     */
+    public TimedValueCursorMerger(TimedValueCursor[] cursors) {
+        this.cursors = cursors;
+        heap = new int[cursors.length];
+        heapTimestamps = new long[cursors.length];
+        for(int i = 0; i < cursors.length; i++) {
+            if(cursors[i] != null && cursors[i].next()) {
+                heap[heapSize] = i;
+                heapTimestamps[heapSize] = cursors[i].getTimestamp();
+                siftUp(heapSize);
+                heapSize++;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return heapSize == 0;
+    }
+
+    /**
+     * Returns the index of the cursor that is positioned on the value with the smallest timestamp.
+     */
+    public int getCursorIdx() {
+        return heap[0];
+    }
+
+    public long getTimestamp() {
+        return heapTimestamps[0];
+    }
+
+    /**
+     * Returns whether the cursor with the given index has remaining values.
+     */
+    public boolean hasValue(int cursorIdx) {
+        for(int i = 0; i < heapSize; i++) {
+            if(heap[i] == cursorIdx) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the cursor with the smallest timestamp to its next value.
+     */
+    public void next() {
+        TimedValueCursor c = cursors[heap[0]];
+        if(c.next()) {
+            heapTimestamps[0] = c.getTimestamp();
+            siftDown(0);
+        } else {
+            skipCursor();
+        }
+    }
+
+    /**
+     * Drops all remaining values of the cursor with the smallest timestamp.
+     */
+    public void skipCursor() {
+        heapSize--;
+        if(heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapTimestamps[0] = heapTimestamps[heapSize];
+            siftDown(0);
+        }
+    }
+
+    private boolean isLess(int a, int b) {
+        if(heapTimestamps[a] != heapTimestamps[b]) {
+            return heapTimestamps[a] < heapTimestamps[b];
+        }
+        return heap[a] < heap[b];
+    }
+
+    private void siftUp(int pos) {
+        while(pos > 0) {
+            int parent = (pos-1) >>> 1;
+            if(!isLess(pos, parent)) {
+                break;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        while(true) {
+            int smallest = pos;
+            int left = 2*pos+1;
+            int right = left+1;
+            if(left < heapSize && isLess(left, smallest)) {
+                smallest = left;
+            }
+            if(right < heapSize && isLess(right, smallest)) {
+                smallest = right;
+            }
+            if(smallest == pos) {
+                break;
+            }
+            swap(pos, smallest);
+            pos = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int idx = heap[a];
+        heap[a] = heap[b];
+        heap[b] = idx;
+        long ts = heapTimestamps[a];
+        heapTimestamps[a] = heapTimestamps[b];
+        heapTimestamps[b] = ts;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 ETH Zurich, Computer Engineering and Networks Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.ethz.vizzly.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.ethz.vizzly.datatype.readings.Location;
+import ch.ethz.vizzly.datatype.readings.TimedValueSink;
+import ch.ethz.vizzly.datatype.readings.ValueAggregate;
+
+/**
+ * This class implements a sink that aggregates time-ordered values into windows of a
+ * fixed length while they are streamed in, and forwards one value per window (or per
+ * window and location) to another sink. It computes the same aggregates as the
+ * functions in DataAggregationUtil without holding the input in memory.
+ * @author Matthias Keller
+ *
+ */
+public class WindowAggregationSink extends TimedValueSink {
+
+    private final TimedValueSink target;
+
+    private final long windowLengthMilli;
+
+    private final Boolean ignoreLocation;
+
+    private long curTime = -1;
+
+    private final ValueAggregate valueAgg = new ValueAggregate();
+
+    private final LinkedHashMap<Location, ValueAggregate> locationAgg = new LinkedHashMap<Location, ValueAggregate>();
+
+    /**
+     * @param ignoreLocation If true, values of a window are aggregated regardless of their location
+     */
+    public WindowAggregationSink(TimedValueSink target, int windowLengthSec, Boolean ignoreLocation) {
+        this.target = target;
+        this.windowLengthMilli = (long)windowLengthSec*1000L;
+        this.ignoreLocation = ignoreLocation;
+    }
+
+    private void startWindow(long timestamp) {
+        long truncTime = TimestampTruncateUtil.truncate(timestamp, windowLengthMilli);
+        if(curTime != -1 && truncTime != curTime) {
+            emitWindow();
+        }
+        curTime = truncTime;
+    }
+
+    private void emitWindow() {
+        if(valueAgg.getNumSamples() > 0) {
+            target.add(curTime, valueAgg.getAggregatedValue());
+            valueAgg.reset();
+        }
+        if(locationAgg.size() > 0) {
+            for(Map.Entry<Location, ValueAggregate> e : locationAgg.entrySet()) {
+                target.add(curTime, e.getValue().getAggregatedValue(), e.getKey().latitude, e.getKey().longitude);
+            }
+            locationAgg.clear();
+        }
+    }
+
+    public void add(long timestamp, double value) {
+        startWindow(timestamp);
+        valueAgg.addValue(value);
+    }
+
+    public void add(long timestamp, double value, double locationLat, double locationLng) {
+        if(ignoreLocation) {
+            add(timestamp, value);
+            return;
+        }
+        startWindow(timestamp);
+        Location l = DataAggregationUtil.decreaseLocationAccuracy(new Location(locationLat, locationLng), 4);
+        ValueAggregate vAgg = locationAgg.get(l);
+        if(vAgg == null) {
+            vAgg = new ValueAggregate();
+            locationAgg.put(l, vAgg);
+        }
+        vAgg.addValue(value);
+    }
+
+    public void finish() {
+        emitWindow();
+        target.finish();
+    }
+
+}
@@ -71,6 +71,7 @@ for(int i = 0; i < cacheManager.getNumberOfCaches(); i++) {
 <tr><td><%=cacheManager.getCacheDescription(i)%> # of Requests:</td><td><%=cacheManager.getNumberOfCacheRequests(i)%></tr>
 <tr><td><%=cacheManager.getCacheDescription(i)%> # of Hits:</td><td><%=cacheManager.getNumberOfCacheHits(i)%></tr>
 <tr><td><%=cacheManager.getCacheDescription(i)%> # of Misses:</td><td><%=cacheManager.getNumberOfCacheMisses(i)%></tr>
+<tr><td><%=cacheManager.getCacheDescription(i)%> # of Evictions:</td><td><%=cacheManager.getNumberOfEvictions(i)%></tr>
 <tr><td><a href="#contents-<%=i%>"><%=cacheManager.getCacheDescription(i)%> Cache Contents</a></tr>
 <%
 }
@@ -142,12 +143,15 @@ if(request.getParameter("s") == null || request.getParameter("s").equals("NAME")
     comp = CachedDataInfo.getComparator(CachedDataInfo.SortParameter.LAST_UPDATE_DESCENDING);
 } else if(request.getParameter("s").equals("HITS")) {
     comp = CachedDataInfo.getComparator(CachedDataInfo.SortParameter.HITS_DESCENDING);
+} else if(request.getParameter("s").equals("ACCESS_SCORE")) {
+    comp = CachedDataInfo.getComparator(CachedDataInfo.SortParameter.ACCESS_SCORE_DESCENDING);
 } else {
     // Should actually never happen, but users can be funny ...
     comp = CachedDataInfo.getComparator(CachedDataInfo.SortParameter.NAME_ASCENDING);
 }
 
 SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+DecimalFormat scoreFormat = new DecimalFormat("#.##");
 
 %>
 <div style="padding-top: 40px">
@@ -170,6 +174,7 @@ for(int i = 0; i < cacheManager.getNumberOfCaches(); i++) {
     <td class="w160"><a class="white" href="?s=LAST_PACKET_TIMESTAMP">LAST TIMESTAMP</a></td>
     <td class="w160"><a class="white" href="?s=LAST_UPDATE">LAST UPDATE</a></td>
     <td><a class="white" href="?s=HITS">HITS</a></td>
+    <td><a class="white" href="?s=ACCESS_SCORE">SCORE</a></td>
 </tr>
 <%
     Vector<CachedDataInfo> cacheInfo = cacheManager.getCachedDataInfo(i);
@@ -197,13 +202,14 @@ for(int i = 0; i < cacheManager.getNumberOfCaches(); i++) {
     <td class="right"><%=((d.lastPacketTimestamp != null) ? dateFormatter.format(d.lastPacketTimestamp) : "")%></td>
     <td class="right"><%=((d.lastUpdate != null) ? dateFormatter.format(d.lastUpdate) : "")%></td>
     <td class="right"><%=d.hits%></td>
+    <td class="right"><%=scoreFormat.format(d.accessScore)%></td>
 </tr>
 <%  } 
     double cacheSizeMb = (double)totalElements/1024/1024;
     DecimalFormat df = new DecimalFormat("#.###");
 %>
     <tr style="background-color: #000000; color: #ffffff; font-weight: bold">
-        <td colspan="8">Number of entries: <%=cacheInfo.size()%> / Size of cached data: <%=df.format(cacheSizeMb)%> MByte</td>
+        <td colspan="9">Number of entries: <%=cacheInfo.size()%> / Size of cached data: <%=df.format(cacheSizeMb)%> MByte</td>
     </tr>
 </table>
 <input type="submit" value="Submit">
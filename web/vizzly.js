@@ -999,6 +999,10 @@ function VizzlyDygraph() {
             queryStr += '&forceLoadUnaggregated';
             this.forceLoadUnaggregated = false;
         }
+        // Optional server-side reduction of unaggregated data ('m4' or 'lttb')
+        if(this.config.downsample != null) {
+            queryStr += '&downsample='+this.config.downsample;
+        }
         queryStr += '&canvasWidth='+this.element.offsetWidth;
         return queryStr;
     };